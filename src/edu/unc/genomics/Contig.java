@@ -4,7 +4,8 @@ import java.util.Arrays;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.util.ArithmeticUtils;
+
+import edu.unc.genomics.util.WeightedSummaryStatistics;
 
 /**
  * A contiguous block of values in the genome
@@ -69,6 +70,25 @@ public class Contig extends Interval {
     this(chr, start, stop, null);
   }
 
+  /**
+   * Create a Contig without an array of values, for subclasses that store
+   * their values in another form (such as RunLengthContig). Subclasses must
+   * override all of the methods that access the array.
+   * 
+   * @param chr
+   *          the chromosome of the interval
+   * @param start
+   *          the start base pair of the interval
+   * @param stop
+   *          the stop base pair of the interval
+   * @param span
+   *          the number of base pairs of each value
+   */
+  protected Contig(String chr, int start, int stop, int span) {
+    super(chr, start, stop);
+    this.span = span;
+  }
+
   /**
    * Copy a subset of data from this Contig into a new Contig. If the Contig is
    * not for this interval, then null is returned. If the specified start-stop
@@ -102,6 +122,13 @@ public class Contig extends Interval {
     return new Contig(getChr(), start, stop, get(start, stop));
   }
   
+  /**
+   * @return the number of base pairs covered by each value
+   */
+  public int getSpan() {
+    return span;
+  }
+
   public int actualNumberOfValues() {
     return (int) Math.ceil(((float) length()) / span);
   }
@@ -242,7 +269,7 @@ public class Contig extends Interval {
       throw new ContigException(bp + " is outside the range of this Contig");
     }
 
-    values[(bp - low())/span] = value;
+    values[Math.abs(bp - getStart()) / span] = value;
     // Invalidate stats if they have previously been computed
     if (stats != null) {
       stats = null;
@@ -262,15 +289,28 @@ public class Contig extends Interval {
     return stats;
   }
 
-  private void computeStats() {
-    stats = new SummaryStatistics();
-    for (float v : values) {
-      if (!Float.isNaN(v) && !Float.isInfinite(v)) {
-        for (int i = 0; i < span; i++) {
-          stats.addValue(v);
-        }
-      }
+  /**
+   * Get summary statistics for the result of this Wig query, computing them
+   * with multiple threads if they have not already been computed
+   * 
+   * @param threads
+   *          the number of threads to use
+   * @return SummaryStatistics for the data
+   */
+  public SummaryStatistics getStats(int threads) {
+    // Subclasses without a values array compute their own statistics
+    if (stats == null && values != null) {
+      stats = WeightedSummaryStatistics.of(values, span, threads);
     }
+
+    return getStats();
+  }
+
+  private void computeStats() {
+    // Each value covers span base pairs
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    stats.addValues(values, 0, values.length, span);
+    this.stats = stats;
   }
 
   /**
@@ -338,15 +378,22 @@ public class Contig extends Interval {
     return (float) getStats().getMax();
   }
 
+  /**
+   * Analyze the layout of the data in this Contig, in a single pass
+   * 
+   * @return the layout of the data in this Contig
+   */
+  public ContigLayout getLayout() {
+    return new ContigLayout(this);
+  }
+
   /**
    * Get a fixedStep header for this Contig
    * 
    * @return a fixedStep header line for a Wig file
    */
   public String getFixedStepHeader() {
-    int actualSpan = Math.min(getMinSpan(), getMinStep());
-    return Contig.Type.FIXEDSTEP.getId() + " chrom=" + getChr() + " start=" + getFirstBaseWithData() + " span="
-        + actualSpan + " step=" + getMinStep();
+    return getLayout().getFixedStepHeader();
   }
 
   /**
@@ -355,7 +402,7 @@ public class Contig extends Interval {
    * @return a variableStep header line for a Wig file
    */
   public String getVariableStepHeader() {
-    return Contig.Type.VARIABLESTEP.getId() + " chrom=" + getChr() + " span=" + getVariableStepSpan();
+    return getLayout().getVariableStepHeader();
   }
 
   /**
@@ -384,66 +431,20 @@ public class Contig extends Interval {
    * @return the minimum span size for this Contig
    */
   public int getMinSpan() {
-    int minSpan = length();
-    int span = this.span;
-    int firstbp = getFirstBaseWithData();
-    float prevValue = get(firstbp);
-    for (int bp = firstbp + 1; bp <= high(); bp += this.span) {
-      float value = get(bp);
-      if (value == prevValue) {
-        span++;
-      } else {
-        if (!Float.isNaN(prevValue) && span < minSpan) {
-          minSpan = span;
-        }
-
-        if (minSpan <= this.span) {
-          break;
-        }
-
-        prevValue = value;
-        span = this.span;
-      }
-    }
-
-    return minSpan;
+    return getLayout().getMinSpan();
   }
 
   /**
-   * Pass through the data again to check that all values can be resolved with
-   * minSpan For an example why this is necessary, see the unit test
-   * VariableStepContigTest Essentially, all spans must be integer multiples of
-   * minSpan, or else we have to shrink to the greatest common denominator.
+   * Check that all values can be resolved with minSpan For an example why this
+   * is necessary, see the unit test VariableStepContigTest Essentially, all
+   * spans must be integer multiples of minSpan, or else we have to shrink to
+   * the greatest common denominator.
    * 
    * @return the span size that must be used if this Contig is written in
    *         variableStep format
    */
   public int getVariableStepSpan() {
-    int minSpan = getMinSpan();
-    int span = this.span;
-    int firstbp = getFirstBaseWithData();
-    float prevValue = get(firstbp);
-    for (int bp = firstbp + 1; bp <= high(); bp += this.span) {
-      float value = get(bp);
-      if (value == prevValue) {
-        span++;
-      } else {
-        if (!Float.isNaN(prevValue)) {
-          if (span % minSpan > 0) {
-            minSpan = ArithmeticUtils.gcd(span, minSpan);
-          }
-        }
-
-        if (minSpan <= this.span) {
-          break;
-        }
-
-        prevValue = value;
-        span = this.span;
-      }
-    }
-
-    return minSpan;
+    return getLayout().getVariableStepSpan();
   }
 
   /**
@@ -452,70 +453,14 @@ public class Contig extends Interval {
    * @return the minimum step size for this contig
    */
   public int getMinStep() {
-    if (!isFixedStep()) {
-      return span;
-    }
-
-    // Since the Contig must have fixed step size, find the first step size
-    return getFirstStep();
-  }
-
-  /**
-   * Get the step size between the first two unique data values
-   * 
-   * @return the step (in bp) from the first data value to the second data value
-   */
-  private int getFirstStep() {
-    int firstbp = getFirstBaseWithData();
-    float firstValue = get(firstbp);
-    boolean passedNaN = false;
-    int bp;
-    for (bp = firstbp + 1; bp <= high(); bp += this.span) {
-      float nextValue = get(bp);
-      if (Float.isNaN(nextValue)) {
-        passedNaN = true;
-      } else if (nextValue != firstValue || passedNaN) {
-        break;
-      }
-    }
-
-    return bp - firstbp;
+    return getLayout().getMinStep();
   }
 
   /**
    * @return true if this Contig is fixedStep, i.e. regularly spaced data values
    */
   public boolean isFixedStep() {
-    int bp = getFirstBaseWithData();
-    int prevbp = bp;
-    float prevValue = get(prevbp);
-    int firstStep = getFirstStep();
-    while (bp < high()) {
-      boolean passedNaN = false;
-      for (bp = prevbp + 1; bp <= high(); bp++) {
-        float nextValue = get(bp);
-        if (Float.isNaN(nextValue)) {
-          passedNaN = true;
-        } else if (nextValue != prevValue || passedNaN) {
-          break;
-        }
-      }
-
-      if (bp > high()) {
-        break;
-      }
-
-      int step = bp - prevbp;
-      // Can have multiple spans of the same value in a row
-      if (step % firstStep > 0) {
-        return false;
-      }
-
-      prevbp = bp;
-      prevValue = get(bp);
-    }
-
-    return true;
+    return getLayout().isFixedStep();
   }
   
   /**
@@ -0,0 +1,175 @@
+package edu.unc.genomics;
+
+import org.apache.commons.math3.util.ArithmeticUtils;
+
+/**
+ * The layout of the data in a Contig: where the data starts, how many base
+ * pairs have data, and the spans and steps that resolve all of its values.
+ * These determine whether a Contig is written to a Wig file in fixedStep or
+ * variableStep format, and with what resolution.
+ *
+ * All of the properties are computed together in a single pass through the
+ * Contig. The layout is a snapshot, so it is not updated if the Contig is
+ * modified.
+ *
+ * @author timpalpant
+ *
+ */
+public class ContigLayout {
+
+  /** Number of base pairs to get from the Contig at a time */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final String chr;
+  private final int length;
+  private final int span;
+  private int firstBaseWithData;
+  private long coverage;
+  private int minSpan;
+  private int variableStepSpan;
+  private int firstStep;
+  private boolean fixedStep = true;
+
+  /**
+   * Analyze the layout of the data in a Contig
+   *
+   * @param contig
+   *          the Contig to analyze
+   */
+  ContigLayout(Contig contig) {
+    this.chr = contig.getChr();
+    this.length = contig.length();
+    this.span = contig.getSpan();
+
+    // Each run of equal values (by ==, so every NaN is its own run) ends at the
+    // next change of value. Only runs that end within the Contig are used to
+    // determine the span, and steps are measured between the first base pairs
+    // of runs with data.
+    int runStart = -1;
+    float runValue = Float.NaN;
+    int firstRunWithData = -1, secondRunWithData = -1, lastRunWithData = -1;
+    int minRun = Integer.MAX_VALUE, runGcd = 0;
+    for (int from = contig.low(); from <= contig.high(); from += CHUNK_SIZE) {
+      int to = (int) Math.min(contig.high(), (long) from + CHUNK_SIZE - 1);
+      float[] chunk = contig.get(from, to);
+      for (int i = 0; i < chunk.length; i++) {
+        float value = chunk[i];
+        if (value - value == 0) {
+          coverage++;
+        }
+        if (value == runValue) {
+          continue;
+        }
+
+        int bp = from + i;
+        if (runStart >= 0 && !Float.isNaN(runValue)) {
+          int runLength = bp - runStart;
+          minRun = Math.min(minRun, runLength);
+          runGcd = ArithmeticUtils.gcd(runGcd, runLength);
+        }
+
+        runStart = bp;
+        runValue = value;
+        if (!Float.isNaN(value)) {
+          if (firstRunWithData < 0) {
+            firstRunWithData = bp;
+          } else if (secondRunWithData < 0) {
+            secondRunWithData = bp;
+          } else if ((bp - lastRunWithData) % (secondRunWithData - firstRunWithData) > 0) {
+            fixedStep = false;
+          }
+          lastRunWithData = bp;
+        }
+      }
+    }
+
+    firstBaseWithData = (firstRunWithData < 0) ? contig.high() : firstRunWithData;
+    minSpan = (runGcd > 0) ? minRun : length;
+    variableStepSpan = (runGcd > 0) ? runGcd : length;
+    if (secondRunWithData < 0) {
+      firstStep = contig.high() + 1 - firstBaseWithData;
+    } else {
+      firstStep = secondRunWithData - firstRunWithData;
+    }
+  }
+
+  /**
+   * @return the lowest base pair with a data value (not NaN), or the last base
+   *         pair of the Contig if it does not have any data
+   */
+  public int getFirstBaseWithData() {
+    return firstBaseWithData;
+  }
+
+  /**
+   * @return the number of base pairs with finite data values
+   */
+  public long coverage() {
+    return coverage;
+  }
+
+  /**
+   * @return the fraction of the base pairs in the Contig that have data
+   */
+  public float density() {
+    return ((float) coverage) / length;
+  }
+
+  /**
+   * @return the shortest run of equal data values in the Contig
+   */
+  public int getMinSpan() {
+    return minSpan;
+  }
+
+  /**
+   * All runs of data values must be integer multiples of the span of a
+   * variableStep contig, so this is the greatest common divisor of their
+   * lengths
+   *
+   * @return the span to use if the Contig is written in variableStep format
+   */
+  public int getVariableStepSpan() {
+    return variableStepSpan;
+  }
+
+  /**
+   * @return the step between data values if the Contig is fixedStep, or its
+   *         span otherwise
+   */
+  public int getMinStep() {
+    return fixedStep ? firstStep : span;
+  }
+
+  /**
+   * @return true if the data values of the Contig are regularly spaced
+   */
+  public boolean isFixedStep() {
+    return fixedStep;
+  }
+
+  /**
+   * @return true if the Contig is more compactly written in variableStep
+   *         format than fixedStep format
+   */
+  public boolean isVariableStep() {
+    return density() < 0.55 || getVariableStepSpan() > getMinStep();
+  }
+
+  /**
+   * @return a fixedStep header line for a Wig file
+   */
+  public String getFixedStepHeader() {
+    int actualSpan = Math.min(getMinSpan(), getMinStep());
+    return Contig.Type.FIXEDSTEP.getId() + " chrom=" + chr + " start=" + getFirstBaseWithData() + " span="
+        + actualSpan + " step=" + getMinStep();
+  }
+
+  /**
+   * @return a variableStep header line for a Wig file
+   */
+  public String getVariableStepHeader() {
+    return Contig.Type.VARIABLESTEP.getId() + " chrom=" + chr + " span=" + getVariableStepSpan();
+  }
+
+}
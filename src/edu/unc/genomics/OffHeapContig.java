@@ -0,0 +1,466 @@
+package edu.unc.genomics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.util.WeightedSummaryStatistics;
+
+/**
+ * A Contig that stores its values outside of the Java heap, in fixed-size
+ * chunks of direct memory. Chromosome-scale Contigs can then be held without a
+ * large heap, and without the long GC pauses caused by huge arrays.
+ *
+ * Chunks are only allocated when a value is set in them, so chunks without any
+ * data do not use memory. The memory is released when the Contig is closed (or
+ * when it is garbage collected, if it is not closed), after which its values
+ * cannot be accessed. Closing waits for any accesses in progress on other
+ * threads, so the memory is never freed while it is being used. An
+ * OffHeapContig cannot be serialized.
+ *
+ * @author timpalpant
+ *
+ */
+public class OffHeapContig extends Contig implements Closeable {
+
+  private static final long serialVersionUID = -2189645510327425398L;
+
+  private static final Logger log = Logger.getLogger(OffHeapContig.class);
+
+  /** Default number of values in each chunk (4 MB) */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  private final int chunkSize;
+  // The direct memory of each chunk (or null if it hasn't been allocated), and
+  // a view of it as floats
+  private transient ByteBuffer[] chunks;
+  private transient FloatBuffer[] values;
+  // Computed under the read lock, so it is only published once complete
+  private volatile WeightedSummaryStatistics stats;
+  // Accesses to the chunks hold the read lock, and close() the write lock
+  private final transient ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Create a new OffHeapContig for an interval, without any data (NaN)
+   *
+   * @param interval
+   *          the interval of the Contig
+   */
+  public OffHeapContig(Interval interval) {
+    this(interval.getChr(), interval.getStart(), interval.getStop());
+  }
+
+  /**
+   * Create a new OffHeapContig for the interval chr:start-stop, without any
+   * data (NaN)
+   *
+   * @param chr
+   *          the chromosome of the interval
+   * @param start
+   *          the start base pair of the interval
+   * @param stop
+   *          the stop base pair of the interval
+   */
+  public OffHeapContig(String chr, int start, int stop) {
+    this(chr, start, stop, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Copy the values of another Contig into a new OffHeapContig
+   *
+   * @param contig
+   *          the Contig to copy
+   */
+  public OffHeapContig(Contig contig) {
+    this(contig.getChr(), contig.getStart(), contig.getStop());
+    for (int low = low(); low <= high(); low += chunkSize) {
+      int high = Math.min(high(), low + chunkSize - 1);
+      float[] chunk = contig.get(low, high);
+      set(low, chunk, 0, chunk.length);
+    }
+  }
+
+  OffHeapContig(String chr, int start, int stop, int chunkSize) {
+    super(chr, start, stop, 1);
+    this.chunkSize = chunkSize;
+    int numChunks = (int) ((length() + (long) chunkSize - 1) / chunkSize);
+    chunks = new ByteBuffer[numChunks];
+    values = new FloatBuffer[numChunks];
+  }
+
+  /**
+   * Release the memory of this Contig. Its values cannot be accessed after it
+   * is closed.
+   */
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      if (chunks == null) {
+        return;
+      }
+
+      ByteBuffer[] allocated = chunks;
+      chunks = null;
+      values = null;
+      for (ByteBuffer chunk : allocated) {
+        if (chunk != null) {
+          free(chunk);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if this Contig has been closed
+   */
+  public boolean isClosed() {
+    return chunks == null;
+  }
+
+  /**
+   * @return the number of bytes of memory allocated for the values
+   */
+  public long allocatedBytes() {
+    lock.readLock().lock();
+    try {
+      long bytes = 0;
+      for (ByteBuffer chunk : chunks()) {
+        if (chunk != null) {
+          bytes += chunk.capacity();
+        }
+      }
+      return bytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copy a subset of data from this Contig into a new OffHeapContig, which
+   * should also be closed when it is no longer needed
+   */
+  @Override
+  public Contig copy(int start, int stop) {
+    OffHeapContig copy = new OffHeapContig(getChr(), start, stop, chunkSize);
+    int low = Math.min(start, stop);
+    for (int from = low; from <= Math.max(start, stop); from += chunkSize) {
+      int to = Math.min(Math.max(start, stop), from + chunkSize - 1);
+      float[] chunk = get(from, to);
+      copy.set(from, chunk, 0, chunk.length);
+    }
+    return copy;
+  }
+
+  @Override
+  public float[] getValues() {
+    return get(getStart(), getStop());
+  }
+
+  @Override
+  public float[] getCondensedValues() {
+    return getValues();
+  }
+
+  @Override
+  public float[] get(int start, int stop) {
+    lock.readLock().lock();
+    try {
+      FloatBuffer[] values = values();
+      float[] result = new float[Math.abs(stop - start) + 1];
+      int low = Math.min(start, stop);
+      int high = Math.max(start, stop);
+      // Fill result in order of base pair, then reverse it for stop < start
+      int from = Math.max(low, low());
+      int to = Math.min(high, high());
+      Arrays.fill(result, Float.NaN);
+      while (from <= to) {
+        int i = from - low();
+        int chunk = i / chunkSize;
+        int n = Math.min(to - from + 1, chunkSize - i % chunkSize);
+        if (values[chunk] != null) {
+          FloatBuffer view = values[chunk].duplicate();
+          view.position(i % chunkSize);
+          view.get(result, from - low, n);
+        }
+        from += n;
+      }
+
+      if (stop < start) {
+        ArrayUtils.reverse(result);
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public float get(int bp) {
+    lock.readLock().lock();
+    try {
+      FloatBuffer[] values = values();
+      if (!includes(bp)) {
+        return Float.NaN;
+      }
+
+      int i = bp - low();
+      FloatBuffer chunk = values[i / chunkSize];
+      return (chunk == null) ? Float.NaN : chunk.get(i % chunkSize);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void set(int bp, float value) throws ContigException {
+    set(bp, bp, value);
+  }
+
+  @Override
+  public void set(int start, int stop, float value) throws ContigException {
+    lock.readLock().lock();
+    try {
+      int low = Math.min(start, stop);
+      int high = Math.max(start, stop);
+      if (!includes(low) || !includes(high)) {
+        throw new ContigException(start + "-" + stop + " is outside the range of this Contig");
+      }
+
+      for (int i = low - low(); i <= high - low();) {
+        int chunk = i / chunkSize;
+        int end = Math.min(high - low(), (chunk + 1) * chunkSize - 1);
+        FloatBuffer view = getChunk(chunk, !Float.isNaN(value));
+        if (view != null) {
+          for (int j = i % chunkSize; j <= end % chunkSize; j++) {
+            view.put(j, value);
+          }
+        }
+        i = end + 1;
+      }
+      stats = null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Set the values of consecutive base pairs
+   *
+   * @param low
+   *          the base pair of the first value
+   * @param newValues
+   *          an array of values, in order of base pair
+   * @param offset
+   *          the index in newValues of the value of low
+   * @param length
+   *          the number of values to set
+   * @throws ContigException
+   *           if any of the base pairs are not within this Contig
+   */
+  public void set(int low, float[] newValues, int offset, int length) throws ContigException {
+    lock.readLock().lock();
+    try {
+      int high = low + length - 1;
+      if (length == 0) {
+        return;
+      } else if (!includes(low) || !includes(high)) {
+        throw new ContigException(low + "-" + high + " is outside the range of this Contig");
+      }
+
+      int k = offset;
+      while (k < offset + length) {
+        int i = low - low() + k - offset;
+        int chunk = i / chunkSize;
+        int n = Math.min(offset + length - k, chunkSize - i % chunkSize);
+        FloatBuffer view = getChunk(chunk, hasData(newValues, k, n));
+        if (view != null) {
+          view = view.duplicate();
+          view.position(i % chunkSize);
+          view.put(newValues, k, n);
+        }
+        k += n;
+      }
+      stats = null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public SummaryStatistics getStats() {
+    lock.readLock().lock();
+    try {
+      FloatBuffer[] values = values();
+      WeightedSummaryStatistics stats = this.stats;
+      if (stats == null) {
+        stats = new WeightedSummaryStatistics();
+        for (FloatBuffer chunk : values) {
+          if (chunk == null) {
+            continue;
+          }
+
+          // Add runs of equal values at once
+          float runValue = Float.NaN;
+          int runLength = 0;
+          for (int i = 0; i < chunk.capacity(); i++) {
+            float v = chunk.get(i);
+            if (Float.compare(v, runValue) == 0) {
+              runLength++;
+            } else {
+              addRun(stats, runValue, runLength);
+              runValue = v;
+              runLength = 1;
+            }
+          }
+          addRun(stats, runValue, runLength);
+        }
+        this.stats = stats;
+      }
+
+      return stats;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static void addRun(WeightedSummaryStatistics stats, float value, int length) {
+    if (!Float.isNaN(value) && !Float.isInfinite(value)) {
+      stats.addValue(value, length);
+    }
+  }
+
+  @Override
+  public int getFirstBaseWithData() {
+    lock.readLock().lock();
+    try {
+      FloatBuffer[] values = values();
+      for (int chunk = 0; chunk < values.length; chunk++) {
+        if (values[chunk] != null) {
+          for (int i = 0; i < values[chunk].capacity(); i++) {
+            if (!Float.isNaN(values[chunk].get(i))) {
+              return low() + chunk * chunkSize + i;
+            }
+          }
+        }
+      }
+
+      return high();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @throws UnsupportedOperationException
+   *           since OffHeapContigs always have single base pair resolution
+   */
+  @Override
+  public void setSpan(int span) {
+    throw new UnsupportedOperationException("Cannot set the span of an OffHeapContig");
+  }
+
+  private static boolean hasData(float[] values, int from, int n) {
+    for (int i = from; i < from + n; i++) {
+      if (!Float.isNaN(values[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the chunks of this Contig
+   * @throws IllegalStateException
+   *           if this Contig has been closed
+   */
+  private ByteBuffer[] chunks() {
+    ByteBuffer[] chunks = this.chunks;
+    if (chunks == null) {
+      throw new IllegalStateException("Contig " + this + " has been closed");
+    }
+    return chunks;
+  }
+
+  /**
+   * @return the float views of the chunks of this Contig
+   * @throws IllegalStateException
+   *           if this Contig has been closed
+   */
+  private FloatBuffer[] values() {
+    FloatBuffer[] values = this.values;
+    if (values == null) {
+      throw new IllegalStateException("Contig " + this + " has been closed");
+    }
+    return values;
+  }
+
+  /**
+   * @return a chunk of this Contig, allocating it (filled with NaN) if it
+   *         doesn't exist and allocate is true, or null otherwise
+   */
+  private synchronized FloatBuffer getChunk(int chunk, boolean allocate) {
+    FloatBuffer[] values = values();
+    if (values[chunk] == null && allocate) {
+      int n = Math.min(chunkSize, length() - chunk * chunkSize);
+      ByteBuffer memory = ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder());
+      FloatBuffer view = memory.asFloatBuffer();
+      for (int i = 0; i < n; i++) {
+        view.put(i, Float.NaN);
+      }
+      chunks[chunk] = memory;
+      values[chunk] = view;
+    }
+    return values[chunk];
+  }
+
+  /**
+   * Release the memory of a direct buffer now, rather than when it is garbage
+   * collected. This uses the JDK's internal cleaner, so the memory is left for
+   * the garbage collector if it is not available.
+   */
+  private static void free(ByteBuffer buffer) {
+    try {
+      // Java 9+
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall through to the Java 7/8 cleaner
+    }
+
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.debug("Cannot release direct memory explicitly, leaving it for the garbage collector");
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    throw new NotSerializableException("OffHeapContig cannot be serialized");
+  }
+
+}
@@ -0,0 +1,252 @@
+package edu.unc.genomics;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+import edu.unc.genomics.util.WeightedSummaryStatistics;
+
+/**
+ * A Contig that stores its values as runs of equal values, rather than as a
+ * dense array with one value per base pair. Sparse data (mostly NaN) and data
+ * with long runs of the same value (e.g. from bedGraph files) only use memory
+ * for each run, and statistics are computed with one update per run.
+ *
+ * Values are accessed as for any other Contig. Setting a range of base pairs
+ * is fastest at the end of the runs, so a RunLengthContig is best built in
+ * order of base pair. Only single base pair resolution is supported.
+ *
+ * @author timpalpant
+ *
+ */
+public class RunLengthContig extends Contig {
+
+  private static final long serialVersionUID = 3012574862716823091L;
+
+  // Run i covers base pairs runStarts[i] to runStarts[i+1]-1 (or high() for the
+  // last run), and adjacent runs have different values
+  private int numRuns;
+  private int[] runStarts;
+  private float[] runValues;
+  private WeightedSummaryStatistics stats;
+
+  /**
+   * Create a new RunLengthContig for an interval, without any data (NaN)
+   *
+   * @param interval
+   *          the interval of the Contig
+   */
+  public RunLengthContig(Interval interval) {
+    this(interval.getChr(), interval.getStart(), interval.getStop());
+  }
+
+  /**
+   * Create a new RunLengthContig for the interval chr:start-stop, without any
+   * data (NaN)
+   *
+   * @param chr
+   *          the chromosome of the interval
+   * @param start
+   *          the start base pair of the interval
+   * @param stop
+   *          the stop base pair of the interval
+   */
+  public RunLengthContig(String chr, int start, int stop) {
+    super(chr, start, stop, 1);
+    numRuns = 1;
+    runStarts = new int[] { low(), 0, 0, 0 };
+    runValues = new float[] { Float.NaN, 0, 0, 0 };
+  }
+
+  /**
+   * Run-length encode the values of another Contig
+   *
+   * @param contig
+   *          the Contig to copy
+   */
+  public RunLengthContig(Contig contig) {
+    this(contig.getChr(), contig.getStart(), contig.getStop());
+    int runStart = low();
+    float runValue = contig.get(runStart);
+    for (int bp = low() + 1; bp <= high(); bp++) {
+      float value = contig.get(bp);
+      if (Float.compare(value, runValue) != 0) {
+        set(runStart, bp - 1, runValue);
+        runStart = bp;
+        runValue = value;
+      }
+    }
+    set(runStart, high(), runValue);
+  }
+
+  /**
+   * @return the number of runs of equal values in this Contig
+   */
+  public int numRuns() {
+    return numRuns;
+  }
+
+  @Override
+  public Contig copy(int start, int stop) {
+    RunLengthContig copy = new RunLengthContig(getChr(), start, stop);
+    int low = Math.max(Math.min(start, stop), low());
+    int high = Math.min(Math.max(start, stop), high());
+    for (int i = (low <= high) ? findRun(low) : numRuns; i < numRuns && runStarts[i] <= high; i++) {
+      if (!Float.isNaN(runValues[i])) {
+        copy.set(Math.max(runStarts[i], low), Math.min(runEnd(i), high), runValues[i]);
+      }
+    }
+    return copy;
+  }
+
+  @Override
+  public float[] getValues() {
+    return get(getStart(), getStop());
+  }
+
+  @Override
+  public float[] getCondensedValues() {
+    return getValues();
+  }
+
+  @Override
+  public float[] get(int start, int stop) {
+    float[] result = new float[Math.abs(stop - start) + 1];
+    Arrays.fill(result, Float.NaN);
+    int low = Math.max(Math.min(start, stop), low());
+    int high = Math.min(Math.max(start, stop), high());
+    for (int i = (low <= high) ? findRun(low) : numRuns; i < numRuns && runStarts[i] <= high; i++) {
+      int from = Math.max(runStarts[i], low);
+      int to = Math.min(runEnd(i), high);
+      if (start <= stop) {
+        Arrays.fill(result, from - start, to - start + 1, runValues[i]);
+      } else {
+        Arrays.fill(result, start - to, start - from + 1, runValues[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public float get(int bp) {
+    if (!includes(bp)) {
+      return Float.NaN;
+    }
+
+    return runValues[findRun(bp)];
+  }
+
+  @Override
+  public void set(int bp, float value) throws ContigException {
+    set(bp, bp, value);
+  }
+
+  @Override
+  public void set(int start, int stop, float value) throws ContigException {
+    int low = Math.min(start, stop);
+    int high = Math.max(start, stop);
+    if (!includes(low) || !includes(high)) {
+      throw new ContigException(start + "-" + stop + " is outside the range of this Contig");
+    }
+
+    // Replace runs i-j with the part of run i before low, the new run, and the
+    // part of run j after high
+    int i = findRun(low);
+    int j = findRun(high);
+    int[] newStarts = new int[3];
+    float[] newValues = new float[3];
+    int n = 0;
+    if (runStarts[i] < low) {
+      newStarts[n] = runStarts[i];
+      newValues[n++] = runValues[i];
+    }
+    newStarts[n] = low;
+    newValues[n++] = value;
+    if (high < runEnd(j)) {
+      newStarts[n] = high + 1;
+      newValues[n++] = runValues[j];
+    }
+
+    int removed = j - i + 1;
+    ensureCapacity(numRuns - removed + n);
+    System.arraycopy(runStarts, j + 1, runStarts, i + n, numRuns - j - 1);
+    System.arraycopy(runValues, j + 1, runValues, i + n, numRuns - j - 1);
+    System.arraycopy(newStarts, 0, runStarts, i, n);
+    System.arraycopy(newValues, 0, runValues, i, n);
+    numRuns += n - removed;
+
+    // Merge the runs around the change that have the same value
+    int k = Math.max(i, 1);
+    int end = Math.min(i + n + 1, numRuns);
+    int merged = 0;
+    for (int r = k; r < numRuns; r++) {
+      if (r < end && Float.compare(runValues[r], runValues[k - 1]) == 0) {
+        merged++;
+      } else {
+        runStarts[k] = runStarts[r];
+        runValues[k++] = runValues[r];
+      }
+    }
+    numRuns -= merged;
+    stats = null;
+  }
+
+  @Override
+  public SummaryStatistics getStats() {
+    if (stats == null) {
+      stats = new WeightedSummaryStatistics();
+      for (int i = 0; i < numRuns; i++) {
+        float v = runValues[i];
+        if (!Float.isNaN(v) && !Float.isInfinite(v)) {
+          stats.addValue(v, runEnd(i) - runStarts[i] + 1);
+        }
+      }
+    }
+
+    return stats;
+  }
+
+  @Override
+  public int getFirstBaseWithData() {
+    for (int i = 0; i < numRuns; i++) {
+      if (!Float.isNaN(runValues[i])) {
+        return runStarts[i];
+      }
+    }
+
+    return high();
+  }
+
+  /**
+   * @throws UnsupportedOperationException
+   *           since RunLengthContigs always have single base pair resolution
+   */
+  @Override
+  public void setSpan(int span) {
+    throw new UnsupportedOperationException("Cannot set the span of a RunLengthContig");
+  }
+
+  /**
+   * @return the index of the run that includes bp
+   */
+  private int findRun(int bp) {
+    int i = Arrays.binarySearch(runStarts, 0, numRuns, bp);
+    return (i >= 0) ? i : -i - 2;
+  }
+
+  /**
+   * @return the last base pair of run i
+   */
+  private int runEnd(int i) {
+    return (i + 1 < numRuns) ? runStarts[i + 1] - 1 : high();
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > runStarts.length) {
+      int newCapacity = Math.max(capacity, 2 * runStarts.length);
+      runStarts = Arrays.copyOf(runStarts, newCapacity);
+      runValues = Arrays.copyOf(runValues, newCapacity);
+    }
+  }
+
+}
@@ -0,0 +1,981 @@
+package edu.unc.genomics.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A decoder for the binary indexed (bbi) format shared by BigWig and BigBed
+ * files. For more information, see: Kent WJ, et al. (2010) BigWig and BigBed:
+ * enabling browsing of large distributed datasets. Bioinformatics
+ * 26(17):2204-2207.
+ *
+ * The header and chromosome B+ tree are parsed when the file is opened, and the
+ * R+ tree indexes of the data and of each zoom level are memory-mapped, so that
+ * queries search them without reading from disk. Data blocks are read with
+ * positional reads of a single FileChannel (so the file may be queried from
+ * multiple threads concurrently), decompressed with pooled Inflaters, and
+ * decoded straight into the primitive arrays of a Records object.
+ *
+ * As in the file, record starts are 0-based and record ends are exclusive.
+ *
+ * @author timpalpant
+ *
+ */
+final class BBIFile implements Closeable {
+
+  private static final Logger log = Logger.getLogger(BBIFile.class);
+
+  static final int BIGWIG_MAGIC = 0x888FFC26;
+  static final int BIGBED_MAGIC = 0x8789F2EB;
+  static final int CHROMOSOME_TREE_MAGIC = 0x78CA8C91;
+  static final int R_TREE_MAGIC = 0x2468ACE0;
+
+  static final int HEADER_SIZE = 64;
+  static final int ZOOM_HEADER_SIZE = 24;
+  static final int SUMMARY_SIZE = 40;
+  static final int CHROMOSOME_TREE_HEADER_SIZE = 32;
+  static final int R_TREE_HEADER_SIZE = 48;
+  static final int ZOOM_RECORD_SIZE = 32;
+  /** The field of BigBed records that is indexed by a name index */
+  static final int NAME_FIELD = 3;
+
+  /** Chromosome ID that selects all of the records in the blocks read */
+  static final int ALL = -1;
+  /** Contiguous blocks are read from disk together, up to this many bytes */
+  private static final int MAX_READ_SIZE = 1 << 20;
+
+  private final Path p;
+  private final FileChannel channel;
+  private final Index index;
+  private final int maxDecoders;
+  private final Deque<Decoder> idle = new ArrayDeque<>();
+  private int numDecoders = 0;
+  private boolean closed = false;
+
+  /**
+   * @param p
+   *          the path to the BigWig or BigBed file
+   * @param maxDecoders
+   *          the maximum number of blocks to decode concurrently
+   * @throws IOException
+   *           if an error occurs while opening the file, or it is not a valid
+   *           BigWig or BigBed file
+   */
+  BBIFile(Path p, int maxDecoders) throws IOException {
+    if (maxDecoders <= 0) {
+      throw new IllegalArgumentException("Number of decoders must be > 0");
+    }
+    this.p = p;
+    this.maxDecoders = maxDecoders;
+    channel = FileChannel.open(p, StandardOpenOption.READ);
+    try {
+      index = new Index(p, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Copy constructor - share the parsed index, but open a new channel
+   *
+   * @param other
+   *          the file to copy
+   * @throws IOException
+   *           if an error occurs while opening the file
+   */
+  BBIFile(BBIFile other) throws IOException {
+    p = other.p;
+    maxDecoders = other.maxDecoders;
+    channel = FileChannel.open(p, StandardOpenOption.READ);
+    index = other.index;
+  }
+
+  /**
+   * @param p
+   *          a file
+   * @return BIGWIG_MAGIC or BIGBED_MAGIC if p is a BigWig or BigBed file, or 0
+   *         otherwise
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  static int sniff(Path p) throws IOException {
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      if (channel.read(buf, 0) < 4) {
+        return 0;
+      }
+      ByteOrder order = getByteOrder(buf.getInt(0));
+      return (order == null) ? 0 : buf.order(order).getInt(0);
+    }
+  }
+
+  /**
+   * @return the byte order of a file with the given magic number (read as
+   *         little-endian), or null if it is not a BigWig or BigBed file
+   */
+  private static ByteOrder getByteOrder(int magic) {
+    if (magic == BIGWIG_MAGIC || magic == BIGBED_MAGIC) {
+      return ByteOrder.LITTLE_ENDIAN;
+    } else if (Integer.reverseBytes(magic) == BIGWIG_MAGIC || Integer.reverseBytes(magic) == BIGBED_MAGIC) {
+      return ByteOrder.BIG_ENDIAN;
+    }
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (idle) {
+      closed = true;
+      for (Decoder d : idle) {
+        d.inflater.end();
+      }
+      numDecoders -= idle.size();
+      idle.clear();
+      idle.notifyAll();
+    }
+    channel.close();
+  }
+
+  /**
+   * @return true if this is a BigWig file
+   */
+  boolean isBigWig() {
+    return index.magic == BIGWIG_MAGIC;
+  }
+
+  /**
+   * @return true if this is a BigBed file
+   */
+  boolean isBigBed() {
+    return index.magic == BIGBED_MAGIC;
+  }
+
+  /**
+   * @return the names of the chromosomes in this file, in the order of the
+   *         chromosome B+ tree
+   */
+  List<String> getChromosomes() {
+    return index.chromosomes;
+  }
+
+  /**
+   * @param chr
+   *          a chromosome name
+   * @return the ID of chr, or null if it is not in this file
+   */
+  Integer getChromosomeID(String chr) {
+    return index.chromosomeIDs.get(chr);
+  }
+
+  /**
+   * @param chrID
+   *          a chromosome ID
+   * @return the name of the chromosome
+   */
+  String getChromosome(int chrID) {
+    return index.chromosomeNames[chrID];
+  }
+
+  /**
+   * @return the (0-based) start of the first data block of a chromosome
+   */
+  int getChromosomeStart(int chrID) {
+    return index.chromosomeStarts[chrID];
+  }
+
+  /**
+   * @return the (exclusive) end of the last data block of a chromosome
+   */
+  int getChromosomeStop(int chrID) {
+    return index.chromosomeStops[chrID];
+  }
+
+  /**
+   * @return the number of records (BigBed) or sections (BigWig) in the file
+   */
+  int getDataCount() {
+    return index.dataCount;
+  }
+
+  long getBasesCovered() {
+    return index.basesCovered;
+  }
+
+  double getMinVal() {
+    return index.minVal;
+  }
+
+  double getMaxVal() {
+    return index.maxVal;
+  }
+
+  double getSumData() {
+    return index.sumData;
+  }
+
+  double getSumSquares() {
+    return index.sumSquares;
+  }
+
+  /**
+   * @return the number of zoom levels in this file
+   */
+  int getNumZoomLevels() {
+    return index.reductionLevels.length;
+  }
+
+  /**
+   * @param level
+   *          a zoom level, from 1 to getNumZoomLevels()
+   * @return the number of base pairs summarized by each record of the level
+   */
+  int getReductionLevel(int level) {
+    return index.reductionLevels[level - 1];
+  }
+
+  /**
+   * @param level
+   *          0 for the data, or a zoom level from 1 to getNumZoomLevels()
+   * @param chrID
+   *          the chromosome to search for, or ALL
+   * @param start
+   *          the (0-based) start of the region to search for
+   * @param end
+   *          the (exclusive) end of the region to search for
+   * @return the blocks of the level that overlap the region, in file order
+   */
+  List<Block> findBlocks(int level, int chrID, int start, int end) {
+    List<Block> blocks = new ArrayList<>();
+    RTree tree = index.trees[level];
+    tree.find(tree.root, chrID, start, end, blocks);
+    return blocks;
+  }
+
+  /**
+   * @return true if this is a BigBed file with an index of the names of its
+   *         records
+   */
+  boolean hasNameIndex() {
+    return index.nameIndex != null;
+  }
+
+  /**
+   * @param name
+   *          the name of a BigBed record
+   * @return the data blocks with records of the name, in file order
+   * @throws UnsupportedOperationException
+   *           if the file does not have a name index
+   */
+  List<Block> findBlocks(String name) {
+    if (!hasNameIndex()) {
+      throw new UnsupportedOperationException("BigBed file " + p + " does not have a name index");
+    }
+    List<Block> blocks = new ArrayList<>();
+    index.nameIndex.find(index.nameIndex.root, name.getBytes(StandardCharsets.US_ASCII), blocks);
+    Collections.sort(blocks, new Comparator<Block>() {
+      @Override
+      public int compare(Block b1, Block b2) {
+        return Long.compare(b1.offset, b2.offset);
+      }
+    });
+    return blocks;
+  }
+
+  /**
+   * Read the records of a level that overlap a region
+   *
+   * @param level
+   *          0 for the data, or a zoom level from 1 to getNumZoomLevels()
+   * @param chrID
+   *          the chromosome to query
+   * @param start
+   *          the (0-based) start of the region to query
+   * @param end
+   *          the (exclusive) end of the region to query
+   * @param records
+   *          the records to append to
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  void query(int level, int chrID, int start, int end, Records records) throws IOException {
+    read(findBlocks(level, chrID, start, end), chrID, start, end, records);
+  }
+
+  /**
+   * Read the records of some blocks that overlap a region
+   *
+   * @param blocks
+   *          the blocks to read, in file order
+   * @param chrID
+   *          the chromosome of the region, or ALL to read all of the records
+   *          of the blocks
+   * @param start
+   *          the (0-based) start of the region
+   * @param end
+   *          the (exclusive) end of the region
+   * @param records
+   *          the records to append to
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  void read(List<Block> blocks, int chrID, int start, int end, Records records) throws IOException {
+    if (blocks.isEmpty()) {
+      return;
+    }
+
+    Decoder d = acquire();
+    try {
+      int i = 0;
+      while (i < blocks.size()) {
+        // Read a run of contiguous blocks at once
+        Block first = blocks.get(i);
+        long runEnd = first.offset + first.size;
+        int j = i + 1;
+        while (j < blocks.size() && blocks.get(j).offset == runEnd
+            && runEnd + blocks.get(j).size - first.offset <= MAX_READ_SIZE) {
+          runEnd += blocks.get(j++).size;
+        }
+
+        d.read(first.offset, (int) (runEnd - first.offset));
+        for (; i < j; i++) {
+          Block b = blocks.get(i);
+          records.decode(d.decode((int) (b.offset - first.offset), b.size), chrID, start, end);
+        }
+      }
+    } finally {
+      release(d);
+    }
+  }
+
+  /**
+   * Borrow a decoder, waiting if the maximum number are in use
+   */
+  private Decoder acquire() throws IOException {
+    synchronized (idle) {
+      while (idle.isEmpty() && numDecoders >= maxDecoders && !closed) {
+        try {
+          idle.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting to read " + p, e);
+        }
+      }
+
+      if (closed) {
+        throw new IOException("File has been closed: " + p);
+      } else if (!idle.isEmpty()) {
+        return idle.pop();
+      }
+      numDecoders++;
+    }
+
+    return new Decoder(index.uncompressBufSize);
+  }
+
+  private void release(Decoder d) {
+    synchronized (idle) {
+      if (closed) {
+        d.inflater.end();
+        numDecoders--;
+      } else {
+        idle.push(d);
+      }
+      idle.notifyAll();
+    }
+  }
+
+  /**
+   * Read bytes from the file into buf, starting at position
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected end of BigWig/BigBed file");
+      }
+    }
+    buf.flip();
+  }
+
+  /**
+   * Reads and decompresses data blocks, reusing its buffers and Inflater
+   */
+  private final class Decoder {
+    final Inflater inflater = new Inflater();
+    final byte[] uncompressed;
+    byte[] compressed = new byte[0];
+
+    Decoder(int uncompressBufSize) {
+      // One extra byte, so that inflating a full block reaches the end of the
+      // stream
+      uncompressed = (uncompressBufSize > 0) ? new byte[uncompressBufSize + 1] : null;
+    }
+
+    /**
+     * Read length bytes of the file, starting at offset
+     */
+    void read(long offset, int length) throws IOException {
+      if (compressed.length < length) {
+        compressed = new byte[length];
+      }
+      readFully(channel, ByteBuffer.wrap(compressed, 0, length), offset);
+    }
+
+    /**
+     * @return the decompressed contents of the block at pos of the last read
+     */
+    ByteBuffer decode(int pos, int size) throws IOException {
+      if (uncompressed == null) {
+        return ByteBuffer.wrap(compressed, pos, size).slice().order(index.order);
+      }
+
+      inflater.reset();
+      inflater.setInput(compressed, pos, size);
+      int length;
+      try {
+        length = inflater.inflate(uncompressed);
+      } catch (DataFormatException e) {
+        throw new IOException("Error decompressing data block of " + p, e);
+      }
+      if (!inflater.finished() || length == uncompressed.length) {
+        throw new IOException("Data block of " + p + " is larger than the maximum block size");
+      }
+      return ByteBuffer.wrap(uncompressed, 0, length).order(index.order);
+    }
+  }
+
+  /**
+   * The parsed header and indexes of a file, which are only read after they
+   * are constructed (so may be shared between threads and copies)
+   */
+  private static final class Index {
+    final int magic;
+    final ByteOrder order;
+    final int uncompressBufSize;
+    final int dataCount;
+    final long basesCovered;
+    final double minVal, maxVal, sumData, sumSquares;
+    final List<String> chromosomes = new ArrayList<>();
+    final Map<String, Integer> chromosomeIDs = new HashMap<>();
+    final String[] chromosomeNames;
+    final int[] chromosomeStarts;
+    final int[] chromosomeStops;
+    final int[] reductionLevels;
+    // The R+ tree of the data (0) and each zoom level
+    final RTree[] trees;
+    // The B+ tree index of the names of BigBed records, or null
+    final NameIndex nameIndex;
+
+    Index(Path p, FileChannel channel) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      order = getByteOrder(header.getInt(0));
+      if (order == null) {
+        throw new IOException("Not a BigWig or BigBed file: " + p);
+      }
+      header.order(order);
+      magic = header.getInt();
+      header.getShort(); // version
+      int numZoomLevels = header.getShort() & 0xFFFF;
+      long chromosomeTreeOffset = header.getLong();
+      long dataOffset = header.getLong();
+      long dataIndexOffset = header.getLong();
+      header.getShort(); // field count
+      header.getShort(); // defined field count
+      header.getLong(); // autoSql offset
+      long summaryOffset = header.getLong();
+      uncompressBufSize = header.getInt();
+      long extensionOffset = header.getLong();
+
+      ByteBuffer zoomHeaders = ByteBuffer.allocate(numZoomLevels * ZOOM_HEADER_SIZE).order(order);
+      readFully(channel, zoomHeaders, HEADER_SIZE);
+      reductionLevels = new int[numZoomLevels];
+      trees = new RTree[numZoomLevels + 1];
+      trees[0] = new RTree(channel, dataIndexOffset, order);
+      for (int i = 0; i < numZoomLevels; i++) {
+        reductionLevels[i] = zoomHeaders.getInt();
+        zoomHeaders.getInt(); // reserved
+        zoomHeaders.getLong(); // data offset
+        trees[i + 1] = new RTree(channel, zoomHeaders.getLong(), order);
+      }
+
+      if (summaryOffset > 0) {
+        ByteBuffer summary = ByteBuffer.allocate(SUMMARY_SIZE).order(order);
+        readFully(channel, summary, summaryOffset);
+        basesCovered = summary.getLong();
+        minVal = summary.getDouble();
+        maxVal = summary.getDouble();
+        sumData = summary.getDouble();
+        sumSquares = summary.getDouble();
+      } else {
+        basesCovered = 0;
+        minVal = maxVal = sumData = sumSquares = 0;
+      }
+
+      ByteBuffer count = ByteBuffer.allocate(4).order(order);
+      readFully(channel, count, dataOffset);
+      dataCount = count.getInt();
+
+      // Read the chromosome names, IDs, and sizes from the B+ tree
+      long size = Math.min(channel.size() - chromosomeTreeOffset, Integer.MAX_VALUE);
+      ByteBuffer tree = channel.map(MapMode.READ_ONLY, chromosomeTreeOffset, size).order(order);
+      if (tree.getInt(0) != CHROMOSOME_TREE_MAGIC) {
+        throw new IOException("Invalid chromosome B+ tree in " + p);
+      }
+      int keySize = tree.getInt(8);
+      List<Integer> ids = new ArrayList<>();
+      readChromosomeTree(tree, chromosomeTreeOffset, CHROMOSOME_TREE_HEADER_SIZE, keySize, ids);
+      int maxID = ids.isEmpty() ? -1 : Collections.max(ids);
+      chromosomeNames = new String[maxID + 1];
+      for (int i = 0; i < chromosomes.size(); i++) {
+        chromosomeIDs.put(chromosomes.get(i), ids.get(i));
+        chromosomeNames[ids.get(i)] = chromosomes.get(i);
+      }
+
+      // The bounds of each chromosome are those of its data blocks
+      chromosomeStarts = new int[maxID + 1];
+      chromosomeStops = new int[maxID + 1];
+      Arrays.fill(chromosomeStarts, -1);
+      List<Block> blocks = new ArrayList<>();
+      trees[0].find(trees[0].root, ALL, 0, 0, blocks);
+      for (Block b : blocks) {
+        for (int chrID = b.startChrID; chrID <= Math.min(b.endChrID, maxID); chrID++) {
+          int start = (chrID == b.startChrID) ? b.startBase : 0;
+          int stop = (chrID == b.endChrID) ? b.endBase : Integer.MAX_VALUE;
+          if (chromosomeStarts[chrID] < 0 || start < chromosomeStarts[chrID]) {
+            chromosomeStarts[chrID] = start;
+          }
+          chromosomeStops[chrID] = Math.max(chromosomeStops[chrID], stop);
+        }
+      }
+      for (int chrID = 0; chrID <= maxID; chrID++) {
+        chromosomeStarts[chrID] = Math.max(chromosomeStarts[chrID], 0);
+      }
+
+      nameIndex = (extensionOffset > 0) ? readNameIndex(channel, extensionOffset, order) : null;
+
+      log.debug("Loaded BigWig/BigBed index with " + chromosomes.size() + " chromosomes, " + blocks.size()
+          + " data blocks, and " + numZoomLevels + " zoom levels");
+    }
+
+    /**
+     * @return the name index in the extension block at offset, or null if
+     *         there isn't one
+     */
+    private static NameIndex readNameIndex(FileChannel channel, long offset, ByteOrder order) throws IOException {
+      ByteBuffer extension = ByteBuffer.allocate(12).order(order);
+      readFully(channel, extension, offset);
+      extension.getShort(); // extension size
+      int extraIndexCount = extension.getShort() & 0xFFFF;
+      long extraIndexListOffset = extension.getLong();
+      ByteBuffer extraIndexes = ByteBuffer.allocate(extraIndexCount * 20).order(order);
+      readFully(channel, extraIndexes, extraIndexListOffset);
+      for (int i = 0; i < extraIndexCount; i++) {
+        extraIndexes.getShort(); // type
+        int fieldCount = extraIndexes.getShort() & 0xFFFF;
+        long indexOffset = extraIndexes.getLong();
+        extraIndexes.getInt(); // reserved
+        int fieldID = extraIndexes.getShort() & 0xFFFF;
+        extraIndexes.getShort(); // reserved
+        if (fieldCount == 1 && fieldID == NAME_FIELD) {
+          return new NameIndex(channel, indexOffset, order);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Add the chromosomes in the subtree of a node, in order
+     */
+    private void readChromosomeTree(ByteBuffer tree, long base, int pos, int keySize, List<Integer> ids) {
+      boolean isLeaf = tree.get(pos) != 0;
+      int count = tree.getShort(pos + 2) & 0xFFFF;
+      pos += 4;
+      byte[] key = new byte[keySize];
+      for (int i = 0; i < count; i++) {
+        if (isLeaf) {
+          for (int k = 0; k < keySize; k++) {
+            key[k] = tree.get(pos + k);
+          }
+          int length = 0;
+          while (length < keySize && key[length] != 0) {
+            length++;
+          }
+          chromosomes.add(new String(key, 0, length, StandardCharsets.US_ASCII));
+          ids.add(tree.getInt(pos + keySize));
+          pos += keySize + 8;
+        } else {
+          long child = tree.getLong(pos + keySize);
+          readChromosomeTree(tree, base, (int) (child - base), keySize, ids);
+          pos += keySize + 8;
+        }
+      }
+    }
+  }
+
+  /**
+   * A memory-mapped R+ tree index of the data blocks of a level
+   */
+  private static final class RTree {
+    final ByteBuffer buffer;
+    final long base;
+    final int root = R_TREE_HEADER_SIZE;
+
+    RTree(FileChannel channel, long offset, ByteOrder order) throws IOException {
+      long size = Math.min(channel.size() - offset, Integer.MAX_VALUE);
+      buffer = channel.map(MapMode.READ_ONLY, offset, size).order(order);
+      base = offset;
+      if (buffer.getInt(0) != R_TREE_MAGIC) {
+        throw new IOException("Invalid R+ tree index at offset " + offset);
+      }
+    }
+
+    /**
+     * Add the leaf blocks of the subtree at pos that overlap a region
+     */
+    void find(int pos, int chrID, int start, int end, List<Block> blocks) {
+      boolean isLeaf = buffer.get(pos) != 0;
+      int count = buffer.getShort(pos + 2) & 0xFFFF;
+      pos += 4;
+      for (int i = 0; i < count; i++) {
+        int startChrID = buffer.getInt(pos);
+        int startBase = buffer.getInt(pos + 4);
+        int endChrID = buffer.getInt(pos + 8);
+        int endBase = buffer.getInt(pos + 12);
+        boolean overlaps = chrID == ALL
+            || (compare(chrID, start, endChrID, endBase) < 0 && compare(chrID, end, startChrID, startBase) > 0);
+        if (isLeaf) {
+          if (overlaps) {
+            blocks.add(new Block(startChrID, startBase, endChrID, endBase, buffer.getLong(pos + 16),
+                (int) buffer.getLong(pos + 24)));
+          }
+          pos += 32;
+        } else {
+          if (overlaps) {
+            find((int) (buffer.getLong(pos + 16) - base), chrID, start, end, blocks);
+          }
+          pos += 24;
+        }
+      }
+    }
+
+    private static int compare(int chrA, int baseA, int chrB, int baseB) {
+      if (chrA != chrB) {
+        return (chrA < chrB) ? -1 : 1;
+      }
+      return (baseA < baseB) ? -1 : ((baseA == baseB) ? 0 : 1);
+    }
+  }
+
+  /**
+   * A memory-mapped B+ tree index of the data blocks with each BigBed name
+   */
+  private static final class NameIndex {
+    final ByteBuffer buffer;
+    final long base;
+    final int keySize;
+    final int valSize;
+    final int root = CHROMOSOME_TREE_HEADER_SIZE;
+
+    NameIndex(FileChannel channel, long offset, ByteOrder order) throws IOException {
+      long size = Math.min(channel.size() - offset, Integer.MAX_VALUE);
+      buffer = channel.map(MapMode.READ_ONLY, offset, size).order(order);
+      base = offset;
+      if (buffer.getInt(0) != CHROMOSOME_TREE_MAGIC) {
+        throw new IOException("Invalid name index at offset " + offset);
+      }
+      keySize = buffer.getInt(8);
+      valSize = buffer.getInt(12);
+    }
+
+    /**
+     * Add the blocks of the subtree at pos with a key. Keys may be repeated, so
+     * every child that could hold the key is searched.
+     */
+    void find(int pos, byte[] key, List<Block> blocks) {
+      if (key.length > keySize) {
+        return;
+      }
+      boolean isLeaf = buffer.get(pos) != 0;
+      int count = buffer.getShort(pos + 2) & 0xFFFF;
+      pos += 4;
+      for (int i = 0; i < count; i++) {
+        int c = compare(pos, key);
+        if (isLeaf) {
+          if (c == 0) {
+            blocks.add(new Block(0, 0, 0, 0, buffer.getLong(pos + keySize), (int) buffer.getLong(pos + keySize + 8)));
+          }
+          pos += keySize + valSize;
+        } else {
+          // The child holds keys from its key up to the key of the next child
+          int next = pos + keySize + 8;
+          if (c <= 0 && (i == count - 1 || compare(next, key) >= 0)) {
+            find((int) (buffer.getLong(pos + keySize) - base), key, blocks);
+          }
+          pos = next;
+        }
+      }
+    }
+
+    /**
+     * Compare the (zero-padded) key at pos to another key
+     */
+    private int compare(int pos, byte[] key) {
+      for (int k = 0; k < keySize; k++) {
+        int a = buffer.get(pos + k) & 0xFF;
+        int b = (k < key.length) ? (key[k] & 0xFF) : 0;
+        if (a != b) {
+          return (a < b) ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * A (compressed) block of data in the file, and the region it covers
+   */
+  static final class Block {
+    final int startChrID, startBase, endChrID, endBase;
+    final long offset;
+    final int size;
+
+    Block(int startChrID, int startBase, int endChrID, int endBase, long offset, int size) {
+      this.startChrID = startChrID;
+      this.startBase = startBase;
+      this.endChrID = endChrID;
+      this.endBase = endBase;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Growable arrays of the records decoded from data blocks
+   */
+  abstract static class Records {
+    int size = 0;
+    int[] chrIDs;
+    int[] starts;
+    int[] ends;
+
+    Records() {
+      grow(64);
+    }
+
+    /**
+     * @return the number of records
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Remove all of the records
+     */
+    void clear() {
+      size = 0;
+    }
+
+    /**
+     * Add a record, growing the arrays if necessary
+     *
+     * @return the index of the new record
+     */
+    int add(int chrID, int start, int end) {
+      if (size == starts.length) {
+        grow(2 * size);
+      }
+      chrIDs[size] = chrID;
+      starts[size] = start;
+      ends[size] = end;
+      return size++;
+    }
+
+    void grow(int capacity) {
+      chrIDs = (chrIDs == null) ? new int[capacity] : Arrays.copyOf(chrIDs, capacity);
+      starts = (starts == null) ? new int[capacity] : Arrays.copyOf(starts, capacity);
+      ends = (ends == null) ? new int[capacity] : Arrays.copyOf(ends, capacity);
+    }
+
+    /**
+     * @return true if a record overlaps the region being read
+     */
+    static boolean overlaps(int recordChrID, int recordStart, int recordEnd, int chrID, int start, int end) {
+      return chrID == ALL || (recordChrID == chrID && recordEnd > start && recordStart < end);
+    }
+
+    /**
+     * Add the records of a decompressed block that overlap a region
+     */
+    abstract void decode(ByteBuffer block, int chrID, int start, int end) throws IOException;
+  }
+
+  /**
+   * The items of BigWig data blocks
+   */
+  static final class WigRecords extends Records {
+    private static final byte BED_GRAPH = 1;
+    private static final byte VARIABLE_STEP = 2;
+    private static final byte FIXED_STEP = 3;
+
+    float[] values;
+
+    @Override
+    void grow(int capacity) {
+      super.grow(capacity);
+      values = (values == null) ? new float[capacity] : Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    void decode(ByteBuffer block, int chrID, int start, int end) throws IOException {
+      int sectionChrID = block.getInt();
+      int sectionStart = block.getInt();
+      block.getInt(); // section end
+      int itemStep = block.getInt();
+      int itemSpan = block.getInt();
+      byte type = block.get();
+      block.get(); // reserved
+      int itemCount = block.getShort() & 0xFFFF;
+      if (chrID != ALL && chrID != sectionChrID) {
+        return;
+      }
+
+      for (int i = 0; i < itemCount; i++) {
+        int itemStart, itemEnd;
+        switch (type) {
+        case BED_GRAPH:
+          itemStart = block.getInt();
+          itemEnd = block.getInt();
+          break;
+        case VARIABLE_STEP:
+          itemStart = block.getInt();
+          itemEnd = itemStart + itemSpan;
+          break;
+        case FIXED_STEP:
+          itemStart = sectionStart + i * itemStep;
+          itemEnd = itemStart + itemSpan;
+          break;
+        default:
+          throw new IOException("Unknown BigWig section type: " + type);
+        }
+        float value = block.getFloat();
+        if (overlaps(sectionChrID, itemStart, itemEnd, chrID, start, end)) {
+          int j = add(sectionChrID, itemStart, itemEnd);
+          values[j] = value;
+        }
+      }
+    }
+  }
+
+  /**
+   * The summary records of zoom level blocks
+   */
+  static final class ZoomRecords extends Records {
+    int[] validCounts;
+    float[] mins;
+    float[] maxs;
+    float[] sums;
+    float[] sumSquares;
+
+    @Override
+    void grow(int capacity) {
+      super.grow(capacity);
+      validCounts = (validCounts == null) ? new int[capacity] : Arrays.copyOf(validCounts, capacity);
+      mins = (mins == null) ? new float[capacity] : Arrays.copyOf(mins, capacity);
+      maxs = (maxs == null) ? new float[capacity] : Arrays.copyOf(maxs, capacity);
+      sums = (sums == null) ? new float[capacity] : Arrays.copyOf(sums, capacity);
+      sumSquares = (sumSquares == null) ? new float[capacity] : Arrays.copyOf(sumSquares, capacity);
+    }
+
+    @Override
+    void decode(ByteBuffer block, int chrID, int start, int end) {
+      while (block.remaining() >= ZOOM_RECORD_SIZE) {
+        int recordChrID = block.getInt();
+        int recordStart = block.getInt();
+        int recordEnd = block.getInt();
+        int validCount = block.getInt();
+        float min = block.getFloat();
+        float max = block.getFloat();
+        float sum = block.getFloat();
+        float sumSquare = block.getFloat();
+        if (overlaps(recordChrID, recordStart, recordEnd, chrID, start, end)) {
+          int i = add(recordChrID, recordStart, recordEnd);
+          validCounts[i] = validCount;
+          mins[i] = min;
+          maxs[i] = max;
+          sums[i] = sum;
+          sumSquares[i] = sumSquare;
+        }
+      }
+    }
+  }
+
+  /**
+   * The records of BigBed data blocks
+   */
+  static final class BedRecords extends Records {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** The tab-delimited fields after chrom, start and end */
+    String[] rest;
+
+    @Override
+    void grow(int capacity) {
+      super.grow(capacity);
+      rest = (rest == null) ? new String[capacity] : Arrays.copyOf(rest, capacity);
+    }
+
+    @Override
+    void clear() {
+      Arrays.fill(rest, 0, size, null);
+      super.clear();
+    }
+
+    @Override
+    void decode(ByteBuffer block, int chrID, int start, int end) throws IOException {
+      byte[] bytes = block.array();
+      while (block.remaining() >= 12) {
+        int recordChrID = block.getInt();
+        int recordStart = block.getInt();
+        int recordEnd = block.getInt();
+        int from = block.arrayOffset() + block.position();
+        int to = from;
+        int limit = block.arrayOffset() + block.limit();
+        while (to < limit && bytes[to] != 0) {
+          to++;
+        }
+        if (to == limit) {
+          throw new IOException("Unterminated BigBed record");
+        }
+        block.position(to + 1 - block.arrayOffset());
+        if (overlaps(recordChrID, recordStart, recordEnd, chrID, start, end)) {
+          int i = add(recordChrID, recordStart, recordEnd);
+          rest[i] = new String(bytes, from, to - from, CHARSET);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,1028 @@
+package edu.unc.genomics.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.Assembly;
+
+/**
+ * Writes the binary indexed (bbi) format shared by BigWig and BigBed files (see
+ * BBIFile). The BigWig and BigBed writers encode their data blocks, and this
+ * class compresses them on a pool of worker threads, writes them to disk in
+ * order, and indexes them with an R+ tree when the file is closed.
+ *
+ * Zoom levels are built while the data is written: every item is added to the
+ * total summary and to the finest zoom level, and each completed zoom record is
+ * added to the next coarser level. Zoom records are aligned to bins of the
+ * reduction level, with bounds that are trimmed to the data they summarize.
+ * Candidate levels (INITIAL_REDUCTION * ZOOM_INCREMENT^i bp) are spilled to
+ * temporary files, and when the file is closed the levels that each summarize
+ * the data in at most half as many records as the previous level are kept.
+ *
+ * Only the chromosomes with data are in the chromosome B+ tree, and they are
+ * numbered 0..n-1 in the order of their names. Since the IDs are encoded in the
+ * blocks before it is known which chromosomes have data, chromosomes are
+ * numbered in the order they are first written, which is the same when the
+ * data is sorted. Otherwise, the blocks are renumbered when the file is closed.
+ * BigBed files may also have an extra B+ tree index of the names of their
+ * records, which is written in the extension block of the file.
+ *
+ * @author timpalpant
+ *
+ */
+final class BBIWriter implements Closeable {
+
+  private static final Logger log = Logger.getLogger(BBIWriter.class);
+
+  private static final int VERSION = 4;
+  /** Number of children of each node of the B+ and R+ trees */
+  private static final int BLOCK_SIZE = 256;
+  /** Maximum number of items in each data or zoom block */
+  static final int ITEMS_PER_SLOT = 1024;
+  private static final int MAX_ZOOM_LEVELS = 10;
+  private static final int INITIAL_REDUCTION = 10;
+  private static final int ZOOM_INCREMENT = 4;
+  private static final int NUM_CANDIDATE_LEVELS = 14;
+  private static final long SUMMARY_OFFSET = BBIFile.HEADER_SIZE + MAX_ZOOM_LEVELS * BBIFile.ZOOM_HEADER_SIZE;
+  private static final long DATA_OFFSET = SUMMARY_OFFSET + BBIFile.SUMMARY_SIZE;
+  private static final int EXTENSION_HEADER_SIZE = 64;
+  private static final int EXTRA_INDEX_HEADER_SIZE = 20;
+
+  private final Path p;
+  private final int magic;
+  private final FileChannel channel;
+  private final ExecutorService pool;
+  private final int maxPending;
+  private final List<String> chromosomes;
+  private final Map<String, Integer> chromosomeIndices = new HashMap<>();
+  private final int[] chromosomeLengths;
+  /** The ID of each chromosome in the file, or -1 if it has no data */
+  private final int[] chromosomeIDs;
+  private int numChromosomes = 0;
+  private final BlockWriter data;
+  private final ZoomLevel[] zoomLevels = new ZoomLevel[NUM_CANDIDATE_LEVELS];
+  /** The finest zoom level that is still being built */
+  private int firstZoomLevel = 0;
+  private int maxBlockSize = 1;
+  private long dataCount = 0;
+  private int fieldCount = 0;
+  private int definedFieldCount = 0;
+  private String autoSql;
+  /** The names of the records in each data block, if they are indexed */
+  private List<Name> names;
+  private boolean closed = false;
+
+  // The total summary of the data
+  private long numItems = 0;
+  private long basesCovered = 0;
+  private double minVal = 0;
+  private double maxVal = 0;
+  private double sumData = 0;
+  private double sumSquares = 0;
+
+  /**
+   * @param p
+   *          the path to the file to write
+   * @param magic
+   *          BBIFile.BIGWIG_MAGIC or BBIFile.BIGBED_MAGIC
+   * @param assembly
+   *          the chromosomes (and their lengths) of the data
+   * @param threads
+   *          the number of threads to compress blocks with
+   * @throws IOException
+   *           if an error occurs while creating the file
+   */
+  BBIWriter(Path p, int magic, Assembly assembly, int threads) throws IOException {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Number of threads must be > 0");
+    }
+    this.p = p;
+    this.magic = magic;
+
+    chromosomes = new ArrayList<>(assembly.chromosomes());
+    Collections.sort(chromosomes);
+    chromosomeLengths = new int[chromosomes.size()];
+    chromosomeIDs = new int[chromosomes.size()];
+    Arrays.fill(chromosomeIDs, -1);
+    for (int i = 0; i < chromosomes.size(); i++) {
+      chromosomeIndices.put(chromosomes.get(i), i);
+      chromosomeLengths[i] = assembly.getChrLength(chromosomes.get(i));
+    }
+
+    channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final ThreadFactory factory = Executors.defaultThreadFactory();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        // Don't keep the JVM alive if the writer is never closed
+        Thread thread = factory.newThread(r);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    maxPending = 4 * threads;
+    data = new BlockWriter(channel, DATA_OFFSET + 8);
+    try {
+      long reduction = INITIAL_REDUCTION;
+      for (int i = 0; i < NUM_CANDIDATE_LEVELS; i++) {
+        zoomLevels[i] = new ZoomLevel((int) reduction);
+        if (i > 0) {
+          zoomLevels[i - 1].next = zoomLevels[i];
+        }
+        reduction *= ZOOM_INCREMENT;
+      }
+    } catch (IOException e) {
+      discard();
+      throw e;
+    }
+  }
+
+  /**
+   * @param chr
+   *          a chromosome
+   * @return the index of the chromosome in the (sorted) Assembly
+   * @throws IllegalArgumentException
+   *           if chr is not in the Assembly
+   */
+  int getChromosomeIndex(String chr) {
+    Integer index = chromosomeIndices.get(chr);
+    if (index == null) {
+      throw new IllegalArgumentException("Chromosome " + chr + " is not in the assembly");
+    }
+    return index;
+  }
+
+  /**
+   * @return the length of a chromosome
+   */
+  int getChromosomeLength(int index) {
+    return chromosomeLengths[index];
+  }
+
+  /**
+   * Get the ID to write the data of a chromosome with. The chromosome is added
+   * to the file (with the next ID) if it has not been already, so this should
+   * only be called for chromosomes with data.
+   *
+   * @param index
+   *          the index of the chromosome in the Assembly
+   * @return the ID of the chromosome in the file
+   */
+  int getChromosomeID(int index) {
+    if (chromosomeIDs[index] < 0) {
+      chromosomeIDs[index] = numChromosomes++;
+    }
+    return chromosomeIDs[index];
+  }
+
+  /**
+   * @param dataCount
+   *          the number of records (BigBed) or sections (BigWig) in the file
+   */
+  void setDataCount(long dataCount) {
+    this.dataCount = dataCount;
+  }
+
+  /**
+   * Set the BigBed fields of the file
+   *
+   * @param fieldCount
+   *          the number of fields in each record
+   * @param definedFieldCount
+   *          the number of standard Bed fields in each record
+   * @param autoSql
+   *          the autoSql description of the fields, or null
+   */
+  void setFields(int fieldCount, int definedFieldCount, String autoSql) {
+    this.fieldCount = fieldCount;
+    this.definedFieldCount = definedFieldCount;
+    this.autoSql = autoSql;
+  }
+
+  /**
+   * Write a data block. The blocks of each chromosome must be written in order
+   * of their start.
+   *
+   * @param block
+   *          the encoded block, which must not be modified afterwards
+   * @param length
+   *          the number of bytes of block to write
+   * @param startChrID
+   *          the chromosome of the first item in the block
+   * @param startBase
+   *          the (0-based) start of the first item in the block
+   * @param endChrID
+   *          the chromosome of the last item in the block
+   * @param endBase
+   *          the (exclusive) end of the last item in the block
+   * @throws IOException
+   *           if an error occurs while writing to disk
+   */
+  void writeBlock(byte[] block, int length, int startChrID, int startBase, int endChrID, int endBase)
+      throws IOException {
+    data.add(block, length, new Entry(startChrID, startBase, endChrID, endBase));
+  }
+
+  /**
+   * Write a data block, and add the names of its records to the name index
+   *
+   * @param names
+   *          the (distinct) names of the records in the block
+   * @see #writeBlock(byte[], int, int, int, int, int)
+   */
+  void writeBlock(byte[] block, int length, int startChrID, int startBase, int endChrID, int endBase,
+      Collection<String> names) throws IOException {
+    Entry entry = new Entry(startChrID, startBase, endChrID, endBase);
+    data.add(block, length, entry);
+    if (this.names == null) {
+      this.names = new ArrayList<>();
+    }
+    for (String name : names) {
+      this.names.add(new Name(name.getBytes(StandardCharsets.US_ASCII), entry));
+    }
+  }
+
+  /**
+   * Add an item to the total summary and the zoom levels. Items of each
+   * chromosome must be added in order, and must not overlap.
+   *
+   * @param chrID
+   *          the chromosome of the item
+   * @param start
+   *          the (0-based) start of the item
+   * @param end
+   *          the (exclusive) end of the item
+   * @param value
+   *          the value of the item
+   * @throws IOException
+   *           if an error occurs while writing zoom blocks to disk
+   */
+  void addItem(int chrID, int start, int end, float value) throws IOException {
+    long bases = end - start;
+    if (numItems++ == 0) {
+      minVal = value;
+      maxVal = value;
+    } else {
+      minVal = Math.min(minVal, value);
+      maxVal = Math.max(maxVal, value);
+    }
+    basesCovered += bases;
+    sumData += (double) value * bases;
+    sumSquares += (double) value * value * bases;
+
+    // Split the item between the bins of the finest zoom level
+    ZoomLevel level = zoomLevels[firstZoomLevel];
+    long reduction = level.reduction;
+    for (long bin = start / reduction; bin * reduction < end; bin++) {
+      int binStart = (int) Math.max(start, bin * reduction);
+      int binEnd = (int) Math.min(end, (bin + 1) * reduction);
+      int n = binEnd - binStart;
+      level.add(chrID, binStart, binEnd, n, value, value, (double) value * n, (double) value * value * n);
+    }
+
+    // Stop building the finest level if it has many more records than there
+    // are items, since it will not be kept
+    if (level.numRecords > 4 * numItems + ITEMS_PER_SLOT && firstZoomLevel < NUM_CANDIDATE_LEVELS - 1) {
+      log.debug("Discarding zoom level with reduction " + level.reduction);
+      level.emit();
+      level.discard();
+      firstZoomLevel++;
+    }
+  }
+
+  /**
+   * Write the indexes, zoom levels, and header, and close the file
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      for (int i = firstZoomLevel; i < NUM_CANDIDATE_LEVELS; i++) {
+        zoomLevels[i].emit();
+      }
+      for (int i = firstZoomLevel; i < NUM_CANDIDATE_LEVELS; i++) {
+        zoomLevels[i].flush();
+      }
+      data.flush();
+      renumberChromosomes();
+
+      long dataIndexOffset = data.offset;
+      long pos = writeRTree(data.entries, dataIndexOffset, dataIndexOffset);
+
+      // Keep the levels that each have at most half as many records as the
+      // previous level (a file without data has no zoom levels)
+      List<ZoomLevel> kept = new ArrayList<>();
+      long previous = numItems;
+      for (int i = firstZoomLevel; i < NUM_CANDIDATE_LEVELS && kept.size() < MAX_ZOOM_LEVELS; i++) {
+        if (zoomLevels[i].numRecords == 0) {
+          break;
+        } else if (2 * zoomLevels[i].numRecords <= previous) {
+          kept.add(zoomLevels[i]);
+          previous = zoomLevels[i].numRecords;
+        } else if (!kept.isEmpty()) {
+          break;
+        }
+      }
+
+      ByteBuffer zoomHeaders = newBuffer(kept.size() * BBIFile.ZOOM_HEADER_SIZE);
+      for (ZoomLevel level : kept) {
+        long zoomDataOffset = pos;
+        ByteBuffer count = newBuffer(4).putInt((int) level.numRecords);
+        pos = write(count, pos);
+        long size = level.channel.size();
+        for (long n = 0; n < size;) {
+          n += level.channel.transferTo(n, size - n, channel.position(pos + n));
+        }
+        for (Entry e : level.writer.entries) {
+          e.offset += pos;
+        }
+        pos += size;
+
+        long zoomIndexOffset = pos;
+        pos = writeRTree(level.writer.entries, zoomIndexOffset, zoomIndexOffset);
+        zoomHeaders.putInt(level.reduction).putInt(0).putLong(zoomDataOffset).putLong(zoomIndexOffset);
+      }
+      write(zoomHeaders, BBIFile.HEADER_SIZE);
+
+      long chromosomeTreeOffset = pos;
+      pos = writeChromosomeTree(pos);
+
+      long autoSqlOffset = 0;
+      if (autoSql != null) {
+        autoSqlOffset = pos;
+        byte[] bytes = autoSql.getBytes(StandardCharsets.US_ASCII);
+        pos = write(newBuffer(bytes.length + 1).put(bytes).put((byte) 0), pos);
+      }
+
+      long extensionOffset = 0;
+      if (names != null) {
+        extensionOffset = pos;
+        pos = writeNameIndex(pos);
+      }
+      write(newBuffer(4).putInt(magic), pos);
+
+      ByteBuffer summary = newBuffer(BBIFile.SUMMARY_SIZE);
+      summary.putLong(basesCovered).putDouble(minVal).putDouble(maxVal).putDouble(sumData).putDouble(sumSquares);
+      write(summary, SUMMARY_OFFSET);
+      write(newBuffer(8).putLong(dataCount), DATA_OFFSET);
+
+      ByteBuffer header = newBuffer(BBIFile.HEADER_SIZE);
+      header.putInt(magic).putShort((short) VERSION).putShort((short) kept.size());
+      header.putLong(chromosomeTreeOffset).putLong(DATA_OFFSET).putLong(dataIndexOffset);
+      header.putShort((short) fieldCount).putShort((short) definedFieldCount);
+      header.putLong(autoSqlOffset).putLong(SUMMARY_OFFSET).putInt(maxBlockSize).putLong(extensionOffset);
+      write(header, 0);
+      log.debug("Wrote " + data.entries.size() + " data blocks and " + kept.size() + " zoom levels to " + p);
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Stop the compression threads, and close the file and temporary files
+   */
+  private void discard() throws IOException {
+    pool.shutdownNow();
+    try {
+      for (ZoomLevel level : zoomLevels) {
+        if (level != null) {
+          level.discard();
+        }
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Create a temporary file in the directory of the file being written, which
+   * has room for the file, rather than in the system temporary directory
+   */
+  private Path createTempFile(String suffix) throws IOException {
+    return Files.createTempFile(p.toAbsolutePath().getParent(), p.getFileName().toString(), suffix);
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Write the remaining bytes of a buffer to a channel at position
+   *
+   * @return the position after the bytes written
+   */
+  private static long writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+    long end = position + buf.remaining();
+    while (buf.hasRemaining()) {
+      position += out.write(buf, position);
+    }
+    return end;
+  }
+
+  /**
+   * Write the bytes that have been put into a buffer to the file at position
+   *
+   * @return the position after the bytes written
+   */
+  private long write(ByteBuffer buf, long position) throws IOException {
+    buf.flip();
+    return writeFully(channel, buf, position);
+  }
+
+  /**
+   * @return the number of nodes needed to hold numItems items
+   */
+  private static int numNodes(int numItems, int blockSize) {
+    return Math.max(1, (numItems + blockSize - 1) / blockSize);
+  }
+
+  /**
+   * Renumber the chromosomes with data in the order of their names, if they
+   * were not written in that order
+   */
+  private void renumberChromosomes() throws IOException {
+    int[] ids = new int[numChromosomes];
+    boolean sorted = true;
+    int id = 0;
+    for (int i = 0; i < chromosomes.size(); i++) {
+      if (chromosomeIDs[i] >= 0) {
+        sorted &= (chromosomeIDs[i] == id);
+        ids[chromosomeIDs[i]] = id;
+        chromosomeIDs[i] = id++;
+      }
+    }
+    if (sorted) {
+      return;
+    }
+
+    log.debug("Renumbering the chromosomes of " + p);
+    data.offset = renumberBlocks(channel, data.entries, DATA_OFFSET + 8, ids, false);
+    for (int i = firstZoomLevel; i < NUM_CANDIDATE_LEVELS; i++) {
+      ZoomLevel level = zoomLevels[i];
+      level.writer.offset = renumberBlocks(level.channel, level.writer.entries, 0, ids, true);
+    }
+  }
+
+  /**
+   * Rewrite the blocks of entries (in the order they were written) from offset
+   * with the chromosome IDs renumbered, and update the entries
+   *
+   * @param ids
+   *          the new ID of each chromosome ID
+   * @param zoom
+   *          whether the blocks have zoom records or data
+   * @return the position after the blocks
+   */
+  private long renumberBlocks(FileChannel out, List<Entry> entries, long offset, int[] ids, boolean zoom)
+      throws IOException {
+    Path tmp = createTempFile(".blocks");
+    try (FileChannel copy = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.DELETE_ON_CLOSE)) {
+      byte[] block = new byte[maxBlockSize];
+      long pos = 0;
+      for (Entry e : entries) {
+        ByteBuffer compressed = ByteBuffer.allocate((int) e.size);
+        while (compressed.hasRemaining()) {
+          if (out.read(compressed, e.offset + compressed.position()) < 0) {
+            throw new IOException("Unexpected end of file while renumbering chromosomes of " + p);
+          }
+        }
+        int length = uncompress(compressed.array(), block);
+        ByteBuffer records = ByteBuffer.wrap(block, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        if (zoom) {
+          for (int i = 0; i < length; i += BBIFile.ZOOM_RECORD_SIZE) {
+            records.putInt(i, ids[records.getInt(i)]);
+          }
+        } else if (magic == BBIFile.BIGWIG_MAGIC) {
+          records.putInt(0, ids[records.getInt(0)]);
+        } else {
+          // BigBed records are chromId, chromStart, chromEnd, and the rest of
+          // the fields as a zero-terminated string
+          int i = 0;
+          while (i < length) {
+            records.putInt(i, ids[records.getInt(i)]);
+            i += 12;
+            while (block[i] != 0) {
+              i++;
+            }
+            i++;
+          }
+        }
+
+        byte[] renumbered = compress(block, length);
+        e.startChrID = ids[e.startChrID];
+        e.endChrID = ids[e.endChrID];
+        e.offset = offset + pos;
+        e.size = renumbered.length;
+        pos = writeFully(copy, ByteBuffer.wrap(renumbered), pos);
+      }
+
+      for (long n = 0; n < pos;) {
+        n += copy.transferTo(n, pos - n, out.position(offset + n));
+      }
+      out.truncate(offset + pos);
+      return offset + pos;
+    }
+  }
+
+  /**
+   * Write an R+ tree index of entries (in any order) at offset
+   *
+   * @return the position after the tree
+   */
+  private long writeRTree(List<Entry> entries, long offset, long endFileOffset) throws IOException {
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        if (e1.startChrID != e2.startChrID) {
+          return Integer.compare(e1.startChrID, e2.startChrID);
+        }
+        return Integer.compare(e1.startBase, e2.startBase);
+      }
+    });
+
+    // The items in the nodes of each level, from the leaves (the entries) up to
+    // the root. The items of a level are the regions of the nodes below it.
+    List<Entry[]> levels = new ArrayList<>();
+    levels.add(entries.toArray(new Entry[entries.size()]));
+    while (numNodes(levels.get(levels.size() - 1).length, BLOCK_SIZE) > 1) {
+      Entry[] children = levels.get(levels.size() - 1);
+      Entry[] items = new Entry[numNodes(children.length, BLOCK_SIZE)];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = Entry.union(children, i * BLOCK_SIZE, Math.min(children.length, (i + 1) * BLOCK_SIZE));
+      }
+      levels.add(items);
+    }
+
+    Entry root = Entry.union(levels.get(0), 0, entries.size());
+    ByteBuffer header = newBuffer(BBIFile.R_TREE_HEADER_SIZE);
+    header.putInt(BBIFile.R_TREE_MAGIC).putInt(BLOCK_SIZE).putLong(entries.size());
+    header.putInt(root.startChrID).putInt(root.startBase).putInt(root.endChrID).putInt(root.endBase);
+    header.putLong(endFileOffset).putInt(1).putInt(0);
+    long pos = write(header, offset);
+
+    // Write the levels from the root down, with each node padded to BLOCK_SIZE
+    // items, so the nodes of each level start after those of the level above
+    int leafSize = 4 + 32 * BLOCK_SIZE;
+    int nodeSize = 4 + 24 * BLOCK_SIZE;
+    for (int level = levels.size() - 1; level >= 0; level--) {
+      boolean isLeaf = (level == 0);
+      Entry[] items = levels.get(level);
+      int numNodes = numNodes(items.length, BLOCK_SIZE);
+      long childrenOffset = pos + (long) numNodes * nodeSize;
+      ByteBuffer nodes = newBuffer(numNodes * (isLeaf ? leafSize : nodeSize));
+      for (int j = 0; j < numNodes; j++) {
+        int nodeStart = nodes.position();
+        int from = j * BLOCK_SIZE;
+        int to = Math.min(items.length, from + BLOCK_SIZE);
+        nodes.put((byte) (isLeaf ? 1 : 0)).put((byte) 0).putShort((short) (to - from));
+        for (int k = from; k < to; k++) {
+          Entry e = items[k];
+          nodes.putInt(e.startChrID).putInt(e.startBase).putInt(e.endChrID).putInt(e.endBase);
+          if (isLeaf) {
+            nodes.putLong(e.offset).putLong(e.size);
+          } else {
+            nodes.putLong(childrenOffset + (long) k * ((level == 1) ? leafSize : nodeSize));
+          }
+        }
+        nodes.position(nodeStart + (isLeaf ? leafSize : nodeSize));
+      }
+      pos = write(nodes, pos);
+    }
+
+    return pos;
+  }
+
+  /**
+   * Write the chromosome B+ tree at offset
+   *
+   * @return the position after the tree
+   */
+  private long writeChromosomeTree(long offset) throws IOException {
+    List<byte[]> keys = new ArrayList<>();
+    List<byte[]> values = new ArrayList<>();
+    for (int i = 0; i < chromosomes.size(); i++) {
+      if (chromosomeIDs[i] >= 0) {
+        keys.add(chromosomes.get(i).getBytes(StandardCharsets.US_ASCII));
+        values.add(newBuffer(8).putInt(chromosomeIDs[i]).putInt(chromosomeLengths[i]).array());
+      }
+    }
+    return writeBPlusTree(keys, values, 8, offset);
+  }
+
+  /**
+   * Write the extension block, with a B+ tree index of the names of the records
+   * in each data block, at offset
+   *
+   * @return the position after the index
+   */
+  private long writeNameIndex(long offset) throws IOException {
+    long indexListOffset = offset + EXTENSION_HEADER_SIZE;
+    long indexOffset = indexListOffset + EXTRA_INDEX_HEADER_SIZE;
+    ByteBuffer extension = newBuffer(EXTENSION_HEADER_SIZE + EXTRA_INDEX_HEADER_SIZE);
+    extension.putShort((short) EXTENSION_HEADER_SIZE).putShort((short) 1).putLong(indexListOffset);
+    extension.position(EXTENSION_HEADER_SIZE);
+    extension.putShort((short) 0).putShort((short) 1).putLong(indexOffset).putInt(0);
+    extension.putShort((short) BBIFile.NAME_FIELD).putShort((short) 0);
+    write(extension, offset);
+
+    Collections.sort(names, new Comparator<Name>() {
+      @Override
+      public int compare(Name n1, Name n2) {
+        int c = compareKeys(n1.key, n2.key);
+        return (c != 0) ? c : Long.compare(n1.entry.offset, n2.entry.offset);
+      }
+    });
+    List<byte[]> keys = new ArrayList<>(names.size());
+    List<byte[]> values = new ArrayList<>(names.size());
+    for (Name name : names) {
+      keys.add(name.key);
+      values.add(newBuffer(16).putLong(name.entry.offset).putLong(name.entry.size).array());
+    }
+    return writeBPlusTree(keys, values, 16, indexOffset);
+  }
+
+  /**
+   * Compare keys as they are ordered in a B+ tree (unsigned, and padded with
+   * zeros)
+   */
+  static int compareKeys(byte[] key1, byte[] key2) {
+    for (int i = 0; i < Math.max(key1.length, key2.length); i++) {
+      int b1 = (i < key1.length) ? (key1[i] & 0xFF) : 0;
+      int b2 = (i < key2.length) ? (key2[i] & 0xFF) : 0;
+      if (b1 != b2) {
+        return (b1 < b2) ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Write a B+ tree of sorted keys and their values at offset
+   *
+   * @return the position after the tree
+   */
+  private long writeBPlusTree(List<byte[]> keys, List<byte[]> values, int valSize, long offset) throws IOException {
+    int keySize = 1;
+    for (byte[] key : keys) {
+      keySize = Math.max(keySize, key.length);
+    }
+    int blockSize = Math.max(1, Math.min(BLOCK_SIZE, keys.size()));
+    int leafSize = 4 + blockSize * (keySize + valSize);
+    int nodeSize = 4 + blockSize * (keySize + 8);
+
+    ByteBuffer header = newBuffer(BBIFile.CHROMOSOME_TREE_HEADER_SIZE);
+    header.putInt(BBIFile.CHROMOSOME_TREE_MAGIC).putInt(blockSize).putInt(keySize).putInt(valSize);
+    header.putLong(keys.size()).putLong(0);
+    long pos = write(header, offset);
+
+    // The (first) key of the items in the nodes of each level, from the leaves
+    // up to the root, as indices into keys
+    List<int[]> levels = new ArrayList<>();
+    int[] leaves = new int[keys.size()];
+    for (int i = 0; i < leaves.length; i++) {
+      leaves[i] = i;
+    }
+    levels.add(leaves);
+    while (numNodes(levels.get(levels.size() - 1).length, blockSize) > 1) {
+      int[] children = levels.get(levels.size() - 1);
+      int[] items = new int[numNodes(children.length, blockSize)];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = children[i * blockSize];
+      }
+      levels.add(items);
+    }
+
+    for (int level = levels.size() - 1; level >= 0; level--) {
+      boolean isLeaf = (level == 0);
+      int size = isLeaf ? leafSize : nodeSize;
+      int[] items = levels.get(level);
+      int numNodes = numNodes(items.length, blockSize);
+      long childrenOffset = pos + (long) numNodes * nodeSize;
+      ByteBuffer nodes = newBuffer(numNodes * size);
+      for (int j = 0; j < numNodes; j++) {
+        int nodeStart = nodes.position();
+        int from = j * blockSize;
+        int to = Math.min(items.length, from + blockSize);
+        nodes.put((byte) (isLeaf ? 1 : 0)).put((byte) 0).putShort((short) (to - from));
+        for (int k = from; k < to; k++) {
+          nodes.put(Arrays.copyOf(keys.get(items[k]), keySize));
+          if (isLeaf) {
+            nodes.put(values.get(items[k]));
+          } else {
+            nodes.putLong(childrenOffset + (long) k * ((level == 1) ? leafSize : nodeSize));
+          }
+        }
+        nodes.position(nodeStart + size);
+      }
+      pos = write(nodes, pos);
+    }
+
+    return pos;
+  }
+
+  /**
+   * Uncompress a block into buffer
+   *
+   * @return the length of the block
+   */
+  private static int uncompress(byte[] compressed, byte[] buffer) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int n = 0;
+      while (!inflater.finished()) {
+        if (n == buffer.length || inflater.needsInput() || inflater.needsDictionary()) {
+          throw new IOException("Invalid compressed block");
+        }
+        n += inflater.inflate(buffer, n, buffer.length - n);
+      }
+      return n;
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] compress(byte[] block, int length) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(block, 0, length);
+      deflater.finish();
+      byte[] compressed = new byte[Math.max(64, length / 2)];
+      int n = 0;
+      while (!deflater.finished()) {
+        if (n == compressed.length) {
+          compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+        }
+        n += deflater.deflate(compressed, n, compressed.length - n);
+      }
+      return Arrays.copyOf(compressed, n);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * An indexed block (or node) of the file, and the region it covers
+   */
+  private static final class Entry {
+    final int startBase, endBase;
+    int startChrID, endChrID;
+    long offset;
+    long size;
+
+    Entry(int startChrID, int startBase, int endChrID, int endBase) {
+      this.startChrID = startChrID;
+      this.startBase = startBase;
+      this.endChrID = endChrID;
+      this.endBase = endBase;
+    }
+
+    /**
+     * @return the region covered by entries from (inclusive) to to (exclusive),
+     *         which are sorted
+     */
+    static Entry union(Entry[] entries, int from, int to) {
+      if (from >= to) {
+        return new Entry(0, 0, 0, 0);
+      }
+      int endChrID = entries[from].endChrID;
+      int endBase = entries[from].endBase;
+      for (int i = from + 1; i < to; i++) {
+        Entry e = entries[i];
+        if (e.endChrID > endChrID || (e.endChrID == endChrID && e.endBase > endBase)) {
+          endChrID = e.endChrID;
+          endBase = e.endBase;
+        }
+      }
+      return new Entry(entries[from].startChrID, entries[from].startBase, endChrID, endBase);
+    }
+  }
+
+  /**
+   * A name in the name index, and the data block of its record
+   */
+  private static final class Name {
+    final byte[] key;
+    final Entry entry;
+
+    Name(byte[] key, Entry entry) {
+      this.key = key;
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * Compresses blocks on the thread pool, and writes them to a channel in the
+   * order they were added
+   */
+  private final class BlockWriter {
+    final FileChannel out;
+    final List<Entry> entries = new ArrayList<>();
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final Deque<Entry> pendingEntries = new ArrayDeque<>();
+    long offset;
+
+    BlockWriter(FileChannel out, long offset) {
+      this.out = out;
+      this.offset = offset;
+    }
+
+    void add(final byte[] block, final int length, Entry entry) throws IOException {
+      maxBlockSize = Math.max(maxBlockSize, length);
+      pending.add(pool.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return compress(block, length);
+        }
+      }));
+      pendingEntries.add(entry);
+      if (pending.size() > maxPending) {
+        writeNext();
+      }
+    }
+
+    void flush() throws IOException {
+      while (!pending.isEmpty()) {
+        writeNext();
+      }
+    }
+
+    private void writeNext() throws IOException {
+      byte[] compressed;
+      try {
+        compressed = pending.poll().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while compressing block of " + p, e);
+      } catch (ExecutionException e) {
+        throw new IOException("Error compressing block of " + p, e.getCause());
+      }
+
+      Entry entry = pendingEntries.poll();
+      entry.offset = offset;
+      entry.size = compressed.length;
+      entries.add(entry);
+      offset = writeFully(out, ByteBuffer.wrap(compressed), offset);
+    }
+  }
+
+  /**
+   * A zoom level that is being built, with its records spilled to a temporary
+   * file
+   */
+  private final class ZoomLevel {
+    final int reduction;
+    final Path tmp;
+    final FileChannel channel;
+    final BlockWriter writer;
+    ZoomLevel next;
+    long numRecords = 0;
+    boolean discarded = false;
+
+    // The open record
+    boolean open = false;
+    int chrID, start, end;
+    long bin, count;
+    double min, max, sum, sumSquares;
+
+    // The records of the block being built
+    private ByteBuffer block = newBuffer(ITEMS_PER_SLOT * BBIFile.ZOOM_RECORD_SIZE);
+    private int blockSize = 0;
+    private int blockChrID, blockStart, blockEnd;
+
+    ZoomLevel(int reduction) throws IOException {
+      this.reduction = reduction;
+      tmp = createTempFile(".zoom" + reduction);
+      try {
+        channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        Files.deleteIfExists(tmp);
+        throw e;
+      }
+      writer = new BlockWriter(channel, 0);
+    }
+
+    /**
+     * Add a summary of part of a bin to this level
+     */
+    void add(int chrID, int start, int end, long count, double min, double max, double sum, double sumSquares)
+        throws IOException {
+      long bin = start / reduction;
+      if (open && (chrID != this.chrID || bin != this.bin)) {
+        emit();
+      }
+
+      if (!open) {
+        open = true;
+        this.chrID = chrID;
+        this.bin = bin;
+        this.start = start;
+        this.end = end;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.sumSquares = sumSquares;
+      } else {
+        this.end = Math.max(this.end, end);
+        this.count += count;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.sum += sum;
+        this.sumSquares += sumSquares;
+      }
+    }
+
+    /**
+     * Write the open record, and add it to the next level
+     */
+    void emit() throws IOException {
+      if (!open) {
+        return;
+      }
+      open = false;
+
+      if (blockSize == ITEMS_PER_SLOT || (blockSize > 0 && blockChrID != chrID)) {
+        flushBlock();
+      }
+      if (blockSize == 0) {
+        blockChrID = chrID;
+        blockStart = start;
+      }
+      blockEnd = end;
+      block.putInt(chrID).putInt(start).putInt(end).putInt((int) count);
+      block.putFloat((float) min).putFloat((float) max).putFloat((float) sum).putFloat((float) sumSquares);
+      blockSize++;
+      numRecords++;
+
+      if (next != null) {
+        next.add(chrID, start, end, count, min, max, sum, sumSquares);
+      }
+    }
+
+    private void flushBlock() throws IOException {
+      writer.add(block.array(), block.position(), new Entry(blockChrID, blockStart, blockChrID, blockEnd));
+      block = newBuffer(ITEMS_PER_SLOT * BBIFile.ZOOM_RECORD_SIZE);
+      blockSize = 0;
+    }
+
+    /**
+     * Write all of the (emitted) records of this level to the temporary file
+     */
+    void flush() throws IOException {
+      if (blockSize > 0) {
+        flushBlock();
+      }
+      writer.flush();
+    }
+
+    /**
+     * Close and delete the temporary file
+     */
+    void discard() throws IOException {
+      if (!discarded) {
+        discarded = true;
+        channel.close();
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,465 @@
+package edu.unc.genomics.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+/**
+ * A read-only FileChannel over the uncompressed contents of a BGZF-compressed
+ * file. The block structure is scanned (without decompressing) when the
+ * channel is opened, so that a positional read maps an uncompressed offset to
+ * its BGZF block (i.e. to a BGZF virtual offset) and decompresses only the
+ * blocks it touches. Offsets in a TextWigFile index are therefore the same
+ * whether or not the file is compressed.
+ *
+ * The table of blocks is stored in the TextWigFile index, so that a channel
+ * can be reopened from it without scanning the file again. Only blocks after
+ * the end of a known table (e.g. appended data) are scanned.
+ *
+ * As with any FileChannel, positional reads may be performed concurrently.
+ * Recently used blocks are kept decompressed in a small cache.
+ *
+ * @author timpalpant
+ *
+ */
+final class BgzfFileChannel extends FileChannel {
+
+  private static final int MIN_HEADER_LENGTH = 18;
+  private static final int FOOTER_LENGTH = 8;
+  /** Number of decompressed blocks to keep in memory */
+  private static final int CACHE_SIZE = 16;
+
+  private final FileChannel channel;
+  private final Blocks blocks;
+  // File offset, compressed size and uncompressed offset of each non-empty
+  // block, with the total uncompressed size at uncompressedOffsets[numBlocks]
+  private final long[] blockAddresses;
+  private final int[] blockSizes;
+  private final long[] uncompressedOffsets;
+  private final int numBlocks;
+  private long position = 0;
+
+  private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(2 * CACHE_SIZE, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private BgzfFileChannel(FileChannel channel, Blocks blocks) {
+    this.channel = channel;
+    this.blocks = blocks;
+    this.blockAddresses = blocks.addresses;
+    this.blockSizes = blocks.sizes;
+    this.uncompressedOffsets = blocks.offsets;
+    this.numBlocks = blocks.numBlocks;
+  }
+
+  /**
+   * @param p
+   *          a file
+   * @return true if p is BGZF-compressed
+   * @throws IOException
+   *           if an error occurs while reading p
+   */
+  public static boolean isBgzf(Path p) throws IOException {
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(p))) {
+      return BlockCompressedInputStream.isValidFile(is);
+    }
+  }
+
+  /**
+   * Open a BGZF-compressed file and scan its blocks
+   *
+   * @param p
+   *          the BGZF-compressed file
+   * @return a channel over the uncompressed contents of p
+   * @throws IOException
+   *           if an error occurs while reading p, or it is not a valid BGZF
+   *           file
+   */
+  public static BgzfFileChannel open(Path p) throws IOException {
+    return open(p, (Blocks) null);
+  }
+
+  /**
+   * Open a BGZF-compressed file with the blocks found when it was last opened.
+   * Only blocks after the end of the known blocks are scanned. If the known
+   * blocks do not match the file, all of its blocks are scanned.
+   *
+   * @param p
+   *          the BGZF-compressed file
+   * @param known
+   *          the blocks of p (or of a prefix of p), or null to scan all blocks
+   * @return a channel over the uncompressed contents of p
+   * @throws IOException
+   *           if an error occurs while reading p, or it is not a valid BGZF
+   *           file
+   */
+  public static BgzfFileChannel open(Path p, Blocks known) throws IOException {
+    FileChannel channel = FileChannel.open(p, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      long[] addresses;
+      int[] sizes;
+      long[] offsets;
+      int n;
+      long address;
+      if (known != null && matches(channel, known)) {
+        n = known.numBlocks;
+        addresses = Arrays.copyOf(known.addresses, Math.max(64, n));
+        sizes = Arrays.copyOf(known.sizes, Math.max(64, n));
+        offsets = Arrays.copyOf(known.offsets, Math.max(64, n) + 1);
+        address = known.length;
+      } else {
+        n = 0;
+        addresses = new long[64];
+        sizes = new int[64];
+        offsets = new long[65];
+        address = 0;
+      }
+
+      ByteBuffer footer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      while (address < size) {
+        int blockSize = readBlockSize(channel, address);
+        if (blockSize < 0) {
+          throw new IOException("Invalid BGZF block at offset " + address + " in " + p);
+        }
+        footer.clear();
+        readFully(channel, footer, address + blockSize - 4);
+        int uncompressedSize = footer.getInt(0);
+
+        // Skip empty blocks (e.g. the EOF marker)
+        if (uncompressedSize > 0) {
+          if (n == addresses.length) {
+            addresses = Arrays.copyOf(addresses, 2 * n);
+            sizes = Arrays.copyOf(sizes, 2 * n);
+            offsets = Arrays.copyOf(offsets, 2 * n + 1);
+          }
+          addresses[n] = address;
+          sizes[n] = blockSize;
+          offsets[n + 1] = offsets[n] + uncompressedSize;
+          n++;
+        }
+        address += blockSize;
+      }
+
+      return new BgzfFileChannel(channel, new Blocks(addresses, sizes, offsets, n, address));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the known blocks are consistent with the file, i.e. it is
+   *         at least as long and the last known block is where it should be
+   */
+  private static boolean matches(FileChannel channel, Blocks known) throws IOException {
+    if (known.length > channel.size()) {
+      return false;
+    } else if (known.numBlocks == 0) {
+      return true;
+    }
+    int last = known.numBlocks - 1;
+    return known.addresses[last] + MIN_HEADER_LENGTH <= channel.size()
+        && readBlockSize(channel, known.addresses[last]) == known.sizes[last];
+  }
+
+  /**
+   * @return the size of the block at address, or -1 if there is not a valid
+   *         BGZF block header at address
+   */
+  private static int readBlockSize(FileChannel channel, long address) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(MIN_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, address);
+    if (header.get(0) != 31 || (header.get(1) & 0xff) != 139 || (header.get(3) & 4) == 0 || header.get(12) != 'B'
+        || header.get(13) != 'C') {
+      return -1;
+    }
+    return (header.getShort(16) & 0xffff) + 1;
+  }
+
+  /**
+   * @return the blocks of this file, to reopen it without scanning
+   */
+  public Blocks getBlocks() {
+    return blocks;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      if (channel.read(dst, position + dst.position()) == -1) {
+        throw new IOException("Truncated BGZF file");
+      }
+    }
+  }
+
+  /**
+   * @param block
+   *          the index of a block
+   * @return the uncompressed contents of the block
+   */
+  private byte[] getBlock(int block) throws IOException {
+    synchronized (cache) {
+      byte[] data = cache.get(block);
+      if (data != null) {
+        return data;
+      }
+    }
+
+    ByteBuffer compressed = ByteBuffer.allocate(blockSizes[block]).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, compressed, blockAddresses[block]);
+    int headerLength = 12 + (compressed.getShort(10) & 0xffff);
+    byte[] data = new byte[(int) (uncompressedOffsets[block + 1] - uncompressedOffsets[block])];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed.array(), headerLength, blockSizes[block] - headerLength - FOOTER_LENGTH);
+      if (inflater.inflate(data) != data.length) {
+        throw new IOException("Corrupt BGZF block at offset " + blockAddresses[block]);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt BGZF block at offset " + blockAddresses[block], e);
+    } finally {
+      inflater.end();
+    }
+
+    synchronized (cache) {
+      cache.put(block, data);
+    }
+    return data;
+  }
+
+  /**
+   * @return the index of the block containing an uncompressed offset
+   */
+  private int findBlock(long offset) {
+    int i = Arrays.binarySearch(uncompressedOffsets, 0, numBlocks + 1, offset);
+    return (i >= 0) ? i : -i - 2;
+  }
+
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    if (position >= size()) {
+      return -1;
+    }
+
+    int total = 0;
+    while (dst.hasRemaining() && position < size()) {
+      int block = findBlock(position);
+      byte[] data = getBlock(block);
+      int offset = (int) (position - uncompressedOffsets[block]);
+      int n = Math.min(dst.remaining(), data.length - offset);
+      dst.put(data, offset, n);
+      position += n;
+      total += n;
+    }
+
+    return total;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    int n = read(dst, position);
+    if (n > 0) {
+      position += n;
+    }
+    return n;
+  }
+
+  @Override
+  public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int n = read(dsts[i]);
+      if (n == -1) {
+        return (total == 0) ? -1 : total;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  @Override
+  public synchronized long position() {
+    return position;
+  }
+
+  @Override
+  public synchronized FileChannel position(long newPosition) {
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * @return the uncompressed size of the file
+   */
+  @Override
+  public long size() {
+    return uncompressedOffsets[numBlocks];
+  }
+
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 1 << 16));
+    long total = 0;
+    while (total < count) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), count - total));
+      int n = read(buf, position + total);
+      if (n <= 0) {
+        break;
+      }
+      buf.flip();
+      while (buf.hasRemaining()) {
+        target.write(buf);
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public int write(ByteBuffer src, long position) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public FileChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long transferFrom(ReadableByteChannel src, long position, long count) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public void force(boolean metaData) {
+  }
+
+  @Override
+  public MappedByteBuffer map(MapMode mode, long position, long size) {
+    throw new UnsupportedOperationException("Cannot memory-map a BGZF-compressed file");
+  }
+
+  @Override
+  public FileLock lock(long position, long size, boolean shared) throws IOException {
+    return channel.lock(position, size, shared);
+  }
+
+  @Override
+  public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+    return channel.tryLock(position, size, shared);
+  }
+
+  @Override
+  protected void implCloseChannel() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * The table of non-empty blocks in a BGZF file: the file offset, compressed
+   * size and uncompressed offset of each block, and the number of compressed
+   * bytes that were scanned to find them
+   */
+  static final class Blocks {
+
+    private final long[] addresses;
+    private final int[] sizes;
+    private final long[] offsets;
+    private final int numBlocks;
+    private final long length;
+
+    private Blocks(long[] addresses, int[] sizes, long[] offsets, int numBlocks, long length) {
+      this.addresses = addresses;
+      this.sizes = sizes;
+      this.offsets = offsets;
+      this.numBlocks = numBlocks;
+      this.length = length;
+    }
+
+    /**
+     * Read a table of blocks written by write()
+     *
+     * @param buf
+     *          the buffer to read from
+     * @return the table of blocks
+     * @throws IOException
+     *           if the table is invalid
+     */
+    static Blocks read(ByteBuffer buf) throws IOException {
+      long length = buf.getLong();
+      int n = buf.getInt();
+      if (n < 0 || n > buf.remaining() / 16) {
+        throw new IOException("Invalid BGZF block table");
+      }
+      long[] addresses = new long[n];
+      int[] sizes = new int[n];
+      long[] offsets = new long[n + 1];
+      for (int i = 0; i < n; i++) {
+        addresses[i] = buf.getLong();
+        sizes[i] = buf.getInt();
+        offsets[i + 1] = offsets[i] + buf.getInt();
+      }
+      return new Blocks(addresses, sizes, offsets, n, length);
+    }
+
+    /**
+     * Write this table of blocks (16 bytes per block)
+     *
+     * @param dos
+     *          the stream to write to
+     * @throws IOException
+     *           if a disk write error occurs
+     */
+    void write(DataOutputStream dos) throws IOException {
+      dos.writeLong(length);
+      dos.writeInt(numBlocks);
+      for (int i = 0; i < numBlocks; i++) {
+        dos.writeLong(addresses[i]);
+        dos.writeInt(sizes[i]);
+        dos.writeInt((int) (offsets[i + 1] - offsets[i]));
+      }
+    }
+
+    /**
+     * @return the number of non-empty blocks
+     */
+    int numBlocks() {
+      return numBlocks;
+    }
+  }
+
+}
@@ -2,13 +2,14 @@ package edu.unc.genomics.io;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.broad.igv.bbfile.BBFileReader;
-import org.broad.igv.bbfile.BedFeature;
 
 import edu.unc.genomics.BedEntry;
 
@@ -16,6 +17,8 @@ import edu.unc.genomics.BedEntry;
  * A BigBed file. For more information, see:
  * http://genome.ucsc.edu/goldenPath/help/bigBed.html
  * 
+ * The file is decoded natively with BBIFile, one data block at a time.
+ * 
  * @author timpalpant
  *
  */
@@ -23,70 +26,131 @@ public class BigBedFileReader extends IntervalFileReader<BedEntry> {
 
   private static final Logger log = Logger.getLogger(BigBedFileReader.class);
 
-  private BBFileReader reader;
+  private final BBIFile bbi;
 
   protected BigBedFileReader(Path p) throws IOException {
     super(p);
     log.debug("Opening BigBed file reader " + p);
-    reader = new BBFileReader(p.toString());
-    if (!reader.isBigBedFile()) {
+    bbi = new BBIFile(p, Runtime.getRuntime().availableProcessors());
+    if (!bbi.isBigBed()) {
+      bbi.close();
       throw new IntervalFileFormatException("Not a BigBed file!");
     }
   }
 
   @Override
   public int count() {
-    return reader.getDataCount();
+    return bbi.getDataCount();
   }
 
   @Override
   public Set<String> chromosomes() {
-    return new LinkedHashSet<String>(reader.getChromosomeNames());
+    return new LinkedHashSet<String>(bbi.getChromosomes());
   }
 
   @Override
   public Iterator<BedEntry> iterator() {
-    return new BigBedEntryIterator(reader.getBigBedIterator());
+    return new BigBedEntryIterator(bbi.findBlocks(0, BBIFile.ALL, 0, 0), BBIFile.ALL, 0, 0);
   }
 
   @Override
   public void close() throws IOException {
+    bbi.close();
   }
 
   @Override
   public Iterator<BedEntry> query(String chr, int start, int stop) throws UnsupportedOperationException {
-    return new BigBedEntryIterator(reader.getBigBedIterator(chr, start, chr, stop, false));
+    Integer chrID = bbi.getChromosomeID(chr);
+    if (chrID == null) {
+      return Collections.<BedEntry> emptyList().iterator();
+    }
+    // BigBed coordinates are 0-based and half-open
+    int low = Math.min(start, stop) - 1;
+    int high = Math.max(start, stop);
+    return new BigBedEntryIterator(bbi.findBlocks(0, chrID, low, high), chrID, low, high);
+  }
+
+  /**
+   * Find the records with a name, using the name index of the file
+   * 
+   * @param name
+   *          the name (id) of the records to find
+   * @return the records with the name
+   * @throws UnsupportedOperationException
+   *           if the file does not have a name index
+   */
+  public Iterator<BedEntry> queryName(String name) throws UnsupportedOperationException {
+    BigBedEntryIterator it = new BigBedEntryIterator(bbi.findBlocks(name), BBIFile.ALL, 0, 0);
+    it.name = name;
+    return it;
   }
 
   /**
-   * Wrapper to convert BedFeatures to BedEntry
+   * Decodes the records of a list of blocks that overlap a region, one block
+   * at a time, and converts them to BedEntry
    * 
    * @author timpalpant
    *
    */
-  private static class BigBedEntryIterator implements Iterator<BedEntry> {
-
-    private final Iterator<BedFeature> it;
-
-    public BigBedEntryIterator(Iterator<BedFeature> it) {
-      this.it = it;
+  private class BigBedEntryIterator implements Iterator<BedEntry> {
+
+    private final List<BBIFile.Block> blocks;
+    private final int chrID, start, stop;
+    private final BBIFile.BedRecords records = new BBIFile.BedRecords();
+    private int nextBlock = 0;
+    private int nextRecord = 0;
+    /** Only return the records with this name, if it is not null */
+    private String name;
+
+    public BigBedEntryIterator(List<BBIFile.Block> blocks, int chrID, int start, int stop) {
+      this.blocks = blocks;
+      this.chrID = chrID;
+      this.start = start;
+      this.stop = stop;
     }
 
     @Override
     public boolean hasNext() {
-      return it.hasNext();
+      while (name != null && nextRecord < records.size() && !hasName(records.rest[nextRecord])) {
+        nextRecord++;
+      }
+      while (nextRecord == records.size() && nextBlock < blocks.size()) {
+        records.clear();
+        try {
+          bbi.read(blocks.subList(nextBlock, nextBlock + 1), chrID, start, stop, records);
+        } catch (IOException e) {
+          throw new RuntimeException("Error reading BigBed file " + p, e);
+        }
+        nextBlock++;
+        nextRecord = 0;
+        while (name != null && nextRecord < records.size() && !hasName(records.rest[nextRecord])) {
+          nextRecord++;
+        }
+      }
+      return nextRecord < records.size();
+    }
+
+    /**
+     * @return true if the name field of a record is name
+     */
+    private boolean hasName(String rest) {
+      return rest.startsWith(name) && (rest.length() == name.length() || rest.charAt(name.length()) == '\t');
     }
 
     @Override
     public BedEntry next() {
-      BedFeature f = it.next();
-      BedEntry bed = new BedEntry(f.getChromosome(), f.getStartBase(), f.getEndBase());
-      String[] fields = f.getRestOfFields();
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      int i = nextRecord++;
+      BedEntry bed = new BedEntry(bbi.getChromosome(records.chrIDs[i]), records.starts[i] + 1, records.ends[i]);
+      String[] fields = records.rest[i].split("\t");
       if (fields.length > 0) {
         bed.setId(fields[0]);
       }
 
-      if (fields.length > 1) {
+      if (fields.length > 1 && !fields[1].equals(".")) {
         bed.setValue(Double.valueOf(fields[1]));
       }
 
@@ -97,14 +161,14 @@ public class BigBedFileReader extends IntervalFileReader<BedEntry> {
         bed.setStop(tmp);
       }
 
-      // TODO: Parse other BedFeature fields
+      // TODO: Parse other BigBed fields
 
       return bed;
     }
 
     @Override
     public void remove() {
-      it.remove();
+      throw new UnsupportedOperationException("Cannot remove records from BigBed file");
     }
   }
 
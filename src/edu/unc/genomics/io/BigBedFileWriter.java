@@ -0,0 +1,263 @@
+package edu.unc.genomics.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.Assembly;
+import edu.unc.genomics.Interval;
+
+/**
+ * A class for writing Intervals to BigBed files. For more information, see:
+ * http://genome.ucsc.edu/goldenPath/help/bigBed.html
+ *
+ * Intervals are written in Bed format (the same fields as BedFileWriter), and
+ * the Intervals of each chromosome must be sorted by their low coordinate
+ * (although chromosomes may be written in any order). Records are grouped into
+ * blocks of up to 1024 records, which are compressed on a pool of worker
+ * threads. The zoom levels summarize the depth of coverage of the Intervals,
+ * and the names of the records may optionally be indexed, so that they can be
+ * looked up with BigBedFileReader.queryName().
+ *
+ * @author timpalpant
+ *
+ */
+public class BigBedFileWriter<T extends Interval> implements Closeable {
+
+  private static final Logger log = Logger.getLogger(BigBedFileWriter.class);
+
+  /** The autoSql declarations of the standard Bed fields */
+  private static final String[] BED_FIELDS = { "string chrom;       \"Reference sequence chromosome or scaffold\"",
+      "uint   chromStart;  \"Start position in chromosome\"", "uint   chromEnd;    \"End position in chromosome\"",
+      "string name;        \"Name of item\"", "uint score;          \"Score from 0-1000\"",
+      "char[1] strand;     \"+ or -\"", "uint thickStart;   \"Start of where display should be thick (start codon)\"",
+      "uint thickEnd;     \"End of where display should be thick (stop codon)\"",
+      "uint reserved;     \"Used as itemRgb as of 2004-11-22\"", "int blockCount;    \"Number of blocks\"",
+      "int[blockCount] blockSizes; \"Comma separated list of block sizes\"",
+      "int[blockCount] chromStarts; \"Start positions relative to chromStart\"" };
+
+  private final Path p;
+  private final BBIWriter bbi;
+  private final boolean indexNames;
+  /** The low coordinate of the last Interval written on each chromosome */
+  private final int[] chrStarts;
+  /** If data has been written to each chromosome */
+  private final boolean[] chrWritten;
+  private int fieldCount = 0;
+  private long numRecords = 0;
+
+  // The records of the block being built
+  private int blockChrID = -1;
+  private int blockStart, blockEnd;
+  private int blockSize = 0;
+  private ByteBuffer block = ByteBuffer.allocate(64 * BBIWriter.ITEMS_PER_SLOT).order(ByteOrder.LITTLE_ENDIAN);
+  private final Set<String> blockNames = new LinkedHashSet<>();
+
+  // The depth of coverage of the chromosome being written, from pos up to the
+  // ends of the records that overlap it
+  private int coverageChrID = -1;
+  private int pos = 0;
+  private final PriorityQueue<Integer> ends = new PriorityQueue<>();
+
+  /**
+   * Create a new BigBed file, compressing data with one thread per processor,
+   * and without a name index
+   *
+   * @param p
+   *          the Path to the BigBed file
+   * @param assembly
+   *          the chromosomes (and their lengths) of the data
+   * @throws IOException
+   *           if a disk write error occurs
+   */
+  public BigBedFileWriter(Path p, Assembly assembly) throws IOException {
+    this(p, assembly, Runtime.getRuntime().availableProcessors(), false);
+  }
+
+  /**
+   * Create a new BigBed file
+   *
+   * @param p
+   *          the Path to the BigBed file
+   * @param assembly
+   *          the chromosomes (and their lengths) of the data
+   * @param threads
+   *          the number of threads to compress data with
+   * @param indexNames
+   *          whether to index the names (ids) of the records
+   * @throws IOException
+   *           if a disk write error occurs
+   */
+  public BigBedFileWriter(Path p, Assembly assembly, int threads, boolean indexNames) throws IOException {
+    this.p = p;
+    this.indexNames = indexNames;
+    log.debug("Initializing BigBed file writer " + p);
+    bbi = new BBIWriter(p, BBIFile.BIGBED_MAGIC, assembly, threads);
+    chrStarts = new int[assembly.chromosomes().size()];
+    chrWritten = new boolean[assembly.chromosomes().size()];
+  }
+
+  /**
+   * Write the remaining data, indexes, and zoom levels, and close the file
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    log.debug("Closing BigBed file writer " + p);
+    try {
+      flushBlock();
+      addCoverage(Integer.MAX_VALUE);
+      bbi.setDataCount(numRecords);
+      if (fieldCount == 0) {
+        fieldCount = 3;
+      }
+      bbi.setFields(fieldCount, Math.min(fieldCount, BED_FIELDS.length), autoSql(fieldCount));
+    } finally {
+      bbi.close();
+    }
+  }
+
+  /**
+   * Write an Interval as a record of this BigBed file
+   *
+   * @param entry
+   *          the Interval to write
+   * @throws IOException
+   *           if a disk write error occurs
+   * @throws IllegalArgumentException
+   *           if the Interval is not in the Assembly, is before an Interval
+   *           that has already been written to its chromosome, or has a
+   *           different number of fields than the Intervals already written
+   */
+  public synchronized void write(T entry) throws IOException {
+    int index = bbi.getChromosomeIndex(entry.getChr());
+    int start = entry.low() - 1;
+    int end = entry.high();
+    if (start < 0 || end > bbi.getChromosomeLength(index)) {
+      throw new IllegalArgumentException("Interval " + entry + " is outside of the assembly");
+    } else if (chrWritten[index] && bbi.getChromosomeID(index) != coverageChrID) {
+      throw new IllegalArgumentException("Data must be written in order: chromosome " + entry.getChr()
+          + " has already been written");
+    } else if (start + 1 < chrStarts[index]) {
+      throw new IllegalArgumentException("Data must be written in order: " + entry
+          + " is before the start of the last Interval written (" + chrStarts[index] + ")");
+    }
+    // The fields after chrom, chromStart, and chromEnd
+    String bed = entry.toBed();
+    int i = bed.indexOf('\t', bed.indexOf('\t', bed.indexOf('\t') + 1) + 1);
+    String rest = (i < 0) ? "" : bed.substring(i + 1);
+    int numFields = 3;
+    if (i >= 0) {
+      for (int j = i; j >= 0; j = bed.indexOf('\t', j + 1)) {
+        numFields++;
+      }
+    }
+    if (fieldCount == 0) {
+      fieldCount = numFields;
+    } else if (numFields != fieldCount) {
+      throw new IllegalArgumentException("Interval " + entry + " has " + numFields + " fields, but previous "
+          + "Intervals have " + fieldCount);
+    }
+    chrStarts[index] = start + 1;
+    chrWritten[index] = true;
+    int chrID = bbi.getChromosomeID(index);
+
+    if (chrID != blockChrID || blockSize == BBIWriter.ITEMS_PER_SLOT) {
+      flushBlock();
+      blockChrID = chrID;
+      blockStart = start;
+      blockEnd = end;
+    }
+    byte[] bytes = rest.getBytes(StandardCharsets.US_ASCII);
+    if (block.remaining() < 13 + bytes.length) {
+      ByteBuffer larger = ByteBuffer.allocate(2 * block.capacity() + 13 + bytes.length);
+      larger.order(ByteOrder.LITTLE_ENDIAN);
+      block.flip();
+      larger.put(block);
+      block = larger;
+    }
+    block.putInt(chrID).putInt(start).putInt(end).put(bytes).put((byte) 0);
+    blockEnd = Math.max(blockEnd, end);
+    blockSize++;
+    numRecords++;
+    if (indexNames) {
+      int nameEnd = rest.indexOf('\t');
+      blockNames.add((nameEnd < 0) ? rest : rest.substring(0, nameEnd));
+    }
+
+    if (chrID != coverageChrID) {
+      addCoverage(Integer.MAX_VALUE);
+      coverageChrID = chrID;
+    }
+    addCoverage(start);
+    ends.add(end);
+  }
+
+  /**
+   * Add the depth of coverage of the current chromosome up to a position to
+   * the zoom levels
+   */
+  private void addCoverage(int to) throws IOException {
+    while (!ends.isEmpty() && ends.peek() <= to) {
+      int end = ends.peek();
+      if (end > pos) {
+        bbi.addItem(coverageChrID, pos, end, ends.size());
+        pos = end;
+      }
+      ends.poll();
+    }
+
+    if (!ends.isEmpty() && pos < to) {
+      bbi.addItem(coverageChrID, pos, to, ends.size());
+    }
+    pos = to;
+  }
+
+  /**
+   * Write the records of the current block to disk
+   */
+  private void flushBlock() throws IOException {
+    if (blockSize == 0) {
+      return;
+    }
+
+    byte[] bytes = Arrays.copyOf(block.array(), block.position());
+    if (indexNames) {
+      bbi.writeBlock(bytes, bytes.length, blockChrID, blockStart, blockChrID, blockEnd, blockNames);
+      blockNames.clear();
+    } else {
+      bbi.writeBlock(bytes, bytes.length, blockChrID, blockStart, blockChrID, blockEnd);
+    }
+    block.clear();
+    blockSize = 0;
+  }
+
+  /**
+   * @return the autoSql description of Bed records with numFields fields
+   */
+  private static String autoSql(int numFields) {
+    StringBuilder sb = new StringBuilder("table bed\n\"Browser Extensible Data\"\n    (\n");
+    for (int i = 0; i < numFields; i++) {
+      sb.append("    ");
+      sb.append((i < BED_FIELDS.length) ? BED_FIELDS[i] : "lstring field" + (i + 1) + ";  \"Undocumented field\"");
+      sb.append('\n');
+    }
+    return sb.append("    )\n").toString();
+  }
+
+  /**
+   * @return the path
+   */
+  public final Path getPath() {
+    return p;
+  }
+
+}
@@ -2,21 +2,23 @@ package edu.unc.genomics.io;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
-import org.broad.igv.bbfile.BBFileReader;
-import org.broad.igv.bbfile.BBTotalSummaryBlock;
-import org.broad.igv.bbfile.BigWigIterator;
-import org.broad.igv.bbfile.RPChromosomeRegion;
-import org.broad.igv.bbfile.WigItem;
 
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.RunLengthContig;
+import edu.unc.genomics.util.ChecksumUtils;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
 
 /**
  * A BigWig file. For more information, see:
@@ -26,8 +28,20 @@ import edu.unc.genomics.Interval;
  * base class WigFile, and the correct format (Wig/BigWig) can be autodetected
  * by calling WigFile.autodetect()
  * 
- * Wrapper for Broad Institute BigWig classes See:
- * http://code.google.com/p/bigwig/
+ * The file is decoded natively with BBIFile.
+ * 
+ * Statistics of large intervals are computed from the zoom levels of the
+ * BigWig file, reading raw data only for zoom records that are cut by the
+ * edges of the interval (or its bins). The zoom levels store sums as floats,
+ * so these statistics may differ slightly from the raw data, and do not
+ * include the geometric mean or sum of logs. Use setExact(true) to always
+ * compute statistics from the raw data.
+ * 
+ * The header and indexes of the file are loaded once when it is opened, and
+ * shared by clones of the reader. Data is read with positional reads, so a
+ * single reader may be queried concurrently from multiple threads, up to a
+ * limit on the number of queries that read from the file at the same time (see
+ * BigWigFileReader(Path, int)).
  * 
  * @author timpalpant
  *
@@ -35,103 +49,390 @@ import edu.unc.genomics.Interval;
 public class BigWigFileReader extends WigFileReader {
 
   private static final Logger log = Logger.getLogger(BigWigFileReader.class);
-
-  private BBFileReader reader;
-  private BBTotalSummaryBlock summary;
-
+  /** A zoom level is used if at least this many of its records fit in a bin */
+  private static final int MIN_RECORDS_PER_BIN = 8;
+
+  private final BBIFile bbi;
+  private final long fingerprint;
+  private volatile boolean exact = false;
+
+  /**
+   * @param p
+   *          the path to the BigWig file
+   * @throws IOException
+   *           if an error occurs while opening the file
+   */
   public BigWigFileReader(Path p) throws IOException {
+    this(p, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Open a BigWig file for queries from multiple threads. At most
+   * maxConcurrentQueries queries read from the file at the same time, and
+   * further queries wait until one of them finishes. All queries share a
+   * single file channel, and each query that is reading holds its own
+   * decompression buffers, so the limit bounds the memory used by concurrent
+   * queries. Clones of the reader have the same limit.
+   * 
+   * @param p
+   *          the path to the BigWig file
+   * @param maxConcurrentQueries
+   *          the maximum number of queries that read from the file at the same
+   *          time (by default, the number of processors)
+   * @throws IOException
+   *           if an error occurs while opening the file
+   * @throws IllegalArgumentException
+   *           if maxConcurrentQueries is not positive
+   */
+  public BigWigFileReader(Path p, int maxConcurrentQueries) throws IOException {
     super(p);
+    if (maxConcurrentQueries <= 0) {
+      throw new IllegalArgumentException("Number of concurrent queries must be > 0");
+    }
 
     log.debug("Opening BigWig file reader " + p);
-    reader = new BBFileReader(p.toString());
-    summary = reader.getTotalSummaryBlock();
+    bbi = new BBIFile(p, maxConcurrentQueries);
+    if (!bbi.isBigWig()) {
+      bbi.close();
+      throw new WigFileFormatException("Not a BigWig file!");
+    }
+    fingerprint = ChecksumUtils.sampled(p);
   }
 
+  /**
+   * Copy constructor - share the parsed index, but open a new channel with
+   * the same limit on concurrent queries
+   * 
+   * @param other
+   *          the reader to copy
+   * @throws IOException
+   *           if an error occurs while opening the file
+   */
   public BigWigFileReader(BigWigFileReader other) throws IOException {
     super(other.p);
 
     log.debug("Cloning BigWig file reader " + p);
-    reader = new BBFileReader(other.p.toString());
-    summary = reader.getTotalSummaryBlock();
+    bbi = new BBIFile(other.bbi);
+    fingerprint = other.fingerprint;
+    blockCache = other.blockCache;
+    exact = other.exact;
   }
 
   public static boolean isBigWig(Path p) throws IOException {
-    boolean isBigWig = false;
-    try {
-      BBFileReader reader = new BBFileReader(p.toString());
-      isBigWig = reader.isBigWigFile();
-    } catch (RuntimeException e) {
-    }
-    return isBigWig;
+    return BBIFile.sniff(p) == BBIFile.BIGWIG_MAGIC;
   }
 
   @Override
   public void close() {
     log.debug("Closing BigWig file reader " + p);
+    try {
+      bbi.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Error closing BigWig file " + p);
+    }
   }
 
   @Override
-  public synchronized Contig query(Interval interval) {
-    float[] values = new float[interval.length()];
-    Arrays.fill(values, Float.NaN);
-    BigWigIterator it = reader.getBigWigIterator(interval.getChr(), interval.low() - 1, interval.getChr(),
-        interval.high(), false);
-    while (it.hasNext()) {
-      WigItem item = it.next();
-      float value = item.getWigValue();
-      if (!Float.isNaN(value)) {
-        for (int bp = item.getStartBase() + 1; bp <= item.getEndBase(); bp++) {
-          if (interval.includes(bp)) {
-            values[bp - interval.low()] = value;
+  public void query(Interval interval, float[] values, int offset) throws IOException {
+    if (offset < 0 || values.length - offset < interval.length()) {
+      throw new IllegalArgumentException("Array is too small to hold the values for interval " + interval);
+    }
+
+    Arrays.fill(values, offset, offset + interval.length(), Float.NaN);
+    if (blockCache.caches(interval)) {
+      try {
+        blockCache.query(fingerprint, interval, values, offset, new WigBlockCache.BlockLoader() {
+          @Override
+          public void load(Interval block, float[] blockValues) throws IOException {
+            read(block, blockValues, 0);
           }
-        }
+        });
+      } catch (WigFileException e) {
+        throw new RuntimeException("Error reading BigWig file " + p, e);
       }
+    } else {
+      read(interval, values, offset);
     }
+  }
 
-    if (interval.isCrick()) {
-      ArrayUtils.reverse(values);
+  /**
+   * Read the values overlapping interval into an array of NaN
+   */
+  private void read(Interval interval, float[] values, int offset) throws IOException {
+    BBIFile.WigRecords records = readRecords(0, interval.getChr(), interval.low(), interval.high());
+    for (int i = 0; i < records.size(); i++) {
+      float value = records.values[i];
+      if (!Float.isNaN(value)) {
+        fill(interval, values, offset, records.starts[i] + 1, records.ends[i], value);
+      }
     }
-
-    return new Contig(interval, values);
   }
   
+  /**
+   * The runs of the data items are added directly, reading one data block at a
+   * time
+   */
   @Override
-  public synchronized SummaryStatistics queryStats(Interval interval) {
-    SummaryStatistics stats = new SummaryStatistics();
-    BigWigIterator it = reader.getBigWigIterator(interval.getChr(), interval.low() - 1, interval.getChr(),
-        interval.high(), false);
-    while (it.hasNext()) {
-      WigItem item = it.next();
-      float value = item.getWigValue();
-      if (!Float.isNaN(value)) {
-        for (int bp = item.getStartBase() + 1; bp <= item.getEndBase(); bp++) {
-          if (interval.includes(bp)) {
-            stats.addValue(value);
-          }
+  public RunLengthContig queryRuns(Interval interval) throws IOException {
+    RunLengthContig contig = new RunLengthContig(interval);
+    Integer chrID = bbi.getChromosomeID(interval.getChr());
+    if (chrID == null) {
+      return contig;
+    }
+
+    int low = interval.low() - 1;
+    int high = interval.high();
+    BBIFile.WigRecords records = new BBIFile.WigRecords();
+    List<BBIFile.Block> blocks = bbi.findBlocks(0, chrID, low, high);
+    for (int b = 0; b < blocks.size(); b++) {
+      records.clear();
+      bbi.read(blocks.subList(b, b + 1), chrID, low, high, records);
+      for (int i = 0; i < records.size(); i++) {
+        float value = records.values[i];
+        if (!Float.isNaN(value)) {
+          contig.set(Math.max(records.starts[i], low) + 1, Math.min(records.ends[i], high), value);
         }
       }
     }
+    return contig;
+  }
+
+  @Override
+  public SummaryStatistics queryStats(Interval interval) throws IOException {
+    int zoomLevel = chooseZoomLevel(interval.length());
+    if (zoomLevel > 0) {
+      return queryZoomStats(interval, 1, zoomLevel)[0];
+    }
+
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    BBIFile.WigRecords records = readRecords(0, interval.getChr(), interval.low(), interval.high());
+    for (int i = 0; i < records.size(); i++) {
+      float value = records.values[i];
+      int n = Math.min(records.ends[i], interval.high()) - Math.max(records.starts[i] + 1, interval.low()) + 1;
+      if (!Float.isNaN(value) && n > 0) {
+        stats.addValue(value, n);
+      }
+    }
 
     return stats;
   }
 
   @Override
-  public synchronized Set<String> chromosomes() {
-    return new LinkedHashSet<String>(reader.getChromosomeNames());
+  protected boolean isSummarized(Interval interval) {
+    return chooseZoomLevel(interval.length()) > 0;
+  }
+
+  /**
+   * All of the bins are computed with a single pass over the best zoom level
+   * for the size of the bins
+   */
+  @Override
+  public SummaryStatistics[] queryBinnedStats(Interval interval, int numBins) throws IOException,
+      WigFileException {
+    if (numBins <= 0 || numBins > interval.length()) {
+      throw new IllegalArgumentException("Number of bins must be between 1 and the length of the interval");
+    }
+
+    int zoomLevel = chooseZoomLevel(interval.length() / numBins);
+    if (zoomLevel > 0) {
+      return queryZoomStats(interval, numBins, zoomLevel);
+    }
+    return super.queryBinnedStats(interval, numBins);
+  }
+
+  /**
+   * @return the data items (level 0) or zoom records of a level that overlap
+   *         base pairs low to high of a chromosome
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends BBIFile.Records> T readRecords(int level, String chr, int low, int high) throws IOException {
+    BBIFile.Records records = (level == 0) ? new BBIFile.WigRecords() : new BBIFile.ZoomRecords();
+    Integer chrID = bbi.getChromosomeID(chr);
+    if (chrID != null) {
+      bbi.query(level, chrID, low - 1, high, records);
+    }
+    return (T) records;
+  }
+
+  /**
+   * @param binSize
+   *          the number of base pairs in each bin of a query
+   * @return the coarsest zoom level with enough records per bin, or 0 if the
+   *         query should use the raw data
+   */
+  private int chooseZoomLevel(int binSize) {
+    int best = 0;
+    if (!exact) {
+      for (int level = 1; level <= bbi.getNumZoomLevels(); level++) {
+        if ((long) bbi.getReductionLevel(level) * MIN_RECORDS_PER_BIN <= binSize
+            && (best == 0 || bbi.getReductionLevel(level) > bbi.getReductionLevel(best))) {
+          best = level;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Compute the statistics of equal-sized bins across an interval from a zoom
+   * level. Zoom records that lie entirely within a bin are combined, and the
+   * raw data is read for the parts of the other records within the interval.
+   * The data blocks of all of these edges are read together, so that a block
+   * shared by several edges is only read and decompressed once.
+   */
+  private SummaryStatistics[] queryZoomStats(Interval interval, int numBins, int zoomLevel) throws IOException {
+    WeightedSummaryStatistics[] bins = new WeightedSummaryStatistics[numBins];
+    for (int i = 0; i < numBins; i++) {
+      bins[i] = new WeightedSummaryStatistics();
+    }
+    String chr = interval.getChr();
+    if (!includes(chr)) {
+      return bins;
+    }
+
+    // Zoom records may extend past the last base pair with data
+    int chrStart = getChrStart(chr);
+    int chrStop = getChrStop(chr);
+    BBIFile.ZoomRecords records = readRecords(zoomLevel, chr, interval.low(), interval.high());
+    List<int[]> edges = new ArrayList<>();
+    for (int i = 0; i < records.size(); i++) {
+      int n = records.validCounts[i];
+      int start = Math.max(records.starts[i] + 1, chrStart);
+      int stop = Math.min(records.ends[i], chrStop);
+      int low = Math.max(start, interval.low());
+      int high = Math.min(stop, interval.high());
+      if (n == 0 || low > high) {
+        continue;
+      }
+
+      int bin = getBin(interval, numBins, low);
+      if (low == start && high == stop && bin == getBin(interval, numBins, high)) {
+        double sum = records.sums[i];
+        double secondMoment = Math.max(0, records.sumSquares[i] - sum * sum / n);
+        bins[bin].combine(WeightedSummaryStatistics.of(n, sum, secondMoment, records.mins[i], records.maxs[i]));
+      } else {
+        edges.add(new int[] { low, high });
+      }
+    }
+
+    if (edges.isEmpty()) {
+      return bins;
+    }
+
+    // Zoom records are sorted and do not overlap, so neither do the edges
+    Integer chrID = bbi.getChromosomeID(chr);
+    Map<Long, BBIFile.Block> blocks = new TreeMap<>();
+    for (int[] edge : edges) {
+      for (BBIFile.Block block : bbi.findBlocks(0, chrID, edge[0] - 1, edge[1])) {
+        blocks.put(block.offset, block);
+      }
+    }
+    BBIFile.WigRecords raw = new BBIFile.WigRecords();
+    bbi.read(new ArrayList<>(blocks.values()), chrID, edges.get(0)[0] - 1, edges.get(edges.size() - 1)[1], raw);
+
+    int e = 0;
+    for (int i = 0; i < raw.size() && e < edges.size(); i++) {
+      float value = raw.values[i];
+      if (Float.isNaN(value)) {
+        continue;
+      }
+      while (e < edges.size() && edges.get(e)[1] <= raw.starts[i]) {
+        e++;
+      }
+
+      // Split the parts of the item within edges between the bins that they
+      // overlap
+      for (int k = e; k < edges.size() && edges.get(k)[0] <= raw.ends[i]; k++) {
+        int low = Math.max(raw.starts[i] + 1, edges.get(k)[0]);
+        int high = Math.min(raw.ends[i], edges.get(k)[1]);
+        for (int bin = getBin(interval, numBins, low); bin <= getBin(interval, numBins, high); bin++) {
+          int binLow = getBinLow(interval, numBins, bin);
+          int binHigh = getBinLow(interval, numBins, bin + 1) - 1;
+          bins[bin].addValue(value, Math.min(high, binHigh) - Math.max(low, binLow) + 1);
+        }
+      }
+    }
+
+    return bins;
+  }
+
+  /**
+   * @return the first base pair of a bin, as in queryBinnedStats
+   */
+  private static int getBinLow(Interval interval, int numBins, int bin) {
+    return (int) (interval.low() + (long) interval.length() * bin / numBins);
+  }
+
+  /**
+   * @return the bin containing a base pair, as in queryBinnedStats
+   */
+  private static int getBin(Interval interval, int numBins, int bp) {
+    return (int) (((long) (bp - interval.low() + 1) * numBins - 1) / interval.length());
+  }
+
+  /**
+   * @return true if statistics are always computed from the raw data
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * @param exact
+   *          whether to always compute statistics from the raw data, rather
+   *          than from the zoom levels of this file
+   */
+  public void setExact(boolean exact) {
+    this.exact = exact;
+  }
+
+  /**
+   * Chunks are read by decoding the data blocks of the file in order, one at
+   * a time
+   */
+  @Override
+  public Iterator<Contig> chunks(int chunkSize) {
+    final List<BBIFile.Block> blocks = bbi.findBlocks(0, BBIFile.ALL, 0, 0);
+    return new WigChunkIterator(chunkSize) {
+      private final BBIFile.WigRecords records = new BBIFile.WigRecords();
+      private int nextBlock = 0;
+      private int nextRecord = 0;
+
+      @Override
+      protected boolean readRun() throws IOException {
+        while (nextRecord == records.size()) {
+          if (nextBlock == blocks.size()) {
+            return false;
+          }
+          records.clear();
+          bbi.read(blocks.subList(nextBlock, nextBlock + 1), BBIFile.ALL, 0, 0, records);
+          nextBlock++;
+          nextRecord = 0;
+        }
+
+        runChr = bbi.getChromosome(records.chrIDs[nextRecord]);
+        runStart = records.starts[nextRecord] + 1;
+        runStop = records.ends[nextRecord];
+        runValue = records.values[nextRecord];
+        nextRecord++;
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public Set<String> chromosomes() {
+    return new LinkedHashSet<String>(bbi.getChromosomes());
   }
 
   @Override
-  public synchronized int getChrStart(String chr) {
-    int chrID = reader.getChromosomeID(chr);
-    RPChromosomeRegion region = reader.getChromosomeBounds(chrID, chrID);
-    return region.getStartBase() + 1;
+  public int getChrStart(String chr) {
+    return bbi.getChromosomeStart(bbi.getChromosomeID(chr)) + 1;
   }
 
   @Override
-  public synchronized int getChrStop(String chr) {
-    int chrID = reader.getChromosomeID(chr);
-    RPChromosomeRegion region = reader.getChromosomeBounds(chrID, chrID);
-    return region.getEndBase();
+  public int getChrStop(String chr) {
+    return bbi.getChromosomeStop(bbi.getChromosomeID(chr));
   }
 
   @Override
@@ -145,48 +446,47 @@ public class BigWigFileReader extends WigFileReader {
   }
 
   @Override
-  public synchronized boolean includes(String chr, int start, int stop) {
-    int chrID = reader.getChromosomeID(chr);
-    if (chrID == -1) {
+  public boolean includes(String chr, int start, int stop) {
+    Integer chrID = bbi.getChromosomeID(chr);
+    if (chrID == null) {
       return false;
     }
-    RPChromosomeRegion region = reader.getChromosomeBounds(chrID, chrID);
-    return region.getStartBase() <= start && region.getEndBase() >= stop;
+    return bbi.getChromosomeStart(chrID) <= start && bbi.getChromosomeStop(chrID) >= stop;
   }
 
   @Override
-  public synchronized boolean includes(String chr) {
-    return reader.getChromosomeID(chr) != -1;
+  public boolean includes(String chr) {
+    return bbi.getChromosomeID(chr) != null;
   }
 
   @Override
-  public synchronized long numBases() {
-    return summary.getBasesCovered();
+  public long numBases() {
+    return bbi.getBasesCovered();
   }
 
   @Override
-  public synchronized double total() {
-    return summary.getSumData();
+  public double total() {
+    return bbi.getSumData();
   }
 
   @Override
-  public synchronized double mean() {
+  public double mean() {
     return total() / numBases();
   }
 
   @Override
-  public synchronized double stdev() {
-    return Math.sqrt(summary.getSumSquares() / numBases() - Math.pow(mean(), 2));
+  public double stdev() {
+    return Math.sqrt(bbi.getSumSquares() / numBases() - Math.pow(mean(), 2));
   }
 
   @Override
-  public synchronized double min() {
-    return summary.getMinVal();
+  public double min() {
+    return bbi.getMinVal();
   }
 
   @Override
-  public synchronized double max() {
-    return summary.getMaxVal();
+  public double max() {
+    return bbi.getMaxVal();
   }
 
   @Override
@@ -0,0 +1,228 @@
+package edu.unc.genomics.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.Assembly;
+import edu.unc.genomics.Contig;
+
+/**
+ * A class for writing data to BigWig files. For more information, see:
+ * http://genome.ucsc.edu/goldenPath/help/bigWig.html
+ *
+ * Data is written as Contigs or runs of values. The data of each chromosome
+ * must be written in order and all at once, i.e. once data has been written to
+ * another chromosome, no more data may be written to the previous one
+ * (although chromosomes may be written in any order).
+ * Consecutive items are grouped into sections of up to 1024 items, which are
+ * stored in fixedStep, variableStep, or bedGraph format (whichever is the most
+ * compact for the layout of the items) and compressed on a pool of worker
+ * threads. The R+ tree index and zoom levels are written when the file is
+ * closed.
+ *
+ * @author timpalpant
+ *
+ */
+public class BigWigFileWriter implements Closeable {
+
+  private static final Logger log = Logger.getLogger(BigWigFileWriter.class);
+
+  private static final byte BED_GRAPH = 1;
+  private static final byte VARIABLE_STEP = 2;
+  private static final byte FIXED_STEP = 3;
+  private static final int SECTION_HEADER_SIZE = 24;
+
+  private final Path p;
+  private final BBIWriter bbi;
+  /** The end of the last item written on each chromosome */
+  private final int[] chrStops;
+  private long numSections = 0;
+
+  // The items of the section being built
+  private int sectionChrID = -1;
+  private int numItems = 0;
+  private final int[] starts = new int[BBIWriter.ITEMS_PER_SLOT];
+  private final int[] ends = new int[BBIWriter.ITEMS_PER_SLOT];
+  private final float[] values = new float[BBIWriter.ITEMS_PER_SLOT];
+
+  /**
+   * Create a new BigWig file, compressing data with one thread per processor
+   *
+   * @param p
+   *          the Path to the BigWig file
+   * @param assembly
+   *          the chromosomes (and their lengths) of the data
+   * @throws IOException
+   *           if a disk write error occurs
+   */
+  public BigWigFileWriter(Path p, Assembly assembly) throws IOException {
+    this(p, assembly, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a new BigWig file
+   *
+   * @param p
+   *          the Path to the BigWig file
+   * @param assembly
+   *          the chromosomes (and their lengths) of the data
+   * @param threads
+   *          the number of threads to compress data with
+   * @throws IOException
+   *           if a disk write error occurs
+   */
+  public BigWigFileWriter(Path p, Assembly assembly, int threads) throws IOException {
+    this.p = p;
+    log.debug("Initializing BigWig file writer " + p);
+    bbi = new BBIWriter(p, BBIFile.BIGWIG_MAGIC, assembly, threads);
+    chrStops = new int[assembly.chromosomes().size()];
+  }
+
+  /**
+   * Write the remaining data, index, and zoom levels, and close the file
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    log.debug("Closing BigWig file writer " + p);
+    try {
+      flushSection();
+      bbi.setDataCount(numSections);
+    } finally {
+      bbi.close();
+    }
+  }
+
+  /**
+   * Add a Contig of values to this BigWig file. Runs of equal values are
+   * written as single items, and NaN values are skipped.
+   *
+   * @param contig
+   *          the Contig of values to write to this BigWig file
+   * @throws IOException
+   *           if a disk write error occurs
+   * @throws IllegalArgumentException
+   *           if the Contig is not in the Assembly, is before data that has
+   *           already been written to its chromosome, or its chromosome has
+   *           already been written
+   */
+  public synchronized void write(Contig contig) throws IOException {
+    int runStart = 0;
+    float runValue = Float.NaN;
+    for (int bp = contig.low(); bp <= contig.high(); bp++) {
+      float value = contig.get(bp);
+      if (runStart != 0 && Float.compare(value, runValue) != 0) {
+        write(contig.getChr(), runStart, bp - 1, runValue);
+        runStart = 0;
+      }
+      if (runStart == 0 && !Float.isNaN(value)) {
+        runStart = bp;
+        runValue = value;
+      }
+    }
+
+    if (runStart != 0) {
+      write(contig.getChr(), runStart, contig.high(), runValue);
+    }
+  }
+
+  /**
+   * Add a run of base pairs with the same value to this BigWig file
+   *
+   * @param chr
+   *          the chromosome of the run
+   * @param start
+   *          the first base pair of the run
+   * @param stop
+   *          the last base pair of the run
+   * @param value
+   *          the value of the run (NaN values are skipped)
+   * @throws IOException
+   *           if a disk write error occurs
+   * @throws IllegalArgumentException
+   *           if the run is not in the Assembly, is before data that has
+   *           already been written to its chromosome, or its chromosome has
+   *           already been written
+   */
+  public synchronized void write(String chr, int start, int stop, float value) throws IOException {
+    if (Float.isNaN(value)) {
+      return;
+    }
+
+    int index = bbi.getChromosomeIndex(chr);
+    int low = Math.min(start, stop);
+    int high = Math.max(start, stop);
+    if (low < 1 || high > bbi.getChromosomeLength(index)) {
+      throw new IllegalArgumentException("Run " + chr + ":" + start + "-" + stop + " is outside of the assembly");
+    } else if (chrStops[index] > 0 && bbi.getChromosomeID(index) != sectionChrID) {
+      throw new IllegalArgumentException("Data must be written in order: chromosome " + chr
+          + " has already been written");
+    } else if (low <= chrStops[index]) {
+      throw new IllegalArgumentException("Data must be written in order: " + chr + ":" + start + "-" + stop
+          + " is before the end of the last data written (" + chrStops[index] + ")");
+    }
+    chrStops[index] = high;
+    int chrID = bbi.getChromosomeID(index);
+
+    if (chrID != sectionChrID || numItems == BBIWriter.ITEMS_PER_SLOT) {
+      flushSection();
+      sectionChrID = chrID;
+    }
+    starts[numItems] = low - 1;
+    ends[numItems] = high;
+    values[numItems] = value;
+    numItems++;
+    bbi.addItem(chrID, low - 1, high, value);
+  }
+
+  /**
+   * Encode the items of the current section and write it to disk
+   */
+  private void flushSection() throws IOException {
+    if (numItems == 0) {
+      return;
+    }
+
+    // Use the most compact format for the layout of the items
+    int span = ends[0] - starts[0];
+    int step = (numItems > 1) ? starts[1] - starts[0] : span;
+    boolean equalSpans = true;
+    boolean equalSteps = true;
+    for (int i = 1; i < numItems; i++) {
+      equalSpans &= (ends[i] - starts[i] == span);
+      equalSteps &= (starts[i] - starts[i - 1] == step);
+    }
+    byte type = equalSpans ? (equalSteps ? FIXED_STEP : VARIABLE_STEP) : BED_GRAPH;
+    int itemSize = (type == FIXED_STEP) ? 4 : ((type == VARIABLE_STEP) ? 8 : 12);
+
+    ByteBuffer section = ByteBuffer.allocate(SECTION_HEADER_SIZE + numItems * itemSize);
+    section.order(ByteOrder.LITTLE_ENDIAN);
+    section.putInt(sectionChrID).putInt(starts[0]).putInt(ends[numItems - 1]);
+    section.putInt((type == FIXED_STEP) ? step : 0).putInt((type == BED_GRAPH) ? 0 : span);
+    section.put(type).put((byte) 0).putShort((short) numItems);
+    for (int i = 0; i < numItems; i++) {
+      if (type == BED_GRAPH) {
+        section.putInt(starts[i]).putInt(ends[i]);
+      } else if (type == VARIABLE_STEP) {
+        section.putInt(starts[i]);
+      }
+      section.putFloat(values[i]);
+    }
+
+    bbi.writeBlock(section.array(), section.position(), sectionChrID, starts[0], sectionChrID, ends[numItems - 1]);
+    numSections++;
+    numItems = 0;
+  }
+
+  /**
+   * @return the path
+   */
+  public final Path getPath() {
+    return p;
+  }
+
+}
@@ -0,0 +1,223 @@
+package edu.unc.genomics.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Reads lines from a FileChannel, starting at a given offset, with positional
+ * reads into a buffer owned by this reader. The channel's position is never
+ * used, so any number of readers may share one channel concurrently without
+ * locking. Lines may be terminated by LF, CR, or CRLF, as with
+ * BufferedRandomAccessFile.readLine2().
+ *
+ * Lines can be read as Strings with readLine(), or without copying with
+ * next(), which leaves the current line in buffer()[lineStart(), lineEnd())
+ * until the next call.
+ *
+ * @author timpalpant
+ *
+ */
+final class ChannelLineReader implements LineReader {
+
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private final FileChannel channel;
+  private byte[] buf;
+  // File offset of buf[0]
+  private long bufStart;
+  // Next unread byte and end of valid bytes in buf
+  private int pos = 0;
+  private int limit = 0;
+  private boolean eof = false;
+  // The current line
+  private int lineStart = 0;
+  private int lineEnd = 0;
+
+  // Optional checksum of the bytes read before checksumLimit
+  private Checksum checksum;
+  private long checksumLimit;
+
+  /**
+   * @param channel
+   *          the channel to read from
+   * @param offset
+   *          the file offset of the first line to read
+   */
+  public ChannelLineReader(FileChannel channel, long offset) {
+    this(channel, offset, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel
+   *          the channel to read from
+   * @param offset
+   *          the file offset of the first line to read
+   * @param bufferSize
+   *          the initial size of the buffer (grown for longer lines)
+   */
+  public ChannelLineReader(FileChannel channel, long offset, int bufferSize) {
+    this.channel = channel;
+    this.bufStart = offset;
+    this.buf = new byte[bufferSize];
+  }
+
+  /**
+   * Update a checksum with every byte that this reader reads from the file,
+   * up to (but not including) limit. All bytes from the starting offset to
+   * limit are checksummed once this reader has read past limit.
+   *
+   * @param checksum
+   *          the checksum to update
+   * @param limit
+   *          the file offset to stop checksumming at
+   */
+  public void setChecksum(Checksum checksum, long limit) {
+    this.checksum = checksum;
+    this.checksumLimit = limit;
+  }
+
+  /**
+   * Advance to the next line
+   *
+   * @return true if there is another line, false at the end of the file
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  public boolean next() throws IOException {
+    int i = pos;
+    while (true) {
+      for (; i < limit; i++) {
+        byte b = buf[i];
+        if (b == '\n' || b == '\r') {
+          if (b == '\r' && i + 1 == limit && !eof) {
+            // Need the next byte to tell CR from CRLF
+            break;
+          }
+
+          lineStart = pos;
+          lineEnd = i;
+          pos = i + 1;
+          if (b == '\r' && pos < limit && buf[pos] == '\n') {
+            pos++;
+          }
+          return true;
+        }
+      }
+
+      if (eof) {
+        if (pos == limit) {
+          return false;
+        }
+        lineStart = pos;
+        lineEnd = limit;
+        pos = limit;
+        return true;
+      }
+
+      int scanned = i - pos;
+      fill();
+      i = pos + scanned;
+    }
+  }
+
+  /**
+   * @return the next line, without its terminator, or null at the end of the
+   *         file
+   */
+  @Override
+  public String readLine() throws IOException {
+    return next() ? line() : null;
+  }
+
+  /**
+   * @return the buffer holding the current line
+   */
+  public byte[] buffer() {
+    return buf;
+  }
+
+  /**
+   * @return the index in buffer() of the first byte of the current line
+   */
+  public int lineStart() {
+    return lineStart;
+  }
+
+  /**
+   * @return the index in buffer() after the last byte of the current line
+   *         (excluding its terminator)
+   */
+  public int lineEnd() {
+    return lineEnd;
+  }
+
+  /**
+   * @return the file offset of the current line
+   */
+  public long lineOffset() {
+    return bufStart + lineStart;
+  }
+
+  /**
+   * @return the file offset of the next line
+   */
+  public long getPosition() {
+    return bufStart + pos;
+  }
+
+  /**
+   * @param prefix
+   *          ASCII bytes
+   * @return true if the current line starts with prefix
+   */
+  public boolean startsWith(byte[] prefix) {
+    if (lineEnd - lineStart < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf[lineStart + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the current line as a String
+   */
+  public String line() {
+    return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Keep the unread bytes and read more of the file into the buffer
+   */
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      bufStart += pos;
+      limit -= pos;
+      pos = 0;
+    } else if (limit == buf.length) {
+      // A line longer than the buffer
+      buf = Arrays.copyOf(buf, 2 * buf.length);
+    }
+
+    long offset = bufStart + limit;
+    int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), offset);
+    if (n == -1) {
+      eof = true;
+      return;
+    }
+
+    if (checksum != null && offset < checksumLimit) {
+      checksum.update(buf, limit, (int) Math.min(n, checksumLimit - offset));
+    }
+    limit += n;
+  }
+
+}
@@ -0,0 +1,131 @@
+package edu.unc.genomics.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Holds the ContigIndexes for one chromosome of a TextWigFile, sorted by start
+ * base pair, along with the extents of the chromosome. Built once when the
+ * index is generated or loaded so that looking up the contigs that overlap a
+ * query is O(log n) and the extent getters are O(1).
+ *
+ * @author timpalpant
+ *
+ */
+final class ChromosomeIndex {
+
+  private static final Comparator<ContigIndex> BY_LOW = new Comparator<ContigIndex>() {
+    @Override
+    public int compare(ContigIndex c1, ContigIndex c2) {
+      return Integer.compare(c1.low(), c2.low());
+    }
+  };
+
+  private final ContigIndex[] contigs;
+  // maxHigh[i] is the greatest high() of contigs[0..i], so that a search
+  // toward lower contigs can stop as soon as nothing further left can overlap
+  private final int[] maxHigh;
+  private final int start;
+  private final int stop;
+  private final int step;
+  private final int span;
+
+  public ChromosomeIndex(Collection<ContigIndex> chromContigs) {
+    contigs = chromContigs.toArray(new ContigIndex[chromContigs.size()]);
+    Arrays.sort(contigs, BY_LOW);
+
+    maxHigh = new int[contigs.length];
+    int start = Integer.MAX_VALUE;
+    int stop = -1;
+    int step = Integer.MAX_VALUE;
+    int span = Integer.MAX_VALUE;
+    for (int i = 0; i < contigs.length; i++) {
+      ContigIndex c = contigs[i];
+      maxHigh[i] = (i > 0) ? Math.max(maxHigh[i - 1], c.high()) : c.high();
+      start = Math.min(start, c.getStart());
+      stop = Math.max(stop, c.getStop());
+      span = Math.min(span, c.getSpan());
+      if (c.isVariableStep()) {
+        step = 1;
+      } else {
+        step = Math.min(step, ((FixedStepContigIndex) c).getStep());
+      }
+    }
+
+    this.start = start;
+    this.stop = stop;
+    this.step = step;
+    this.span = span;
+  }
+
+  /**
+   * @param low
+   *          the lowest base pair of the query
+   * @param high
+   *          the highest base pair of the query
+   * @return the contigs that overlap low-high, in order of their start
+   */
+  public List<ContigIndex> getOverlapping(int low, int high) {
+    // Find the last contig that starts at or before high
+    int lo = 0;
+    int hi = contigs.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (contigs[mid].low() <= high) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    List<ContigIndex> overlapping = new ArrayList<>();
+    for (int i = lo - 1; i >= 0 && maxHigh[i] >= low; i--) {
+      if (contigs[i].high() >= low) {
+        overlapping.add(contigs[i]);
+      }
+    }
+    Collections.reverse(overlapping);
+
+    return overlapping;
+  }
+
+  /**
+   * @return all of the contigs for this chromosome, in order of their start
+   */
+  public List<ContigIndex> getContigs() {
+    return Collections.unmodifiableList(Arrays.asList(contigs));
+  }
+
+  /**
+   * @return the first base pair with data
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return the last base pair with data
+   */
+  public int getStop() {
+    return stop;
+  }
+
+  /**
+   * @return the smallest step of any contig (1 if any contig is variableStep)
+   */
+  public int getStep() {
+    return step;
+  }
+
+  /**
+   * @return the smallest span of any contig
+   */
+  public int getSpan() {
+    return span;
+  }
+
+}
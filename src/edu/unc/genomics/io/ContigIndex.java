@@ -1,13 +1,13 @@
 package edu.unc.genomics.io;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
-import ed.javatools.BufferedRandomAccessFile;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
 
@@ -19,12 +19,20 @@ import edu.unc.genomics.Interval;
  */
 abstract class ContigIndex extends Interval implements Serializable {
 
-  private static final long serialVersionUID = 7665673936467048945L;
+  private static final long serialVersionUID = -3046291532218713845L;
+
+  // Prefixes of the lines that start a track or a contig, for the indexers
+  static final byte[] TRACK = "track".getBytes(StandardCharsets.US_ASCII);
+  static final byte[] FIXEDSTEP = Contig.Type.FIXEDSTEP.getId().getBytes(StandardCharsets.US_ASCII);
+  static final byte[] VARIABLESTEP = Contig.Type.VARIABLESTEP.getId().getBytes(StandardCharsets.US_ASCII);
 
   private int span;
   private long startLine;
   private long stopLine;
-  private Map<Integer, Long> index = new HashMap<Integer, Long>();
+  // Checkpoints (base pair -> file offset of its line), sorted by base pair
+  private int numCheckpoints = 0;
+  private int[] checkpointBPs = new int[1];
+  private long[] checkpointOffsets = new long[1];
 
   protected ContigIndex(String chr, int start, int stop, int span) {
     super(chr, start, stop);
@@ -51,27 +59,32 @@ abstract class ContigIndex extends Interval implements Serializable {
   /**
    * Fill data from this contig into the array of values
    * 
-   * @param raf
-   *          the file handle to get the data from
+   * @param channel
+   *          the file to get the data from, which may be shared with
+   *          concurrent callers
    * @param interval
    *          the query interval
    * @param values
    *          the array to load the values into
+   * @param offset
+   *          the index in values of the first base pair of interval (the
+   *          interval is written in reverse if it is Crick)
    */
-  public abstract void fill(BufferedRandomAccessFile raf, Interval interval, float[] values) throws WigFileException,
-      IOException;
+  public abstract void fill(FileChannel channel, Interval interval, float[] values, int offset)
+      throws WigFileException, IOException;
 
   /**
    * Fill data from this contig into statistics
    * 
-   * @param raf
-   *          the file handle to get the data from
+   * @param channel
+   *          the file to get the data from, which may be shared with
+   *          concurrent callers
    * @param interval
    *          the query interval
    * @param stats
    *          the SummaryStatistics to load values into
    */
-  public abstract void fillStats(BufferedRandomAccessFile raf, Interval interval, SummaryStatistics stats)
+  public abstract void fillStats(FileChannel channel, Interval interval, SummaryStatistics stats)
       throws WigFileException, IOException;
 
   /**
@@ -89,28 +102,92 @@ abstract class ContigIndex extends Interval implements Serializable {
   @Override
   public abstract String toOutput();
 
+  /**
+   * Store a checkpoint for a line in this contig
+   * 
+   * @param bp
+   *          the base pair of the line
+   * @param pos
+   *          the file offset of the start of the line
+   */
   public void storeIndex(int bp, long pos) {
-    index.put(bp, pos);
+    int i = numCheckpoints;
+    if (numCheckpoints > 0 && bp <= checkpointBPs[numCheckpoints - 1]) {
+      // Out of order (only possible in a malformed variableStep contig)
+      i = Arrays.binarySearch(checkpointBPs, 0, numCheckpoints, bp);
+      if (i >= 0) {
+        checkpointOffsets[i] = pos;
+        return;
+      }
+      i = -(i + 1);
+    }
+
+    if (numCheckpoints == checkpointBPs.length) {
+      checkpointBPs = Arrays.copyOf(checkpointBPs, 2 * numCheckpoints);
+      checkpointOffsets = Arrays.copyOf(checkpointOffsets, 2 * numCheckpoints);
+    }
+    System.arraycopy(checkpointBPs, i, checkpointBPs, i + 1, numCheckpoints - i);
+    System.arraycopy(checkpointOffsets, i, checkpointOffsets, i + 1, numCheckpoints - i);
+    checkpointBPs[i] = bp;
+    checkpointOffsets[i] = pos;
+    numCheckpoints++;
   }
 
-  public long getIndex(int bp) {
-    return index.get(bp);
+  /**
+   * Replace the checkpoints of this contig
+   * 
+   * @param bps
+   *          the base pairs of the checkpoints, in sorted order
+   * @param offsets
+   *          the file offsets of the checkpoints
+   */
+  public void setCheckpoints(int[] bps, long[] offsets) {
+    checkpointBPs = bps;
+    checkpointOffsets = offsets;
+    numCheckpoints = bps.length;
   }
 
   /**
-   * @param bp
-   * @return the closest known upstream bp in the index
-   */
-  public int getUpstreamIndexedBP(int bp) {
-    int closestBP = -1;
-    // TODO Better way to seek for indexed position (R-tree)
-    for (int indexBP : index.keySet()) {
-      if (indexBP > closestBP && indexBP <= bp) {
-        closestBP = indexBP;
-      }
-    }
+   * Release unused capacity in the checkpoint arrays once indexing is complete
+   */
+  public void trimCheckpoints() {
+    checkpointBPs = Arrays.copyOf(checkpointBPs, numCheckpoints);
+    checkpointOffsets = Arrays.copyOf(checkpointOffsets, numCheckpoints);
+  }
+
+  /**
+   * @return the number of checkpoints stored for this contig
+   */
+  public int numCheckpoints() {
+    return numCheckpoints;
+  }
+
+  /**
+   * @param i
+   *          the index of a checkpoint
+   * @return the base pair of checkpoint i
+   */
+  public int getCheckpointBP(int i) {
+    return checkpointBPs[i];
+  }
+
+  /**
+   * @param i
+   *          the index of a checkpoint
+   * @return the file offset of checkpoint i
+   */
+  public long getCheckpointOffset(int i) {
+    return checkpointOffsets[i];
+  }
 
-    return closestBP;
+  /**
+   * @param bp
+   * @return the index of the closest checkpoint at or upstream of bp, or -1 if
+   *         there is none
+   */
+  public int getUpstreamCheckpoint(int bp) {
+    int i = Arrays.binarySearch(checkpointBPs, 0, numCheckpoints, bp);
+    return (i >= 0) ? i : -(i + 1) - 1;
   }
 
   /**
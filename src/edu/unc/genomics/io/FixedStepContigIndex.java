@@ -1,12 +1,13 @@
 package edu.unc.genomics.io;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
-import ed.javatools.BufferedRandomAccessFile;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.NumberParser;
 
 /**
  * Hold index information about a fixedStep contig in a TextWigFile
@@ -99,6 +100,14 @@ class FixedStepContigIndex extends ContigIndex {
     return step;
   }
 
+  /**
+   * @return the index of the first fixedStep item whose span reaches the base
+   *         pair offset bases after the start of its contig
+   */
+  static int firstItem(int offset, int span, int step) {
+    return Math.max(0, (offset - span + step) / step);
+  }
+
   @Override
   public boolean isFixedStep() {
     return true;
@@ -110,92 +119,91 @@ class FixedStepContigIndex extends ContigIndex {
   }
 
   @Override
-  public void fill(BufferedRandomAccessFile raf, Interval interval, float[] values) throws WigFileException,
+  public void fill(FileChannel channel, Interval interval, float[] values, int offset) throws WigFileException,
       IOException {
     // Clamp to bases that are covered by this Contig
     int low = Math.max(getStart(), interval.low());
     int high = Math.min(getStop(), interval.high());
 
-    // Figure out what lines we need
-    long startLine = getLineNumForBasePair(low);
-    long stopLine = getLineNumForBasePair(high);
+    // Figure out what lines we need, starting with the first value whose span
+    // reaches low
+    long startLine = getStartLine() + firstItem(low - getStart(), getSpan(), step);
+    long stopLine = Math.min(getLineNumForBasePair(high), getStopLine());
 
     // Find the closest known upstream base-pair position in the index
-    int closestUpstream = getUpstreamIndexedBP(low);
-    synchronized (raf) {
-      // Seek to the closest known position in the index
-      raf.seek(getIndex(closestUpstream));
-
-      // Skip to the start line
-      long currentLine;
-      for (currentLine = getLineNumForBasePair(closestUpstream); currentLine < startLine; currentLine++) {
-        raf.readLine2();
-      }
+    int checkpoint = getUpstreamCheckpoint(getBasePairForLineNum(startLine));
+    int closestUpstream = getCheckpointBP(checkpoint);
+    // Start reading from the closest known position in the index
+    ChannelLineReader reader = new ChannelLineReader(channel, getCheckpointOffset(checkpoint));
+
+    // Skip to the start line
+    long currentLine;
+    for (currentLine = getLineNumForBasePair(closestUpstream); currentLine < startLine; currentLine++) {
+      reader.next();
+    }
 
-      // Get the base pair we are at (may be < start if span > 1)
-      int bp = getBasePairForLineNum(currentLine);
-
-      // Load the values from disk into the array
-      while (currentLine <= stopLine) {
-        String line = raf.readLine2();
-        currentLine++;
-
-        float value = Float.parseFloat(line);
-        if (!Float.isNaN(value)) {
-          for (int i = bp; i <= bp + getSpan() - 1; i++) {
-            if (interval.includes(i)) {
-              values[i - interval.low()] = value;
-            }
-          }
-        }
+    // Get the base pair we are at (may be < start if span > 1)
+    int bp = getBasePairForLineNum(currentLine);
+
+    // Load the values from disk into the array
+    while (currentLine <= stopLine) {
+      if (!reader.next()) {
+        throw new WigFileException("Unexpected end of Wig file in contig: " + toOutput());
+      }
+      currentLine++;
 
-        bp += getStep();
+      float value = NumberParser.parseFloat(reader.buffer(), reader.lineStart(), reader.lineEnd());
+      if (!Float.isNaN(value)) {
+        WigFileReader.fill(interval, values, offset, bp, bp + getSpan() - 1, value);
       }
+
+      bp += getStep();
     }
   }
 
   @Override
-  public void fillStats(BufferedRandomAccessFile raf, Interval interval, SummaryStatistics stats)
-      throws WigFileException, IOException {
+  public void fillStats(FileChannel channel, Interval interval, SummaryStatistics stats) throws WigFileException,
+      IOException {
     // Clamp to bases that are covered by this Contig
     int low = Math.max(getStart(), interval.low());
     int high = Math.min(getStop(), interval.high());
 
-    // Figure out what lines we need
-    long startLine = getLineNumForBasePair(low);
-    long stopLine = getLineNumForBasePair(high);
+    // Figure out what lines we need, starting with the first value whose span
+    // reaches low
+    long startLine = getStartLine() + firstItem(low - getStart(), getSpan(), step);
+    long stopLine = Math.min(getLineNumForBasePair(high), getStopLine());
 
     // Find the closest known upstream base-pair position in the index
-    int closestUpstream = getUpstreamIndexedBP(low);
-    synchronized (raf) {
-      // Seek to the closest known position in the index
-      raf.seek(getIndex(closestUpstream));
-
-      // Skip to the start line
-      long currentLine;
-      for (currentLine = getLineNumForBasePair(closestUpstream); currentLine < startLine; currentLine++) {
-        raf.readLine2();
+    int checkpoint = getUpstreamCheckpoint(getBasePairForLineNum(startLine));
+    int closestUpstream = getCheckpointBP(checkpoint);
+    // Start reading from the closest known position in the index
+    ChannelLineReader reader = new ChannelLineReader(channel, getCheckpointOffset(checkpoint));
+
+    // Skip to the start line
+    long currentLine;
+    for (currentLine = getLineNumForBasePair(closestUpstream); currentLine < startLine; currentLine++) {
+      reader.next();
+    }
+
+    // Get the base pair we are at (may be < start if span > 1)
+    int bp = getBasePairForLineNum(currentLine);
+
+    // Load the values from disk into the array
+    while (currentLine <= stopLine) {
+      if (!reader.next()) {
+        throw new WigFileException("Unexpected end of Wig file in contig: " + toOutput());
       }
+      currentLine++;
 
-      // Get the base pair we are at (may be < start if span > 1)
-      int bp = getBasePairForLineNum(currentLine);
-
-      // Load the values from disk into the array
-      while (currentLine <= stopLine) {
-        String line = raf.readLine2();
-        currentLine++;
-
-        float value = Float.parseFloat(line);
-        if (!Float.isNaN(value)) {
-          for (int i = bp; i <= bp + getSpan() - 1; i++) {
-            if (interval.includes(i)) {
-              stats.addValue(value);
-            }
-          }
+      float value = NumberParser.parseFloat(reader.buffer(), reader.lineStart(), reader.lineEnd());
+      if (!Float.isNaN(value)) {
+        int n = Math.min(bp + getSpan() - 1, interval.high()) - Math.max(bp, interval.low()) + 1;
+        for (int i = 0; i < n; i++) {
+          stats.addValue(value);
         }
-
-        bp += getStep();
       }
+
+      bp += getStep();
     }
   }
 }
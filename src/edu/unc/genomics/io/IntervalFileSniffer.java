@@ -6,8 +6,6 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
-import org.broad.igv.bbfile.BBFileReader;
-
 import edu.unc.genomics.BedEntry;
 import edu.unc.genomics.BedGraphEntry;
 import edu.unc.genomics.GFFEntry;
@@ -144,8 +142,7 @@ public class IntervalFileSniffer {
    */
   public boolean sniffBigBed() throws IntervalFileSnifferException {
     try {
-      BBFileReader reader = new BBFileReader(p.toString());
-      return reader.isBigBedFile();
+      return BBIFile.sniff(p) == BBIFile.BIGBED_MAGIC;
     } catch (Exception e) {
       throw new IntervalFileSnifferException("Error opening BigBed file: " + e.getMessage());
     }
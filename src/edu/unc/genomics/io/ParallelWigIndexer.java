@@ -0,0 +1,498 @@
+package edu.unc.genomics.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.util.ChecksumUtils;
+import edu.unc.genomics.util.NumberParser;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
+
+/**
+ * Indexes an ASCII-text Wig file with one or more threads in a single pass. The
+ * file is split into byte ranges that are scanned concurrently with positional
+ * reads. Each range owns the lines that start within it and records them as
+ * runs of data lines following a contig header (the first run of a range may
+ * continue a contig whose header is in an earlier range). The runs are then
+ * stitched together in file order to produce the same contigs, statistics and
+ * CRC32 checksum as a sequential scan. With a single thread, the ranges are
+ * scanned in order while the previous ranges are stitched.
+ *
+ * The scan may also start partway into the file (at the start of a line), to
+ * index only data that has been appended since the file was last indexed. The
+ * appended data must then start with a new contig.
+ *
+ * @author timpalpant
+ *
+ */
+final class ParallelWigIndexer {
+
+  private static final Logger log = Logger.getLogger(ParallelWigIndexer.class);
+
+  /**
+   * Ranges are at least this large so that the per-range overhead is small
+   */
+  static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+  /**
+   * Split the file into several ranges per thread to balance uneven ranges
+   */
+  private static final int RANGES_PER_THREAD = 4;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final Path p;
+  private final int threads;
+  private final int checkpointSpacing;
+  private final long rangeSize;
+  private final long begin;
+  private BgzfFileChannel.Blocks bgzfBlocks;
+
+  // Results, accumulated as ranges are stitched together
+  private final Map<String, List<ContigIndex>> contigs = new HashMap<>();
+  private final WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+  private long checksum = 0;
+
+  // State of the contig being stitched
+  private ContigIndex contig;
+  private long length;
+  private long contigDataLines;
+  private int lastBp;
+  private long linesBefore;
+
+  /**
+   * @param p
+   *          the Wig file to index
+   * @param options
+   *          the number of threads and checkpoint spacing to use
+   */
+  public ParallelWigIndexer(Path p, WigIndexOptions options) {
+    this(p, options, 0, 0);
+  }
+
+  /**
+   * @param p
+   *          the Wig file to index
+   * @param options
+   *          the number of threads and checkpoint spacing to use
+   * @param begin
+   *          the offset of the line to start indexing from
+   * @param linesBefore
+   *          the number of lines before begin
+   */
+  public ParallelWigIndexer(Path p, WigIndexOptions options, long begin, long linesBefore) {
+    this(p, options.getIndexThreads(), options.getCheckpointSpacing(), 0, begin, linesBefore);
+  }
+
+  /**
+   * @param p
+   *          the Wig file to index
+   * @param threads
+   *          the number of threads to use
+   * @param checkpointSpacing
+   *          the minimum number of bytes between checkpoints
+   * @param rangeSize
+   *          the size of the ranges scanned by each task, or 0 to choose one
+   *          from the file size
+   */
+  ParallelWigIndexer(Path p, int threads, int checkpointSpacing, long rangeSize) {
+    this(p, threads, checkpointSpacing, rangeSize, 0, 0);
+  }
+
+  private ParallelWigIndexer(Path p, int threads, int checkpointSpacing, long rangeSize, long begin,
+      long linesBefore) {
+    this.p = p;
+    this.threads = threads;
+    this.checkpointSpacing = checkpointSpacing;
+    this.rangeSize = rangeSize;
+    this.begin = begin;
+    this.linesBefore = linesBefore;
+  }
+
+  /**
+   * @param bgzfBlocks
+   *          the blocks of the Wig file if it is BGZF-compressed, so that they
+   *          do not need to be scanned again
+   */
+  void setBgzfBlocks(BgzfFileChannel.Blocks bgzfBlocks) {
+    this.bgzfBlocks = bgzfBlocks;
+  }
+
+  /**
+   * Index the Wig file
+   *
+   * @throws IOException
+   *           if an error occurs while reading the Wig file
+   * @throws WigFileFormatException
+   *           if the Wig file contains illegal lines
+   */
+  public void run() throws IOException, WigFileFormatException {
+    log.debug("Indexing ASCII text Wig file with " + threads + " threads: " + p);
+    try (FileChannel channel = TextWigFileReader.openChannel(p, bgzfBlocks)) {
+      length = channel.size();
+      long size = length - begin;
+      long rangeSize = this.rangeSize;
+      if (rangeSize <= 0) {
+        rangeSize = Math.max(MIN_RANGE_SIZE, size / (threads * RANGES_PER_THREAD) + 1);
+      }
+      int numRanges = (int) Math.max(1, (size + rangeSize - 1) / rangeSize);
+
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, numRanges));
+      try {
+        List<Future<Range>> futures = new ArrayList<>(numRanges);
+        for (int i = 0; i < numRanges; i++) {
+          long rangeBegin = begin + i * rangeSize;
+          long rangeEnd = Math.min(length, rangeBegin + rangeSize);
+          futures.add(pool.submit(new RangeScanner(channel, rangeBegin, rangeEnd)));
+        }
+
+        // Stitch the ranges in order while later ranges are still being scanned
+        for (Future<Range> f : futures) {
+          stitch(get(f));
+        }
+        finishContig(linesBefore);
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    log.debug("Indexed " + stats.getN() + " bases in Wig file");
+  }
+
+  /**
+   * @return the contigs in the Wig file, by chromosome
+   */
+  public Map<String, List<ContigIndex>> getContigs() {
+    return contigs;
+  }
+
+  /**
+   * @return the statistics of all bases with data in the Wig file
+   */
+  public WeightedSummaryStatistics getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the (uncompressed) length of the Wig file when it was indexed
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return the number of lines in the Wig file when it was indexed
+   */
+  public long getNumLines() {
+    return linesBefore;
+  }
+
+  /**
+   * @return the CRC32 checksum of the (uncompressed) text of the Wig file (or
+   *         of the part of it that was indexed)
+   */
+  public long getChecksum() {
+    return checksum;
+  }
+
+  private static Range get(Future<Range> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while indexing Wig file", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private void stitch(Range range) throws WigFileFormatException {
+    for (Run run : range.runs) {
+      if (run.header != null) {
+        // The header's line number is linesBefore + run.headerLine + 1
+        finishContig(linesBefore + run.headerLine);
+        contig = ContigIndex.parseHeader(run.header);
+        log.debug("Found contig header: " + run.header + " (line " + (linesBefore + run.headerLine + 1) + ")");
+        if (!contigs.containsKey(contig.getChr())) {
+          contigs.put(contig.getChr(), new ArrayList<ContigIndex>());
+        }
+        contigs.get(contig.getChr()).add(contig);
+        contig.setStartLine(linesBefore + run.headerLine + 2);
+        contigDataLines = 0;
+      } else if (contig == null) {
+        throw new WigFileFormatException("Missing contig header (fixedStep or variableStep), line "
+            + (linesBefore + run.firstLine + 1));
+      }
+
+      append(run);
+    }
+
+    linesBefore += range.numLines;
+    checksum = ChecksumUtils.crc32Combine(checksum, range.crc, range.end - range.begin);
+  }
+
+  private void append(Run run) throws WigFileFormatException {
+    if (run.numData == 0) {
+      return;
+    }
+
+    if (contig.isFixedStep()) {
+      if (run.firstBadLine != -1 || run.firstPairLine != -1) {
+        long line = (run.firstBadLine != -1) ? run.firstBadLine : run.firstPairLine;
+        String text = (run.firstBadLine != -1) ? run.badText : run.pairText;
+        throw new WigFileFormatException("Illegal format in fixedStep contig, line " + (linesBefore + line + 1)
+            + ". Can't parse value " + text);
+      }
+
+      int step = ((FixedStepContigIndex) contig).getStep();
+      for (int i = 0; i < run.numCheckpoints; i++) {
+        int bp = (int) (contig.getStart() + step * (contigDataLines + run.checkpointLines[i]));
+        contig.storeIndex(bp, run.checkpointOffsets[i]);
+      }
+    } else {
+      if (run.firstBadLine != -1) {
+        throw new WigFileFormatException("Illegal format in variableStep contig, line "
+            + (linesBefore + run.firstBadLine + 1) + ". Can't parse bp, value pair " + run.badText);
+      } else if (run.firstSingleLine != -1) {
+        throw new WigFileFormatException("Illegal format in variableStep contig, line "
+            + (linesBefore + run.firstSingleLine + 1) + ". Can't find tab or space delimiting bp, value pair");
+      }
+
+      if (contigDataLines == 0) {
+        contig.setStart(run.firstBp);
+      }
+      for (int i = 0; i < run.numCheckpoints; i++) {
+        contig.storeIndex(run.checkpointBPs[i], run.checkpointOffsets[i]);
+      }
+      lastBp = run.lastBp;
+    }
+
+    stats.combine(run.stats, contig.getSpan());
+    contigDataLines += run.numData;
+  }
+
+  private void finishContig(long stopLine) throws WigFileFormatException {
+    if (contig == null) {
+      return;
+    }
+
+    contig.setStopLine(stopLine);
+    if (contig.isFixedStep()) {
+      int step = ((FixedStepContigIndex) contig).getStep();
+      int bp = (int) (contig.getStart() + step * (contigDataLines - 1));
+      contig.setStop(bp + contig.getSpan() - 1);
+    } else {
+      if (contigDataLines == 0) {
+        throw new WigFileFormatException("Illegal format in variableStep contig, line " + (contig.getStartLine() - 1)
+            + ". Contig has no data");
+      }
+      contig.setStop(lastBp + contig.getSpan() - 1);
+    }
+    contig.trimCheckpoints();
+  }
+
+  /**
+   * The lines that start within a byte range of the file
+   */
+  private static class Range {
+    final long begin;
+    final long end;
+    final List<Run> runs = new ArrayList<>();
+    long numLines = 0;
+    long crc;
+
+    Range(long begin, long end) {
+      this.begin = begin;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Consecutive data lines within a Range, following a contig header (or the
+   * start of the range). Since the type of a continued contig is not known
+   * when the range is scanned, each line is parsed as either a bp, value pair
+   * or a single value, and the shapes are checked against the contig when the
+   * runs are stitched together.
+   */
+  private static class Run {
+    final String header;
+    // Line numbers are relative to the start of the range
+    final long headerLine;
+    long firstLine = -1;
+    long numData = 0;
+
+    // Statistics of the values, each counted once (not per base)
+    final WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    int firstBp;
+    int lastBp;
+
+    long firstSingleLine = -1;
+    long firstPairLine = -1;
+    String pairText;
+    long firstBadLine = -1;
+    String badText;
+
+    // Checkpoints, by data line within this run
+    int numCheckpoints = 0;
+    long[] checkpointLines = new long[16];
+    int[] checkpointBPs = new int[16];
+    long[] checkpointOffsets = new long[16];
+
+    Run(String header, long headerLine) {
+      this.header = header;
+      this.headerLine = headerLine;
+    }
+
+    void addLine(byte[] buf, int start, int end, long lineNum, long offset, int checkpointSpacing) {
+      if (numData == 0) {
+        firstLine = lineNum;
+      }
+
+      // Parse as a variableStep bp, value pair, or else a fixedStep value
+      double value = Double.NaN;
+      int bp = 0;
+      boolean pair = false;
+      int delim = indexOf(buf, start, end, (byte) '\t');
+      if (delim == -1) {
+        delim = indexOf(buf, start, end, (byte) ' ');
+      }
+      if (delim != -1) {
+        try {
+          bp = NumberParser.parseInt(buf, start, delim);
+          value = NumberParser.parseDouble(buf, delim + 1, end);
+          pair = true;
+        } catch (NumberFormatException e) {
+          value = Double.NaN;
+        }
+      }
+
+      if (pair) {
+        if (firstPairLine == -1) {
+          firstPairLine = lineNum;
+          pairText = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        if (numData == 0) {
+          firstBp = bp;
+        }
+        lastBp = bp;
+      } else {
+        try {
+          value = NumberParser.parseDouble(buf, start, end);
+          if (firstSingleLine == -1) {
+            firstSingleLine = lineNum;
+          }
+        } catch (NumberFormatException e) {
+          if (firstBadLine == -1) {
+            firstBadLine = lineNum;
+            badText = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+          }
+        }
+      }
+
+      if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+        stats.addValue(value);
+      }
+
+      if (numCheckpoints == 0 || offset - checkpointOffsets[numCheckpoints - 1] >= checkpointSpacing) {
+        if (numCheckpoints == checkpointLines.length) {
+          int capacity = 2 * numCheckpoints;
+          checkpointLines = Arrays.copyOf(checkpointLines, capacity);
+          checkpointBPs = Arrays.copyOf(checkpointBPs, capacity);
+          checkpointOffsets = Arrays.copyOf(checkpointOffsets, capacity);
+        }
+        checkpointLines[numCheckpoints] = numData;
+        checkpointBPs[numCheckpoints] = bp;
+        checkpointOffsets[numCheckpoints] = offset;
+        numCheckpoints++;
+      }
+
+      numData++;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte b) {
+      for (int i = start; i < end; i++) {
+        if (buf[i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Scans the lines that start within a byte range of the file, and computes
+   * the CRC32 of the bytes in the range
+   */
+  private class RangeScanner implements Callable<Range> {
+
+    private final FileChannel channel;
+    private final Range range;
+
+    RangeScanner(FileChannel channel, long begin, long end) {
+      this.channel = channel;
+      this.range = new Range(begin, end);
+    }
+
+    @Override
+    public Range call() throws IOException {
+      CRC32 crc = new CRC32();
+      int bufferSize = (int) Math.min(BUFFER_SIZE, range.end - range.begin + 1024);
+      ChannelLineReader reader = new ChannelLineReader(channel, range.begin, bufferSize);
+      reader.setChecksum(crc, range.end);
+
+      // A line that starts in the previous range belongs to that range. A line
+      // starts at the beginning of this range only if the previous byte ends a
+      // line, and is not the CR of a CRLF.
+      if (range.begin > 0) {
+        ByteBuffer boundary = ByteBuffer.allocate(2);
+        while (boundary.hasRemaining() && channel.read(boundary, range.begin - 1 + boundary.position()) != -1)
+          ;
+        byte before = boundary.get(0);
+        byte first = boundary.get(1);
+        if (!(before == '\n' || (before == '\r' && first != '\n'))) {
+          reader.next();
+        }
+      }
+
+      // Once the next line starts past the end of the range, every byte in the
+      // range has been read (and checksummed)
+      Run run = null;
+      while (reader.getPosition() < range.end && reader.next()) {
+        long lineNum = range.numLines++;
+        if (reader.startsWith(ContigIndex.TRACK)) {
+          continue;
+        } else if (reader.startsWith(ContigIndex.FIXEDSTEP) || reader.startsWith(ContigIndex.VARIABLESTEP)) {
+          run = new Run(reader.line(), lineNum);
+          range.runs.add(run);
+        } else {
+          if (run == null) {
+            run = new Run(null, -1);
+            range.runs.add(run);
+          }
+          run.addLine(reader.buffer(), reader.lineStart(), reader.lineEnd(), lineNum, reader.lineOffset(),
+              checkpointSpacing);
+        }
+      }
+      range.crc = crc.getValue();
+
+      return range;
+    }
+  }
+
+}
@@ -1,29 +1,38 @@
 package edu.unc.genomics.io;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
 
-import ed.javatools.BufferedRandomAccessFile;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
 import edu.ucsc.genome.TrackHeader;
 import edu.ucsc.genome.TrackHeaderException;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.util.ChecksumUtils;
+import edu.unc.genomics.util.FileFingerprint;
+import edu.unc.genomics.util.NumberParser;
+import edu.unc.genomics.util.StandardFingerprint;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
 
 /**
  * An ASCII-text Wiggle file. For more information, see:
@@ -33,21 +42,45 @@ import edu.unc.genomics.util.ChecksumUtils;
  * base class WigFile, and the correct format (Wig/BigWig) can be autodetected
  * by calling WigFile.autodetect()
  * 
+ * The Wig file may be BGZF-compressed, in which case queries decompress only
+ * the blocks that they read. Plain gzip-compressed files must first be
+ * recompressed with recompress() (which autodetect() does automatically).
+ * 
+ * Queries read the file with positional reads and hold no shared cursor, so a
+ * single reader may be queried concurrently from multiple threads. As with any
+ * FileChannel, interrupting a thread during a query closes the reader.
+ * 
  * @author timpalpant
  *
  */
 public class TextWigFileReader extends WigFileReader {
-  private static final long serialVersionUID = 7L;
+  private static final long serialVersionUID = 8L;
   public static final String INDEX_EXTENSION = ".idx";
+  public static final String VALUE_CACHE_EXTENSION = ".wigc";
+  public static final String BGZF_EXTENSION = ".bgz";
+  /**
+   * @deprecated checkpoints are placed by byte distance rather than every
+   *             KEY_GRANULARITY lines; see
+   *             WigIndexOptions.setCheckpointSpacing(int)
+   */
+  @Deprecated
   public static final int KEY_GRANULARITY = 10_000;
+  /** Read buffer size for sequential passes over the whole file */
+  private static final int CHUNK_BUFFER_SIZE = 1 << 20;
 
   private static Logger log = Logger.getLogger(TextWigFileReader.class);
 
-  private BufferedRandomAccessFile raf;
+  private FileChannel channel;
+  private final WigIndexOptions options;
   private Path index;
-  private Map<String, List<ContigIndex>> contigs = new HashMap<>();
+  private Map<String, ChromosomeIndex> contigs = new HashMap<>();
   private long checksum;
+  // The number of bytes and lines of the Wig file that have been indexed
+  private long indexedLength;
+  private long indexedLines;
   private SummaryStatistics stats;
+  private List<WigSummaryLevel> summaries = Collections.emptyList();
+  private WigValueCache valueCache;
 
   /**
    * @param p
@@ -58,11 +91,39 @@ public class TextWigFileReader extends WigFileReader {
    *           if an error occurs while indexing the Wig file
    */
   public TextWigFileReader(Path p) throws IOException, WigFileFormatException {
+    this(p, new WigIndexOptions());
+  }
+
+  /**
+   * @param p
+   *          the Path to the Wig file
+   * @param options
+   *          options to use if the Wig file needs to be (re)indexed
+   * @throws IOException
+   *           if an error occurs while opening or reading from the Wig file
+   * @throws WigFileException
+   *           if an error occurs while indexing the Wig file
+   */
+  public TextWigFileReader(Path p, WigIndexOptions options) throws IOException, WigFileFormatException {
     super(p);
+    this.options = options;
     log.debug("Opening ASCII-text Wig file " + p);
-    raf = new BufferedRandomAccessFile(p.toFile(), "r");
 
-    String headerLine = raf.readLine2();
+    // Attempt to load an index from disk, which also has the blocks of a
+    // BGZF-compressed file so that they do not need to be scanned again
+    index = p.resolveSibling(p.getFileName() + INDEX_EXTENSION);
+    WigIndex wigIndex = null;
+    if (Files.exists(index)) {
+      try {
+        wigIndex = WigIndex.load(index);
+      } catch (IOException | WigFileException e) {
+        Files.deleteIfExists(index);
+      }
+    }
+    BgzfFileChannel.Blocks blocks = (wigIndex == null) ? null : wigIndex.getBgzfBlocks();
+    channel = openChannel(p, blocks);
+
+    String headerLine = new ChannelLineReader(channel, 0).readLine();
     if (headerLine == null) {
       throw new WigFileFormatException("Cannot open empty Wig file " + p + " for reading");
     } else if (headerLine.startsWith("track")) {
@@ -74,19 +135,43 @@ public class TextWigFileReader extends WigFileReader {
       }
     }
 
-    // Compute the checksum of this file
-    checksum = ChecksumUtils.crc32(p);
+    boolean checksummed = false;
+    boolean indexed = false;
+    boolean extended = false;
+    if (wigIndex != null) {
+      try {
+        // Fingerprint this file to match against the index
+        FileFingerprint fingerprint = options.getFingerprint();
+        if (fingerprint.getId().equals(wigIndex.getFingerprintId())) {
+          checksum = fingerprint.compute(p);
+          checksummed = true;
+        }
+        // If data has only been appended, index just the new data
+        if (checksummed && checksum != wigIndex.getChecksum() && extendIndex(wigIndex)) {
+          extended = true;
+        } else {
+          loadIndex(wigIndex, true);
+        }
+        indexed = true;
+      } catch (IOException | WigFileException e) {
+        Files.deleteIfExists(index);
+      }
+    }
 
-    // Attempt to load an index from disk, or generate one otherwise
-    index = p.resolveSibling(p.getFileName() + INDEX_EXTENSION);
-    try {
-      loadIndex(index, true);
-    } catch (IOException | WigFileException e) {
-      // (Re)generate if the index could not be loaded
-      Files.deleteIfExists(index);
-      generateIndex();
+    // (Re)generate if the index could not be loaded
+    if (!indexed) {
+      if (blocks != null) {
+        // The file has changed, so its blocks may have too
+        channel.close();
+        channel = openChannel(p);
+      }
+      generateIndex(checksummed);
+      saveIndex(index);
+    } else if (addMissingSummaries() || extended) {
       saveIndex(index);
     }
+
+    loadValueCache();
   }
 
   /**
@@ -104,10 +189,12 @@ public class TextWigFileReader extends WigFileReader {
   public TextWigFileReader(Path p, Path index) throws IOException, WigFileException {
     super(p);
     log.debug("Opening ASCII-text Wig file " + p + " with index " + index);
-    raf = new BufferedRandomAccessFile(p.toFile(), "r");
+    WigIndex wigIndex = WigIndex.load(index);
+    channel = openChannel(p, wigIndex.getBgzfBlocks());
+    options = new WigIndexOptions();
     this.index = index;
 
-    String headerLine = raf.readLine2();
+    String headerLine = new ChannelLineReader(channel, 0).readLine();
     if (headerLine == null) {
       throw new WigFileFormatException("Cannot open empty Wig file " + p + " for reading");
     } else if (headerLine.startsWith("track")) {
@@ -119,7 +206,8 @@ public class TextWigFileReader extends WigFileReader {
       }
     }
 
-    loadIndex(index, false);
+    loadIndex(wigIndex, false);
+    loadValueCache();
   }
 
   /**
@@ -130,65 +218,244 @@ public class TextWigFileReader extends WigFileReader {
    */
   public TextWigFileReader(TextWigFileReader other) throws IOException {
     super(other.p);
+    options = other.options;
     index = other.index;
     log.debug("Opening new file handle to ASCII-text Wig file " + p);
-    raf = new BufferedRandomAccessFile(other.p.toFile(), "r");
+    channel = openChannel(other.p, other.getBgzfBlocks());
 
     // Shallow-copy the index
     contigs = other.contigs;
     checksum = other.checksum;
+    indexedLength = other.indexedLength;
+    indexedLines = other.indexedLines;
     stats = other.stats;
+    summaries = other.summaries;
+    valueCache = other.valueCache;
+    blockCache = other.blockCache;
+  }
+
+  /**
+   * @param p
+   *          a file
+   * @return true if p is gzip-compressed (including BGZF)
+   * @throws IOException
+   *           if an error occurs while reading p
+   */
+  public static boolean isGzip(Path p) throws IOException {
+    try (InputStream is = Files.newInputStream(p)) {
+      return is.read() == 0x1f && is.read() == 0x8b;
+    }
+  }
+
+  /**
+   * Recompress a gzip-compressed Wig file with BGZF so that it can be queried
+   * with random access. The BGZF copy is written next to p, with the extension
+   * .gz replaced by .bgz, and is reused as long as it is newer than p.
+   * 
+   * @param p
+   *          the gzip-compressed Wig file
+   * @return the path to the BGZF-compressed copy
+   * @throws IOException
+   *           if a disk read or write error occurs
+   */
+  public static Path recompress(Path p) throws IOException {
+    String name = p.getFileName().toString();
+    if (name.endsWith(".gz")) {
+      name = name.substring(0, name.length() - 3);
+    }
+    Path bgzf = p.resolveSibling(name + BGZF_EXTENSION);
+    if (Files.exists(bgzf) && Files.getLastModifiedTime(bgzf).compareTo(Files.getLastModifiedTime(p)) >= 0) {
+      log.debug("Using existing BGZF copy " + bgzf + " of " + p);
+      return bgzf;
+    }
+
+    log.info("Recompressing " + p + " with BGZF for random access");
+    Path tmp = bgzf.resolveSibling(bgzf.getFileName() + ".tmp");
+    try (InputStream is = new GZIPInputStream(Files.newInputStream(p), 1 << 16)) {
+      BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(tmp.toFile());
+      try {
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+          bcos.write(buf, 0, n);
+        }
+      } finally {
+        bcos.close();
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+
+    Files.move(tmp, bgzf, StandardCopyOption.REPLACE_EXISTING);
+    return bgzf;
+  }
+
+  /**
+   * Open a text Wig file, which may be BGZF-compressed
+   * 
+   * @param p
+   *          the path to the Wig file
+   * @return a channel over the (uncompressed) text of the Wig file
+   * @throws IOException
+   *           if an error occurs while opening the Wig file
+   */
+  static FileChannel openChannel(Path p) throws IOException {
+    return openChannel(p, null);
+  }
+
+  /**
+   * Open a text Wig file, which may be BGZF-compressed
+   * 
+   * @param p
+   *          the path to the Wig file
+   * @param blocks
+   *          the blocks of p if it is BGZF-compressed and they are known (e.g.
+   *          from its index), or null to scan them
+   * @return a channel over the (uncompressed) text of the Wig file
+   * @throws IOException
+   *           if an error occurs while opening the Wig file
+   */
+  static FileChannel openChannel(Path p, BgzfFileChannel.Blocks blocks) throws IOException {
+    if (BgzfFileChannel.isBgzf(p)) {
+      log.debug("Opening BGZF-compressed Wig file " + p);
+      return BgzfFileChannel.open(p, blocks);
+    }
+    return FileChannel.open(p, StandardOpenOption.READ);
+  }
+
+  /**
+   * @return the blocks of this Wig file if it is BGZF-compressed, or null
+   */
+  private BgzfFileChannel.Blocks getBgzfBlocks() {
+    return (channel instanceof BgzfFileChannel) ? ((BgzfFileChannel) channel).getBlocks() : null;
   }
 
   @Override
   public void close() {
     log.debug("Closing Wig file reader " + p);
     try {
-      raf.close();
+      channel.close();
     } catch (IOException e) {
       throw new RuntimeException("Error closing TextWigFile " + p);
     }
   }
 
   @Override
-  public Contig query(Interval interval) throws IOException, WigFileException {
-    float[] values = new float[interval.length()];
-    Arrays.fill(values, Float.NaN);
-    // Load the values from each relevant contig into the array
-    for (ContigIndex c : getContigsOverlappingInterval(interval)) {
-      c.fill(raf, interval, values);
+  public void query(Interval interval, float[] values, int offset) throws IOException, WigFileException {
+    if (offset < 0 || values.length - offset < interval.length()) {
+      throw new IllegalArgumentException("Array is too small to hold the values for interval " + interval);
     }
 
-    if (interval.isCrick()) {
-      ArrayUtils.reverse(values);
+    Arrays.fill(values, offset, offset + interval.length(), Float.NaN);
+    // The memory-mapped value cache is already as fast as the block cache
+    if (valueCache == null && blockCache.caches(interval)) {
+      blockCache.query(checksum, interval, values, offset, new WigBlockCache.BlockLoader() {
+        @Override
+        public void load(Interval block, float[] blockValues) throws IOException, WigFileException {
+          fill(block, blockValues, 0);
+        }
+      });
+    } else {
+      fill(interval, values, offset);
     }
+  }
 
-    return new Contig(interval, values);
+  /**
+   * Load the values from each contig overlapping interval into an array of NaN
+   */
+  private void fill(Interval interval, float[] values, int offset) throws IOException, WigFileException {
+    for (ContigIndex c : getContigsOverlappingInterval(interval)) {
+      if (valueCache != null && valueCache.contains(c)) {
+        valueCache.fill(c, interval, values, offset);
+      } else {
+        c.fill(channel, interval, values, offset);
+      }
+    }
   }
 
+  /**
+   * If the index has summary levels, whole bins within the interval are
+   * combined from the coarsest level that fits, and only the ragged edges are
+   * read from finer levels or the Wig file. The statistics then do not include
+   * the geometric mean or sum of logs.
+   */
   @Override
   public SummaryStatistics queryStats(Interval interval) throws IOException, WigFileException {
-    SummaryStatistics stats = new SummaryStatistics();
+    if (summaries.isEmpty()) {
+      SummaryStatistics stats = new SummaryStatistics();
+      fillStats(interval, stats);
+      return stats;
+    }
+
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    composeStats(interval.getChr(), interval.low(), interval.high(), summaries.size() - 1, stats);
+    return stats;
+  }
+
+  /**
+   * Intervals that are long enough to span a bin of the finest summary level
+   * are summarized
+   */
+  @Override
+  protected boolean isSummarized(Interval interval) {
+    return !summaries.isEmpty() && interval.length() >= 2 * summaries.get(0).getBinSize();
+  }
+
+  /**
+   * Add the values in low-high to stats from summary levels at or below level,
+   * and from the Wig file for the remaining edges
+   */
+  private void composeStats(String chr, int low, int high, int level, WeightedSummaryStatistics stats)
+      throws IOException, WigFileException {
+    if (low > high) {
+      return;
+    } else if (level < 0) {
+      fillStats(new Interval(chr, low, high), stats);
+      return;
+    }
+
+    // The bins that lie entirely within low-high
+    WigSummaryLevel summary = summaries.get(level);
+    long binSize = summary.getBinSize();
+    int firstBin = (int) Math.max(0, (low - 1 + binSize - 1) / binSize);
+    int lastBin = (int) (high / binSize - 1);
+    if (firstBin > lastBin) {
+      composeStats(chr, low, high, level - 1, stats);
+    } else {
+      composeStats(chr, low, (int) (firstBin * binSize), level - 1, stats);
+      summary.addTo(chr, firstBin, lastBin, stats);
+      composeStats(chr, (int) ((lastBin + 1) * binSize + 1), high, level - 1, stats);
+    }
+  }
 
+  private void fillStats(Interval interval, SummaryStatistics stats) throws IOException, WigFileException {
     // Load the values from each relevant contig
     for (ContigIndex c : getContigsOverlappingInterval(interval)) {
-      c.fillStats(raf, interval, stats);
+      if (valueCache != null && valueCache.contains(c)) {
+        valueCache.fillStats(c, interval, stats);
+      } else {
+        c.fillStats(channel, interval, stats);
+      }
     }
+  }
 
-    return stats;
+  /**
+   * Chunks are read with a single sequential pass over the text, without
+   * using the index
+   */
+  @Override
+  public Iterator<Contig> chunks(int chunkSize) {
+    return new TextChunkIterator(chunkSize);
   }
 
   private List<ContigIndex> getContigsOverlappingInterval(Interval interval) {
-    List<ContigIndex> relevantContigs = new ArrayList<>();
-
-    if (contigs.containsKey(interval.getChr())) {
-      for (ContigIndex c : contigs.get(interval.getChr())) {
-        if (c.intersection(interval) != null) {
-          relevantContigs.add(c);
-        }
-      }
+    ChromosomeIndex chromContigs = contigs.get(interval.getChr());
+    if (chromContigs == null) {
+      return Collections.emptyList();
     }
 
+    List<ContigIndex> relevantContigs = chromContigs.getOverlapping(interval.low(), interval.high());
     log.debug("Found " + relevantContigs.size() + " contigs overlapping query interval " + interval);
     return relevantContigs;
   }
@@ -204,8 +471,8 @@ public class TextWigFileReader extends WigFileReader {
     }
 
     s.append("Contigs:\n");
-    for (List<ContigIndex> chromContigs : contigs.values()) {
-      for (ContigIndex c : chromContigs) {
+    for (ChromosomeIndex chromContigs : contigs.values()) {
+      for (ContigIndex c : chromContigs.getContigs()) {
         s.append("\t").append(c.toOutput()).append('\n');
       }
     }
@@ -232,14 +499,7 @@ public class TextWigFileReader extends WigFileReader {
       return -1;
     }
 
-    int start = Integer.MAX_VALUE;
-    for (ContigIndex c : contigs.get(chr)) {
-      if (c.getStart() < start) {
-        start = c.getStart();
-      }
-    }
-
-    return start;
+    return contigs.get(chr).getStart();
   }
 
   @Override
@@ -248,14 +508,7 @@ public class TextWigFileReader extends WigFileReader {
       return -1;
     }
 
-    int stop = -1;
-    for (ContigIndex c : contigs.get(chr)) {
-      if (c.getStop() > stop) {
-        stop = c.getStop();
-      }
-    }
-
-    return stop;
+    return contigs.get(chr).getStop();
   }
 
   @Override
@@ -264,16 +517,7 @@ public class TextWigFileReader extends WigFileReader {
       return -1;
     }
 
-    int step = Integer.MAX_VALUE;
-    for (ContigIndex c : contigs.get(chr)) {
-      if (c.isVariableStep()) {
-        return 1;
-      } else if (((FixedStepContigIndex) c).getStep() < step) {
-        step = ((FixedStepContigIndex) c).getStep();
-      }
-    }
-
-    return step;
+    return contigs.get(chr).getStep();
   }
 
   @Override
@@ -282,19 +526,13 @@ public class TextWigFileReader extends WigFileReader {
       return -1;
     }
 
-    int span = Integer.MAX_VALUE;
-    for (ContigIndex c : contigs.get(chr)) {
-      if (c.getSpan() < span) {
-        span = c.getSpan();
-      }
-    }
-
-    return span;
+    return contigs.get(chr).getSpan();
   }
 
   @Override
   public boolean includes(String chr, int start, int stop) {
-    return includes(chr) && getChrStart(chr) <= start && getChrStop(chr) >= stop;
+    ChromosomeIndex chromContigs = contigs.get(chr);
+    return chromContigs != null && chromContigs.getStart() <= start && chromContigs.getStop() >= stop;
   }
 
   @Override
@@ -351,177 +589,228 @@ public class TextWigFileReader extends WigFileReader {
   }
 
   /**
-   * Index this WigFile
+   * Index this WigFile, and compute its fingerprint if necessary
    * 
+   * @param checksummed
+   *          whether the fingerprint of this WigFile has already been computed
    * @throws IOException
    * @throws WigFileException
    */
-  private void generateIndex() throws IOException, WigFileFormatException {
-    log.debug("Indexing ASCII text Wig file: " + p);
-
-    // Index the Contigs and data in the Wig File by going through it once
-    stats = new SummaryStatistics();
-    contigs = new HashMap<>();
-    ContigIndex contig = null;
-    int bp = 0;
-    double value;
-    long cursor = raf.getFilePointer();
-    int count = 0;
-    String line = null;
-    long lineNum = 0;
-    raf.seek(0);
-    while ((line = raf.readLine2()) != null) {
-      lineNum++;
-
-      if (line.startsWith("track")) {
-        continue;
-      } else if (line.startsWith(Contig.Type.FIXEDSTEP.getId()) || line.startsWith(Contig.Type.VARIABLESTEP.getId())) {
-        // If this is the end of a previous Contig, store the stop info
-        if (contigs.size() > 0) {
-          contig.setStopLine(lineNum - 1);
-          contig.setStop(bp + contig.getSpan() - 1);
-        }
+  private void generateIndex(boolean checksummed) throws IOException, WigFileFormatException {
+    // Scan (and CRC32) ranges of the file, concurrently if there are multiple
+    // index threads
+    ParallelWigIndexer indexer = new ParallelWigIndexer(p, options);
+    indexer.setBgzfBlocks(getBgzfBlocks());
+    indexer.run();
+    contigs = buildChromosomeIndex(indexer.getContigs());
+    stats = indexer.getStats();
+    indexedLength = indexer.getLength();
+    indexedLines = indexer.getNumLines();
+
+    FileFingerprint fingerprint = options.getFingerprint();
+    if (fingerprint.getId().equals(StandardFingerprint.CRC32.getId()) && !(channel instanceof BgzfFileChannel)) {
+      checksum = indexer.getChecksum();
+    } else if (!checksummed) {
+      checksum = fingerprint.compute(p);
+    }
 
-        // Now parse the new Contig and add to the list of Contigs
-        contig = ContigIndex.parseHeader(line);
-        log.debug("Found contig header: " + line + " (line " + lineNum + ")");
-        if (!contigs.containsKey(contig.getChr())) {
-          contigs.put(contig.getChr(), new ArrayList<ContigIndex>());
-        }
-        contigs.get(contig.getChr()).add(contig);
-
-        // Set the new Contig's start info
-        contig.setStartLine(lineNum + 1);
-        if (contig.isVariableStep()) {
-          cursor = raf.getFilePointer();
-          String firstLine = raf.readLine2();
-          int delim = firstLine.indexOf('\t');
-          if (delim == -1) {
-            delim = firstLine.indexOf(' ');
-            if (delim == -1) {
-              throw new WigFileFormatException("Illegal format in variableStep contig, line " + lineNum
-                  + ". Can't find tab or space delimiting bp, value pair");
-            }
-          }
-          try {
-            bp = Integer.parseInt(firstLine.substring(0, delim));
-          } catch (NumberFormatException e) {
-            throw new WigFileFormatException("Illegal format in variableStep contig, line " + lineNum
-                + ". Can't parse base pair " + firstLine.substring(0, delim));
-          }
-          contig.setStart(bp);
-          raf.seek(cursor);
-        } else {
-          bp = contig.getStart() - ((FixedStepContigIndex) contig).getStep();
-        }
-      } else {
-        if (contig == null) {
-          throw new WigFileFormatException("Missing contig header (fixedStep or variableStep), line " + lineNum);
-        } else if (contig.isFixedStep()) {
-          bp += ((FixedStepContigIndex) contig).getStep();
-          try {
-            value = Double.parseDouble(line);
-          } catch (NumberFormatException e) {
-            throw new WigFileFormatException("Illegal format in fixedStep contig, line " + lineNum
-                + ". Can't parse value " + line);
-          }
-        } else {
-          int delim = line.indexOf('\t');
-          if (delim == -1) {
-            delim = line.indexOf(' ');
-            if (delim == -1) {
-              throw new WigFileFormatException("Illegal format in variableStep contig, line " + lineNum
-                  + ". Can't find tab or space delimiting bp, value pair");
-            }
-          }
+    summarize();
+  }
 
-          try {
-            bp = Integer.parseInt(line.substring(0, delim));
-            value = Double.parseDouble(line.substring(delim + 1));
-          } catch (NumberFormatException e) {
-            throw new WigFileFormatException("Illegal format in variableStep contig, line " + lineNum
-                + ". Can't parse bp " + line.substring(0, delim) + " or value " + line.substring(delim + 1));
-          }
-        }
+  /**
+   * Extend an index of an earlier version of this Wig file, if data has only
+   * been appended to the file since it was indexed (and the appended data
+   * starts with a new contig). The new data is indexed and its contigs,
+   * statistics and summaries are merged into the existing index.
+   * 
+   * @param wigIndex
+   *          an index that does not match the current fingerprint of this Wig
+   *          file
+   * @return true if the index was extended, false if it must be regenerated
+   * @throws IOException
+   *           if an error occurs while reading the Wig file
+   */
+  private boolean extendIndex(WigIndex wigIndex) throws IOException {
+    WigIndex.Prefix prefix = wigIndex.getPrefix();
+    long length = prefix.getLength();
+    if (length <= 0 || length >= channel.size() || !endsLine(length)
+        || ChecksumUtils.sampled(channel, length) != prefix.getFingerprint()) {
+      return false;
+    }
 
-        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
-          count++;
-          for (int i = 0; i < contig.getSpan(); i++) {
-            stats.addValue(value);
-          }
-        }
+    log.debug("Wig file has grown since it was indexed, indexing " + (channel.size() - length) + " new bytes");
+    ParallelWigIndexer indexer = new ParallelWigIndexer(p, options, length, prefix.getNumLines());
+    indexer.setBgzfBlocks(getBgzfBlocks());
+    try {
+      indexer.run();
+    } catch (WigFileFormatException e) {
+      log.debug("Cannot extend index: " + e.getMessage());
+      return false;
+    }
 
-        // Store this line in the index
-        if ((lineNum - contig.getStartLine()) % KEY_GRANULARITY == 0) {
-          contig.storeIndex(bp, cursor);
-        }
+    // Merge the new contigs with any existing contigs on the same chromosomes
+    contigs = new HashMap<>(wigIndex.getContigs());
+    Map<String, ChromosomeIndex> changed = new HashMap<>();
+    for (Map.Entry<String, List<ContigIndex>> entry : indexer.getContigs().entrySet()) {
+      List<ContigIndex> chromContigs = new ArrayList<>(entry.getValue());
+      ChromosomeIndex existing = contigs.get(entry.getKey());
+      if (existing != null) {
+        chromContigs.addAll(existing.getContigs());
       }
+      ChromosomeIndex chromIndex = new ChromosomeIndex(chromContigs);
+      contigs.put(entry.getKey(), chromIndex);
+      changed.put(entry.getKey(), chromIndex);
+    }
+
+    SummaryStatistics old = wigIndex.getStats();
+    WeightedSummaryStatistics merged = WeightedSummaryStatistics.of(old.getN(), old.getSum(), old.getSecondMoment(),
+        old.getMin(), old.getMax());
+    merged.combine(indexer.getStats());
+    stats = merged;
+    indexedLength = indexer.getLength();
+    indexedLines = indexer.getNumLines();
 
-      // Store the cursor position if the next line will be stored in the index
-      if ((lineNum + 1 - contig.getStartLine()) % KEY_GRANULARITY == 0) {
-        cursor = raf.getFilePointer();
+    summaries = wigIndex.getSummaries();
+    if (!summaries.isEmpty() && !changed.isEmpty()) {
+      try {
+        summaries = WigSummaryLevel.update(summaries, channel, changed, options.getIndexThreads());
+      } catch (WigFileException e) {
+        throw new WigFileFormatException("Error summarizing Wig file " + p, e);
       }
     }
 
-    // Set the stop info for the last contig
-    if (contig != null) {
-      contig.setStopLine(lineNum);
-      contig.setStop(bp + contig.getSpan() - 1);
+    return true;
+  }
+
+  /**
+   * @return true if the byte before offset ends a line
+   */
+  private boolean endsLine(long offset) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(1);
+    if (channel.read(buf, offset - 1) != 1) {
+      return false;
+    }
+    byte b = buf.get(0);
+    return b == '\n' || b == '\r';
+  }
+
+  /**
+   * Compute the summary levels requested by the options
+   * 
+   * @throws WigFileFormatException
+   *           if the Wig file contains illegal data lines
+   */
+  private void summarize() throws IOException, WigFileFormatException {
+    int[] binSizes = options.getSummaryBinSizes();
+    if (binSizes.length == 0) {
+      summaries = Collections.emptyList();
+      return;
     }
 
-    log.debug("Indexed " + count + " entries in Wig file");
+    try {
+      summaries = WigSummaryLevel.build(channel, contigs, binSizes, options.getIndexThreads());
+    } catch (WigFileException e) {
+      throw new WigFileFormatException("Error summarizing Wig file " + p, e);
+    }
   }
 
   /**
-   * Load information about this Wig file from a saved index
+   * Add any summary levels requested by the options that are not already in
+   * the loaded index. Existing levels are kept, so that readers with different
+   * options can share an index.
    * 
-   * @param p
-   * @throws IOException
-   * @throws WigFileException
+   * @return true if any summary levels were added
+   * @throws WigFileFormatException
+   *           if the Wig file contains illegal data lines
    */
-  private void loadIndex(Path p, boolean matchChecksum) throws IOException, WigFileException {
-    log.debug("Attempting to load Wig file index from disk");
-    try (ObjectInputStream dis = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
-      // Load and match version
-      long version = dis.readLong();
-      if (version != serialVersionUID) {
-        log.warn("Version of index does not match version of Wig file!");
-        throw new WigFileException("Cannot load index from older version!");
-      }
-      // Load and optionally match checksum
-      long indexChecksum = dis.readLong();
-      if (matchChecksum && indexChecksum != checksum) {
-        log.warn("Index does not match checksum of Wig file!");
-        throw new WigFileException("Index does not match checksum of Wig file!");
+  private boolean addMissingSummaries() throws IOException, WigFileFormatException {
+    int[] existing = getSummaryBinSizes();
+    List<Integer> missing = new ArrayList<>();
+    for (int binSize : options.getSummaryBinSizes()) {
+      if (Arrays.binarySearch(existing, binSize) < 0) {
+        missing.add(binSize);
       }
+    }
+    if (missing.isEmpty()) {
+      return false;
+    }
 
-      // Load statistics
-      try {
-        stats = (SummaryStatistics) dis.readObject();
-      } catch (ClassNotFoundException e) {
-        log.error("ClassNotFoundException while loading Wig statistics from index file");
-        e.printStackTrace();
-        throw new WigFileException("ClassNotFoundException while trying to load Wig statistics from index file");
+    log.debug("Adding " + missing.size() + " summary levels to the index");
+    int[] binSizes = new int[missing.size()];
+    for (int i = 0; i < binSizes.length; i++) {
+      binSizes[i] = missing.get(i);
+    }
+    List<WigSummaryLevel> merged = new ArrayList<>(summaries);
+    try {
+      merged.addAll(WigSummaryLevel.build(channel, contigs, binSizes, options.getIndexThreads()));
+    } catch (WigFileException e) {
+      throw new WigFileFormatException("Error summarizing Wig file " + p, e);
+    }
+    Collections.sort(merged, new Comparator<WigSummaryLevel>() {
+      @Override
+      public int compare(WigSummaryLevel l1, WigSummaryLevel l2) {
+        return Integer.compare(l1.getBinSize(), l2.getBinSize());
       }
+    });
+    summaries = merged;
+    return true;
+  }
 
-      try {
-        // Load Contigs
-        int numContigs = dis.readInt();
-        contigs = new HashMap<String, List<ContigIndex>>();
-        for (int i = 0; i < numContigs; i++) {
-          ContigIndex contig = (ContigIndex) dis.readObject();
-          if (!contigs.containsKey(contig.getChr())) {
-            contigs.put(contig.getChr(), new ArrayList<ContigIndex>());
-          }
-          contigs.get(contig.getChr()).add(contig);
-        }
-        log.debug("Loaded index information for " + contigs.size() + " contigs");
-      } catch (ClassNotFoundException e) {
-        log.error("ClassNotFoundException while loading Wig index from file");
-        e.printStackTrace();
-        throw new WigFileException("ClassNotFoundException while trying to load Wig index from file");
+  /**
+   * @return the bin sizes of the summary levels in the index of this Wig
+   *         file, in increasing order
+   */
+  public int[] getSummaryBinSizes() {
+    int[] binSizes = new int[summaries.size()];
+    for (int i = 0; i < binSizes.length; i++) {
+      binSizes[i] = summaries.get(i).getBinSize();
+    }
+    return binSizes;
+  }
+
+  /**
+   * Sort the contigs for each chromosome and compute their extents
+   * 
+   * @param chromContigs
+   *          the contigs for each chromosome
+   * @return the per-chromosome index
+   */
+  private static Map<String, ChromosomeIndex> buildChromosomeIndex(Map<String, List<ContigIndex>> chromContigs) {
+    Map<String, ChromosomeIndex> index = new HashMap<>();
+    for (Map.Entry<String, List<ContigIndex>> entry : chromContigs.entrySet()) {
+      index.put(entry.getKey(), new ChromosomeIndex(entry.getValue()));
+    }
+    return index;
+  }
+
+  /**
+   * Load information about this Wig file from a saved index
+   * 
+   * @param wigIndex
+   *          the index loaded from disk
+   * @param matchChecksum
+   *          whether the index must match the fingerprint of this Wig file
+   * @throws WigFileException
+   *           if the index does not match
+   */
+  private void loadIndex(WigIndex wigIndex, boolean matchChecksum) throws WigFileException {
+    if (matchChecksum) {
+      if (!wigIndex.getFingerprintId().equals(options.getFingerprint().getId())) {
+        log.warn("Index was built with a different fingerprint strategy");
+        throw new WigFileException("Index was built with a different fingerprint strategy");
+      } else if (wigIndex.getChecksum() != checksum) {
+        log.warn("Index does not match checksum of Wig file!");
+        throw new WigFileException("Index does not match checksum of Wig file!");
       }
     }
+
+    checksum = wigIndex.getChecksum();
+    stats = wigIndex.getStats();
+    contigs = wigIndex.getContigs();
+    summaries = wigIndex.getSummaries();
+    indexedLength = wigIndex.getPrefix().getLength();
+    indexedLines = wigIndex.getPrefix().getNumLines();
+    log.debug("Loaded index information for " + contigs.size() + " chromosomes");
   }
 
   /**
@@ -532,26 +821,14 @@ public class TextWigFileReader extends WigFileReader {
    */
   private void saveIndex(Path p) throws IOException {
     log.debug("Writing Wig index information to disk");
-    try (ObjectOutputStream dos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
-      // Write the serialization version and corresponding Wig file checksum
-      // at the top so it can easily be matched
-      dos.writeLong(serialVersionUID);
-      dos.writeLong(checksum);
-
-      // Write statistics
-      dos.writeObject(stats);
-
-      // Write Contigs
-      int numContigs = 0;
-      for (List<ContigIndex> chromContigs : contigs.values()) {
-        numContigs += chromContigs.size();
-      }
-      dos.writeInt(numContigs);
-      for (List<ContigIndex> chromContigs : contigs.values()) {
-        for (ContigIndex c : chromContigs) {
-          dos.writeObject(c);
-        }
+    try {
+      WigIndex wigIndex = new WigIndex(options.getFingerprint().getId(), checksum, stats, contigs, summaries);
+      if (indexedLength > 0) {
+        long fingerprint = ChecksumUtils.sampled(channel, indexedLength);
+        wigIndex.setPrefix(new WigIndex.Prefix(indexedLength, indexedLines, fingerprint));
       }
+      wigIndex.setBgzfBlocks(getBgzfBlocks());
+      wigIndex.write(p);
     } catch (IOException e) {
       log.error("Error saving Wig index information to disk!: " + e.getMessage());
       e.printStackTrace();
@@ -560,6 +837,60 @@ public class TextWigFileReader extends WigFileReader {
     }
   }
 
+  /**
+   * Parse the values of every contig in this Wig file once and store them in a
+   * binary sidecar next to the index. Subsequent queries (including those from
+   * readers opened later on the same file) are served from a memory-mapped
+   * copy of the sidecar without parsing any text. The sidecar is tied to the
+   * same checksum as the index and is ignored once the Wig file changes.
+   * 
+   * @throws IOException
+   *           if a disk read or write error occurs
+   * @throws WigFileException
+   *           if the Wig file contains illegal data lines
+   */
+  public void buildValueCache() throws IOException, WigFileException {
+    log.debug("Building value cache for Wig file " + p);
+    List<ContigIndex> all = new ArrayList<>();
+    for (ChromosomeIndex chromContigs : contigs.values()) {
+      all.addAll(chromContigs.getContigs());
+    }
+    WigValueCache.write(getValueCachePath(), channel, checksum, all);
+    valueCache = WigValueCache.load(getValueCachePath(), checksum);
+  }
+
+  /**
+   * @return true if queries to this Wig file are served from a binary value
+   *         cache
+   */
+  public boolean hasValueCache() {
+    return valueCache != null;
+  }
+
+  private Path getValueCachePath() {
+    return index.resolveSibling(p.getFileName() + VALUE_CACHE_EXTENSION);
+  }
+
+  /**
+   * Map the binary value cache for this Wig file, if one exists and matches
+   * the current checksum. Otherwise queries fall back to parsing the text.
+   * 
+   * @throws IOException
+   */
+  private void loadValueCache() throws IOException {
+    Path cache = getValueCachePath();
+    if (!Files.exists(cache)) {
+      return;
+    }
+
+    try {
+      valueCache = WigValueCache.load(cache, checksum);
+    } catch (IOException | WigFileException e) {
+      log.warn("Ignoring stale or invalid Wig value cache " + cache + ": " + e.getMessage());
+      Files.deleteIfExists(cache);
+    }
+  }
+
   @Override
   public TextWigFileReader clone() {
     try {
@@ -569,4 +900,59 @@ public class TextWigFileReader extends WigFileReader {
     }
   }
 
+  /**
+   * Reads the runs of values in this Wig file sequentially
+   */
+  private class TextChunkIterator extends WigChunkIterator {
+
+    private final ChannelLineReader reader = new ChannelLineReader(channel, 0, CHUNK_BUFFER_SIZE);
+    private ContigIndex contig;
+    private int bp;
+    private long lineNum = 0;
+
+    TextChunkIterator(int chunkSize) {
+      super(chunkSize);
+    }
+
+    @Override
+    protected boolean readRun() throws IOException, WigFileException {
+      while (reader.next()) {
+        lineNum++;
+        if (reader.startsWith(ContigIndex.TRACK)) {
+          continue;
+        } else if (reader.startsWith(ContigIndex.FIXEDSTEP) || reader.startsWith(ContigIndex.VARIABLESTEP)) {
+          contig = ContigIndex.parseHeader(reader.line());
+          bp = contig.getStart();
+          continue;
+        } else if (contig == null) {
+          throw new WigFileFormatException("Missing contig header (fixedStep or variableStep), line " + lineNum);
+        }
+
+        byte[] buf = reader.buffer();
+        int end = reader.lineEnd();
+        try {
+          if (contig.isFixedStep()) {
+            runStart = bp;
+            runValue = NumberParser.parseFloat(buf, reader.lineStart(), end);
+            bp += ((FixedStepContigIndex) contig).getStep();
+          } else {
+            int delim = VariableStepContigIndex.nextWhitespace(buf, reader.lineStart(), end);
+            runStart = NumberParser.parseInt(buf, reader.lineStart(), delim);
+            int valueStart = VariableStepContigIndex.skipWhitespace(buf, delim, end);
+            runValue = NumberParser.parseFloat(buf, valueStart,
+                VariableStepContigIndex.nextWhitespace(buf, valueStart, end));
+          }
+        } catch (NumberFormatException e) {
+          throw new WigFileFormatException("Illegal format in contig " + contig.toOutput() + ", line " + lineNum
+              + ": " + reader.line());
+        }
+        runChr = contig.getChr();
+        runStop = runStart + contig.getSpan() - 1;
+        return true;
+      }
+
+      return false;
+    }
+  }
+
 }
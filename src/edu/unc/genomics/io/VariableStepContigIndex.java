@@ -1,12 +1,13 @@
 package edu.unc.genomics.io;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
-import ed.javatools.BufferedRandomAccessFile;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.NumberParser;
 
 /**
  * Holds index information about variableStep contigs in a TextWigFile
@@ -71,80 +72,93 @@ class VariableStepContigIndex extends ContigIndex {
   }
 
   @Override
-  public void fill(BufferedRandomAccessFile raf, Interval interval, float[] values) throws WigFileException,
+  public void fill(FileChannel channel, Interval interval, float[] values, int offset) throws WigFileException,
       IOException {
     // Clamp to bases that are covered by this Contig
     int low = Math.max(getStart(), interval.low());
     int high = Math.min(getStop(), interval.high());
 
     // Find the closest known upstream base-pair position
-    int closestUpstream = getUpstreamIndexedBP(low);
-    synchronized (raf) {
-      // Seek to the closest known position in the index
-      raf.seek(getIndex(closestUpstream));
-
-      // Load the data from the file into the values array
-      String line;
-      int bp = low;
-      while ((line = raf.readLine2()) != null && bp <= high) {
-        // Break if at the next Contig
-        if (line.startsWith("track") || line.startsWith(Contig.Type.FIXEDSTEP.getId())
-            || line.startsWith(Contig.Type.VARIABLESTEP.getId())) {
-          break;
-        }
+    int checkpoint = getUpstreamCheckpoint(low);
+    // Start reading from the closest known position in the index
+    ChannelLineReader reader = new ChannelLineReader(channel, getCheckpointOffset(checkpoint));
+
+    // Load the data from the file into the values array
+    int bp = low;
+    while (reader.next() && bp <= high) {
+      // Break if at the next Contig
+      if (reader.startsWith(TRACK) || reader.startsWith(FIXEDSTEP) || reader.startsWith(VARIABLESTEP)) {
+        break;
+      }
 
-        String[] entry = line.split("\\s+");
-        bp = Integer.parseInt(entry[0]);
-        if (bp + getSpan() - 1 >= low) {
-          float value = Float.parseFloat(entry[1]);
-          if (!Float.isNaN(value)) {
-            for (int i = bp; i <= bp + getSpan() - 1; i++) {
-              if (interval.includes(i)) {
-                values[i - interval.low()] = value;
-              }
-            }
-          }
+      // Parse the bp and value tokens directly from the read buffer
+      byte[] buf = reader.buffer();
+      int end = reader.lineEnd();
+      int delim = nextWhitespace(buf, reader.lineStart(), end);
+      bp = NumberParser.parseInt(buf, reader.lineStart(), delim);
+      if (bp + getSpan() - 1 >= low) {
+        int valueStart = skipWhitespace(buf, delim, end);
+        float value = NumberParser.parseFloat(buf, valueStart, nextWhitespace(buf, valueStart, end));
+        if (!Float.isNaN(value)) {
+          WigFileReader.fill(interval, values, offset, bp, bp + getSpan() - 1, value);
         }
       }
     }
   }
 
   @Override
-  public void fillStats(BufferedRandomAccessFile raf, Interval interval, SummaryStatistics stats)
-      throws WigFileException, IOException {
+  public void fillStats(FileChannel channel, Interval interval, SummaryStatistics stats) throws WigFileException,
+      IOException {
     // Clamp to bases that are covered by this Contig
     int low = Math.max(getStart(), interval.low());
     int high = Math.min(getStop(), interval.high());
 
     // Find the closest known upstream base-pair position
-    int closestUpstream = getUpstreamIndexedBP(low);
-    synchronized (raf) {
-      // Seek to the closest known position in the index
-      raf.seek(getIndex(closestUpstream));
-
-      // Load the data from the file into the values array
-      String line;
-      int bp = low;
-      while ((line = raf.readLine2()) != null && bp <= high) {
-        // Break if at the next Contig
-        if (line.startsWith("track") || line.startsWith(Contig.Type.FIXEDSTEP.getId())
-            || line.startsWith(Contig.Type.VARIABLESTEP.getId())) {
-          break;
-        }
+    int checkpoint = getUpstreamCheckpoint(low);
+    // Start reading from the closest known position in the index
+    ChannelLineReader reader = new ChannelLineReader(channel, getCheckpointOffset(checkpoint));
+
+    // Load the data from the file into the values array
+    int bp = low;
+    while (reader.next() && bp <= high) {
+      // Break if at the next Contig
+      if (reader.startsWith(TRACK) || reader.startsWith(FIXEDSTEP) || reader.startsWith(VARIABLESTEP)) {
+        break;
+      }
 
-        String[] entry = line.split("\\s+");
-        bp = Integer.parseInt(entry[0]);
-        if (bp + getSpan() - 1 >= low) {
-          float value = Float.parseFloat(entry[1]);
-          if (!Float.isNaN(value)) {
-            for (int i = bp; i <= bp + getSpan() - 1; i++) {
-              if (interval.includes(i)) {
-                stats.addValue(value);
-              }
-            }
+      // Parse the bp and value tokens directly from the read buffer
+      byte[] buf = reader.buffer();
+      int end = reader.lineEnd();
+      int delim = nextWhitespace(buf, reader.lineStart(), end);
+      bp = NumberParser.parseInt(buf, reader.lineStart(), delim);
+      if (bp + getSpan() - 1 >= low) {
+        int valueStart = skipWhitespace(buf, delim, end);
+        float value = NumberParser.parseFloat(buf, valueStart, nextWhitespace(buf, valueStart, end));
+        if (!Float.isNaN(value)) {
+          int n = Math.min(bp + getSpan() - 1, interval.high()) - Math.max(bp, interval.low()) + 1;
+          for (int i = 0; i < n; i++) {
+            stats.addValue(value);
           }
         }
       }
     }
   }
+
+  static int nextWhitespace(byte[] buf, int i, int end) {
+    while (i < end && !isWhitespace(buf[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  static int skipWhitespace(byte[] buf, int i, int end) {
+    while (i < end && isWhitespace(buf[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+  }
 }
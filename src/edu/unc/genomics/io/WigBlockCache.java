@@ -0,0 +1,304 @@
+package edu.unc.genomics.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import edu.unc.genomics.Interval;
+
+/**
+ * A least-recently-used cache of decoded Wig values, shared by all
+ * WigFileReaders (and their clones) in the JVM, so that repeated queries to
+ * the same loci do not re-read and re-parse the same data. Values are cached
+ * in blocks of BLOCK_SIZE base pairs, keyed by the fingerprint of the Wig
+ * file, the chromosome, and the block number. Block i covers base pairs
+ * i*BLOCK_SIZE+1 to (i+1)*BLOCK_SIZE.
+ *
+ * The cache is bounded by the (approximate) number of bytes of the blocks it
+ * holds, and may be used concurrently from multiple threads. Queries spanning
+ * more than MAX_QUERY_BLOCKS blocks bypass the cache so that large scans do
+ * not evict the hot loci.
+ *
+ * @author timpalpant
+ *
+ */
+public final class WigBlockCache {
+
+  /** Number of base pairs in each block */
+  public static final int BLOCK_SIZE = 4096;
+  /** Queries spanning more blocks than this are not cached */
+  public static final int MAX_QUERY_BLOCKS = 16;
+  /** Default memory budget of the shared cache, in bytes */
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+  /** Approximate memory used by the key and entry of each block */
+  private static final int ENTRY_OVERHEAD = 96;
+  /** Blocks without any data are stored as this array */
+  private static final float[] EMPTY = new float[0];
+
+  private static final WigBlockCache shared = new WigBlockCache(DEFAULT_MAX_BYTES);
+
+  private final LinkedHashMap<Key, float[]> blocks = new LinkedHashMap<>(256, 0.75f, true);
+  private long maxBytes;
+  private long bytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Loads the values of a block that is not in the cache
+   */
+  interface BlockLoader {
+    /**
+     * @param block
+     *          the (Watson) interval of the block
+     * @param values
+     *          an array of NaN to write the values of the block into
+     */
+    void load(Interval block, float[] values) throws IOException, WigFileException;
+  }
+
+  /**
+   * @param maxBytes
+   *          the memory budget of the cache, in bytes
+   */
+  public WigBlockCache(long maxBytes) {
+    setMaxBytes(maxBytes);
+  }
+
+  /**
+   * @return the cache shared by all WigFileReaders
+   */
+  public static WigBlockCache getShared() {
+    return shared;
+  }
+
+  /**
+   * @param interval
+   *          a query interval
+   * @return true if queries for interval should be served from this cache
+   */
+  boolean caches(Interval interval) {
+    int firstBlock = (Math.max(interval.low(), 1) - 1) / BLOCK_SIZE;
+    int lastBlock = (interval.high() - 1) / BLOCK_SIZE;
+    return interval.high() >= 1 && lastBlock - firstBlock < MAX_QUERY_BLOCKS && getMaxBytes() > 0;
+  }
+
+  /**
+   * Query for the values of an interval, loading and caching any blocks that
+   * are not already in the cache
+   *
+   * @param fingerprint
+   *          the fingerprint of the Wig file
+   * @param interval
+   *          the interval to query for
+   * @param values
+   *          the array to write the values into (in reverse for Crick
+   *          intervals)
+   * @param offset
+   *          the index in values of the first base pair of interval
+   * @param loader
+   *          loads the values of blocks that are not in the cache
+   * @throws IOException
+   *           if a disk read error occurs while loading a block
+   * @throws WigFileException
+   *           if an error occurs while loading a block
+   */
+  void query(long fingerprint, Interval interval, float[] values, int offset, BlockLoader loader) throws IOException,
+      WigFileException {
+    if (interval.high() < 1) {
+      return;
+    }
+
+    int firstBlock = (Math.max(interval.low(), 1) - 1) / BLOCK_SIZE;
+    int lastBlock = (interval.high() - 1) / BLOCK_SIZE;
+    for (int i = firstBlock; i <= lastBlock; i++) {
+      Key key = new Key(fingerprint, interval.getChr(), i);
+      float[] block = get(key);
+      if (block == null) {
+        block = new float[BLOCK_SIZE];
+        Arrays.fill(block, Float.NaN);
+        loader.load(new Interval(interval.getChr(), i * BLOCK_SIZE + 1, (i + 1) * BLOCK_SIZE), block);
+        block = put(key, block);
+      }
+
+      if (block != EMPTY) {
+        copy(block, i * BLOCK_SIZE + 1, interval, values, offset);
+      }
+    }
+  }
+
+  /**
+   * Copy the part of a block that overlaps an interval into a query's values
+   */
+  private static void copy(float[] block, int blockStart, Interval interval, float[] values, int offset) {
+    int low = Math.max(blockStart, interval.low());
+    int high = Math.min(blockStart + BLOCK_SIZE - 1, interval.high());
+    if (interval.isWatson()) {
+      System.arraycopy(block, low - blockStart, values, offset + low - interval.low(), high - low + 1);
+    } else {
+      int j = offset + interval.high() - low;
+      for (int bp = low; bp <= high; bp++) {
+        values[j--] = block[bp - blockStart];
+      }
+    }
+  }
+
+  private synchronized float[] get(Key key) {
+    float[] block = blocks.get(key);
+    if (block == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return block;
+  }
+
+  /**
+   * Add a block to the cache
+   *
+   * @return the block as stored in the cache
+   */
+  private synchronized float[] put(Key key, float[] block) {
+    boolean empty = true;
+    for (float value : block) {
+      if (!Float.isNaN(value)) {
+        empty = false;
+        break;
+      }
+    }
+    if (empty) {
+      block = EMPTY;
+    }
+
+    if (sizeOf(block) > maxBytes) {
+      return block;
+    }
+    float[] previous = blocks.put(key, block);
+    if (previous != null) {
+      bytes -= sizeOf(previous);
+    }
+    bytes += sizeOf(block);
+    evict();
+    return block;
+  }
+
+  private static long sizeOf(float[] block) {
+    return ENTRY_OVERHEAD + 4L * block.length;
+  }
+
+  /**
+   * Remove the least-recently-used blocks until the cache is within budget
+   */
+  private void evict() {
+    Iterator<float[]> it = blocks.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= sizeOf(it.next());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Remove all blocks from the cache
+   */
+  public synchronized void clear() {
+    blocks.clear();
+    bytes = 0;
+  }
+
+  /**
+   * @return the memory budget of the cache, in bytes
+   */
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Set the memory budget of the cache. Blocks are evicted immediately if the
+   * cache is over the new budget. A budget of 0 disables caching.
+   *
+   * @param maxBytes
+   *          the memory budget of the cache, in bytes
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Cache size must be >= 0");
+    }
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /**
+   * @return the approximate number of bytes used by the cached blocks
+   */
+  public synchronized long size() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of blocks in the cache
+   */
+  public synchronized int numBlocks() {
+    return blocks.size();
+  }
+
+  /**
+   * @return the number of block lookups that were found in the cache
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of block lookups that had to be loaded from disk
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of blocks that have been evicted to stay within budget
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "WigBlockCache: " + blocks.size() + " blocks, " + bytes + "/" + maxBytes + " bytes, " + hits + " hits, "
+        + misses + " misses, " + evictions + " evictions";
+  }
+
+  private static final class Key {
+    private final long fingerprint;
+    private final String chr;
+    private final int block;
+
+    Key(long fingerprint, String chr, int block) {
+      this.fingerprint = fingerprint;
+      this.chr = chr;
+      this.block = block;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = (int) (fingerprint ^ (fingerprint >>> 32));
+      result = 31 * result + chr.hashCode();
+      result = 31 * result + block;
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return fingerprint == other.fingerprint && block == other.block && chr.equals(other.chr);
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+package edu.unc.genomics.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
+
+/**
+ * Assembles the runs of values in a Wig file, read in the order that they are
+ * stored, into Contigs of at most chunkSize base pairs. A chunk starts at the
+ * first base pair with data that is not yet in a chunk, and ends at the last
+ * base pair with data before a run on another chromosome, a run that goes back
+ * before the chunk, or the chunk is full. Runs that cross the end of a chunk
+ * continue in the next chunk. Bases within a chunk without data are NaN.
+ *
+ * @author timpalpant
+ *
+ */
+abstract class WigChunkIterator implements Iterator<Contig> {
+
+  private final int chunkSize;
+  private final float[] values;
+  private Contig next;
+
+  // The chunk being assembled (chr == null if none)
+  private String chr;
+  private int low;
+  private int high;
+
+  // The current run, set by readRun()
+  protected String runChr;
+  protected int runStart;
+  protected int runStop;
+  protected float runValue;
+  private boolean pending = false;
+
+  /**
+   * @param chunkSize
+   *          the maximum number of base pairs in each chunk
+   */
+  protected WigChunkIterator(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be > 0");
+    }
+    this.chunkSize = chunkSize;
+    this.values = new float[chunkSize];
+  }
+
+  /**
+   * Read the next run of base pairs with a value (runChr, runStart-runStop,
+   * runValue) in the order that they are stored in the Wig file
+   *
+   * @return true if there was another run, false at the end of the file
+   * @throws IOException
+   *           if an error occurs while reading the Wig file
+   * @throws WigFileException
+   *           if the Wig file contains illegal data
+   */
+  protected abstract boolean readRun() throws IOException, WigFileException;
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      try {
+        next = advance();
+      } catch (IOException | WigFileException e) {
+        throw new RuntimeException("Error reading Wig file", e);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Contig next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Contig chunk = next;
+    next = null;
+    return chunk;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Cannot remove chunks from a Wig file");
+  }
+
+  private Contig advance() throws IOException, WigFileException {
+    while (true) {
+      if (!pending) {
+        if (!readRun()) {
+          return flush();
+        }
+        pending = !Float.isNaN(runValue);
+        continue;
+      }
+
+      // Start a new chunk if this run does not belong in the current one
+      if (chr != null && (!runChr.equals(chr) || runStart < low || runStart - (long) low >= chunkSize)) {
+        return flush();
+      }
+
+      if (chr == null) {
+        chr = runChr;
+        low = runStart;
+        high = low - 1;
+        Arrays.fill(values, Float.NaN);
+      }
+
+      int stop = (int) Math.min(runStop, low + (long) chunkSize - 1);
+      Arrays.fill(values, runStart - low, stop - low + 1, runValue);
+      high = Math.max(high, stop);
+      if (stop < runStop) {
+        // Continue the rest of this run in the next chunk
+        runStart = stop + 1;
+        return flush();
+      }
+      pending = false;
+    }
+  }
+
+  private Contig flush() {
+    if (chr == null) {
+      return null;
+    }
+
+    Contig chunk = new Contig(new Interval(chr, low, high), Arrays.copyOf(values, high - low + 1));
+    chr = null;
+    return chunk;
+  }
+
+}
@@ -3,14 +3,24 @@ package edu.unc.genomics.io;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
 
 import edu.ucsc.genome.TrackHeader;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.OffHeapContig;
+import edu.unc.genomics.RunLengthContig;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
 
 /**
  * The base class for ASCII-text Wig files and binary BigWig files.
@@ -25,8 +35,15 @@ import edu.unc.genomics.Interval;
 public abstract class WigFileReader implements Closeable, Cloneable {
 
   private static final Logger log = Logger.getLogger(WigFileReader.class);
+  /** Batched requests this close together (in bp) are read together */
+  private static final int BATCH_MAX_GAP = 1024;
+  /** Maximum length (in bp) of a merged read for batched requests */
+  private static final int BATCH_MAX_LENGTH = 1 << 20;
+  /** Number of base pairs read at a time by queryRuns() and queryOffHeap() */
+  protected static final int RUN_QUERY_CHUNK_SIZE = 1 << 16;
   protected final Path p;
   protected TrackHeader header = TrackHeader.newWiggle();
+  protected WigBlockCache blockCache = WigBlockCache.getShared();
 
   protected WigFileReader(Path p) {
     this.p = p;
@@ -34,7 +51,8 @@ public abstract class WigFileReader implements Closeable, Cloneable {
 
   /**
    * Autodetect whether a file is an ASCII-text Wig file or a BigWig file and
-   * initialize it
+   * initialize it. A gzip-compressed text Wig file is recompressed with BGZF
+   * (once) so that it can be queried without decompressing it to disk.
    * 
    * @param p
    *          the file to initialize
@@ -52,6 +70,9 @@ public abstract class WigFileReader implements Closeable, Cloneable {
     if (BigWigFileReader.isBigWig(p)) {
       log.info("Autodetected BigWig file type: " + p);
       wig = new BigWigFileReader(p);
+    } else if (TextWigFileReader.isGzip(p) && !BgzfFileChannel.isBgzf(p)) {
+      log.info("Autodetected gzip-compressed Wiggle file type: " + p);
+      wig = new TextWigFileReader(TextWigFileReader.recompress(p));
     } else {
       log.info("Autodetected Wiggle file type: " + p);
       wig = new TextWigFileReader(p);
@@ -74,6 +95,23 @@ public abstract class WigFileReader implements Closeable, Cloneable {
     return header;
   }
 
+  /**
+   * @return the cache of decoded values used by this reader
+   */
+  public final WigBlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  /**
+   * By default, all readers share WigBlockCache.getShared()
+   * 
+   * @param blockCache
+   *          the cache of decoded values to use for queries to this reader
+   */
+  public final void setBlockCache(WigBlockCache blockCache) {
+    this.blockCache = blockCache;
+  }
+
   /**
    * Query for a Contig of data in this Wig file corresponding to a specific
    * interval
@@ -86,7 +124,98 @@ public abstract class WigFileReader implements Closeable, Cloneable {
    * @throws WigFileException
    *           if the Wig file does not contain data for this Interval
    */
-  public abstract Contig query(Interval interval) throws IOException, WigFileException;
+  public Contig query(Interval interval) throws IOException, WigFileException {
+    float[] values = new float[interval.length()];
+    query(interval, values, 0);
+    return new Contig(interval, values);
+  }
+
+  /**
+   * Query for data in this Wig file corresponding to a specific interval, and
+   * write it into an existing array so that the array can be reused across
+   * many queries. Values are written in the order of the interval (i.e. in
+   * reverse for Crick intervals), with NaN for bases without data.
+   * 
+   * @param interval
+   *          the Interval of data to query for
+   * @param values
+   *          the array to write the data into
+   * @param offset
+   *          the index in values to write the first base pair of interval to
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for this Interval
+   */
+  public abstract void query(Interval interval, float[] values, int offset) throws IOException, WigFileException;
+
+  /**
+   * Query for a Contig of data in this Wig file corresponding to a specific
+   * interval, stored as runs of equal values (see RunLengthContig). This uses
+   * much less memory than query() for sparse data and long runs of the same
+   * value, e.g. a chromosome-wide query of a ChIP-seq or bedGraph-derived
+   * track, since a dense array of values is never created.
+   * 
+   * By default, the interval is read in chunks of RUN_QUERY_CHUNK_SIZE base
+   * pairs into a reused array.
+   * 
+   * @param interval
+   *          the Interval of data to query for
+   * @return a RunLengthContig of data from the Interval interval
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for this Interval
+   */
+  public RunLengthContig queryRuns(Interval interval) throws IOException, WigFileException {
+    RunLengthContig contig = new RunLengthContig(interval);
+    float[] values = new float[Math.min(interval.length(), RUN_QUERY_CHUNK_SIZE)];
+    for (int low = interval.low(); low <= interval.high(); low += values.length) {
+      int high = Math.min(interval.high(), low + values.length - 1);
+      query(new Interval(interval.getChr(), low, high), values, 0);
+      int runStart = low;
+      for (int bp = low + 1; bp <= high + 1; bp++) {
+        if (bp > high || Float.compare(values[bp - low], values[runStart - low]) != 0) {
+          if (!Float.isNaN(values[runStart - low])) {
+            contig.set(runStart, bp - 1, values[runStart - low]);
+          }
+          runStart = bp;
+        }
+      }
+    }
+    return contig;
+  }
+
+  /**
+   * Query for a Contig of data in this Wig file corresponding to a specific
+   * interval, stored outside of the Java heap (see OffHeapContig). The
+   * interval is read in chunks of RUN_QUERY_CHUNK_SIZE base pairs, so a large
+   * array is never allocated on the heap. The returned Contig should be closed
+   * when it is no longer needed.
+   * 
+   * @param interval
+   *          the Interval of data to query for
+   * @return an OffHeapContig of data from the Interval interval
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for this Interval
+   */
+  public OffHeapContig queryOffHeap(Interval interval) throws IOException, WigFileException {
+    OffHeapContig contig = new OffHeapContig(interval);
+    float[] values = new float[Math.min(interval.length(), RUN_QUERY_CHUNK_SIZE)];
+    try {
+      for (int low = interval.low(); low <= interval.high(); low += values.length) {
+        int high = Math.min(interval.high(), low + values.length - 1);
+        query(new Interval(interval.getChr(), low, high), values, 0);
+        contig.set(low, values, 0, high - low + 1);
+      }
+    } catch (IOException | WigFileException | RuntimeException e) {
+      contig.close();
+      throw e;
+    }
+    return contig;
+  }
 
   /**
    * Query for a Contig of data in this Wig file corresponding to a specific
@@ -148,6 +277,37 @@ public abstract class WigFileReader implements Closeable, Cloneable {
     return query(new Interval(chr, start, stop), span);
   }
 
+  /**
+   * Write a run of a value (start-stop) into a query's array of values,
+   * clipped to the query interval
+   * 
+   * @param interval
+   *          the query interval
+   * @param values
+   *          the query's array of values
+   * @param offset
+   *          the index in values of the first base pair of interval
+   * @param start
+   *          the first base pair of the run
+   * @param stop
+   *          the last base pair of the run
+   * @param value
+   *          the value of the run
+   */
+  static void fill(Interval interval, float[] values, int offset, int start, int stop, float value) {
+    int low = Math.max(start, interval.low());
+    int high = Math.min(stop, interval.high());
+    if (low > high) {
+      return;
+    }
+
+    if (interval.isWatson()) {
+      Arrays.fill(values, offset + low - interval.low(), offset + high - interval.low() + 1, value);
+    } else {
+      Arrays.fill(values, offset + interval.high() - high, offset + interval.high() - low + 1, value);
+    }
+  }
+
   /**
    * Query for statistics about data in this Wig file corresponding to a
    * specific interval Without having to load the data into memory all at once
@@ -182,6 +342,202 @@ public abstract class WigFileReader implements Closeable, Cloneable {
     return queryStats(new Interval(chr, start, stop));
   }
 
+  /**
+   * Stream all of the data in this Wig file, in the order that it is stored,
+   * as Contigs of at most chunkSize base pairs. Unlike querying each
+   * chromosome, the file is read sequentially and only one chunk is held in
+   * memory at a time, so a pass over a whole genome runs at disk bandwidth.
+   * 
+   * Every base pair with data is in a chunk. Stretches without data between
+   * chunks are skipped, and bases without data within a chunk are NaN. Chunks
+   * only overlap if the Wig file has overlapping data. Errors while reading
+   * the file are thrown as RuntimeExceptions.
+   * 
+   * @param chunkSize
+   *          the maximum number of base pairs in each chunk
+   * @return an iterator over chunks of the data in this Wig file
+   */
+  public abstract Iterator<Contig> chunks(int chunkSize);
+
+  /**
+   * Query for Contigs of data in this Wig file for many intervals at once. The
+   * intervals are sorted by chromosome and position, and intervals that
+   * overlap or are within a short distance of each other are merged so that
+   * each region of the file is read only once.
+   * 
+   * @param intervals
+   *          the Intervals of data to query for
+   * @return a Contig of data for each interval, in the same order as intervals
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for an Interval
+   */
+  public List<Contig> query(Collection<? extends Interval> intervals) throws IOException, WigFileException {
+    final List<Interval> requests = new ArrayList<>(intervals);
+    Contig[] results = new Contig[requests.size()];
+    for (List<Integer> batch : coalesce(requests)) {
+      int low = requests.get(batch.get(0)).low();
+      float[] values = queryBatch(requests, batch);
+      for (int i : batch) {
+        Interval interval = requests.get(i);
+        float[] subset = Arrays.copyOfRange(values, interval.low() - low, interval.high() - low + 1);
+        if (interval.isCrick()) {
+          ArrayUtils.reverse(subset);
+        }
+        results[i] = new Contig(interval, subset);
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Query for statistics about data in this Wig file for many intervals at
+   * once. Intervals that can be summarized without reading all of their data
+   * (see isSummarized) are queried with queryStats(Interval). The rest are
+   * merged like the intervals of query(Collection), so that each region of the
+   * file is read only once, and their statistics are computed from the data.
+   * 
+   * @param intervals
+   *          the Intervals of data to query for
+   * @return a SummaryStatistics object of the data for each interval, in the
+   *         same order as intervals
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for an Interval
+   */
+  public List<SummaryStatistics> queryStats(Collection<? extends Interval> intervals) throws IOException,
+      WigFileException {
+    SummaryStatistics[] results = new SummaryStatistics[intervals.size()];
+    List<Interval> requests = new ArrayList<>();
+    List<Integer> indices = new ArrayList<>();
+    int index = 0;
+    for (Interval interval : intervals) {
+      if (isSummarized(interval)) {
+        results[index] = queryStats(interval);
+      } else {
+        requests.add(interval);
+        indices.add(index);
+      }
+      index++;
+    }
+
+    for (List<Integer> batch : coalesce(requests)) {
+      int low = requests.get(batch.get(0)).low();
+      float[] values = queryBatch(requests, batch);
+      for (int i : batch) {
+        Interval interval = requests.get(i);
+        WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+        stats.addValues(values, interval.low() - low, interval.high() - low + 1, 1);
+        results[indices.get(i)] = stats;
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  /**
+   * @param interval
+   *          an Interval of data
+   * @return true if queryStats(interval) uses summaries of the data (e.g. zoom
+   *         levels) rather than reading all of the data in interval
+   */
+  protected boolean isSummarized(Interval interval) {
+    return false;
+  }
+
+  /**
+   * Read the region spanned by a batch of requests from coalesce
+   * 
+   * @return the values of the region, from the low end of the first request
+   */
+  private float[] queryBatch(List<Interval> requests, List<Integer> batch) throws IOException, WigFileException {
+    Interval first = requests.get(batch.get(0));
+    int high = first.high();
+    for (int i : batch) {
+      high = Math.max(high, requests.get(i).high());
+    }
+    return query(new Interval(first.getChr(), first.low(), high)).getValues();
+  }
+
+  /**
+   * Group requests that can be served by a single read
+   * 
+   * @param requests
+   *          the intervals requested
+   * @return batches of indices into requests, each sorted by position
+   */
+  private static List<List<Integer>> coalesce(final List<Interval> requests) {
+    Integer[] order = new Integer[requests.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        Interval a = requests.get(i);
+        Interval b = requests.get(j);
+        int c = a.getChr().compareTo(b.getChr());
+        return (c != 0) ? c : Integer.compare(a.low(), b.low());
+      }
+    });
+
+    List<List<Integer>> batches = new ArrayList<>();
+    List<Integer> batch = null;
+    int low = 0;
+    int high = 0;
+    for (int i : order) {
+      Interval interval = requests.get(i);
+      if (batch != null && interval.getChr().equals(requests.get(batch.get(0)).getChr())
+          && interval.low() <= (long) high + BATCH_MAX_GAP
+          && Math.max(high, interval.high()) - (long) low < BATCH_MAX_LENGTH) {
+        batch.add(i);
+        high = Math.max(high, interval.high());
+      } else {
+        batch = new ArrayList<>();
+        batch.add(i);
+        batches.add(batch);
+        low = interval.low();
+        high = interval.high();
+      }
+    }
+
+    return batches;
+  }
+
+  /**
+   * Query for statistics about data in this Wig file in equal-sized bins
+   * across a specific interval, e.g. to draw a track at screen resolution
+   *
+   * @param interval
+   *          the Interval of data to query for
+   * @param numBins
+   *          the number of bins to divide the interval into
+   * @return a SummaryStatistics object of the data in each bin, in order from
+   *         interval.low() to interval.high()
+   * @throws IOException
+   *           if a disk read error occurs
+   * @throws WigFileException
+   *           if the Wig file does not contain data for this Interval
+   */
+  public SummaryStatistics[] queryBinnedStats(Interval interval, int numBins) throws IOException, WigFileException {
+    if (numBins <= 0 || numBins > interval.length()) {
+      throw new IllegalArgumentException("Number of bins must be between 1 and the length of the interval");
+    }
+
+    SummaryStatistics[] bins = new SummaryStatistics[numBins];
+    long length = interval.length();
+    for (int i = 0; i < numBins; i++) {
+      int low = (int) (interval.low() + length * i / numBins);
+      int high = (int) (interval.low() + length * (i + 1) / numBins - 1);
+      bins[i] = queryStats(new Interval(interval.getChr(), low, high));
+    }
+
+    return bins;
+  }
+
   /**
    * @return the set of all chromosomes in this Wig file
    */
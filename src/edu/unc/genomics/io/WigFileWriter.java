@@ -2,22 +2,33 @@ package edu.unc.genomics.io;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import edu.ucsc.genome.TrackHeader;
 import edu.unc.genomics.Contig;
+import edu.unc.genomics.ContigLayout;
+import edu.unc.genomics.util.NumberFormatter;
 
 /**
  * A class for writing data to Wiggle files in either fixedStep or variableStep
- * format
+ * format. Values are formatted with NumberFormatter directly into an output
+ * buffer that is written to a FileChannel.
+ * 
+ * As with a PrintWriter, the methods that write data do not throw
+ * IOExceptions. Instead, an error is recorded and can be checked with
+ * checkError().
  * 
  * @author timpalpant
  *
@@ -26,8 +37,22 @@ public class WigFileWriter implements Closeable {
 
   private static final Logger log = Logger.getLogger(WigFileWriter.class);
 
+  /** Values are written with at most this many fraction digits by default */
+  public static final int DEFAULT_MAX_FRACTION_DIGITS = 8;
+
+  /** Size of the output buffer */
+  private static final int BUFFER_SIZE = 1 << 16;
+  /** Number of base pairs to get from a Contig at a time */
+  private static final int CHUNK_SIZE = 1 << 16;
+  /** The longest line of values: base pair, tab, value, newline */
+  private static final int MAX_LINE_LENGTH = NumberFormatter.MAX_INT_LENGTH + NumberFormatter.MAX_FLOAT_LENGTH + 2;
+
   private final Path p;
-  private final PrintWriter writer;
+  private final FileChannel channel;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position = 0;
+  private int maxFractionDigits = DEFAULT_MAX_FRACTION_DIGITS;
+  private boolean error = false;
 
   /**
    * Write or append to a Wiggle file
@@ -42,7 +67,14 @@ public class WigFileWriter implements Closeable {
   public WigFileWriter(Path p, OpenOption... options) throws IOException {
     this.p = p;
     log.debug("Initializing Wig file writer " + p);
-    this.writer = new PrintWriter(Files.newBufferedWriter(p, Charset.defaultCharset(), options));
+    // Same defaults as Files.newBufferedWriter
+    Set<OpenOption> openOptions = new HashSet<>(Arrays.asList(options));
+    if (openOptions.isEmpty()) {
+      openOptions.add(StandardOpenOption.CREATE);
+      openOptions.add(StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    openOptions.add(StandardOpenOption.WRITE);
+    this.channel = FileChannel.open(p, openOptions);
   }
 
   /**
@@ -63,22 +95,64 @@ public class WigFileWriter implements Closeable {
       log.error("Refusing to write track header with type=" + header.getType().getId() + " to Wig file");
     } else {
       log.debug("Writing Wig file header: " + header);
-      writer.println(header);
+      synchronized (buffer) {
+        writeLine(header.toString());
+      }
     }
   }
 
   @Override
   public final void close() throws IOException {
     log.debug("Closing Wig file writer " + p);
-    writer.close();
+    synchronized (buffer) {
+      try {
+        flush();
+      } finally {
+        channel.close();
+      }
+    }
   }
 
   /**
-   * Formats values for writing into Wig files
+   * Flush the output buffer and check whether an error has occurred while
+   * writing to this Wig file, as PrintWriter.checkError()
+   * 
+   * @return true if an error has occurred
+   */
+  public final boolean checkError() {
+    synchronized (buffer) {
+      try {
+        flush();
+      } catch (IOException e) {
+        setError(e);
+      }
+      return error;
+    }
+  }
+
+  /**
+   * Set the precision of the values written to this Wig file. By default,
+   * values are written with DEFAULT_MAX_FRACTION_DIGITS, which gives the same
+   * text as newFormatter().
+   * 
+   * @param maxFractionDigits
+   *          the maximum number of digits after the decimal point, or
+   *          NumberFormatter.SHORTEST for the fewest digits that parse back to
+   *          exactly the same float
+   */
+  public final void setMaxFractionDigits(int maxFractionDigits) {
+    synchronized (buffer) {
+      this.maxFractionDigits = maxFractionDigits;
+    }
+  }
+
+  /**
+   * Formats values for writing into Wig files, with the same text as the
+   * default precision of a WigFileWriter
    */
   public static DecimalFormat newFormatter() {
     DecimalFormat formatter = new DecimalFormat();
-    formatter.setMaximumFractionDigits(8);
+    formatter.setMaximumFractionDigits(DEFAULT_MAX_FRACTION_DIGITS);
     formatter.setGroupingUsed(false);
     DecimalFormatSymbols symbols = formatter.getDecimalFormatSymbols();
     symbols.setInfinity("Inf");
@@ -97,15 +171,13 @@ public class WigFileWriter implements Closeable {
    *          the Contig of values to write to this Wig file
    */
   public final void write(final Contig contig) {
-    if (contig.coverage() == 0) {
+    ContigLayout layout = contig.getLayout();
+    if (layout.coverage() == 0) {
       log.debug("Not writing empty contig with no data values");
+    } else if (layout.isVariableStep()) {
+      writeVariableStepContig(contig, layout);
     } else {
-      float sparsity = ((float) contig.coverage()) / contig.length();
-      if (sparsity < 0.55 || contig.getVariableStepSpan() > contig.getMinStep()) {
-        writeVariableStepContig(contig);
-      } else {
-        writeFixedStepContig(contig);
-      }
+      writeFixedStepContig(contig, layout);
     }
   }
 
@@ -116,16 +188,33 @@ public class WigFileWriter implements Closeable {
    * 
    * @param contig
    *          the Contig of values to write to this Wig file
-   * @return the Future corresponding to this Contig's write job
    */
   public final void writeFixedStepContig(final Contig contig) {
-    log.debug("Writing contig: " + contig.getFixedStepHeader());
-    DecimalFormat formatter = newFormatter();
-    int step = contig.getMinStep();
-    synchronized (writer) {
-      writer.println(contig.getFixedStepHeader());
-      for (int bp = contig.getFirstBaseWithData(); bp <= contig.high(); bp += step) {
-        writer.println(formatter.format(contig.get(bp)));
+    writeFixedStepContig(contig, contig.getLayout());
+  }
+
+  private void writeFixedStepContig(final Contig contig, final ContigLayout layout) {
+    String header = layout.getFixedStepHeader();
+    log.debug("Writing contig: " + header);
+    int step = layout.getMinStep();
+    synchronized (buffer) {
+      try {
+        writeLine(header);
+        float[] values = null;
+        int from = 0;
+        for (int bp = layout.getFirstBaseWithData(); bp <= contig.high(); bp += step) {
+          if (values == null || bp - from >= values.length) {
+            from = bp;
+            values = contig.get(from, (int) Math.min(contig.high(), (long) from + CHUNK_SIZE - 1));
+          }
+          if (position + MAX_LINE_LENGTH > buffer.length) {
+            flush();
+          }
+          position = NumberFormatter.formatFloat(values[bp - from], maxFractionDigits, buffer, position);
+          buffer[position++] = '\n';
+        }
+      } catch (IOException e) {
+        setError(e);
       }
     }
   }
@@ -137,28 +226,89 @@ public class WigFileWriter implements Closeable {
    * 
    * @param contig
    *          the Contig of values to write to this Wig file
-   * @return
    */
   public final void writeVariableStepContig(final Contig contig) {
-    log.debug("Writing contig: " + contig.getVariableStepHeader());
-    DecimalFormat formatter = newFormatter();
-    int bp = contig.getFirstBaseWithData();
-    int span = contig.getVariableStepSpan();
-    synchronized (writer) {
-      writer.println(contig.getVariableStepHeader());
-      while (bp <= contig.high()) {
-        float value = contig.get(bp);
-        // Write the value and skip the span size
-        if (!Float.isNaN(value)) {
-          writer.println(bp + "\t" + formatter.format(value));
-          bp += span;
-        } else {
-          bp++;
+    writeVariableStepContig(contig, contig.getLayout());
+  }
+
+  private void writeVariableStepContig(final Contig contig, final ContigLayout layout) {
+    String header = layout.getVariableStepHeader();
+    log.debug("Writing contig: " + header);
+    int bp = layout.getFirstBaseWithData();
+    int span = layout.getVariableStepSpan();
+    synchronized (buffer) {
+      try {
+        writeLine(header);
+        float[] values = null;
+        int from = 0;
+        while (bp <= contig.high()) {
+          if (values == null || bp - from >= values.length) {
+            from = bp;
+            values = contig.get(from, (int) Math.min(contig.high(), (long) from + CHUNK_SIZE - 1));
+          }
+          float value = values[bp - from];
+          // Write the value and skip the span size
+          if (!Float.isNaN(value)) {
+            if (position + MAX_LINE_LENGTH > buffer.length) {
+              flush();
+            }
+            position = NumberFormatter.formatInt(bp, buffer, position);
+            buffer[position++] = '\t';
+            position = NumberFormatter.formatFloat(value, maxFractionDigits, buffer, position);
+            buffer[position++] = '\n';
+            bp += span;
+          } else {
+            bp++;
+          }
         }
+      } catch (IOException e) {
+        setError(e);
       }
     }
   }
 
+  /**
+   * Write a line of text, such as a header
+   */
+  private void writeLine(String line) throws IOException {
+    byte[] bytes = (line + "\n").getBytes(Charset.defaultCharset());
+    if (position + bytes.length > buffer.length) {
+      flush();
+    }
+    if (bytes.length > buffer.length) {
+      writeFully(ByteBuffer.wrap(bytes));
+    } else {
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+  }
+
+  /**
+   * Write the contents of the output buffer to the file. The buffer is
+   * emptied even if the write fails.
+   */
+  private void flush() throws IOException {
+    try {
+      writeFully(ByteBuffer.wrap(buffer, 0, position));
+    } finally {
+      position = 0;
+    }
+  }
+
+  /**
+   * Record an error while writing, to be reported by checkError()
+   */
+  private void setError(IOException e) {
+    log.debug("Error writing Wig file " + p + ": " + e.getMessage());
+    error = true;
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
   /**
    * @return the path
    */
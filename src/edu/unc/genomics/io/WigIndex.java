@@ -0,0 +1,523 @@
+package edu.unc.genomics.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.util.WeightedSummaryStatistics;
+
+/**
+ * The index of a TextWigFile: the statistics of the whole file and the
+ * location of every contig, tied to the fingerprint of the file it was built
+ * from. Stored on disk in a compact binary format that is loaded from a single
+ * memory map.
+ *
+ * Layout (big-endian): magic, major version (short), minor version (short),
+ * fingerprint, then a sequence of sections, each a tag (int) and a length (long)
+ * followed by its payload. Readers skip sections with unknown tags, so newer
+ * minor versions can add sections without invalidating existing indexes. The
+ * major version changes only if the existing sections change incompatibly.
+ *
+ * Since 1.3, the index also records the length and a fingerprint of the bytes
+ * it was built from, so that it can be extended when data is appended to the
+ * Wig file instead of being rebuilt.
+ *
+ * Since 1.4, the index of a BGZF-compressed Wig file also records its table of
+ * blocks, so that the file can be reopened without scanning all of its blocks.
+ *
+ * @author timpalpant
+ *
+ */
+final class WigIndex {
+
+  private static final Logger log = Logger.getLogger(WigIndex.class);
+
+  private static final int MAGIC = 0x57494458; // "WIDX"
+  static final short MAJOR_VERSION = 1;
+  static final short MINOR_VERSION = 4;
+  private static final int HEADER_SIZE = 16;
+  private static final int SECTION_HEADER_SIZE = 12;
+
+  // Section tags
+  private static final int STATS = 0x53544154; // "STAT"
+  private static final int CONTIGS = 0x434f4e54; // "CONT"
+  private static final int FINGERPRINT = 0x46505254; // "FPRT" (since 1.1)
+  private static final int SUMMARIES = 0x53554d4d; // "SUMM" (since 1.2)
+  private static final int PREFIX = 0x50524546; // "PREF" (since 1.3)
+  private static final int BGZF_BLOCKS = 0x42475a46; // "BGZF" (since 1.4)
+
+  /** Fingerprint strategy of indexes that predate the FPRT section */
+  private static final String DEFAULT_FINGERPRINT_ID = "CRC32";
+
+  private static final byte FIXED_STEP = 0;
+  private static final byte VARIABLE_STEP = 1;
+
+  private final String fingerprintId;
+  private final long checksum;
+  private final SummaryStatistics stats;
+  private final Map<String, ChromosomeIndex> contigs;
+  private final List<WigSummaryLevel> summaries;
+  private Prefix prefix = Prefix.NONE;
+  private BgzfFileChannel.Blocks bgzfBlocks;
+
+  /**
+   * @param fingerprintId
+   *          the id of the strategy used to fingerprint the Wig file
+   * @param checksum
+   *          the fingerprint of the Wig file
+   * @param stats
+   *          the statistics of all bases with data in the Wig file
+   * @param contigs
+   *          the contigs in the Wig file, by chromosome
+   */
+  public WigIndex(String fingerprintId, long checksum, SummaryStatistics stats, Map<String, ChromosomeIndex> contigs) {
+    this(fingerprintId, checksum, stats, contigs, new ArrayList<WigSummaryLevel>());
+  }
+
+  /**
+   * @param fingerprintId
+   *          the id of the strategy used to fingerprint the Wig file
+   * @param checksum
+   *          the fingerprint of the Wig file
+   * @param stats
+   *          the statistics of all bases with data in the Wig file
+   * @param contigs
+   *          the contigs in the Wig file, by chromosome
+   * @param summaries
+   *          summaries of the Wig file, in order of increasing bin size
+   */
+  public WigIndex(String fingerprintId, long checksum, SummaryStatistics stats, Map<String, ChromosomeIndex> contigs,
+      List<WigSummaryLevel> summaries) {
+    this.fingerprintId = fingerprintId;
+    this.checksum = checksum;
+    this.stats = stats;
+    this.contigs = contigs;
+    this.summaries = summaries;
+  }
+
+  /**
+   * Load an index from disk
+   *
+   * @param p
+   *          the path to the index
+   * @return the index
+   * @throws IOException
+   *           if an error occurs while reading the index
+   * @throws WigFileException
+   *           if the file is not a valid index, or is from an incompatible
+   *           version
+   */
+  public static WigIndex load(Path p) throws IOException, WigFileException {
+    log.debug("Loading Wig file index " + p);
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE) {
+        throw new WigFileException("Truncated Wig index: " + p);
+      } else if (size > Integer.MAX_VALUE) {
+        throw new WigFileException("Wig index is too large: " + p);
+      }
+
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (buf.getInt() != MAGIC) {
+        throw new WigFileException("Not a Wig index: " + p);
+      }
+      short major = buf.getShort();
+      short minor = buf.getShort();
+      if (major != MAJOR_VERSION) {
+        throw new WigFileException("Unsupported Wig index version " + major + "." + minor + ": " + p);
+      }
+      long checksum = buf.getLong();
+
+      String fingerprintId = DEFAULT_FINGERPRINT_ID;
+      SummaryStatistics stats = null;
+      Map<String, ChromosomeIndex> contigs = null;
+      List<WigSummaryLevel> summaries = new ArrayList<>();
+      Prefix prefix = Prefix.NONE;
+      BgzfFileChannel.Blocks bgzfBlocks = null;
+      while (buf.remaining() >= SECTION_HEADER_SIZE) {
+        int tag = buf.getInt();
+        long length = buf.getLong();
+        if (length < 0 || length > buf.remaining()) {
+          throw new WigFileException("Corrupt Wig index: " + p);
+        }
+
+        int end = buf.position() + (int) length;
+        ByteBuffer section = buf.duplicate();
+        section.limit(end);
+        switch (tag) {
+        case STATS:
+          stats = readStats(section);
+          break;
+        case CONTIGS:
+          contigs = readContigs(section);
+          break;
+        case FINGERPRINT:
+          fingerprintId = readString(section);
+          break;
+        case SUMMARIES:
+          summaries = readSummaries(section);
+          break;
+        case PREFIX:
+          prefix = new Prefix(section.getLong(), section.getLong(), section.getLong());
+          break;
+        case BGZF_BLOCKS:
+          bgzfBlocks = BgzfFileChannel.Blocks.read(section);
+          break;
+        default:
+          log.debug("Skipping unknown section " + Integer.toHexString(tag) + " in Wig index");
+        }
+        buf.position(end);
+      }
+
+      if (stats == null || contigs == null) {
+        throw new WigFileException("Wig index is missing required sections: " + p);
+      }
+      WigIndex index = new WigIndex(fingerprintId, checksum, stats, contigs, summaries);
+      index.setPrefix(prefix);
+      index.setBgzfBlocks(bgzfBlocks);
+      return index;
+    } catch (RuntimeException e) {
+      // Buffer underflows, etc. from a corrupt file
+      throw new WigFileException("Corrupt Wig index: " + p);
+    }
+  }
+
+  private static SummaryStatistics readStats(ByteBuffer section) {
+    long n = section.getLong();
+    double sum = section.getDouble();
+    double secondMoment = section.getDouble();
+    double min = section.getDouble();
+    double max = section.getDouble();
+    return WeightedSummaryStatistics.of(n, sum, secondMoment, min, max);
+  }
+
+  private static Map<String, ChromosomeIndex> readContigs(ByteBuffer section) throws WigFileException {
+    int numChromosomes = section.getInt();
+    Map<String, ChromosomeIndex> contigs = new HashMap<>(2 * numChromosomes);
+    for (int i = 0; i < numChromosomes; i++) {
+      String chr = readString(section);
+
+      int numContigs = section.getInt();
+      List<ContigIndex> chromContigs = new ArrayList<>(numContigs);
+      for (int j = 0; j < numContigs; j++) {
+        byte type = section.get();
+        int start = section.getInt();
+        int stop = section.getInt();
+        int span = section.getInt();
+        int step = section.getInt();
+        ContigIndex c;
+        if (type == FIXED_STEP) {
+          c = new FixedStepContigIndex(chr, start, stop, span, step);
+        } else if (type == VARIABLE_STEP) {
+          c = new VariableStepContigIndex(chr, start, stop, span);
+        } else {
+          throw new WigFileException("Unknown contig type " + type + " in Wig index");
+        }
+        c.setStartLine(section.getLong());
+        c.setStopLine(section.getLong());
+
+        int numCheckpoints = section.getInt();
+        int[] bps = new int[numCheckpoints];
+        section.asIntBuffer().get(bps);
+        section.position(section.position() + 4 * numCheckpoints);
+        long[] offsets = new long[numCheckpoints];
+        section.asLongBuffer().get(offsets);
+        section.position(section.position() + 8 * numCheckpoints);
+        c.setCheckpoints(bps, offsets);
+
+        chromContigs.add(c);
+      }
+      contigs.put(chr, new ChromosomeIndex(chromContigs));
+    }
+
+    return contigs;
+  }
+
+  private static List<WigSummaryLevel> readSummaries(ByteBuffer section) {
+    int numLevels = section.getInt();
+    List<WigSummaryLevel> summaries = new ArrayList<>(numLevels);
+    for (int i = 0; i < numLevels; i++) {
+      int binSize = section.getInt();
+      int numChromosomes = section.getInt();
+      Map<String, WigSummaryLevel.Bins> chromosomes = new HashMap<>(2 * numChromosomes);
+      for (int j = 0; j < numChromosomes; j++) {
+        String chr = readString(section);
+        int numBins = section.getInt();
+        int[] counts = new int[numBins];
+        section.asIntBuffer().get(counts);
+        section.position(section.position() + 4 * numBins);
+        double[] sums = new double[numBins];
+        section.asDoubleBuffer().get(sums);
+        section.position(section.position() + 8 * numBins);
+        double[] sumSquares = new double[numBins];
+        section.asDoubleBuffer().get(sumSquares);
+        section.position(section.position() + 8 * numBins);
+        float[] mins = new float[numBins];
+        section.asFloatBuffer().get(mins);
+        section.position(section.position() + 4 * numBins);
+        float[] maxs = new float[numBins];
+        section.asFloatBuffer().get(maxs);
+        section.position(section.position() + 4 * numBins);
+        chromosomes.put(chr, new WigSummaryLevel.Bins(counts, sums, sumSquares, mins, maxs));
+      }
+      summaries.add(new WigSummaryLevel(binSize, chromosomes));
+    }
+
+    return summaries;
+  }
+
+  private static String readString(ByteBuffer section) {
+    byte[] bytes = new byte[section.getShort() & 0xffff];
+    section.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream dos, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    dos.writeShort(bytes.length);
+    dos.write(bytes);
+  }
+
+  /**
+   * Write this index to disk, replacing any existing file
+   *
+   * @param p
+   *          the path to write the index to
+   * @throws IOException
+   *           if a disk write error occurs
+   */
+  public void write(Path p) throws IOException {
+    log.debug("Writing Wig file index " + p);
+    Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      dos.writeInt(MAGIC);
+      dos.writeShort(MAJOR_VERSION);
+      dos.writeShort(MINOR_VERSION);
+      dos.writeLong(checksum);
+
+      ByteArrayOutputStream section = new ByteArrayOutputStream();
+      writeString(new DataOutputStream(section), fingerprintId);
+      writeSection(dos, FINGERPRINT, section);
+      writeStats(new DataOutputStream(section));
+      writeSection(dos, STATS, section);
+      writeContigs(new DataOutputStream(section));
+      writeSection(dos, CONTIGS, section);
+      if (!summaries.isEmpty()) {
+        writeSummaries(new DataOutputStream(section));
+        writeSection(dos, SUMMARIES, section);
+      }
+      if (prefix != Prefix.NONE) {
+        DataOutputStream prefixSection = new DataOutputStream(section);
+        prefixSection.writeLong(prefix.getLength());
+        prefixSection.writeLong(prefix.getNumLines());
+        prefixSection.writeLong(prefix.getFingerprint());
+        writeSection(dos, PREFIX, section);
+      }
+      if (bgzfBlocks != null) {
+        bgzfBlocks.write(new DataOutputStream(section));
+        writeSection(dos, BGZF_BLOCKS, section);
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+
+    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeSection(DataOutputStream dos, int tag, ByteArrayOutputStream section) throws IOException {
+    dos.writeInt(tag);
+    dos.writeLong(section.size());
+    section.writeTo(dos);
+    section.reset();
+  }
+
+  private void writeStats(DataOutputStream dos) throws IOException {
+    dos.writeLong(stats.getN());
+    dos.writeDouble(stats.getSum());
+    dos.writeDouble(stats.getSecondMoment());
+    dos.writeDouble(stats.getMin());
+    dos.writeDouble(stats.getMax());
+  }
+
+  private void writeContigs(DataOutputStream dos) throws IOException {
+    dos.writeInt(contigs.size());
+    for (Map.Entry<String, ChromosomeIndex> entry : contigs.entrySet()) {
+      writeString(dos, entry.getKey());
+
+      List<ContigIndex> chromContigs = entry.getValue().getContigs();
+      dos.writeInt(chromContigs.size());
+      for (ContigIndex c : chromContigs) {
+        dos.writeByte(c.isFixedStep() ? FIXED_STEP : VARIABLE_STEP);
+        dos.writeInt(c.getStart());
+        dos.writeInt(c.getStop());
+        dos.writeInt(c.getSpan());
+        dos.writeInt(c.isFixedStep() ? ((FixedStepContigIndex) c).getStep() : 0);
+        dos.writeLong(c.getStartLine());
+        dos.writeLong(c.getStopLine());
+
+        int numCheckpoints = c.numCheckpoints();
+        dos.writeInt(numCheckpoints);
+        for (int i = 0; i < numCheckpoints; i++) {
+          dos.writeInt(c.getCheckpointBP(i));
+        }
+        for (int i = 0; i < numCheckpoints; i++) {
+          dos.writeLong(c.getCheckpointOffset(i));
+        }
+      }
+    }
+  }
+
+  private void writeSummaries(DataOutputStream dos) throws IOException {
+    dos.writeInt(summaries.size());
+    for (WigSummaryLevel level : summaries) {
+      dos.writeInt(level.getBinSize());
+      dos.writeInt(level.getChromosomes().size());
+      for (Map.Entry<String, WigSummaryLevel.Bins> entry : level.getChromosomes().entrySet()) {
+        writeString(dos, entry.getKey());
+        WigSummaryLevel.Bins bins = entry.getValue();
+        dos.writeInt(bins.numBins());
+        for (int count : bins.counts) {
+          dos.writeInt(count);
+        }
+        for (double sum : bins.sums) {
+          dos.writeDouble(sum);
+        }
+        for (double sumSquare : bins.sumSquares) {
+          dos.writeDouble(sumSquare);
+        }
+        for (float min : bins.mins) {
+          dos.writeFloat(min);
+        }
+        for (float max : bins.maxs) {
+          dos.writeFloat(max);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the id of the strategy used to fingerprint the Wig file
+   */
+  public String getFingerprintId() {
+    return fingerprintId;
+  }
+
+  /**
+   * @return the fingerprint of the Wig file that this index was built from
+   */
+  public long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @return the statistics of all bases with data in the Wig file
+   */
+  public SummaryStatistics getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the contigs in the Wig file, by chromosome
+   */
+  public Map<String, ChromosomeIndex> getContigs() {
+    return contigs;
+  }
+
+  /**
+   * @return summaries of the Wig file, in order of increasing bin size
+   */
+  public List<WigSummaryLevel> getSummaries() {
+    return summaries;
+  }
+
+  /**
+   * @return the extent of the Wig file that this index covers
+   */
+  public Prefix getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @param prefix
+   *          the extent of the Wig file that this index covers
+   */
+  public void setPrefix(Prefix prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+   * @return the blocks of the BGZF-compressed Wig file that this index was
+   *         built from, or null if it is not compressed
+   */
+  BgzfFileChannel.Blocks getBgzfBlocks() {
+    return bgzfBlocks;
+  }
+
+  /**
+   * @param bgzfBlocks
+   *          the blocks of the BGZF-compressed Wig file that this index was
+   *          built from, or null if it is not compressed
+   */
+  void setBgzfBlocks(BgzfFileChannel.Blocks bgzfBlocks) {
+    this.bgzfBlocks = bgzfBlocks;
+  }
+
+  /**
+   * The bytes at the start of a Wig file that an index was built from, so
+   * that if data is later appended to the file, only the new data needs to be
+   * indexed. The fingerprint of the prefix does not include the modification
+   * time of the file.
+   */
+  static final class Prefix {
+
+    /** Indexes that predate the PREF section cannot be extended */
+    static final Prefix NONE = new Prefix(0, 0, 0);
+
+    private final long length;
+    private final long numLines;
+    private final long fingerprint;
+
+    /**
+     * @param length
+     *          the number of (uncompressed) bytes that were indexed
+     * @param numLines
+     *          the number of lines in those bytes
+     * @param fingerprint
+     *          the sampled fingerprint of those bytes
+     */
+    Prefix(long length, long numLines, long fingerprint) {
+      this.length = length;
+      this.numLines = numLines;
+      this.fingerprint = fingerprint;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    long getNumLines() {
+      return numLines;
+    }
+
+    long getFingerprint() {
+      return fingerprint;
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+package edu.unc.genomics.io;
+
+import java.util.Arrays;
+
+import ed.javatools.BufferedRandomAccessFile;
+import edu.unc.genomics.util.FileFingerprint;
+import edu.unc.genomics.util.StandardFingerprint;
+
+/**
+ * Options controlling how an ASCII-text Wig file is indexed by a
+ * TextWigFileReader. The defaults are suitable for most files.
+ *
+ * @author timpalpant
+ *
+ */
+public class WigIndexOptions {
+
+  /**
+   * By default, store a checkpoint every time the reader's buffer would need to
+   * be refilled, so that each seek costs at most one buffer of reading
+   */
+  public static final int DEFAULT_CHECKPOINT_SPACING = BufferedRandomAccessFile.DEFAULT_BUFFER_SIZE;
+
+  private int checkpointSpacing = DEFAULT_CHECKPOINT_SPACING;
+  private int indexThreads = 1;
+  private FileFingerprint fingerprint = StandardFingerprint.SAMPLED;
+  private int[] summaryBinSizes = new int[0];
+
+  /**
+   * @return the minimum number of bytes between consecutive checkpoints in a
+   *         contig
+   */
+  public int getCheckpointSpacing() {
+    return checkpointSpacing;
+  }
+
+  /**
+   * Checkpoints are placed by byte distance rather than line count so that
+   * dense and sparse contigs have comparable seek costs. Smaller values make
+   * queries read less data, but make the index larger.
+   *
+   * @param checkpointSpacing
+   *          the minimum number of bytes between consecutive checkpoints in a
+   *          contig
+   */
+  public void setCheckpointSpacing(int checkpointSpacing) {
+    if (checkpointSpacing <= 0) {
+      throw new IllegalArgumentException("Checkpoint spacing must be > 0");
+    }
+    this.checkpointSpacing = checkpointSpacing;
+  }
+
+  /**
+   * @return the number of threads used to index the Wig file
+   */
+  public int getIndexThreads() {
+    return indexThreads;
+  }
+
+  /**
+   * With more than one thread, the file is split into byte ranges that are
+   * scanned (and checksummed) concurrently, which is much faster for large
+   * files on fast storage.
+   * 
+   * @param indexThreads
+   *          the number of threads used to index the Wig file
+   */
+  public void setIndexThreads(int indexThreads) {
+    if (indexThreads <= 0) {
+      throw new IllegalArgumentException("Number of index threads must be > 0");
+    }
+    this.indexThreads = indexThreads;
+  }
+
+  /**
+   * @return the strategy used to check that the index matches the Wig file
+   */
+  public FileFingerprint getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * The fingerprint is computed every time the Wig file is opened. The default
+   * (StandardFingerprint.SAMPLED) takes constant time; a full CRC32 detects
+   * any change to the file, but must read all of it. An index built with a
+   * different fingerprint strategy is regenerated.
+   * 
+   * @param fingerprint
+   *          the strategy used to check that the index matches the Wig file
+   */
+  public void setFingerprint(FileFingerprint fingerprint) {
+    if (fingerprint == null) {
+      throw new IllegalArgumentException("Fingerprint strategy must not be null");
+    }
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * @return the bin sizes of the summary levels stored in the index, in
+   *         increasing order
+   */
+  public int[] getSummaryBinSizes() {
+    return summaryBinSizes.clone();
+  }
+
+  /**
+   * Summary levels store the count, sum, sum of squares, min and max of the
+   * values in fixed-size bins (e.g. 1 kb, 10 kb and 100 kb), so that queryStats
+   * on a large interval combines whole bins and only parses the lines at its
+   * edges. Each level costs about 28 bytes per bin in memory and in the index.
+   * By default, no summaries are stored. Levels that are missing from an
+   * existing index are added when it is loaded, and levels that are already in
+   * the index are always kept.
+   * 
+   * @param summaryBinSizes
+   *          the bin sizes of the summary levels to store in the index
+   */
+  public void setSummaryBinSizes(int... summaryBinSizes) {
+    int[] sorted = summaryBinSizes.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      if (sorted[i] <= 0) {
+        throw new IllegalArgumentException("Summary bin sizes must be > 0");
+      } else if (i > 0 && sorted[i] == sorted[i - 1]) {
+        throw new IllegalArgumentException("Duplicate summary bin size " + sorted[i]);
+      }
+    }
+    this.summaryBinSizes = sorted;
+  }
+
+}
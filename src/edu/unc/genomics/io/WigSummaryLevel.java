@@ -0,0 +1,294 @@
+package edu.unc.genomics.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
+
+/**
+ * Precomputed summaries of the data in a TextWigFile at one resolution (a
+ * zoom level): the count, sum, sum of squares, min and max of the values in
+ * each bin of binSize base pairs along every chromosome. Bin i covers base
+ * pairs i*binSize+1 to (i+1)*binSize. As with queryStats, every contig
+ * contributes its own values, and NaN values are excluded.
+ *
+ * @author timpalpant
+ *
+ */
+final class WigSummaryLevel {
+
+  private static final Logger log = Logger.getLogger(WigSummaryLevel.class);
+
+  /** Number of base pairs of a contig to load into memory at once */
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private final int binSize;
+  private final Map<String, Bins> chromosomes;
+
+  /**
+   * @param binSize
+   *          the number of base pairs in each bin
+   * @param chromosomes
+   *          the bins of each chromosome
+   */
+  public WigSummaryLevel(int binSize, Map<String, Bins> chromosomes) {
+    this.binSize = binSize;
+    this.chromosomes = chromosomes;
+  }
+
+  /**
+   * Compute summaries of a Wig file at several resolutions, with one pass over
+   * the data of each chromosome
+   *
+   * @param channel
+   *          the Wig file
+   * @param contigs
+   *          the index of the Wig file
+   * @param binSizes
+   *          the bin size of each level
+   * @param threads
+   *          the number of chromosomes to summarize concurrently
+   * @return the summary levels, in the order of binSizes
+   * @throws IOException
+   *           if an error occurs while reading the Wig file
+   * @throws WigFileException
+   *           if the Wig file contains illegal data lines
+   */
+  public static List<WigSummaryLevel> build(final FileChannel channel, Map<String, ChromosomeIndex> contigs,
+      final int[] binSizes, int threads) throws IOException, WigFileException {
+    log.debug("Summarizing Wig file at bin sizes " + Arrays.toString(binSizes));
+    List<Map<String, Bins>> levels = new ArrayList<>(binSizes.length);
+    for (int i = 0; i < binSizes.length; i++) {
+      levels.add(new HashMap<String, Bins>());
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      Map<String, Future<Bins[]>> futures = new HashMap<>();
+      for (final Map.Entry<String, ChromosomeIndex> entry : contigs.entrySet()) {
+        futures.put(entry.getKey(), pool.submit(new Callable<Bins[]>() {
+          @Override
+          public Bins[] call() throws IOException, WigFileException {
+            return summarize(channel, entry.getValue(), binSizes);
+          }
+        }));
+      }
+
+      for (Map.Entry<String, Future<Bins[]>> entry : futures.entrySet()) {
+        Bins[] chromBins = get(entry.getValue());
+        for (int i = 0; i < binSizes.length; i++) {
+          levels.get(i).put(entry.getKey(), chromBins[i]);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    List<WigSummaryLevel> summaries = new ArrayList<>(binSizes.length);
+    for (int i = 0; i < binSizes.length; i++) {
+      summaries.add(new WigSummaryLevel(binSizes[i], levels.get(i)));
+    }
+    return summaries;
+  }
+
+  /**
+   * Recompute the bins of some chromosomes (e.g. after data has been appended
+   * to them), keeping the bins of the other chromosomes
+   *
+   * @param summaries
+   *          the existing summary levels
+   * @param channel
+   *          the Wig file
+   * @param changed
+   *          the index of the chromosomes to recompute
+   * @param threads
+   *          the number of chromosomes to summarize concurrently
+   * @return the updated summary levels
+   * @throws IOException
+   *           if an error occurs while reading the Wig file
+   * @throws WigFileException
+   *           if the Wig file contains illegal data lines
+   */
+  public static List<WigSummaryLevel> update(List<WigSummaryLevel> summaries, FileChannel channel,
+      Map<String, ChromosomeIndex> changed, int threads) throws IOException, WigFileException {
+    int[] binSizes = new int[summaries.size()];
+    for (int i = 0; i < binSizes.length; i++) {
+      binSizes[i] = summaries.get(i).getBinSize();
+    }
+
+    List<WigSummaryLevel> changedLevels = build(channel, changed, binSizes, threads);
+    List<WigSummaryLevel> updated = new ArrayList<>(binSizes.length);
+    for (int i = 0; i < binSizes.length; i++) {
+      Map<String, Bins> chromosomes = new HashMap<>(summaries.get(i).getChromosomes());
+      chromosomes.putAll(changedLevels.get(i).getChromosomes());
+      updated.add(new WigSummaryLevel(binSizes[i], chromosomes));
+    }
+    return updated;
+  }
+
+  private static Bins[] summarize(FileChannel channel, ChromosomeIndex chromContigs, int[] binSizes)
+      throws IOException, WigFileException {
+    Bins[] chromBins = new Bins[binSizes.length];
+    for (int i = 0; i < binSizes.length; i++) {
+      chromBins[i] = new Bins(chromContigs.getStop() / binSizes[i] + 1);
+    }
+
+    float[] values = new float[CHUNK_SIZE];
+    for (ContigIndex c : chromContigs.getContigs()) {
+      for (long low = c.low(); low <= c.high(); low += CHUNK_SIZE) {
+        Interval chunk = new Interval(c.getChr(), (int) low, (int) Math.min(c.high(), low + CHUNK_SIZE - 1));
+        Arrays.fill(values, 0, chunk.length(), Float.NaN);
+        c.fill(channel, chunk, values, 0);
+        for (int i = 0; i < binSizes.length; i++) {
+          chromBins[i].add(binSizes[i], chunk.low(), values, chunk.length());
+        }
+      }
+    }
+
+    return chromBins;
+  }
+
+  private static <T> T get(Future<T> f) throws IOException, WigFileException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while summarizing Wig file", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof WigFileException) {
+        throw (WigFileException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Add the bins from firstBin to lastBin (inclusive) of a chromosome to
+   * statistics
+   *
+   * @param chr
+   *          the chromosome
+   * @param firstBin
+   *          the first bin to add
+   * @param lastBin
+   *          the last bin to add
+   * @param stats
+   *          the statistics to add the bins to
+   */
+  public void addTo(String chr, int firstBin, int lastBin, WeightedSummaryStatistics stats) {
+    Bins bins = chromosomes.get(chr);
+    if (bins == null) {
+      return;
+    }
+
+    for (int i = firstBin; i <= Math.min(lastBin, bins.numBins() - 1); i++) {
+      if (bins.counts[i] > 0) {
+        stats.combine(bins.getStats(i));
+      }
+    }
+  }
+
+  /**
+   * @return the number of base pairs in each bin
+   */
+  public int getBinSize() {
+    return binSize;
+  }
+
+  /**
+   * @return the bins of each chromosome
+   */
+  public Map<String, Bins> getChromosomes() {
+    return chromosomes;
+  }
+
+  /**
+   * The summary bins of one chromosome
+   */
+  static final class Bins {
+
+    final int[] counts;
+    final double[] sums;
+    final double[] sumSquares;
+    final float[] mins;
+    final float[] maxs;
+
+    Bins(int numBins) {
+      this(new int[numBins], new double[numBins], new double[numBins], new float[numBins], new float[numBins]);
+      Arrays.fill(mins, Float.NaN);
+      Arrays.fill(maxs, Float.NaN);
+    }
+
+    Bins(int[] counts, double[] sums, double[] sumSquares, float[] mins, float[] maxs) {
+      this.counts = counts;
+      this.sums = sums;
+      this.sumSquares = sumSquares;
+      this.mins = mins;
+      this.maxs = maxs;
+    }
+
+    int numBins() {
+      return counts.length;
+    }
+
+    /**
+     * Add the non-NaN values for the base pairs starting at firstBp
+     */
+    void add(int binSize, int firstBp, float[] values, int length) {
+      int i = 0;
+      while (i < length) {
+        int bin = (firstBp + i - 1) / binSize;
+        int binEnd = (int) Math.min(length, (long) (bin + 1) * binSize - firstBp + 1);
+        int count = counts[bin];
+        double sum = sums[bin];
+        double sumSquare = sumSquares[bin];
+        float min = mins[bin];
+        float max = maxs[bin];
+        for (; i < binEnd; i++) {
+          float value = values[i];
+          if (!Float.isNaN(value)) {
+            if (count++ == 0) {
+              min = value;
+              max = value;
+            } else {
+              min = Math.min(min, value);
+              max = Math.max(max, value);
+            }
+            sum += value;
+            sumSquare += (double) value * value;
+          }
+        }
+        counts[bin] = count;
+        sums[bin] = sum;
+        sumSquares[bin] = sumSquare;
+        mins[bin] = min;
+        maxs[bin] = max;
+      }
+    }
+
+    /**
+     * @return the statistics of a non-empty bin
+     */
+    WeightedSummaryStatistics getStats(int bin) {
+      int n = counts[bin];
+      double secondMoment = Math.max(0, sumSquares[bin] - sums[bin] * sums[bin] / n);
+      return WeightedSummaryStatistics.of(n, sums[bin], secondMoment, mins[bin], maxs[bin]);
+    }
+  }
+
+}
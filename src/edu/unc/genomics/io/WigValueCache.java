@@ -0,0 +1,380 @@
+package edu.unc.genomics.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.log4j.Logger;
+
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.NumberParser;
+
+/**
+ * A binary sidecar for a TextWigFile that holds the values of every contig as
+ * packed floats (fixedStep) or packed bp/value pairs (variableStep). Once
+ * built, queries are served from a memory-mapped buffer without parsing any
+ * text. The cache is tied to the checksum of the Wig file it was built from.
+ *
+ * Layout (big-endian): magic, version, checksum, the value data for each
+ * contig, a table of (startLine, type, count, offset) entries, and finally the
+ * offset of the table.
+ *
+ * @author timpalpant
+ *
+ */
+final class WigValueCache {
+
+  private static final Logger log = Logger.getLogger(WigValueCache.class);
+
+  private static final int MAGIC = 0x57494743; // "WIGC"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final byte FIXED_STEP = 0;
+  private static final byte VARIABLE_STEP = 1;
+  /** Maximum number of bytes mapped into a single buffer */
+  private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+  private final long checksum;
+  private final Map<Long, Entry> entries;
+
+  private WigValueCache(long checksum, Map<Long, Entry> entries) {
+    this.checksum = checksum;
+    this.entries = entries;
+  }
+
+  /**
+   * Map a value cache from disk
+   *
+   * @param p
+   *          the path to the cache
+   * @param checksum
+   *          the checksum of the Wig file the cache must match
+   * @return the memory-mapped value cache
+   * @throws IOException
+   *           if an error occurs while reading the cache
+   * @throws WigFileException
+   *           if the cache is invalid or does not match checksum
+   */
+  public static WigValueCache load(Path p, long checksum) throws IOException, WigFileException {
+    log.debug("Loading Wig value cache " + p);
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE + 8) {
+        throw new WigFileException("Truncated Wig value cache: " + p);
+      }
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC) {
+        throw new WigFileException("Not a Wig value cache: " + p);
+      } else if (header.getInt() != VERSION) {
+        throw new WigFileException("Unsupported Wig value cache version: " + p);
+      } else if (header.getLong() != checksum) {
+        throw new WigFileException("Wig value cache does not match checksum of Wig file!");
+      }
+
+      long tableOffset = channel.map(FileChannel.MapMode.READ_ONLY, size - 8, 8).getLong();
+      if (tableOffset < HEADER_SIZE || tableOffset > size - 12) {
+        throw new WigFileException("Corrupt Wig value cache: " + p);
+      }
+      ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, size - 8 - tableOffset);
+      int n = table.getInt();
+      long[] startLines = new long[n];
+      byte[] types = new byte[n];
+      int[] counts = new int[n];
+      long[] offsets = new long[n];
+      for (int i = 0; i < n; i++) {
+        startLines[i] = table.getLong();
+        types[i] = table.get();
+        counts[i] = table.getInt();
+        offsets[i] = table.getLong();
+      }
+
+      // Entries are written sequentially, so group consecutive entries into
+      // as few mapped segments as possible
+      Map<Long, Entry> entries = new HashMap<>(2 * n);
+      int i = 0;
+      while (i < n) {
+        long segmentStart = offsets[i];
+        int j = i;
+        while (j < n && offsets[j] + entrySize(types[j], counts[j]) - segmentStart <= MAX_SEGMENT_SIZE) {
+          j++;
+        }
+        if (j == i) {
+          throw new WigFileException("Contig is too large for the Wig value cache: " + p);
+        }
+
+        long segmentEnd = offsets[j - 1] + entrySize(types[j - 1], counts[j - 1]);
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd
+            - segmentStart);
+        for (int k = i; k < j; k++) {
+          entries.put(startLines[k], new Entry(types[k], counts[k], segment, (int) (offsets[k] - segmentStart)));
+        }
+        i = j;
+      }
+
+      log.debug("Mapped values for " + entries.size() + " contigs from Wig value cache");
+      return new WigValueCache(checksum, entries);
+    }
+  }
+
+  /**
+   * Parse the values of all contigs from a Wig file and write them to a new
+   * value cache
+   *
+   * @param p
+   *          the path to write the cache to
+   * @param wig
+   *          the (uncompressed) text of the Wig file to load values from
+   * @param checksum
+   *          the checksum of the Wig file
+   * @param contigs
+   *          the index of the contigs in the Wig file
+   * @throws IOException
+   *           if a disk read or write error occurs
+   * @throws WigFileFormatException
+   *           if the Wig file contains illegal data lines
+   */
+  public static void write(Path p, FileChannel wig, long checksum, Collection<ContigIndex> contigs) throws IOException,
+      WigFileFormatException {
+    log.debug("Writing Wig value cache " + p);
+    List<ContigIndex> sorted = new ArrayList<>(contigs);
+    // Sort the contigs into file order so that the Wig file is read
+    // sequentially
+    Collections.sort(sorted, new Comparator<ContigIndex>() {
+      @Override
+      public int compare(ContigIndex c1, ContigIndex c2) {
+        return Long.compare(c1.getStartLine(), c2.getStartLine());
+      }
+    });
+
+    Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(checksum);
+      long offset = HEADER_SIZE;
+
+      int[] counts = new int[sorted.size()];
+      long[] offsets = new long[sorted.size()];
+      for (int i = 0; i < sorted.size(); i++) {
+        ContigIndex c = sorted.get(i);
+        offsets[i] = offset;
+        counts[i] = writeValues(wig, c, dos);
+        offset += entrySize(c.isFixedStep() ? FIXED_STEP : VARIABLE_STEP, counts[i]);
+      }
+
+      dos.writeInt(sorted.size());
+      for (int i = 0; i < sorted.size(); i++) {
+        ContigIndex c = sorted.get(i);
+        dos.writeLong(c.getStartLine());
+        dos.writeByte(c.isFixedStep() ? FIXED_STEP : VARIABLE_STEP);
+        dos.writeInt(counts[i]);
+        dos.writeLong(offsets[i]);
+      }
+      dos.writeLong(offset);
+    } catch (IOException | WigFileFormatException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+
+    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Write the values of a single contig
+   *
+   * @return the number of values written
+   */
+  private static int writeValues(FileChannel wig, ContigIndex c, DataOutputStream dos) throws IOException,
+      WigFileFormatException {
+    ChannelLineReader reader = new ChannelLineReader(wig, c.getCheckpointOffset(0));
+    int count = 0;
+    for (long lineNum = c.getStartLine(); lineNum <= c.getStopLine() && reader.next(); lineNum++) {
+      if (reader.startsWith(ContigIndex.TRACK)) {
+        continue;
+      }
+
+      byte[] buf = reader.buffer();
+      int start = reader.lineStart();
+      int end = reader.lineEnd();
+      try {
+        if (c.isFixedStep()) {
+          dos.writeFloat(NumberParser.parseFloat(buf, start, end));
+        } else {
+          int delim = VariableStepContigIndex.nextWhitespace(buf, start, end);
+          int valueStart = VariableStepContigIndex.skipWhitespace(buf, delim, end);
+          if (valueStart == end) {
+            throw new NumberFormatException("Missing value");
+          }
+          dos.writeInt(NumberParser.parseInt(buf, start, delim));
+          dos.writeFloat(NumberParser.parseFloat(buf, valueStart,
+              VariableStepContigIndex.nextWhitespace(buf, valueStart, end)));
+        }
+      } catch (NumberFormatException e) {
+        throw new WigFileFormatException("Illegal format in contig " + c.toOutput() + ", line " + lineNum);
+      }
+      count++;
+    }
+
+    return count;
+  }
+
+  private static long entrySize(byte type, int count) {
+    return (type == FIXED_STEP ? 4L : 8L) * count;
+  }
+
+  /**
+   * @return the checksum of the Wig file that this cache was built from
+   */
+  public long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @param c
+   *          a contig in the Wig file
+   * @return true if this cache holds the values for c
+   */
+  public boolean contains(ContigIndex c) {
+    return entries.containsKey(c.getStartLine());
+  }
+
+  /**
+   * Fill data from a contig into the array of values
+   *
+   * @param c
+   *          the contig to get the data from
+   * @param interval
+   *          the query interval
+   * @param values
+   *          the array to load the values into
+   * @param offset
+   *          the index in values of the first base pair of interval (the
+   *          interval is written in reverse if it is Crick)
+   */
+  public void fill(ContigIndex c, Interval interval, float[] values, int offset) {
+    Entry e = entries.get(c.getStartLine());
+    int low = Math.max(c.getStart(), interval.low());
+    int high = Math.min(c.getStop(), interval.high());
+    int span = c.getSpan();
+    if (e.type == FIXED_STEP) {
+      int step = ((FixedStepContigIndex) c).getStep();
+      int last = Math.min((high - c.getStart()) / step, e.count - 1);
+      for (int k = FixedStepContigIndex.firstItem(low - c.getStart(), span, step); k <= last; k++) {
+        float value = e.data.getFloat(e.position + 4 * k);
+        if (!Float.isNaN(value)) {
+          int bp = c.getStart() + k * step;
+          WigFileReader.fill(interval, values, offset, bp, bp + span - 1, value);
+        }
+      }
+    } else {
+      for (int k = e.lowerBound(low - span + 1); k < e.count; k++) {
+        int bp = e.data.getInt(e.position + 8 * k);
+        if (bp > high) {
+          break;
+        }
+        float value = e.data.getFloat(e.position + 8 * k + 4);
+        if (!Float.isNaN(value)) {
+          WigFileReader.fill(interval, values, offset, bp, bp + span - 1, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fill data from a contig into statistics
+   *
+   * @param c
+   *          the contig to get the data from
+   * @param interval
+   *          the query interval
+   * @param stats
+   *          the SummaryStatistics to load values into
+   */
+  public void fillStats(ContigIndex c, Interval interval, SummaryStatistics stats) {
+    Entry e = entries.get(c.getStartLine());
+    int low = Math.max(c.getStart(), interval.low());
+    int high = Math.min(c.getStop(), interval.high());
+    int span = c.getSpan();
+    if (e.type == FIXED_STEP) {
+      int step = ((FixedStepContigIndex) c).getStep();
+      int last = Math.min((high - c.getStart()) / step, e.count - 1);
+      for (int k = FixedStepContigIndex.firstItem(low - c.getStart(), span, step); k <= last; k++) {
+        float value = e.data.getFloat(e.position + 4 * k);
+        if (!Float.isNaN(value)) {
+          int bp = c.getStart() + k * step;
+          int n = Math.min(bp + span - 1, interval.high()) - Math.max(bp, interval.low()) + 1;
+          for (int i = 0; i < n; i++) {
+            stats.addValue(value);
+          }
+        }
+      }
+    } else {
+      for (int k = e.lowerBound(low - span + 1); k < e.count; k++) {
+        int bp = e.data.getInt(e.position + 8 * k);
+        if (bp > high) {
+          break;
+        }
+        float value = e.data.getFloat(e.position + 8 * k + 4);
+        if (!Float.isNaN(value)) {
+          int n = Math.min(bp + span - 1, interval.high()) - Math.max(bp, interval.low()) + 1;
+          for (int i = 0; i < n; i++) {
+            stats.addValue(value);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The location of the values for one contig in a mapped segment. Only
+   * absolute gets are used so that the shared buffer is safe for concurrent
+   * reads.
+   */
+  private static final class Entry {
+    final byte type;
+    final int count;
+    final ByteBuffer data;
+    final int position;
+
+    Entry(byte type, int count, ByteBuffer data, int position) {
+      this.type = type;
+      this.count = count;
+      this.data = data;
+      this.position = position;
+    }
+
+    /**
+     * @return the index of the first variableStep entry with bp >= target
+     */
+    int lowerBound(int target) {
+      int lo = 0;
+      int hi = count;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (data.getInt(position + 8 * mid) < target) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+}
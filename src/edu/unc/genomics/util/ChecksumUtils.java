@@ -1,8 +1,18 @@
 package edu.unc.genomics.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
@@ -21,6 +31,12 @@ public class ChecksumUtils {
 
   private static final Logger log = Logger.getLogger(ChecksumUtils.class);
 
+  /** Size of the ranges checksummed by each task in crc32(p, threads) */
+  private static final long CRC32_RANGE_SIZE = 8 * 1024 * 1024;
+  /** Number and size of the blocks hashed by sampled(p) */
+  private static final int NUM_SAMPLES = 32;
+  private static final int SAMPLE_SIZE = 4096;
+
   public static long adler32(Path p) throws IOException {
     return ChecksumUtils.file(p, new Adler32());
   }
@@ -29,6 +45,147 @@ public class ChecksumUtils {
     return ChecksumUtils.file(p, new CRC32());
   }
 
+  /**
+   * Compute the CRC32 of a file by checksumming ranges of it concurrently and
+   * combining the results. Equal to crc32(p), but faster on storage that
+   * benefits from concurrent reads.
+   * 
+   * @param p
+   *          the file to checksum
+   * @param threads
+   *          the number of threads to use
+   * @return the CRC32 of the file
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  public static long crc32(Path p, int threads) throws IOException {
+    log.debug("Calculating checksum for " + p + " with " + threads + " threads");
+    try (final FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      long size = channel.size();
+      int numRanges = (int) Math.max(1, (size + CRC32_RANGE_SIZE - 1) / CRC32_RANGE_SIZE);
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, numRanges));
+      try {
+        List<Future<Long>> futures = new ArrayList<>(numRanges);
+        for (int i = 0; i < numRanges; i++) {
+          final long begin = i * CRC32_RANGE_SIZE;
+          final long end = Math.min(size, begin + CRC32_RANGE_SIZE);
+          futures.add(pool.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+              CRC32 crc = new CRC32();
+              ByteBuffer buf = ByteBuffer.allocate((int) (end - begin));
+              while (buf.hasRemaining() && channel.read(buf, begin + buf.position()) != -1)
+                ;
+              crc.update(buf.array(), 0, buf.position());
+              return crc.getValue();
+            }
+          }));
+        }
+
+        long crc = 0;
+        for (int i = 0; i < numRanges; i++) {
+          long length = Math.min(size - i * CRC32_RANGE_SIZE, CRC32_RANGE_SIZE);
+          crc = crc32Combine(crc, futures.get(i).get(), length);
+        }
+        log.debug("Checksum = " + crc);
+        return crc;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while calculating checksum for " + p, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Compute a 64-bit fingerprint of a file from its size, modification time,
+   * and the CRC32 of a fixed number of blocks spread evenly through it
+   * (including the first and last blocks). The cost is independent of the size
+   * of the file. Any change to the size or modification time of the file
+   * changes the fingerprint, but an edit that preserves both and falls
+   * between sampled blocks will not be detected.
+   * 
+   * @param p
+   *          the file to fingerprint
+   * @return the fingerprint of the file
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  public static long sampled(Path p) throws IOException {
+    log.debug("Calculating sampled fingerprint for " + p);
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      long fingerprint = sample(channel, mix(Files.getLastModifiedTime(p).toMillis()), channel.size());
+      log.debug("Fingerprint = " + fingerprint);
+      return fingerprint;
+    }
+  }
+
+  /**
+   * Compute a 64-bit fingerprint of the first length bytes of a file from the
+   * length and the CRC32 of blocks spread evenly through them, as in
+   * sampled(p). Since the modification time of the file is not included, the
+   * fingerprint does not change when data is appended to the file.
+   * 
+   * @param channel
+   *          the file to fingerprint
+   * @param length
+   *          the number of bytes at the start of the file to fingerprint
+   * @return the fingerprint of the first length bytes of the file
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  public static long sampled(FileChannel channel, long length) throws IOException {
+    return sample(channel, 0, length);
+  }
+
+  private static long sample(FileChannel channel, long fingerprint, long size) throws IOException {
+    fingerprint = mix(fingerprint ^ size);
+    ByteBuffer buf = ByteBuffer.allocate(SAMPLE_SIZE);
+    CRC32 crc = new CRC32();
+    int numSamples = (size <= (long) NUM_SAMPLES * SAMPLE_SIZE) ? (int) ((size + SAMPLE_SIZE - 1) / SAMPLE_SIZE)
+        : NUM_SAMPLES;
+    for (int i = 0; i < numSamples; i++) {
+      long offset;
+      if (numSamples < NUM_SAMPLES) {
+        // Small file: hash all of it
+        offset = (long) i * SAMPLE_SIZE;
+      } else {
+        offset = i * ((size - SAMPLE_SIZE) / (NUM_SAMPLES - 1));
+        if (i == NUM_SAMPLES - 1) {
+          offset = size - SAMPLE_SIZE;
+        }
+      }
+
+      buf.clear();
+      buf.limit((int) Math.min(SAMPLE_SIZE, size - offset));
+      while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) != -1)
+        ;
+      crc.reset();
+      crc.update(buf.array(), 0, buf.position());
+      fingerprint = mix(fingerprint ^ (crc.getValue() + ((long) i << 32)));
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Finalization step of MurmurHash3, used to mix bits into the fingerprint
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
   public static long file(Path p, Checksum c) throws IOException {
     log.debug("Calculating checksum for " + p);
     byte[] buf = new byte[131_136];
@@ -39,4 +196,73 @@ public class ChecksumUtils {
       return cis.getChecksum().getValue();
     }
   }
+
+  /**
+   * Combine the CRC32 checksums of two consecutive blocks of data into the
+   * CRC32 of their concatenation, without revisiting the data. This allows
+   * pieces of a file to be checksummed independently (e.g. in parallel). Port
+   * of crc32_combine() from zlib.
+   * 
+   * @param crc1
+   *          the CRC32 of the first block
+   * @param crc2
+   *          the CRC32 of the second block
+   * @param len2
+   *          the length of the second block, in bytes
+   * @return the CRC32 of the first block followed by the second block
+   */
+  public static long crc32Combine(long crc1, long crc2, long len2) {
+    if (len2 <= 0) {
+      return crc1;
+    }
+
+    // Operator for one zero bit in odd, then two zero bits in even
+    long[] even = new long[32];
+    long[] odd = new long[32];
+    odd[0] = 0xedb88320L;
+    long row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    gf2MatrixSquare(even, odd);
+    gf2MatrixSquare(odd, even);
+
+    // Apply len2 zeros to crc1 (the first square puts the operator for one
+    // zero byte, eight zero bits, in even)
+    do {
+      gf2MatrixSquare(even, odd);
+      if ((len2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(even, crc1);
+      }
+      len2 >>= 1;
+      if (len2 == 0) {
+        break;
+      }
+
+      gf2MatrixSquare(odd, even);
+      if ((len2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(odd, crc1);
+      }
+      len2 >>= 1;
+    } while (len2 != 0);
+
+    return crc1 ^ crc2;
+  }
+
+  private static long gf2MatrixTimes(long[] mat, long vec) {
+    long sum = 0;
+    for (int i = 0; vec != 0; i++, vec >>>= 1) {
+      if ((vec & 1) != 0) {
+        sum ^= mat[i];
+      }
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(long[] square, long[] mat) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+  }
 }
\ No newline at end of file
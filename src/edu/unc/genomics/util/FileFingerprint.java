@@ -0,0 +1,32 @@
+package edu.unc.genomics.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A strategy for computing a 64-bit fingerprint of a file, used to detect
+ * whether a file has changed since an index or cache was built from it. See
+ * StandardFingerprint for the built-in strategies.
+ * 
+ * @author timpalpant
+ *
+ */
+public interface FileFingerprint {
+
+  /**
+   * @return a stable identifier for this strategy, stored alongside its
+   *         fingerprints. Strategies that compute identical fingerprints should
+   *         share an identifier.
+   */
+  String getId();
+
+  /**
+   * @param p
+   *          the file to fingerprint
+   * @return the fingerprint of the file
+   * @throws IOException
+   *           if an error occurs while reading the file
+   */
+  long compute(Path p) throws IOException;
+
+}
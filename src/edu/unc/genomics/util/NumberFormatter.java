@@ -0,0 +1,220 @@
+package edu.unc.genomics.util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Formats numbers directly into ASCII bytes (e.g. an output buffer) without
+ * creating an intermediate String, as the counterpart of NumberParser. Values
+ * are always written in plain decimal notation (no exponent), with "NaN",
+ * "Inf" and "-Inf" for non-finite values, as WigFileWriter.newFormatter().
+ *
+ * Floats can be written with the fewest fraction digits that parse back to
+ * exactly the same value, or rounded half-even to a maximum number of
+ * fraction digits, which gives the same text as a DecimalFormat. Nearly all
+ * values in genomic data files are formatted with a single exact
+ * multiplication; other values fall back to BigDecimal.
+ *
+ * @author timpalpant
+ *
+ */
+public final class NumberFormatter {
+
+  /** Use the fewest fraction digits that parse back to the same value */
+  public static final int SHORTEST = -1;
+
+  /** The maximum number of bytes written for an int */
+  public static final int MAX_INT_LENGTH = 11;
+  /** The maximum number of bytes written for a float */
+  public static final int MAX_FLOAT_LENGTH = 64;
+
+  private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f,
+      1e10f };
+  /**
+   * A float times any of these is exact as a double, since 10^k = 2^k*5^k and
+   * 5^12 needs 28 bits
+   */
+  private static final double[] DOUBLE_POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+      1e11, 1e12 };
+  /** Largest mantissa that is exactly representable as a float */
+  private static final long MAX_FLOAT_MANTISSA = 1L << 24;
+  /** Scaled values beyond this are left to BigDecimal */
+  private static final double MAX_SCALED = 1e18;
+
+  private static final byte[] INF = { 'I', 'n', 'f' };
+  private static final byte[] NEGATIVE_INF = { '-', 'I', 'n', 'f' };
+  private static final byte[] NAN = { 'N', 'a', 'N' };
+
+  private NumberFormatter() {
+  }
+
+  /**
+   * Write a decimal integer, as Integer.toString
+   *
+   * @param value
+   *          the integer to write
+   * @param b
+   *          the buffer to write into, with room for MAX_INT_LENGTH bytes
+   * @param offset
+   *          the index to write the first byte at
+   * @return the index after the last byte written
+   */
+  public static int formatInt(int value, byte[] b, int offset) {
+    if (value < 0) {
+      if (value == Integer.MIN_VALUE) {
+        return ascii(Integer.toString(value), b, offset);
+      }
+      b[offset++] = '-';
+      value = -value;
+    }
+    return formatDigits(value, b, offset);
+  }
+
+  /**
+   * Write a float with the fewest fraction digits that parse back (with
+   * Float.parseFloat or NumberParser.parseFloat) to exactly the same value
+   *
+   * @param value
+   *          the value to write
+   * @param b
+   *          the buffer to write into, with room for MAX_FLOAT_LENGTH bytes
+   * @param offset
+   *          the index to write the first byte at
+   * @return the index after the last byte written
+   */
+  public static int formatFloat(float value, byte[] b, int offset) {
+    return formatFloat(value, SHORTEST, b, offset);
+  }
+
+  /**
+   * Write a float in plain decimal notation
+   *
+   * @param value
+   *          the value to write
+   * @param maxFractionDigits
+   *          the maximum number of digits after the decimal point (trailing
+   *          zeros are not written), or SHORTEST
+   * @param b
+   *          the buffer to write into, with room for MAX_FLOAT_LENGTH bytes
+   *          (more if maxFractionDigits is very large)
+   * @param offset
+   *          the index to write the first byte at
+   * @return the index after the last byte written
+   */
+  public static int formatFloat(float value, int maxFractionDigits, byte[] b, int offset) {
+    if (Float.isNaN(value)) {
+      return copy(NAN, b, offset);
+    } else if (Float.isInfinite(value)) {
+      return copy((value > 0) ? INF : NEGATIVE_INF, b, offset);
+    }
+
+    // Both modes write -0 for negative values that are written as zero
+    boolean negative = (Float.floatToRawIntBits(value) < 0);
+    float abs = Math.abs(value);
+    if (maxFractionDigits < 0) {
+      for (int k = 0; k < FLOAT_POWERS_OF_TEN.length; k++) {
+        double scaled = abs * DOUBLE_POWERS_OF_TEN[k];
+        if (scaled >= MAX_FLOAT_MANTISSA) {
+          break;
+        }
+        long m = Math.round(scaled);
+        // m and 10^k are exact floats, so this division is correctly rounded
+        if (m / FLOAT_POWERS_OF_TEN[k] == abs) {
+          return formatScaled(negative, m, k, b, offset);
+        }
+      }
+
+      // Large values, or those that need more digits
+      BigDecimal exact = new BigDecimal(Float.toString(abs));
+      return formatDecimal(negative, exact.stripTrailingZeros(), b, offset);
+    }
+
+    if (maxFractionDigits < DOUBLE_POWERS_OF_TEN.length) {
+      double scaled = abs * DOUBLE_POWERS_OF_TEN[maxFractionDigits];
+      if (scaled < MAX_SCALED) {
+        long m = (long) Math.rint(scaled);
+        int k = maxFractionDigits;
+        while (k > 0 && m % 10 == 0) {
+          m /= 10;
+          k--;
+        }
+        return formatScaled(negative, m, k, b, offset);
+      }
+    }
+
+    // Like DecimalFormat, round the shortest digits that identify the value
+    BigDecimal rounded = new BigDecimal(Double.toString(abs)).setScale(maxFractionDigits, RoundingMode.HALF_EVEN);
+    if (rounded.signum() == 0) {
+      rounded = BigDecimal.ZERO;
+    }
+    return formatDecimal(negative, rounded.stripTrailingZeros(), b, offset);
+  }
+
+  /**
+   * Write m / 10^k
+   */
+  private static int formatScaled(boolean negative, long m, int k, byte[] b, int offset) {
+    if (negative) {
+      b[offset++] = '-';
+    }
+
+    int end = formatDigits(m, b, offset);
+    int digits = end - offset;
+    if (k == 0) {
+      return end;
+    } else if (digits > k) {
+      // Shift the fraction digits over to make room for the decimal point
+      System.arraycopy(b, end - k, b, end - k + 1, k);
+      b[end - k] = '.';
+      return end + 1;
+    } else {
+      // Shift all of the digits over to make room for 0.00...
+      int zeros = k - digits;
+      System.arraycopy(b, offset, b, offset + 2 + zeros, digits);
+      b[offset] = '0';
+      b[offset + 1] = '.';
+      for (int i = 0; i < zeros; i++) {
+        b[offset + 2 + i] = '0';
+      }
+      return offset + 2 + k;
+    }
+  }
+
+  private static int formatDecimal(boolean negative, BigDecimal value, byte[] b, int offset) {
+    if (negative) {
+      b[offset++] = '-';
+    }
+    return ascii(value.toPlainString(), b, offset);
+  }
+
+  /**
+   * Write the digits of a non-negative number
+   */
+  private static int formatDigits(long value, byte[] b, int offset) {
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+
+    int end = offset + digits;
+    int i = end;
+    do {
+      b[--i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    return end;
+  }
+
+  private static int copy(byte[] word, byte[] b, int offset) {
+    System.arraycopy(word, 0, b, offset, word.length);
+    return offset + word.length;
+  }
+
+  private static int ascii(String s, byte[] b, int offset) {
+    for (int i = 0; i < s.length(); i++) {
+      b[offset++] = (byte) s.charAt(i);
+    }
+    return offset;
+  }
+
+}
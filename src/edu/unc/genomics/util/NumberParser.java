@@ -0,0 +1,254 @@
+package edu.unc.genomics.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses numbers directly from ASCII bytes (e.g. a line in a read buffer)
+ * without creating an intermediate String. Accepts the same input as
+ * Integer.parseInt, Float.parseFloat and Double.parseDouble, and additionally
+ * "Inf" and "-Inf" as written by WigFileWriter.
+ *
+ * Decimal numbers whose significant digits and power of ten are both exactly
+ * representable are converted with a single correctly-rounded multiplication
+ * or division, which covers nearly all values in genomic data files. Other
+ * input falls back to the JDK parsers, so results are always identical to
+ * theirs.
+ *
+ * @author timpalpant
+ *
+ */
+public final class NumberParser {
+
+  private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f,
+      1e10f };
+  private static final double[] DOUBLE_POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+      1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+  /** Largest mantissa that is exactly representable as a float */
+  private static final long MAX_FLOAT_MANTISSA = 1L << 24;
+  /** Largest mantissa that is exactly representable as a double */
+  private static final long MAX_DOUBLE_MANTISSA = 1L << 53;
+  /** Significant digits that always fit in a long */
+  private static final int MAX_DIGITS = 18;
+  /** Exponents beyond this are left to the JDK parsers */
+  private static final int MAX_EXPONENT = 10_000;
+
+  private static final byte[] INF = { 'I', 'n', 'f' };
+  private static final byte[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+  private static final byte[] NAN = { 'N', 'a', 'N' };
+
+  private NumberParser() {
+  }
+
+  /**
+   * Parse a decimal integer, as Integer.parseInt
+   *
+   * @param b
+   *          the bytes to parse
+   * @param start
+   *          the index of the first byte of the number
+   * @param end
+   *          the index after the last byte of the number
+   * @return the parsed integer
+   * @throws NumberFormatException
+   *           if the bytes are not a valid integer
+   */
+  public static int parseInt(byte[] b, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (b[i] == '-' || b[i] == '+')) {
+      negative = (b[i] == '-');
+      i++;
+    }
+    if (i == end || end - i > 10) {
+      return Integer.parseInt(toString(b, start, end));
+    }
+
+    long result = 0;
+    for (; i < end; i++) {
+      int digit = b[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("For input string: \"" + toString(b, start, end) + "\"");
+      }
+      result = 10 * result + digit;
+    }
+
+    if (negative) {
+      result = -result;
+    }
+    if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+      throw new NumberFormatException("For input string: \"" + toString(b, start, end) + "\"");
+    }
+    return (int) result;
+  }
+
+  /**
+   * Parse a floating-point number, as Float.parseFloat
+   *
+   * @param b
+   *          the bytes to parse
+   * @param start
+   *          the index of the first byte of the number
+   * @param end
+   *          the index after the last byte of the number
+   * @return the parsed float
+   * @throws NumberFormatException
+   *           if the bytes are not a valid float
+   */
+  public static float parseFloat(byte[] b, int start, int end) {
+    return (float) parse(b, start, end, true);
+  }
+
+  /**
+   * Parse a floating-point number, as Double.parseDouble
+   *
+   * @param b
+   *          the bytes to parse
+   * @param start
+   *          the index of the first byte of the number
+   * @param end
+   *          the index after the last byte of the number
+   * @return the parsed double
+   * @throws NumberFormatException
+   *           if the bytes are not a valid double
+   */
+  public static double parseDouble(byte[] b, int start, int end) {
+    return parse(b, start, end, false);
+  }
+
+  /**
+   * @param single
+   *          whether to round to float (the result is then exactly
+   *          representable as a float) rather than double
+   */
+  private static double parse(byte[] b, int start, int end, boolean single) {
+    // Trim whitespace, as the JDK parsers do
+    while (start < end && (b[start] & 0xff) <= ' ') {
+      start++;
+    }
+    while (end > start && (b[end - 1] & 0xff) <= ' ') {
+      end--;
+    }
+
+    int i = start;
+    boolean negative = false;
+    if (i < end && (b[i] == '-' || b[i] == '+')) {
+      negative = (b[i] == '-');
+      i++;
+    }
+
+    if (equals(b, i, end, INF) || equals(b, i, end, INFINITY)) {
+      return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    } else if (equals(b, i, end, NAN)) {
+      return Double.NaN;
+    }
+
+    long mantissa = 0;
+    int numDigits = 0;
+    int exponent = 0;
+    boolean anyDigits = false;
+    boolean exact = true;
+
+    // Integer part
+    for (; i < end; i++) {
+      int digit = b[i] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      anyDigits = true;
+      if (mantissa == 0 && digit == 0) {
+        continue;
+      } else if (numDigits < MAX_DIGITS) {
+        mantissa = 10 * mantissa + digit;
+        numDigits++;
+      } else {
+        exact = false;
+      }
+    }
+
+    // Fractional part
+    if (i < end && b[i] == '.') {
+      for (i++; i < end; i++) {
+        int digit = b[i] - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        anyDigits = true;
+        if (mantissa == 0 && digit == 0) {
+          exponent--;
+        } else if (numDigits < MAX_DIGITS) {
+          mantissa = 10 * mantissa + digit;
+          numDigits++;
+          exponent--;
+        } else {
+          exact = false;
+        }
+      }
+    }
+
+    // Exponent
+    if (anyDigits && i < end && (b[i] == 'e' || b[i] == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && (b[i] == '-' || b[i] == '+')) {
+        negativeExponent = (b[i] == '-');
+        i++;
+      }
+      int e = 0;
+      boolean anyExponentDigits = false;
+      for (; i < end; i++) {
+        int digit = b[i] - '0';
+        if (digit < 0 || digit > 9) {
+          break;
+        }
+        anyExponentDigits = true;
+        if (e < MAX_EXPONENT) {
+          e = 10 * e + digit;
+        } else {
+          exact = false;
+        }
+      }
+      if (!anyExponentDigits) {
+        exact = false;
+      }
+      exponent += negativeExponent ? -e : e;
+    }
+
+    if (exact && anyDigits && i == end) {
+      if (mantissa == 0) {
+        return negative ? -0.0 : 0.0;
+      } else if (single) {
+        if (mantissa <= MAX_FLOAT_MANTISSA && exponent >= -10 && exponent <= 10) {
+          float value = (float) mantissa;
+          value = (exponent < 0) ? value / FLOAT_POWERS_OF_TEN[-exponent] : value * FLOAT_POWERS_OF_TEN[exponent];
+          return negative ? -value : value;
+        }
+      } else if (mantissa <= MAX_DOUBLE_MANTISSA && exponent >= -22 && exponent <= 22) {
+        double value = (double) mantissa;
+        value = (exponent < 0) ? value / DOUBLE_POWERS_OF_TEN[-exponent] : value * DOUBLE_POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+      }
+    }
+
+    // Too many digits, too large an exponent, or unusual syntax (hexadecimal,
+    // type suffixes, invalid input): defer to the JDK
+    String s = toString(b, start, end);
+    return single ? Float.parseFloat(s) : Double.parseDouble(s);
+  }
+
+  private static boolean equals(byte[] b, int start, int end, byte[] word) {
+    if (end - start != word.length) {
+      return false;
+    }
+    for (int i = 0; i < word.length; i++) {
+      if (b[start + i] != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String toString(byte[] b, int start, int end) {
+    return new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+}
@@ -0,0 +1,57 @@
+package edu.unc.genomics.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The built-in file fingerprint strategies
+ * 
+ * @author timpalpant
+ *
+ */
+public enum StandardFingerprint implements FileFingerprint {
+
+  /**
+   * Size, modification time, and sampled block hashes. Constant cost
+   * regardless of the size of the file.
+   */
+  SAMPLED("SAMPLED") {
+    @Override
+    public long compute(Path p) throws IOException {
+      return ChecksumUtils.sampled(p);
+    }
+  },
+
+  /**
+   * CRC32 of the entire file, computed by multiple threads. Interchangeable
+   * with CRC32.
+   */
+  PARALLEL_CRC32("CRC32") {
+    @Override
+    public long compute(Path p) throws IOException {
+      return ChecksumUtils.crc32(p, Runtime.getRuntime().availableProcessors());
+    }
+  },
+
+  /**
+   * CRC32 of the entire file, computed sequentially
+   */
+  CRC32("CRC32") {
+    @Override
+    public long compute(Path p) throws IOException {
+      return ChecksumUtils.crc32(p);
+    }
+  };
+
+  private final String id;
+
+  private StandardFingerprint(String id) {
+    this.id = id;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+}
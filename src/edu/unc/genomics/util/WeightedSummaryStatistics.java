@@ -0,0 +1,451 @@
+package edu.unc.genomics.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummaryValues;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+/**
+ * SummaryStatistics that can add a value with an integer weight in constant
+ * time (e.g. a Wig value that spans many base pairs) and can be merged with
+ * other instances, so that statistics computed over separate pieces of data
+ * (e.g. by different threads) can be combined without revisiting the data.
+ *
+ * Moments are accumulated with the pairwise-update formulas of Chan et al.,
+ * which are numerically stable for large weights. The sum of logs is weighted
+ * like the other sums, and (as in SummaryStatistics) it is -Infinity once a
+ * value is 0 and NaN once a value is negative. Statistics created from a
+ * precomputed summary do not have a sum of logs, so it and the geometric mean
+ * are NaN.
+ *
+ * @author timpalpant
+ *
+ */
+public class WeightedSummaryStatistics extends SummaryStatistics {
+
+  private static final long serialVersionUID = -4319417512917634862L;
+
+  /** Number of values in each chunk of an array summarized concurrently */
+  private static final int PARALLEL_CHUNK_SIZE = 1 << 20;
+
+  private long n = 0;
+  private double sum = 0;
+  private double mean = 0;
+  // Sum of squared deviations from the mean
+  private double m2 = 0;
+  private double min = Double.NaN;
+  private double max = Double.NaN;
+  private double sumOfLogs = 0;
+
+  public WeightedSummaryStatistics() {
+  }
+
+  /**
+   * Copy constructor
+   *
+   * @param other
+   *          the statistics to copy
+   */
+  public WeightedSummaryStatistics(WeightedSummaryStatistics other) {
+    copy(other, this);
+  }
+
+  /**
+   * Create statistics from a precomputed summary
+   *
+   * @param n
+   *          the number of values
+   * @param sum
+   *          the sum of the values
+   * @param secondMoment
+   *          the sum of squared deviations of the values from their mean
+   * @param min
+   *          the minimum value
+   * @param max
+   *          the maximum value
+   * @return statistics equivalent to having added the summarized values
+   *         (without a sum of logs)
+   */
+  public static WeightedSummaryStatistics of(long n, double sum, double secondMoment, double min, double max) {
+    return of(n, sum, secondMoment, min, max, Double.NaN);
+  }
+
+  private static WeightedSummaryStatistics of(long n, double sum, double secondMoment, double min, double max,
+      double sumOfLogs) {
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    if (n > 0) {
+      stats.n = n;
+      stats.sum = sum;
+      stats.mean = sum / n;
+      stats.m2 = secondMoment;
+      stats.min = min;
+      stats.max = max;
+      stats.sumOfLogs = sumOfLogs;
+    }
+    return stats;
+  }
+
+  /**
+   * Compute the statistics of the finite values of an array (NaN and infinite
+   * values are skipped), splitting it into chunks that are summarized
+   * concurrently
+   *
+   * @param values
+   *          the values to summarize
+   * @param weight
+   *          the number of times to count each value (e.g. the span of a
+   *          Contig)
+   * @param threads
+   *          the number of threads to use
+   * @return statistics equivalent to having added each finite value weight
+   *         times
+   */
+  public static WeightedSummaryStatistics of(final float[] values, final long weight, int threads) {
+    int numChunks = Math.max(1, (values.length + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    if (threads <= 1 || numChunks == 1) {
+      stats.addValues(values, 0, values.length, weight);
+      return stats;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, numChunks));
+    try {
+      List<Future<WeightedSummaryStatistics>> futures = new ArrayList<>(numChunks);
+      for (int i = 0; i < numChunks; i++) {
+        final int from = i * PARALLEL_CHUNK_SIZE;
+        final int to = Math.min(values.length, from + PARALLEL_CHUNK_SIZE);
+        futures.add(pool.submit(new Callable<WeightedSummaryStatistics>() {
+          @Override
+          public WeightedSummaryStatistics call() {
+            WeightedSummaryStatistics chunk = new WeightedSummaryStatistics();
+            chunk.addValues(values, from, to, weight);
+            return chunk;
+          }
+        }));
+      }
+
+      for (Future<WeightedSummaryStatistics> f : futures) {
+        stats.combine(f.get());
+      }
+      return stats;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while computing statistics", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Override
+  public void addValue(double value) {
+    addValue(value, 1);
+  }
+
+  /**
+   * Add a value with a weight, equivalent to calling addValue(value) weight
+   * times
+   *
+   * @param value
+   *          the value to add
+   * @param weight
+   *          the number of times to count value
+   */
+  public void addValue(double value, long weight) {
+    if (weight <= 0) {
+      return;
+    }
+
+    long newN = n + weight;
+    double delta = value - mean;
+    mean += delta * weight / newN;
+    m2 += delta * (value - mean) * weight;
+    sum += value * weight;
+    sumOfLogs += weight * Math.log(value);
+    if (n == 0) {
+      min = value;
+      max = value;
+    } else {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+    n = newN;
+  }
+
+  /**
+   * Add the finite values of values[from] to values[to-1], each with a weight.
+   * NaN and infinite values are skipped.
+   *
+   * The values are summarized in a single pass with primitive accumulators for
+   * the count, the sum and sum of squares of the deviations from the first
+   * value (which avoids the cancellation of the textbook formula for the
+   * variance), the minimum, and the maximum. The sum of logs is the log of the
+   * product of the values, which is kept normalized to [1, 2) with a separate
+   * exponent so that it can't overflow, so only one log is computed. Four
+   * independent sets of sums are kept so that consecutive additions don't wait
+   * on each other.
+   *
+   * @param values
+   *          an array of values
+   * @param from
+   *          the index of the first value to add
+   * @param to
+   *          the index after the last value to add
+   * @param weight
+   *          the number of times to count each value
+   */
+  public void addValues(float[] values, int from, int to, long weight) {
+    // Find the first finite value to shift by
+    int first = from;
+    while (first < to && !isFinite(values[first])) {
+      first++;
+    }
+    if (first == to || weight <= 0) {
+      return;
+    }
+
+    float shift = values[first];
+    long count = 0;
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+    double p0 = 1, p1 = 1, p2 = 1, p3 = 1;
+    long exponent = 0;
+    float lo = shift, hi = shift;
+    int i = first;
+    for (; i + 3 < to; i += 4) {
+      float v0 = values[i], v1 = values[i + 1], v2 = values[i + 2], v3 = values[i + 3];
+      if (isFinite(v0)) {
+        double d = v0 - shift;
+        s0 += d;
+        q0 += d * d;
+        p0 *= v0;
+        lo = (v0 < lo) ? v0 : lo;
+        hi = (v0 > hi) ? v0 : hi;
+        count++;
+      }
+      if (isFinite(v1)) {
+        double d = v1 - shift;
+        s1 += d;
+        q1 += d * d;
+        p1 *= v1;
+        lo = (v1 < lo) ? v1 : lo;
+        hi = (v1 > hi) ? v1 : hi;
+        count++;
+      }
+      if (isFinite(v2)) {
+        double d = v2 - shift;
+        s2 += d;
+        q2 += d * d;
+        p2 *= v2;
+        lo = (v2 < lo) ? v2 : lo;
+        hi = (v2 > hi) ? v2 : hi;
+        count++;
+      }
+      if (isFinite(v3)) {
+        double d = v3 - shift;
+        s3 += d;
+        q3 += d * d;
+        p3 *= v3;
+        lo = (v3 < lo) ? v3 : lo;
+        hi = (v3 > hi) ? v3 : hi;
+        count++;
+      }
+
+      // Normalize the products (each has been multiplied by at most one value)
+      int e0 = Math.getExponent(p0), e1 = Math.getExponent(p1);
+      int e2 = Math.getExponent(p2), e3 = Math.getExponent(p3);
+      p0 = Math.scalb(p0, -e0);
+      p1 = Math.scalb(p1, -e1);
+      p2 = Math.scalb(p2, -e2);
+      p3 = Math.scalb(p3, -e3);
+      exponent += (e0 + e1) + (e2 + e3);
+    }
+    for (; i < to; i++) {
+      float v = values[i];
+      if (isFinite(v)) {
+        double d = v - shift;
+        s0 += d;
+        q0 += d * d;
+        p0 *= v;
+        lo = (v < lo) ? v : lo;
+        hi = (v > hi) ? v : hi;
+        count++;
+      }
+    }
+
+    double shiftedSum = (s0 + s1) + (s2 + s3);
+    double shiftedSumSquares = (q0 + q1) + (q2 + q3);
+    double sum = count * (double) shift + shiftedSum;
+    double secondMoment = Math.max(0, shiftedSumSquares - shiftedSum * shiftedSum / count);
+    double sumOfLogs;
+    if (lo < 0) {
+      sumOfLogs = Double.NaN;
+    } else if (p0 == 0 || p1 == 0 || p2 == 0 || p3 == 0) {
+      sumOfLogs = Double.NEGATIVE_INFINITY;
+    } else {
+      sumOfLogs = Math.log((p0 * p1) * (p2 * p3)) + exponent * Math.log(2);
+    }
+    combine(of(count, sum, secondMoment, lo, hi, sumOfLogs), weight);
+  }
+
+  /**
+   * @return true if v is not NaN or infinite
+   */
+  private static boolean isFinite(float v) {
+    return v - v == 0;
+  }
+
+  /**
+   * Merge the values summarized by other into these statistics
+   *
+   * @param other
+   *          the statistics to combine with these
+   */
+  public void combine(WeightedSummaryStatistics other) {
+    combine(other, 1);
+  }
+
+  /**
+   * Merge the values summarized by other into these statistics, as if every
+   * value had been added weight times
+   *
+   * @param other
+   *          the statistics to combine with these
+   * @param weight
+   *          the number of times to count each of the values in other
+   */
+  public void combine(WeightedSummaryStatistics other, long weight) {
+    if (other.n == 0 || weight <= 0) {
+      return;
+    }
+
+    long otherN = other.n * weight;
+    long newN = n + otherN;
+    double delta = other.mean - mean;
+    mean += delta * otherN / newN;
+    m2 += other.m2 * weight + delta * delta * ((double) n) * otherN / newN;
+    sum += other.sum * weight;
+    sumOfLogs += other.sumOfLogs * weight;
+    if (n == 0) {
+      min = other.min;
+      max = other.max;
+    } else {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+    n = newN;
+  }
+
+  @Override
+  public long getN() {
+    return n;
+  }
+
+  @Override
+  public double getSum() {
+    return sum;
+  }
+
+  @Override
+  public double getSumsq() {
+    return (n == 0) ? 0 : m2 + sum * mean;
+  }
+
+  @Override
+  public double getMean() {
+    return (n == 0) ? Double.NaN : mean;
+  }
+
+  @Override
+  public double getVariance() {
+    if (n == 0) {
+      return Double.NaN;
+    } else if (n == 1) {
+      return 0;
+    }
+    return m2 / (n - 1);
+  }
+
+  @Override
+  public double getPopulationVariance() {
+    return (n == 0) ? Double.NaN : m2 / n;
+  }
+
+  @Override
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  @Override
+  public double getSecondMoment() {
+    return (n == 0) ? Double.NaN : m2;
+  }
+
+  @Override
+  public double getMin() {
+    return min;
+  }
+
+  @Override
+  public double getMax() {
+    return max;
+  }
+
+  @Override
+  public double getGeometricMean() {
+    return (n == 0) ? Double.NaN : Math.exp(sumOfLogs / n);
+  }
+
+  @Override
+  public double getSumOfLogs() {
+    return sumOfLogs;
+  }
+
+  @Override
+  public StatisticalSummary getSummary() {
+    return new StatisticalSummaryValues(getMean(), getVariance(), getN(), getMax(), getMin(), getSum());
+  }
+
+  @Override
+  public void clear() {
+    n = 0;
+    sum = 0;
+    mean = 0;
+    m2 = 0;
+    min = Double.NaN;
+    max = Double.NaN;
+    sumOfLogs = 0;
+  }
+
+  @Override
+  public WeightedSummaryStatistics copy() {
+    return new WeightedSummaryStatistics(this);
+  }
+
+  /**
+   * Copy the state of source into dest
+   *
+   * @param source
+   *          the statistics to copy
+   * @param dest
+   *          the statistics to overwrite
+   */
+  public static void copy(WeightedSummaryStatistics source, WeightedSummaryStatistics dest) {
+    dest.n = source.n;
+    dest.sum = source.sum;
+    dest.mean = source.mean;
+    dest.m2 = source.m2;
+    dest.min = source.min;
+    dest.max = source.max;
+    dest.sumOfLogs = source.sumOfLogs;
+  }
+
+}
@@ -0,0 +1,87 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ContigLayoutTest {
+
+  @Test
+  public void testFixedStep() {
+    float[] values = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    ContigLayout layout = new Contig(new Interval("chrV", 10, 19), values).getLayout();
+    assertEquals(12, layout.getFirstBaseWithData());
+    assertEquals(6, layout.coverage());
+    assertEquals(2, layout.getMinSpan());
+    assertEquals(2, layout.getVariableStepSpan());
+    assertEquals(3, layout.getMinStep());
+    assertTrue(layout.isFixedStep());
+    assertFalse(layout.isVariableStep());
+    assertEquals("fixedStep chrom=chrV start=12 span=2 step=3", layout.getFixedStepHeader());
+  }
+
+  @Test
+  public void testVariableStep() {
+    float[] values = { Float.NaN, Float.NaN, 3.0f, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, 4.0f, 4.0f, Float.NaN };
+    ContigLayout layout = new Contig(new Interval("chrV", 10, 20), values).getLayout();
+    assertEquals(12, layout.getFirstBaseWithData());
+    assertEquals(7, layout.coverage());
+    assertEquals(2, layout.getMinSpan());
+    assertEquals(1, layout.getVariableStepSpan());
+    assertEquals(1, layout.getMinStep());
+    assertFalse(layout.isFixedStep());
+    assertEquals("variableStep chrom=chrV span=1", layout.getVariableStepHeader());
+  }
+
+  @Test
+  public void testEmpty() {
+    ContigLayout layout = new Contig(new Interval("chrV", 10, 19)).getLayout();
+    assertEquals(0, layout.coverage());
+    assertEquals(19, layout.getFirstBaseWithData());
+    assertEquals(10, layout.getMinSpan());
+    assertTrue(layout.isFixedStep());
+  }
+
+  @Test
+  public void testSpan() {
+    // Each value covers 2 base pairs
+    float[] values = { Float.NaN, 1.0f, 1.0f, 2.0f, Float.NaN };
+    Contig contig = new Contig(new Interval("chrV", 1, 10), values, 2);
+    ContigLayout layout = contig.getLayout();
+    assertEquals(3, layout.getFirstBaseWithData());
+    assertEquals(6, layout.coverage());
+    assertEquals(2, layout.getMinSpan());
+    assertEquals(2, layout.getVariableStepSpan());
+    assertEquals(4, layout.getMinStep());
+    assertTrue(layout.isFixedStep());
+  }
+
+  @Test
+  public void testRepresentations() {
+    // The layout does not depend on how the values are stored, and spans the
+    // chunks that the Contig is read in
+    Random rng = new Random(11);
+    Contig dense = new Contig(new Interval("chrI", 1, 200000));
+    for (int bp = 1000; bp < 190000; bp += 5 * (1 + rng.nextInt(4))) {
+      dense.set(bp, bp + 4, rng.nextInt(3));
+    }
+    ContigLayout expected = dense.getLayout();
+    try (OffHeapContig offHeap = new OffHeapContig(dense)) {
+      for (Contig contig : new Contig[] { new RunLengthContig(dense), offHeap }) {
+        ContigLayout layout = contig.getLayout();
+        assertEquals(expected.getFirstBaseWithData(), layout.getFirstBaseWithData());
+        assertEquals(expected.coverage(), layout.coverage());
+        assertEquals(expected.getMinSpan(), layout.getMinSpan());
+        assertEquals(expected.getVariableStepSpan(), layout.getVariableStepSpan());
+        assertEquals(expected.getMinStep(), layout.getMinStep());
+        assertEquals(expected.isFixedStep(), layout.isFixedStep());
+      }
+    }
+    assertEquals(1000, expected.getFirstBaseWithData());
+    assertEquals(5, expected.getVariableStepSpan());
+    assertEquals(dense.coverage(), expected.coverage());
+  }
+
+}
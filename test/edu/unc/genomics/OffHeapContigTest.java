@@ -0,0 +1,146 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapContigTest {
+
+  private OffHeapContig test;
+
+  @Before
+  public void setUp() throws Exception {
+    Interval interval = new Interval("chrV", 10, 19);
+    float[] values = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    test = new OffHeapContig(new Contig(interval, values));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    test.close();
+  }
+
+  @Test
+  public void testGetValues() {
+    float[] expected = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    assertArrayEquals(expected, test.getValues(), 1e-7f);
+  }
+
+  @Test
+  public void testGetInterval() {
+    assertNull(test.get(new Interval("chrIV", 11, 14)));
+
+    float[] expected = { Float.NaN, Float.NaN, Float.NaN, Float.NaN, 3.0f };
+    assertArrayEquals(expected, test.get(new Interval("chrV", 8, 12)), 1e-7f);
+
+    float[] expected2 = { 4.0f, Float.NaN, 3.0f };
+    assertArrayEquals(expected2, test.get(new Interval("chrV", 18, 16)), 1e-7f);
+  }
+
+  @Test
+  public void testSetRange() {
+    test.set(13, 12, 2.0f);
+    float[] expected = { Float.NaN, Float.NaN, 2.0f, 2.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    assertArrayEquals(expected, test.getValues(), 1e-7f);
+  }
+
+  @Test(expected = ContigException.class)
+  public void testSetIllegal() {
+    test.set(9, 1.0f);
+  }
+
+  @Test
+  public void testStats() {
+    assertEquals(6, test.coverage());
+    assertEquals(20.0f, test.total(), 1e-7f);
+    assertEquals(3.33333333f, test.mean(), 1e-7f);
+    assertEquals(0.471404522f, test.stdev(), 1e-7f);
+    assertEquals(3.0f, test.min(), 1e-7f);
+    assertEquals(4.0f, test.max(), 1e-7f);
+    assertEquals(12, test.getFirstBaseWithData());
+  }
+
+  @Test
+  public void testChunks() {
+    // Chunks are only allocated when data is set in them
+    Interval interval = new Interval("chrI", 1, 1000);
+    try (OffHeapContig chunked = new OffHeapContig(interval.getChr(), 1, 1000, 64)) {
+      assertEquals(0, chunked.allocatedBytes());
+      chunked.set(1, 1000, Float.NaN);
+      assertEquals(0, chunked.allocatedBytes());
+      chunked.set(60, 70, 1);
+      assertEquals(4 * 128, chunked.allocatedBytes());
+      chunked.set(999, 1000, 2);
+      assertEquals(4 * (128 + 1000 % 64), chunked.allocatedBytes());
+    }
+  }
+
+  @Test
+  public void testRandomSets() {
+    // Compare against the dense representation, across chunk boundaries
+    Random rng = new Random(5);
+    for (Interval interval : new Interval[] { new Interval("chrI", 101, 600), new Interval("chrI", 600, 101) }) {
+      Contig dense = new Contig(interval);
+      try (OffHeapContig offHeap = new OffHeapContig(interval.getChr(), interval.getStart(), interval.getStop(), 37)) {
+        for (int i = 0; i < 500; i++) {
+          int start = 101 + rng.nextInt(500);
+          int stop = Math.min(600, start + rng.nextInt(50));
+          float value = (rng.nextInt(5) == 0) ? Float.NaN : rng.nextInt(3);
+          dense.set(start, stop, value);
+          offHeap.set(start, stop, value);
+        }
+        assertArrayEquals(dense.getValues(), offHeap.getValues(), 0);
+        assertArrayEquals(dense.get(50, 650), offHeap.get(50, 650), 0);
+        assertEquals(dense.numBases(), offHeap.numBases());
+        assertEquals(dense.total(), offHeap.total(), 1e-3);
+        try (OffHeapContig copy = (OffHeapContig) offHeap.copy(300, 200)) {
+          assertArrayEquals(dense.copy(300, 200).getValues(), copy.getValues(), 0);
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosed() {
+    test.close();
+    assertTrue(test.isClosed());
+    test.get(12);
+  }
+
+  @Test
+  public void testCloseWhileReading() throws Exception {
+    // Reads that race with close() either finish or see that it is closed
+    final OffHeapContig contig = new OffHeapContig("chrI", 1, 100000, 1000);
+    contig.set(1, 100000, 1.0f);
+    final AtomicInteger closedReads = new AtomicInteger();
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              assertEquals(100000, contig.get(1, 100000).length);
+            }
+          } catch (IllegalStateException e) {
+            closedReads.incrementAndGet();
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    Thread.sleep(50);
+    contig.close();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertEquals(readers.length, closedReads.get());
+  }
+
+}
@@ -0,0 +1,124 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunLengthContigTest {
+
+  private RunLengthContig test;
+
+  @Before
+  public void setUp() throws Exception {
+    Interval interval = new Interval("chrV", 10, 19);
+    float[] values = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    test = new RunLengthContig(new Contig(interval, values));
+  }
+
+  @Test
+  public void testNumRuns() {
+    assertEquals(6, test.numRuns());
+    assertEquals(1, new RunLengthContig("chrI", 1, 1000000).numRuns());
+  }
+
+  @Test
+  public void testGetValues() {
+    float[] expected = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    assertArrayEquals(expected, test.getValues(), 1e-7f);
+  }
+
+  @Test
+  public void testGetInterval() {
+    assertNull(test.get(new Interval("chrIV", 11, 14)));
+
+    float[] expected = { Float.NaN, Float.NaN, Float.NaN, Float.NaN, 3.0f };
+    assertArrayEquals(expected, test.get(new Interval("chrV", 8, 12)), 1e-7f);
+
+    float[] expected2 = { 4.0f, Float.NaN, 3.0f };
+    assertArrayEquals(expected2, test.get(new Interval("chrV", 18, 16)), 1e-7f);
+  }
+
+  @Test
+  public void testGetValue() {
+    assertEquals(Float.NaN, test.get(9), 1e-7f);
+    assertEquals(4.0f, test.get(18), 1e-7f);
+  }
+
+  @Test
+  public void testSetRange() {
+    test.set(12, 13, 2.0f);
+    float[] expected = { Float.NaN, Float.NaN, 2.0f, 2.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    assertArrayEquals(expected, test.getValues(), 1e-7f);
+
+    // Runs with the same value are merged
+    test.set(14, 17, 3.0f);
+    assertEquals(4, test.numRuns());
+    test.set(19, 12, 3.0f);
+    assertEquals(2, test.numRuns());
+  }
+
+  @Test(expected = ContigException.class)
+  public void testSetIllegal() {
+    test.set(9, 1.0f);
+  }
+
+  @Test
+  public void testStats() {
+    assertEquals(6, test.coverage());
+    assertEquals(20.0f, test.total(), 1e-7f);
+    assertEquals(3.33333333f, test.mean(), 1e-7f);
+    assertEquals(0.471404522f, test.stdev(), 1e-7f);
+    assertEquals(3.0f, test.min(), 1e-7f);
+    assertEquals(4.0f, test.max(), 1e-7f);
+
+    test.set(10, 1.0f);
+    assertEquals(7, test.coverage());
+    assertEquals(1.0f, test.min(), 1e-7f);
+  }
+
+  @Test
+  public void testGetFirstBaseWithData() {
+    assertEquals(12, test.getFirstBaseWithData());
+  }
+
+  @Test
+  public void testCopy() {
+    Contig copy = test.copy(17, 21);
+    assertTrue(copy instanceof RunLengthContig);
+    float[] expected = { Float.NaN, 4.0f, 4.0f, Float.NaN, Float.NaN };
+    assertArrayEquals(expected, copy.getValues(), 1e-7f);
+    assertArrayEquals(new float[] { 4.0f, 4.0f, Float.NaN }, test.copy(19, 17).getValues(), 1e-7f);
+  }
+
+  @Test
+  public void testRandomSets() {
+    // Compare against the dense representation, for both strands
+    Random rng = new Random(3);
+    for (Interval interval : new Interval[] { new Interval("chrI", 101, 600), new Interval("chrI", 600, 101) }) {
+      Contig dense = new Contig(interval);
+      RunLengthContig runs = new RunLengthContig(interval);
+      for (int i = 0; i < 1000; i++) {
+        int start = 101 + rng.nextInt(500);
+        int stop = Math.min(600, start + rng.nextInt(50));
+        float value = (rng.nextInt(5) == 0) ? Float.NaN : rng.nextInt(3);
+        dense.set(start, stop, value);
+        runs.set(start, stop, value);
+      }
+      assertArrayEquals(dense.getValues(), runs.getValues(), 0);
+      assertArrayEquals(dense.get(50, 650), runs.get(50, 650), 0);
+      assertArrayEquals(dense.copy(300, 200).getValues(), runs.copy(300, 200).getValues(), 0);
+      assertEquals(dense.numBases(), runs.numBases());
+      assertEquals(dense.total(), runs.total(), 1e-3);
+      assertArrayEquals(dense.getValues(), new RunLengthContig(dense).getValues(), 0);
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSetSpan() {
+    test.setSpan(2);
+  }
+
+}
@@ -4,6 +4,10 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.junit.After;
@@ -11,6 +15,9 @@ import org.junit.AfterClass;
 import org.junit.Test;
 
 import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.OffHeapContig;
+import edu.unc.genomics.RunLengthContig;
 
 public abstract class AbstractWigFileReaderTest {
 
@@ -25,9 +32,11 @@ public abstract class AbstractWigFileReaderTest {
 
   @AfterClass
   public static void cleanUp() throws Exception {
-    // Delete the text wig file index
+    // Delete the text wig file index and value cache
     Files.deleteIfExists(TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
         + TextWigFileReader.INDEX_EXTENSION));
+    Files.deleteIfExists(TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
+        + TextWigFileReader.VALUE_CACHE_EXTENSION));
   }
 
   @Test
@@ -126,6 +135,156 @@ public abstract class AbstractWigFileReaderTest {
     assertEquals(4, stats.getN());
   }
 
+  @Test
+  public void testQueryBinnedStats() throws WigFileException, IOException {
+    SummaryStatistics[] bins = test.queryBinnedStats(new Interval("chrI", 5, 14), 3);
+    assertEquals(3, bins.length);
+    assertEquals(3, bins[0].getN());
+    assertEquals(6, bins[0].getMean(), 1e-7);
+    assertEquals(3, bins[1].getN());
+    assertEquals(9, bins[1].getMean(), 1e-7);
+    assertEquals(4, bins[2].getN());
+    assertEquals(12.5, bins[2].getMean(), 1e-7);
+  }
+
+  @Test
+  public void testChunks() throws WigFileException, IOException {
+    long expectedN = 0;
+    for (String chr : test.chromosomes()) {
+      expectedN += test.queryStats(chr, test.getChrStart(chr), test.getChrStop(chr)).getN();
+    }
+
+    for (int chunkSize : new int[] { 1, 3, 1000 }) {
+      long n = 0;
+      Iterator<Contig> it = test.chunks(chunkSize);
+      while (it.hasNext()) {
+        Contig chunk = it.next();
+        assertTrue(chunk.length() <= chunkSize);
+        assertFalse(Float.isNaN(chunk.get(chunk.getStart())));
+        assertFalse(Float.isNaN(chunk.get(chunk.getStop())));
+        Contig expected = test.query(chunk);
+        for (int bp = chunk.getStart(); bp <= chunk.getStop(); bp++) {
+          if (!Float.isNaN(chunk.get(bp))) {
+            assertEquals(expected.get(bp), chunk.get(bp), 0);
+            n++;
+          }
+        }
+      }
+      assertEquals(expectedN, n);
+    }
+  }
+
+  @Test
+  public void testBatchQuery() throws WigFileException, IOException {
+    List<Interval> intervals = new ArrayList<>();
+    for (String chr : test.chromosomes()) {
+      for (int start = test.getChrStop(chr); start >= test.getChrStart(chr) - 2; start -= 3) {
+        intervals.add(new Interval(chr, start, start + 4));
+        intervals.add(new Interval(chr, start + 1, start));
+      }
+      intervals.add(new Interval(chr, test.getChrStart(chr), test.getChrStop(chr)));
+    }
+
+    List<Contig> contigs = test.query(intervals);
+    List<SummaryStatistics> stats = test.queryStats(intervals);
+    assertEquals(intervals.size(), contigs.size());
+    assertEquals(intervals.size(), stats.size());
+    for (int i = 0; i < intervals.size(); i++) {
+      Interval interval = intervals.get(i);
+      assertEquals(interval, contigs.get(i));
+      assertArrayEquals(test.query(interval).getValues(), contigs.get(i).getValues(), 0);
+      SummaryStatistics expected = test.queryStats(interval);
+      assertEquals(expected.getN(), stats.get(i).getN());
+      assertEquals(expected.getSum(), stats.get(i).getSum(), 0);
+      assertEquals(expected.getMin(), stats.get(i).getMin(), 0);
+      assertEquals(expected.getMax(), stats.get(i).getMax(), 0);
+    }
+  }
+
+  @Test
+  public void testQueryRuns() throws WigFileException, IOException {
+    for (String chr : test.chromosomes()) {
+      int start = test.getChrStart(chr) - 2;
+      int stop = test.getChrStop(chr) + 2;
+      for (Interval interval : new Interval[] { new Interval(chr, start, stop), new Interval(chr, stop, start),
+          new Interval(chr, start + 3, start + 7) }) {
+        Contig expected = test.query(interval);
+        RunLengthContig actual = test.queryRuns(interval);
+        assertEquals(interval, actual);
+        assertArrayEquals(expected.getValues(), actual.getValues(), 0);
+        assertEquals(expected.numBases(), actual.numBases());
+        assertEquals(expected.total(), actual.total(), 1e-5);
+      }
+    }
+  }
+
+  @Test
+  public void testQueryOffHeap() throws WigFileException, IOException {
+    for (String chr : test.chromosomes()) {
+      Interval interval = new Interval(chr, test.getChrStop(chr) + 2, test.getChrStart(chr) - 2);
+      try (OffHeapContig actual = test.queryOffHeap(interval)) {
+        Contig expected = test.query(interval);
+        assertEquals(interval, actual);
+        assertArrayEquals(expected.getValues(), actual.getValues(), 0);
+        assertEquals(expected.total(), actual.total(), 1e-5);
+      }
+    }
+  }
+
+  @Test
+  public void testQueryIntoBuffer() throws WigFileException, IOException {
+    float[] values = new float[32];
+    for (String chr : test.chromosomes()) {
+      for (int start = test.getChrStart(chr) - 2; start <= test.getChrStop(chr); start += 3) {
+        for (Interval interval : new Interval[] { new Interval(chr, start, start + 5), new Interval(chr, start + 5, start) }) {
+          Arrays.fill(values, 42);
+          test.query(interval, values, 3);
+          float[] expected = test.query(interval).getValues();
+          assertArrayEquals(expected, Arrays.copyOfRange(values, 3, 3 + interval.length()), 0);
+          assertEquals(42, values[2], 0);
+          assertEquals(42, values[3 + interval.length()], 0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBlockCache() throws WigFileException, IOException {
+    Interval watson = new Interval("chrI", 3, 12);
+    Interval crick = new Interval("chrI", 12, 3);
+    test.setBlockCache(new WigBlockCache(0));
+    float[] expectedWatson = test.query(watson).getValues();
+    float[] expectedCrick = test.query(crick).getValues();
+    assertEquals(0, test.getBlockCache().numBlocks());
+
+    WigBlockCache cache = new WigBlockCache(WigBlockCache.DEFAULT_MAX_BYTES);
+    test.setBlockCache(cache);
+    WigFileReader clone = test.clone();
+    try {
+      assertArrayEquals(expectedWatson, test.query(watson).getValues(), 0);
+      assertEquals(0, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertArrayEquals(expectedWatson, clone.query(watson).getValues(), 0);
+      assertArrayEquals(expectedCrick, clone.query(crick).getValues(), 0);
+      assertEquals(2, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertEquals(1, cache.numBlocks());
+
+      // Shrinking the budget evicts blocks
+      cache.setMaxBytes(1);
+      assertEquals(0, cache.numBlocks());
+      assertEquals(0, cache.size());
+      assertEquals(1, cache.getEvictions());
+    } finally {
+      clone.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQueryIntoSmallBuffer() throws WigFileException, IOException {
+    test.query(new Interval("chrI", 1, 10), new float[12], 3);
+  }
+
   @Test
   public void testMeanQuery() throws WigFileException, IOException {
     Contig result = test.query("chrI", 5, 8);
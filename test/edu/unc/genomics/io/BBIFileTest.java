@@ -0,0 +1,218 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BBTotalSummaryBlock;
+import org.broad.igv.bbfile.BedFeature;
+import org.broad.igv.bbfile.BigBedIterator;
+import org.broad.igv.bbfile.BigWigIterator;
+import org.broad.igv.bbfile.RPChromosomeRegion;
+import org.broad.igv.bbfile.WigItem;
+import org.broad.igv.bbfile.ZoomDataRecord;
+import org.broad.igv.bbfile.ZoomLevelIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check the native decoder against the Broad Institute BigWig library
+ */
+public class BBIFileTest {
+
+  private static final int[][] REGIONS = { { 0, Integer.MAX_VALUE }, { 0, 1 }, { 9, 100 }, { 99, 5000 },
+      { 1000, 1001 }, { 2500, 40000 }, { 100199, 100220 } };
+
+  private BBIFile bigWig, bigBed;
+  private BBFileReader expectedBigWig, expectedBigBed;
+
+  @Before
+  public void setUp() throws Exception {
+    bigWig = new BBIFile(BigWigFileReaderTest.TEST_BIGWIG, 1);
+    bigBed = new BBIFile(BigBedFileReaderTest.TEST_BIGBED, 1);
+    expectedBigWig = new BBFileReader(BigWigFileReaderTest.TEST_BIGWIG.toString());
+    expectedBigBed = new BBFileReader(BigBedFileReaderTest.TEST_BIGBED.toString());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    bigWig.close();
+    bigBed.close();
+    expectedBigWig.getBBFis().close();
+    expectedBigBed.getBBFis().close();
+  }
+
+  @Test
+  public void testSniff() throws IOException {
+    assertEquals(BBIFile.BIGWIG_MAGIC, BBIFile.sniff(BigWigFileReaderTest.TEST_BIGWIG));
+    assertEquals(BBIFile.BIGBED_MAGIC, BBIFile.sniff(BigBedFileReaderTest.TEST_BIGBED));
+    assertEquals(0, BBIFile.sniff(TextWigFileReaderTest.TEST_WIG));
+    assertTrue(bigWig.isBigWig());
+    assertTrue(bigBed.isBigBed());
+  }
+
+  @Test
+  public void testHeader() {
+    assertHeaderEquals(expectedBigWig, bigWig);
+    assertHeaderEquals(expectedBigBed, bigBed);
+
+    for (String chr : bigWig.getChromosomes()) {
+      int chrID = bigWig.getChromosomeID(chr);
+      assertEquals(expectedBigWig.getChromosomeID(chr), chrID);
+      assertEquals(chr, bigWig.getChromosome(chrID));
+      RPChromosomeRegion bounds = expectedBigWig.getChromosomeBounds(chrID, chrID);
+      assertEquals(bounds.getStartBase(), bigWig.getChromosomeStart(chrID));
+      assertEquals(bounds.getEndBase(), bigWig.getChromosomeStop(chrID));
+    }
+    assertNull(bigWig.getChromosomeID("chrNone"));
+  }
+
+  @Test
+  public void testWigRecords() throws IOException {
+    for (String chr : bigWig.getChromosomes()) {
+      for (int[] region : REGIONS) {
+        List<String> expected = new ArrayList<>();
+        BigWigIterator it = expectedBigWig.getBigWigIterator(chr, region[0], chr, region[1], false);
+        while (it.hasNext()) {
+          WigItem item = it.next();
+          expected.add(item.getChromosome() + ":" + item.getStartBase() + "-" + item.getEndBase() + "="
+              + item.getWigValue());
+        }
+
+        BBIFile.WigRecords records = new BBIFile.WigRecords();
+        bigWig.query(0, bigWig.getChromosomeID(chr), region[0], region[1], records);
+        List<String> actual = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+          actual.add(bigWig.getChromosome(records.chrIDs[i]) + ":" + records.starts[i] + "-" + records.ends[i] + "="
+              + records.values[i]);
+        }
+        assertEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testGrowRecords() throws IOException {
+    // Append the records of many queries, so that the arrays grow while a
+    // block is being decoded
+    String chr = bigWig.getChromosomes().get(0);
+    int chrID = bigWig.getChromosomeID(chr);
+    BBIFile.WigRecords once = new BBIFile.WigRecords();
+    bigWig.query(0, chrID, 0, Integer.MAX_VALUE, once);
+    assertTrue(once.size() > 0);
+    BBIFile.WigRecords records = new BBIFile.WigRecords();
+    int n = 200 / once.size() + 1;
+    for (int k = 0; k < n; k++) {
+      bigWig.query(0, chrID, 0, Integer.MAX_VALUE, records);
+    }
+    assertEquals(n * once.size(), records.size());
+    for (int i = 0; i < records.size(); i++) {
+      int j = i % once.size();
+      assertEquals(once.starts[j], records.starts[i]);
+      assertEquals(once.values[j], records.values[i], 0);
+    }
+
+    BBIFile.BedRecords bed = new BBIFile.BedRecords();
+    bigBed.read(bigBed.findBlocks(0, BBIFile.ALL, 0, 0), BBIFile.ALL, 0, 0, bed);
+    List<String> expected = toStrings(bed);
+    bed.clear();
+    int m = 200 / expected.size() + 1;
+    for (int k = 0; k < m; k++) {
+      bigBed.read(bigBed.findBlocks(0, BBIFile.ALL, 0, 0), BBIFile.ALL, 0, 0, bed);
+    }
+    List<String> actual = toStrings(bed);
+    assertEquals(m * expected.size(), actual.size());
+    for (int k = 0; k < m; k++) {
+      assertEquals(expected, actual.subList(k * expected.size(), (k + 1) * expected.size()));
+    }
+  }
+
+  @Test
+  public void testZoomRecords() throws IOException {
+    for (int level = 1; level <= bigWig.getNumZoomLevels(); level++) {
+      for (String chr : bigWig.getChromosomes()) {
+        for (int[] region : REGIONS) {
+          List<String> expected = new ArrayList<>();
+          ZoomLevelIterator it = expectedBigWig.getZoomLevelIterator(level, chr, region[0], chr, region[1], false);
+          while (it.hasNext()) {
+            ZoomDataRecord r = it.next();
+            expected.add(Arrays.toString(new float[] { r.getChromId(), r.getChromStart(), r.getChromEnd(),
+                r.getBasesCovered(), r.getMinVal(), r.getMaxVal(), r.getSumData(), r.getSumSquares() }));
+          }
+
+          BBIFile.ZoomRecords records = new BBIFile.ZoomRecords();
+          bigWig.query(level, bigWig.getChromosomeID(chr), region[0], region[1], records);
+          List<String> actual = new ArrayList<>();
+          for (int i = 0; i < records.size(); i++) {
+            actual.add(Arrays.toString(new float[] { records.chrIDs[i], records.starts[i], records.ends[i],
+                records.validCounts[i], records.mins[i], records.maxs[i], records.sums[i], records.sumSquares[i] }));
+          }
+          assertEquals(expected, actual);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBedRecords() throws IOException {
+    List<String> expectedAll = new ArrayList<>();
+    BigBedIterator all = expectedBigBed.getBigBedIterator();
+    while (all.hasNext()) {
+      expectedAll.add(toString(all.next()));
+    }
+    BBIFile.BedRecords records = new BBIFile.BedRecords();
+    bigBed.read(bigBed.findBlocks(0, BBIFile.ALL, 0, 0), BBIFile.ALL, 0, 0, records);
+    assertEquals(expectedAll, toStrings(records));
+
+    for (String chr : bigBed.getChromosomes()) {
+      for (int[] region : REGIONS) {
+        List<String> expected = new ArrayList<>();
+        BigBedIterator it = expectedBigBed.getBigBedIterator(chr, region[0], chr, region[1], false);
+        while (it.hasNext()) {
+          expected.add(toString(it.next()));
+        }
+
+        records.clear();
+        bigBed.query(0, bigBed.getChromosomeID(chr), region[0], region[1], records);
+        assertEquals(expected, toStrings(records));
+      }
+    }
+  }
+
+  private static void assertHeaderEquals(BBFileReader expected, BBIFile actual) {
+    assertEquals(expected.getChromosomeNames(), actual.getChromosomes());
+    assertEquals(expected.getDataCount(), actual.getDataCount());
+    assertEquals(expected.getZoomLevelCount(), actual.getNumZoomLevels());
+    for (int level = 1; level <= actual.getNumZoomLevels(); level++) {
+      assertEquals(expected.getZoomLevels().getZoomLevelHeader(level).getReductionLevel(),
+          actual.getReductionLevel(level));
+    }
+
+    BBTotalSummaryBlock summary = expected.getTotalSummaryBlock();
+    assertEquals(summary.getBasesCovered(), actual.getBasesCovered());
+    assertEquals(summary.getMinVal(), actual.getMinVal(), 0);
+    assertEquals(summary.getMaxVal(), actual.getMaxVal(), 0);
+    assertEquals(summary.getSumData(), actual.getSumData(), 0);
+    assertEquals(summary.getSumSquares(), actual.getSumSquares(), 0);
+  }
+
+  private static String toString(BedFeature f) {
+    return f.getChromosome() + ":" + f.getStartBase() + "-" + f.getEndBase() + "="
+        + Arrays.toString(f.getRestOfFields());
+  }
+
+  private List<String> toStrings(BBIFile.BedRecords records) {
+    List<String> strings = new ArrayList<>();
+    for (int i = 0; i < records.size(); i++) {
+      strings.add(bigBed.getChromosome(records.chrIDs[i]) + ":" + records.starts[i] + "-" + records.ends[i] + "="
+          + Arrays.toString(records.rest[i].split("\t")));
+    }
+    return strings;
+  }
+
+}
@@ -1,17 +1,60 @@
 package edu.unc.genomics.io;
 
+import static org.junit.Assert.*;
+
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.BedEntry;
 
 public class BigBedFileReaderTest extends AbstractBedFileReaderTest {
 
   public static final Path TEST_BIGBED = Paths.get("test/fixtures/test.bb");
+  public static final Path TEST_BED = Paths.get("test/fixtures/test.bed");
 
   @Before
   public void setUp() throws Exception {
     test = new BigBedFileReader(TEST_BIGBED);
   }
 
+  @Test
+  public void testCoordinates() throws Exception {
+    // Entries have the same (1-based) coordinates as from the Bed file (test.bb
+    // only has the chromosome, start and end of each record)
+    BigBedFileReader bigBed = (BigBedFileReader) test;
+    List<String> expected = new ArrayList<>();
+    try (BedFileReader bed = new BedFileReader(TEST_BED)) {
+      for (BedEntry entry : bed) {
+        expected.add(toString(entry));
+      }
+    }
+    List<String> actual = new ArrayList<>();
+    for (BedEntry entry : bigBed) {
+      actual.add(toString(entry));
+    }
+    assertEquals(expected.size(), actual.size());
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+
+    // chrI 10 30 Spot1 in the Bed file
+    Iterator<BedEntry> it = bigBed.query("chrI", 11, 11);
+    BedEntry spot1 = it.next();
+    assertFalse(it.hasNext());
+    assertEquals(11, spot1.getStart());
+    assertEquals(30, spot1.getStop());
+    assertFalse(bigBed.query("chrI", 31, 94).hasNext());
+  }
+
+  private static String toString(BedEntry entry) {
+    return entry.getChr() + ":" + entry.low() + "-" + entry.high();
+  }
+
 }
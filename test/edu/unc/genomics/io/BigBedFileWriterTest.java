@@ -0,0 +1,185 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BBTotalSummaryBlock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Assembly;
+import edu.unc.genomics.BedEntry;
+
+/**
+ * Round-trip test.bed through BigBedFileWriter and BigBedFileReader
+ */
+public class BigBedFileWriterTest extends AbstractBedFileReaderTest {
+
+  public static final Path TEST_SORTED_BED = Paths.get("test/fixtures/test.bed.sorted");
+
+  private Path bb;
+  private Assembly assembly;
+
+  @Before
+  public void setUp() throws Exception {
+    bb = Files.createTempFile("test", ".bb");
+    assembly = new Assembly(Paths.get("test/fixtures/test.len"));
+    try (BedFileReader reader = new BedFileReader(TEST_SORTED_BED);
+        BigBedFileWriter<BedEntry> writer = new BigBedFileWriter<>(bb, assembly, 2, true)) {
+      for (BedEntry entry : reader) {
+        writer.write(entry);
+      }
+    }
+    test = new BigBedFileReader(bb);
+  }
+
+  @After
+  public void deleteTempFile() throws Exception {
+    Files.deleteIfExists(bb);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    try (BedFileReader reader = new BedFileReader(TEST_SORTED_BED)) {
+      List<BedEntry> expected = reader.loadAll();
+      List<? extends BedEntry> actual = ((BigBedFileReader) test).loadAll();
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        BedEntry e = expected.get(i);
+        BedEntry a = actual.get(i);
+        assertEquals(e.getChr(), a.getChr());
+        assertEquals(e.getStart(), a.getStart());
+        assertEquals(e.getStop(), a.getStop());
+        assertEquals(e.getId(), a.getId());
+        if (e.getValue() == null) {
+          assertNull(a.getValue());
+        } else {
+          assertEquals(e.getValue().intValue(), a.getValue().intValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testQueryName() {
+    BigBedFileReader reader = (BigBedFileReader) test;
+    List<String> spot1 = new ArrayList<>();
+    Iterator<BedEntry> it = reader.queryName("Spot1");
+    while (it.hasNext()) {
+      BedEntry entry = it.next();
+      assertEquals("Spot1", entry.getId());
+      spot1.add(entry.getChr());
+    }
+    assertEquals(2, spot1.size());
+    assertTrue(spot1.contains("chrI"));
+    assertTrue(spot1.contains("chrII"));
+
+    assertFalse(reader.queryName("Spot").hasNext());
+    assertFalse(reader.queryName("None").hasNext());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testQueryNameWithoutIndex() throws Exception {
+    try (BigBedFileReader reader = new BigBedFileReader(BigBedFileReaderTest.TEST_BIGBED)) {
+      reader.queryName("Spot1");
+    }
+  }
+
+  @Test
+  public void testCoverageSummary() throws Exception {
+    BBFileReader reader = new BBFileReader(bb.toString());
+    try {
+      assertTrue(reader.isBigBedFile());
+      assertEquals(10, reader.getDataCount());
+      BBTotalSummaryBlock summary = reader.getTotalSummaryBlock();
+      // Bases covered by at least one entry, and the total depth of coverage
+      assertEquals(25 + 40 + 5 + 1032, summary.getBasesCovered());
+      assertEquals(30 + 45 + 5 + 1041, summary.getSumData(), 0);
+      assertEquals(1, summary.getMinVal(), 0);
+      assertEquals(2, summary.getMaxVal(), 0);
+    } finally {
+      reader.getBBFis().close();
+    }
+  }
+
+  @Test
+  public void testChromosomeIDs() throws Exception {
+    // Most of the chromosomes of the assembly (including 2micron, the first)
+    // have no data
+    try (BBIFile bbi = new BBIFile(bb, 1)) {
+      assertEquals(Arrays.asList("chrI", "chrII", "chrIII", "chrIV"), bbi.getChromosomes());
+      for (int i = 0; i < bbi.getChromosomes().size(); i++) {
+        assertEquals(i, (int) bbi.getChromosomeID(bbi.getChromosomes().get(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteUnsorted() throws Exception {
+    List<BedEntry> expected;
+    try (BedFileReader reader = new BedFileReader(TEST_SORTED_BED)) {
+      expected = reader.loadAll();
+    }
+    Path tmp = Files.createTempFile("test", ".bb");
+    try {
+      // Write the chromosomes in the reverse order of their names
+      List<String> chromosomes = Arrays.asList("chrIV", "chrIII", "chrII", "chrI");
+      try (BigBedFileWriter<BedEntry> writer = new BigBedFileWriter<>(tmp, assembly, 2, true)) {
+        for (String chr : chromosomes) {
+          for (BedEntry entry : expected) {
+            if (entry.getChr().equals(chr)) {
+              writer.write(entry);
+            }
+          }
+        }
+      }
+
+      try (BBIFile bbi = new BBIFile(tmp, 1)) {
+        assertEquals(Arrays.asList("chrI", "chrII", "chrIII", "chrIV"), bbi.getChromosomes());
+        for (int i = 0; i < bbi.getChromosomes().size(); i++) {
+          assertEquals(i, (int) bbi.getChromosomeID(bbi.getChromosomes().get(i)));
+        }
+      }
+
+      try (BigBedFileReader reader = new BigBedFileReader(tmp)) {
+        for (String chr : chromosomes) {
+          Iterator<BedEntry> it = reader.query(chr, 1, assembly.getChrLength(chr));
+          for (BedEntry e : expected) {
+            if (e.getChr().equals(chr)) {
+              BedEntry a = it.next();
+              assertEquals(chr, a.getChr());
+              assertEquals(e.getStart(), a.getStart());
+              assertEquals(e.getStop(), a.getStop());
+              assertEquals(e.getId(), a.getId());
+            }
+          }
+          assertFalse(it.hasNext());
+        }
+        assertEquals("chrIII", reader.queryName("Spot4").next().getChr());
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteOutOfOrder() throws Exception {
+    Path tmp = Files.createTempFile("test", ".bb");
+    try (BigBedFileWriter<BedEntry> writer = new BigBedFileWriter<>(tmp, assembly)) {
+      writer.write(new BedEntry("chrI", 100, 200));
+      writer.write(new BedEntry("chrI", 50, 60));
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+}
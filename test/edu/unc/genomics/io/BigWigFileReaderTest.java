@@ -1,9 +1,22 @@
 package edu.unc.genomics.io;
 
+import static org.junit.Assert.*;
+
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.WeightedSummaryStatistics;
 
 public class BigWigFileReaderTest extends AbstractWigFileReaderTest {
 
@@ -14,4 +27,87 @@ public class BigWigFileReaderTest extends AbstractWigFileReaderTest {
     test = new BigWigFileReader(TEST_BIGWIG);
   }
 
+  @Test
+  public void testZoomStats() throws Exception {
+    // The test file's coarsest zoom level has 1480 bp records, so these
+    // intervals are summarized from the zoom levels, with partial records
+    // (and records cut by bins) read from the raw data
+    try (BigWigFileReader exact = new BigWigFileReader(TEST_BIGWIG)) {
+      exact.setExact(true);
+      assertTrue(exact.isExact());
+      assertTrue(test.queryStats("chrXI", 1, 30001) instanceof WeightedSummaryStatistics);
+      assertTrue(exact.queryStats("chrXI", 1, 30001) instanceof WeightedSummaryStatistics);
+      for (String chr : test.chromosomes()) {
+        for (int start : new int[] { -2921, -2920, 1, 10, 50, 103 }) {
+          Interval interval = new Interval(chr, start, start + 30000);
+          assertStatsEqual(exact.queryStats(interval), test.queryStats(interval));
+
+          for (int numBins : new int[] { 1, 2, 3, 10 }) {
+            SummaryStatistics[] expected = exact.queryBinnedStats(interval, numBins);
+            SummaryStatistics[] actual = test.queryBinnedStats(interval, numBins);
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+              assertStatsEqual(expected[i], actual[i]);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentQueries() throws Exception {
+    // More threads than concurrent queries, so queries wait for a decoder
+    final BigWigFileReader shared = new BigWigFileReader(TEST_BIGWIG, 2);
+    shared.setBlockCache(new WigBlockCache(0));
+    final List<Interval> intervals = new ArrayList<>();
+    for (String chr : test.chromosomes()) {
+      for (int start = -50; start < 2000; start += 97) {
+        intervals.add(new Interval(chr, start, start + 500));
+      }
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<float[][]>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        futures.add(pool.submit(new Callable<float[][]>() {
+          @Override
+          public float[][] call() throws Exception {
+            float[][] results = new float[intervals.size()][];
+            for (int i = 0; i < intervals.size(); i++) {
+              results[i] = shared.query(intervals.get(i)).getValues();
+            }
+            return results;
+          }
+        }));
+      }
+
+      for (Future<float[][]> f : futures) {
+        float[][] results = f.get();
+        for (int i = 0; i < intervals.size(); i++) {
+          assertArrayEquals(test.query(intervals.get(i)).getValues(), results[i], 0);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+      shared.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoConcurrentQueries() throws Exception {
+    new BigWigFileReader(TEST_BIGWIG, 0);
+  }
+
+  private static void assertStatsEqual(SummaryStatistics expected, SummaryStatistics actual) {
+    assertEquals(expected.getN(), actual.getN());
+    if (expected.getN() > 0) {
+      assertEquals(expected.getSum(), actual.getSum(), 1e-4);
+      assertEquals(expected.getMin(), actual.getMin(), 0);
+      assertEquals(expected.getMax(), actual.getMax(), 0);
+      assertEquals(expected.getVariance(), actual.getVariance(), 1e-4);
+    }
+  }
+
 }
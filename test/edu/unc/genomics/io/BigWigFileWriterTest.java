@@ -0,0 +1,271 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BigWigIterator;
+import org.broad.igv.bbfile.WigItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Assembly;
+import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
+
+public class BigWigFileWriterTest {
+
+  private Path bw;
+  private Assembly assembly;
+  private Map<String, float[]> expected = new HashMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    bw = Files.createTempFile("test", ".bw");
+    assembly = new Assembly(Paths.get("test/fixtures/test.len"));
+
+    // Runs of random lengths with gaps, written as a Contig
+    Random rng = new Random(42);
+    float[] dense = new float[60000];
+    for (int i = 0; i < dense.length;) {
+      int length = 1 + rng.nextInt(20);
+      float value = (rng.nextInt(10) == 0) ? Float.NaN : rng.nextInt(5) - 1.5f;
+      Arrays.fill(dense, i, Math.min(dense.length, i + length), value);
+      i += length;
+    }
+    expected.put("chrI", dense);
+
+    // Fixed step and span
+    float[] fixed = new float[50000];
+    Arrays.fill(fixed, Float.NaN);
+    for (int bp = 101; bp + 4 <= fixed.length; bp += 10) {
+      Arrays.fill(fixed, bp - 1, bp + 4, (float) rng.nextGaussian());
+    }
+    expected.put("chrII", fixed);
+
+    // A few long runs
+    float[] sparse = new float[300000];
+    Arrays.fill(sparse, Float.NaN);
+    Arrays.fill(sparse, 999, 120000, 2.5f);
+    Arrays.fill(sparse, 150000, 150001, -7);
+    Arrays.fill(sparse, 200000, 299999, 1e6f);
+    expected.put("chrIII", sparse);
+
+    try (BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 2)) {
+      writer.write(new Contig("chrI", 1, dense.length, dense));
+      writeRuns(writer, "chrII", fixed);
+      writeRuns(writer, "chrIII", sparse);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(bw);
+  }
+
+  private static void writeRuns(BigWigFileWriter writer, String chr, float[] values) throws Exception {
+    for (int i = 0; i < values.length; i++) {
+      if (!Float.isNaN(values[i])) {
+        int j = i;
+        while (j + 1 < values.length && values[j + 1] == values[i]) {
+          j++;
+        }
+        writer.write(chr, i + 1, j + 1, values[i]);
+        i = j;
+      }
+    }
+  }
+
+  @Test
+  public void testQuery() throws Exception {
+    try (BigWigFileReader reader = new BigWigFileReader(bw)) {
+      assertEquals(expected.keySet(), reader.chromosomes());
+      Random rng = new Random(7);
+      for (Map.Entry<String, float[]> entry : expected.entrySet()) {
+        String chr = entry.getKey();
+        float[] values = entry.getValue();
+        for (int i = 0; i < 100; i++) {
+          int start = 1 + rng.nextInt(values.length);
+          int stop = Math.min(values.length, start + rng.nextInt(5000));
+          Interval interval = new Interval(chr, start, stop);
+          assertArrayEquals(Arrays.copyOfRange(values, start - 1, stop), reader.query(interval).getValues(), 0);
+        }
+      }
+
+      assertEquals(1, reader.getChrStart("chrI"));
+      assertEquals(60000, reader.getChrStop("chrI"));
+      assertEquals(101, reader.getChrStart("chrII"));
+      assertEquals(1000, reader.getChrStart("chrIII"));
+      assertEquals(299999, reader.getChrStop("chrIII"));
+    }
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    try (BigWigFileReader reader = new BigWigFileReader(bw);
+        BigWigFileReader exact = new BigWigFileReader(bw)) {
+      exact.setExact(true);
+      SummaryStatistics total = new SummaryStatistics();
+      for (float[] values : expected.values()) {
+        for (float value : values) {
+          if (!Float.isNaN(value)) {
+            total.addValue(value);
+          }
+        }
+      }
+      assertEquals(total.getN(), reader.numBases());
+      assertEquals(total.getSum(), reader.total(), 1e-3 * Math.abs(total.getSum()));
+      assertEquals(total.getMin(), reader.min(), 0);
+      assertEquals(total.getMax(), reader.max(), 0);
+
+      for (String chr : expected.keySet()) {
+        for (int start : new int[] { 1, 37, 5001 }) {
+          Interval interval = new Interval(chr, start, start + 40000);
+          SummaryStatistics expectedStats = exact.queryStats(interval);
+          SummaryStatistics actualStats = reader.queryStats(interval);
+          assertEquals(expectedStats.getN(), actualStats.getN());
+          assertEquals(expectedStats.getSum(), actualStats.getSum(), 1e-4 * Math.abs(expectedStats.getSum()) + 1e-3);
+          assertEquals(expectedStats.getMin(), actualStats.getMin(), 0);
+          assertEquals(expectedStats.getMax(), actualStats.getMax(), 0);
+        }
+      }
+    }
+
+    try (BBIFile bbi = new BBIFile(bw, 1)) {
+      assertTrue(bbi.getNumZoomLevels() > 0);
+    }
+  }
+
+  @Test
+  public void testBroadReader() throws Exception {
+    BBFileReader reader = new BBFileReader(bw.toString());
+    try {
+      assertTrue(reader.isBigWigFile());
+      long numBases = 0;
+      BigWigIterator it = reader.getBigWigIterator();
+      while (it.hasNext()) {
+        WigItem item = it.next();
+        float[] values = expected.get(item.getChromosome());
+        for (int bp = item.getStartBase(); bp < item.getEndBase(); bp++) {
+          assertEquals(values[bp], item.getWigValue(), 0);
+        }
+        numBases += item.getEndBase() - item.getStartBase();
+      }
+      assertEquals(reader.getTotalSummaryBlock().getBasesCovered(), numBases);
+    } finally {
+      reader.getBBFis().close();
+    }
+  }
+
+  @Test
+  public void testChromosomeIDs() throws Exception {
+    // 2micron (the first chromosome of the assembly) has no data
+    try (BBIFile bbi = new BBIFile(bw, 1)) {
+      assertEquals(Arrays.asList("chrI", "chrII", "chrIII"), bbi.getChromosomes());
+      for (int i = 0; i < bbi.getChromosomes().size(); i++) {
+        assertEquals(i, (int) bbi.getChromosomeID(bbi.getChromosomes().get(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteUnsorted() throws Exception {
+    try (BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 2)) {
+      writeRuns(writer, "chrIII", expected.get("chrIII"));
+      writeRuns(writer, "chrI", expected.get("chrI"));
+      writeRuns(writer, "chrII", expected.get("chrII"));
+    }
+
+    try (BBIFile bbi = new BBIFile(bw, 1)) {
+      assertEquals(Arrays.asList("chrI", "chrII", "chrIII"), bbi.getChromosomes());
+      for (int i = 0; i < bbi.getChromosomes().size(); i++) {
+        assertEquals(i, (int) bbi.getChromosomeID(bbi.getChromosomes().get(i)));
+      }
+    }
+
+    try (BigWigFileReader reader = new BigWigFileReader(bw);
+        BigWigFileReader exact = new BigWigFileReader(bw)) {
+      exact.setExact(true);
+      for (Map.Entry<String, float[]> entry : expected.entrySet()) {
+        float[] values = entry.getValue();
+        Interval interval = new Interval(entry.getKey(), 1, values.length);
+        assertArrayEquals(values, reader.query(interval).getValues(), 0);
+
+        // Summarized by the (renumbered) zoom levels
+        SummaryStatistics expectedStats = exact.queryStats(interval);
+        SummaryStatistics actualStats = reader.queryStats(interval);
+        assertEquals(expectedStats.getN(), actualStats.getN());
+        assertEquals(expectedStats.getSum(), actualStats.getSum(), 1e-4 * Math.abs(expectedStats.getSum()) + 1e-3);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteOutOfOrder() throws Exception {
+    try (BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 1)) {
+      writer.write("chrI", 100, 200, 1);
+      writer.write("chrI", 150, 160, 2);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteChromosomeTwice() throws Exception {
+    // Interleaved chromosomes would give duplicate zoom records
+    try (BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 1)) {
+      writer.write("chrI", 100, 200, 1);
+      writer.write("chrII", 100, 200, 2);
+      writer.write("chrI", 300, 400, 3);
+    }
+  }
+
+  @Test
+  public void testWriteEmpty() throws Exception {
+    new BigWigFileWriter(bw, assembly, 1).close();
+    try (BBIFile bbi = new BBIFile(bw, 1)) {
+      assertEquals(0, bbi.getNumZoomLevels());
+    }
+  }
+
+  @Test
+  public void testTempFiles() throws Exception {
+    // The zoom levels are spilled next to the file, and deleted when it is
+    // closed
+    BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 1);
+    writer.write("chrI", 100, 200, 1);
+    assertFalse(tempFiles().isEmpty());
+    writer.close();
+    assertEquals(Collections.emptyList(), tempFiles());
+  }
+
+  private List<Path> tempFiles() throws Exception {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> dir = Files.newDirectoryStream(bw.toAbsolutePath().getParent(),
+        bw.getFileName() + "?*")) {
+      for (Path file : dir) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteUnknownChromosome() throws Exception {
+    try (BigWigFileWriter writer = new BigWigFileWriter(bw, assembly, 1)) {
+      writer.write("chrNone", 100, 200, 1);
+    }
+  }
+
+}
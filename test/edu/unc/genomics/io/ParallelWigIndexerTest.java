@@ -0,0 +1,117 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.util.ChecksumUtils;
+
+public class ParallelWigIndexerTest {
+
+  // Range sizes that split the test file within lines, headers and line
+  // terminators
+  private static final long[] RANGE_SIZES = { 1, 2, 3, 7, 16, 50, 101 };
+
+  private ParallelWigIndexer single;
+
+  @Before
+  public void setUp() throws Exception {
+    single = new ParallelWigIndexer(TextWigFileReaderTest.TEST_WIG, 1, 1, Long.MAX_VALUE);
+    single.run();
+  }
+
+  @Test
+  public void testChecksum() throws IOException, WigFileFormatException {
+    long expected = ChecksumUtils.crc32(TextWigFileReaderTest.TEST_WIG);
+    assertEquals(expected, single.getChecksum());
+    for (long rangeSize : RANGE_SIZES) {
+      assertEquals(expected, index(rangeSize).getChecksum());
+    }
+  }
+
+  @Test
+  public void testStats() throws IOException, WigFileFormatException {
+    assertEquals(7.677, single.getStats().getMean(), 1e-3);
+    for (long rangeSize : RANGE_SIZES) {
+      ParallelWigIndexer indexer = index(rangeSize);
+      assertEquals(single.getStats().getN(), indexer.getStats().getN());
+      assertEquals(single.getStats().getSum(), indexer.getStats().getSum(), 1e-9);
+      assertEquals(single.getStats().getPopulationVariance(), indexer.getStats().getPopulationVariance(), 1e-9);
+      assertEquals(single.getStats().getMin(), indexer.getStats().getMin(), 0);
+      assertEquals(single.getStats().getMax(), indexer.getStats().getMax(), 0);
+    }
+  }
+
+  @Test
+  public void testContigs() throws IOException, WigFileFormatException {
+    for (long rangeSize : RANGE_SIZES) {
+      Map<String, List<ContigIndex>> contigs = index(rangeSize).getContigs();
+      assertEquals(single.getContigs().keySet(), contigs.keySet());
+      for (String chr : contigs.keySet()) {
+        List<ContigIndex> expected = single.getContigs().get(chr);
+        List<ContigIndex> actual = contigs.get(chr);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          ContigIndex e = expected.get(i);
+          ContigIndex a = actual.get(i);
+          assertEquals(e.toOutput(), a.toOutput());
+          assertEquals(e.getStart(), a.getStart());
+          assertEquals(e.getStop(), a.getStop());
+          assertEquals(e.getStartLine(), a.getStartLine());
+          assertEquals(e.getStopLine(), a.getStopLine());
+          // Every data line is a checkpoint with a spacing of 1 byte
+          assertEquals(e.numCheckpoints(), a.numCheckpoints());
+          for (int j = 0; j < e.numCheckpoints(); j++) {
+            assertEquals(e.getCheckpointBP(j), a.getCheckpointBP(j));
+            assertEquals(e.getCheckpointOffset(j), a.getCheckpointOffset(j));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLineEndings() throws IOException, WigFileFormatException {
+    String text = new String(Files.readAllBytes(TextWigFileReaderTest.TEST_WIG), StandardCharsets.US_ASCII);
+    for (String terminator : new String[] { "\r", "\r\n" }) {
+      Path tmp = Files.createTempFile("test", ".wig");
+      try {
+        Files.write(tmp, text.replace("\n", terminator).getBytes(StandardCharsets.US_ASCII));
+        for (long rangeSize : RANGE_SIZES) {
+          ParallelWigIndexer indexer = new ParallelWigIndexer(tmp, 3, 1, rangeSize);
+          indexer.run();
+          assertEquals(single.getStats().getN(), indexer.getStats().getN());
+          assertEquals(single.getStats().getSum(), indexer.getStats().getSum(), 1e-9);
+          for (String chr : single.getContigs().keySet()) {
+            List<ContigIndex> expected = single.getContigs().get(chr);
+            List<ContigIndex> actual = indexer.getContigs().get(chr);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+              assertEquals(expected.get(i).getStop(), actual.get(i).getStop());
+              assertEquals(expected.get(i).getStartLine(), actual.get(i).getStartLine());
+              assertEquals(expected.get(i).getStopLine(), actual.get(i).getStopLine());
+              assertEquals(expected.get(i).numCheckpoints(), actual.get(i).numCheckpoints());
+            }
+          }
+        }
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+  private static ParallelWigIndexer index(long rangeSize) throws IOException, WigFileFormatException {
+    ParallelWigIndexer indexer = new ParallelWigIndexer(TextWigFileReaderTest.TEST_WIG, 3, 1, rangeSize);
+    indexer.run();
+    return indexer;
+  }
+
+}
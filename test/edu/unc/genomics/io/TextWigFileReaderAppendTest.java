@@ -0,0 +1,100 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Interval;
+
+/**
+ * Append data to an indexed Wig file, and check that the reopened file matches
+ * a freshly indexed copy
+ */
+public class TextWigFileReaderAppendTest {
+
+  private Path dir;
+  private Path wig;
+  private WigIndexOptions options;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("append");
+    wig = dir.resolve("test.wig");
+    Files.copy(TextWigFileReaderTest.TEST_WIG, wig);
+    append(wig, "\n");
+    options = new WigIndexOptions();
+    options.setSummaryBinSizes(2, 7);
+    new TextWigFileReader(wig, options).close();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path f : files) {
+        Files.delete(f);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  private static void append(Path p, String text) throws Exception {
+    Files.write(p, text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+  }
+
+  @Test
+  public void testAppendContigs() throws Exception {
+    append(wig, "fixedStep chrom=chrNew start=3 step=2 span=2\n4\n5\n6\n");
+    append(wig, "variableStep chrom=chrI span=3\n30\t2.5\n40\t-1\n");
+    assertMatchesReindexed();
+
+    // Append again to the extended index
+    append(wig, "fixedStep chrom=chrXI start=200 step=1\n1\n2\n");
+    assertMatchesReindexed();
+  }
+
+  @Test
+  public void testAppendContinuesContig() throws Exception {
+    // Without a new contig header, the file must be reindexed
+    append(wig, "120\t3\n");
+    assertMatchesReindexed();
+  }
+
+  private void assertMatchesReindexed() throws Exception {
+    Path copy = dir.resolve("copy.wig");
+    Files.deleteIfExists(copy.resolveSibling(copy.getFileName() + TextWigFileReader.INDEX_EXTENSION));
+    Files.copy(wig, copy, StandardCopyOption.REPLACE_EXISTING);
+
+    try (TextWigFileReader actual = new TextWigFileReader(wig, options);
+        TextWigFileReader expected = new TextWigFileReader(copy, options)) {
+      assertEquals(expected.chromosomes(), actual.chromosomes());
+      assertEquals(expected.numBases(), actual.numBases());
+      assertEquals(expected.total(), actual.total(), 1e-9);
+      assertEquals(expected.stdev(), actual.stdev(), 1e-9);
+      assertEquals(expected.min(), actual.min(), 0);
+      assertEquals(expected.max(), actual.max(), 0);
+      for (String chr : expected.chromosomes()) {
+        assertEquals(expected.getChrStart(chr), actual.getChrStart(chr));
+        assertEquals(expected.getChrStop(chr), actual.getChrStop(chr));
+        for (int start = expected.getChrStart(chr) - 3; start <= expected.getChrStop(chr); start += 2) {
+          Interval interval = new Interval(chr, start, start + 9);
+          assertArrayEquals(expected.query(interval).getValues(), actual.query(interval).getValues(), 0);
+          SummaryStatistics expectedStats = expected.queryStats(interval);
+          SummaryStatistics actualStats = actual.queryStats(interval);
+          assertEquals(expectedStats.getN(), actualStats.getN());
+          assertEquals(expectedStats.getSum(), actualStats.getSum(), 1e-9);
+        }
+      }
+    }
+  }
+
+}
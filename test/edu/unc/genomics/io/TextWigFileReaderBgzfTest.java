@@ -0,0 +1,133 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.unc.genomics.Interval;
+
+/**
+ * Read the test Wig file compressed with BGZF, in tiny blocks so that lines,
+ * contigs and queries span many blocks
+ */
+public class TextWigFileReaderBgzfTest extends AbstractWigFileReaderTest {
+
+  // Uncompressed bytes per BGZF block
+  private static final int BLOCK_SIZE = 7;
+
+  private static Path dir;
+  private static Path bgzf;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    dir = Files.createTempDirectory("bgzf");
+    bgzf = dir.resolve("blocks.wig.bgz");
+    byte[] text = Files.readAllBytes(TextWigFileReaderTest.TEST_WIG);
+    BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(bgzf.toFile());
+    try {
+      for (int i = 0; i < text.length; i += BLOCK_SIZE) {
+        bcos.write(text, i, Math.min(BLOCK_SIZE, text.length - i));
+        bcos.flush();
+      }
+    } finally {
+      bcos.close();
+    }
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path f : files) {
+        Files.delete(f);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    test = new TextWigFileReader(bgzf);
+  }
+
+  @Test
+  public void testUncompressedContents() throws Exception {
+    byte[] expected = Files.readAllBytes(TextWigFileReaderTest.TEST_WIG);
+    try (BgzfFileChannel channel = BgzfFileChannel.open(bgzf)) {
+      assertEquals(expected.length, channel.size());
+      // Read at every offset, across block boundaries
+      for (int offset = 0; offset < expected.length; offset++) {
+        ByteBuffer buf = ByteBuffer.allocate(37);
+        int n = channel.read(buf, offset);
+        assertEquals(Math.min(37, expected.length - offset), n);
+        for (int i = 0; i < n; i++) {
+          assertEquals(expected[offset + i], buf.get(i));
+        }
+      }
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1), expected.length));
+    }
+  }
+
+  @Test
+  public void testBlocksFromIndex() throws Exception {
+    // The index has the blocks, so the file can be reopened without a scan
+    BgzfFileChannel.Blocks blocks = WigIndex.load(bgzf.resolveSibling(bgzf.getFileName() + TextWigFileReader.INDEX_EXTENSION)).getBgzfBlocks();
+    assertNotNull(blocks);
+    byte[] expected = Files.readAllBytes(TextWigFileReaderTest.TEST_WIG);
+    try (BgzfFileChannel channel = BgzfFileChannel.open(bgzf, blocks)) {
+      assertEquals(expected.length / BLOCK_SIZE + 1, channel.getBlocks().numBlocks());
+      assertContents(expected, channel);
+    }
+
+    // Blocks that do not match the file are scanned again
+    Path other = dir.resolve("other.wig.bgz");
+    BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(other.toFile());
+    try {
+      bcos.write(expected);
+    } finally {
+      bcos.close();
+    }
+    try (BgzfFileChannel channel = BgzfFileChannel.open(other, blocks)) {
+      assertEquals(1, channel.getBlocks().numBlocks());
+      assertContents(expected, channel);
+    }
+  }
+
+  private static void assertContents(byte[] expected, BgzfFileChannel channel) throws Exception {
+    ByteBuffer buf = ByteBuffer.allocate(expected.length + 1);
+    assertEquals(expected.length, channel.read(buf, 0));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], buf.get(i));
+    }
+  }
+
+  @Test
+  public void testRecompressGzip() throws Exception {
+    Path gzip = dir.resolve("test.wig.gz");
+    try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+      Files.copy(TextWigFileReaderTest.TEST_WIG, os);
+    }
+    assertTrue(TextWigFileReader.isGzip(gzip));
+    assertFalse(BgzfFileChannel.isBgzf(gzip));
+
+    try (WigFileReader wig = WigFileReader.autodetect(gzip)) {
+      assertTrue(wig instanceof TextWigFileReader);
+      assertEquals(dir.resolve("test.wig" + TextWigFileReader.BGZF_EXTENSION), wig.getPath());
+      assertTrue(BgzfFileChannel.isBgzf(wig.getPath()));
+      Interval interval = new Interval("chrI", 1, 15);
+      assertArrayEquals(test.query(interval).getValues(), wig.query(interval).getValues(), 0);
+    }
+  }
+
+}
@@ -0,0 +1,22 @@
+package edu.unc.genomics.io;
+
+import java.nio.file.Files;
+
+import org.junit.Before;
+
+/**
+ * Index the test Wig file with a checkpoint on every line so that queries seek
+ * from checkpoints in the middle of contigs
+ */
+public class TextWigFileReaderDenseIndexTest extends AbstractWigFileReaderTest {
+
+  @Before
+  public void setUp() throws Exception {
+    Files.deleteIfExists(TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
+        + TextWigFileReader.INDEX_EXTENSION));
+    WigIndexOptions options = new WigIndexOptions();
+    options.setCheckpointSpacing(1);
+    test = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options);
+  }
+
+}
@@ -0,0 +1,21 @@
+package edu.unc.genomics.io;
+
+import java.nio.file.Files;
+
+import org.junit.Before;
+
+/**
+ * Index the test Wig file with multiple threads
+ */
+public class TextWigFileReaderParallelIndexTest extends AbstractWigFileReaderTest {
+
+  @Before
+  public void setUp() throws Exception {
+    Files.deleteIfExists(TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
+        + TextWigFileReader.INDEX_EXTENSION));
+    WigIndexOptions options = new WigIndexOptions();
+    options.setIndexThreads(4);
+    test = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options);
+  }
+
+}
@@ -0,0 +1,102 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Interval;
+
+/**
+ * Index the test Wig file with small summary levels so that queries combine
+ * bins from several levels with the ragged edges read from the file
+ */
+public class TextWigFileReaderSummaryTest extends AbstractWigFileReaderTest {
+
+  private static final int[] BIN_SIZES = { 2, 3, 7 };
+
+  @Before
+  public void setUp() throws Exception {
+    Files.deleteIfExists(TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
+        + TextWigFileReader.INDEX_EXTENSION));
+    WigIndexOptions options = new WigIndexOptions();
+    options.setSummaryBinSizes(7, 2, 3);
+    test = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options);
+  }
+
+  @Test
+  public void testSummaryLevels() throws Exception {
+    assertArrayEquals(BIN_SIZES, ((TextWigFileReader) test).getSummaryBinSizes());
+
+    // Reloaded from the index
+    WigIndexOptions options = new WigIndexOptions();
+    options.setSummaryBinSizes(BIN_SIZES);
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options)) {
+      assertArrayEquals(BIN_SIZES, reader.getSummaryBinSizes());
+    }
+
+    // Readers that don't request summaries, or request a subset of them, keep
+    // the existing levels without rewriting the index
+    Path index = TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG.getFileName()
+        + TextWigFileReader.INDEX_EXTENSION);
+    byte[] saved = Files.readAllBytes(index);
+    FileTime modified = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(index, modified);
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG)) {
+      assertArrayEquals(BIN_SIZES, reader.getSummaryBinSizes());
+    }
+    options.setSummaryBinSizes(3);
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options)) {
+      assertArrayEquals(BIN_SIZES, reader.getSummaryBinSizes());
+    }
+    assertEquals(modified, Files.getLastModifiedTime(index));
+    assertArrayEquals(saved, Files.readAllBytes(index));
+
+    // Missing levels are added to the existing ones
+    options.setSummaryBinSizes(2, 5);
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options)) {
+      assertArrayEquals(new int[] { 2, 3, 5, 7 }, reader.getSummaryBinSizes());
+    }
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG)) {
+      assertArrayEquals(new int[] { 2, 3, 5, 7 }, reader.getSummaryBinSizes());
+    }
+  }
+
+  @Test
+  public void testQueryStatsMatchesText() throws Exception {
+    // Compare every interval against a reader (of a copy, with its own index)
+    // that parses the text
+    Path dir = Files.createTempDirectory("summary");
+    Path copy = dir.resolve("test.wig");
+    Files.copy(TextWigFileReaderTest.TEST_WIG, copy);
+    try (TextWigFileReader text = new TextWigFileReader(copy)) {
+      assertEquals(0, text.getSummaryBinSizes().length);
+      for (String chr : test.chromosomes()) {
+        for (int start = test.getChrStart(chr) - 3; start <= test.getChrStop(chr) + 3; start++) {
+          for (int stop = start; stop <= start + 40; stop++) {
+            Interval interval = new Interval(chr, start, stop);
+            SummaryStatistics expected = text.queryStats(interval);
+            SummaryStatistics actual = test.queryStats(interval);
+            assertEquals(interval.toString(), expected.getN(), actual.getN());
+            if (expected.getN() > 0) {
+              assertEquals(expected.getSum(), actual.getSum(), 1e-9);
+              assertEquals(expected.getMin(), actual.getMin(), 0);
+              assertEquals(expected.getMax(), actual.getMax(), 0);
+              assertEquals(expected.getPopulationVariance(), actual.getPopulationVariance(), 1e-9);
+            }
+          }
+        }
+      }
+    } finally {
+      Files.deleteIfExists(copy.resolveSibling(copy.getFileName() + TextWigFileReader.INDEX_EXTENSION));
+      Files.delete(copy);
+      Files.delete(dir);
+    }
+  }
+
+}
@@ -1,9 +1,24 @@
 package edu.unc.genomics.io;
 
+import static org.junit.Assert.*;
+
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
 
 public class TextWigFileReaderTest extends AbstractWigFileReaderTest {
 
@@ -14,4 +29,75 @@ public class TextWigFileReaderTest extends AbstractWigFileReaderTest {
     test = new TextWigFileReader(TEST_WIG);
   }
 
+  @Test
+  public void testBatchStatsReadOnce() throws Exception {
+    // Count the reads of the file by query(Interval) and queryStats(Interval)
+    final int[] reads = new int[1];
+    try (TextWigFileReader reader = new TextWigFileReader(TEST_WIG) {
+      @Override
+      public Contig query(Interval interval) throws IOException, WigFileException {
+        reads[0]++;
+        return super.query(interval);
+      }
+
+      @Override
+      public SummaryStatistics queryStats(Interval interval) throws IOException, WigFileException {
+        reads[0]++;
+        return super.queryStats(interval);
+      }
+    }) {
+      List<Interval> intervals = Arrays.asList(new Interval("chrI", 5, 8), new Interval("chrI", 12, 6),
+          new Interval("chrI", 7, 9), new Interval("chrI", 3, 10));
+      List<SummaryStatistics> stats = reader.queryStats(intervals);
+      assertEquals(1, reads[0]);
+
+      for (int i = 0; i < intervals.size(); i++) {
+        SummaryStatistics expected = reader.queryStats(intervals.get(i));
+        assertEquals(expected.getN(), stats.get(i).getN());
+        assertEquals(expected.getSum(), stats.get(i).getSum(), 0);
+        assertEquals(expected.getMin(), stats.get(i).getMin(), 0);
+        assertEquals(expected.getMax(), stats.get(i).getMax(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentQueries() throws Exception {
+    final List<Interval> intervals = new ArrayList<>();
+    for (String chr : test.chromosomes()) {
+      for (int start = test.getChrStart(chr) - 2; start <= test.getChrStop(chr); start++) {
+        intervals.add(new Interval(chr, start, start + 6));
+        intervals.add(new Interval(chr, start + 6, start));
+      }
+    }
+    final List<float[]> expected = new ArrayList<>();
+    for (Interval interval : intervals) {
+      expected.add(test.query(interval).getValues());
+    }
+
+    // Query a single reader from several threads at once
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int rep = 0; rep < 20; rep++) {
+              for (int i = 0; i < intervals.size(); i++) {
+                assertArrayEquals(expected.get(i), test.query(intervals.get(i)).getValues(), 0);
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
 }
@@ -0,0 +1,77 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.Interval;
+
+public class TextWigFileReaderValueCacheTest extends AbstractWigFileReaderTest {
+
+  @Before
+  public void setUp() throws Exception {
+    try (TextWigFileReader reader = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG)) {
+      reader.buildValueCache();
+    }
+    test = new TextWigFileReader(TextWigFileReaderTest.TEST_WIG);
+  }
+
+  @Test
+  public void testHasValueCache() {
+    assertTrue(((TextWigFileReader) test).hasValueCache());
+    try (TextWigFileReader clone = (TextWigFileReader) test.clone()) {
+      assertTrue(clone.hasValueCache());
+    }
+  }
+
+  @Test
+  public void testOverlappingSpans() throws Exception {
+    // Values at 1-5, 3-7, 5-9 and 7-11, so bp 6 is covered by the second and
+    // third values
+    Path dir = Files.createTempDirectory("cache");
+    Path wig = dir.resolve("overlap.wig");
+    try {
+      Files.write(wig, "fixedStep chrom=chrI start=1 step=2 span=5\n1\n2\n3\n4\n".getBytes(StandardCharsets.US_ASCII));
+      Interval interval = new Interval("chrI", 6, 6);
+      try (TextWigFileReader text = new TextWigFileReader(wig)) {
+        assertEquals(3.0f, text.query(interval).get(6), 0);
+        assertEquals(2, text.queryStats(interval).getN());
+        text.buildValueCache();
+      }
+      try (TextWigFileReader cached = new TextWigFileReader(wig)) {
+        assertTrue(cached.hasValueCache());
+        assertEquals(3.0f, cached.query(interval).get(6), 0);
+        assertEquals(2, cached.queryStats(interval).getN());
+        assertEquals(2.5, cached.queryStats(interval).getMean(), 1e-9);
+      }
+    } finally {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+        for (Path f : files) {
+          Files.delete(f);
+        }
+      }
+      Files.delete(dir);
+    }
+  }
+
+  /**
+   * Queries served from the value cache bypass the block cache
+   */
+  @Override
+  @Test
+  public void testBlockCache() throws WigFileException, IOException {
+    WigBlockCache cache = new WigBlockCache(WigBlockCache.DEFAULT_MAX_BYTES);
+    test.setBlockCache(cache);
+    test.query(new Interval("chrI", 3, 12));
+    assertEquals(0, cache.getMisses());
+    assertEquals(0, cache.numBlocks());
+  }
+
+}
@@ -0,0 +1,123 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsc.genome.TrackHeader;
+import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.util.NumberFormatter;
+
+/**
+ * Write Contigs with WigFileWriter and read them back with TextWigFileReader
+ */
+public class WigFileWriterTest {
+
+  private Path dir;
+  private Path wig;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("writer");
+    wig = dir.resolve("test.wig");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path f : files) {
+        Files.delete(f);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testFormats() throws Exception {
+    float[] dense = { Float.NaN, Float.NaN, 3.0f, 3.0f, Float.NaN, 3.0f, 3.0f, Float.NaN, 4.0f, 4.0f };
+    float[] sparse = { Float.NaN, Float.NaN, 0.1f, Float.NaN, Float.NaN, Float.NaN, Float.POSITIVE_INFINITY,
+        Float.NaN, Float.NaN, Float.NaN };
+    try (WigFileWriter writer = new WigFileWriter(wig, TrackHeader.newWiggle())) {
+      writer.write(new Contig(new Interval("chrI", 10, 19), dense));
+      writer.write(new Contig(new Interval("chrII", 1, 10), sparse));
+      writer.write(new Contig(new Interval("chrIII", 1, 10)));
+    }
+
+    String expected = TrackHeader.newWiggle() + "\n" + "fixedStep chrom=chrI start=12 span=2 step=3\n3\n3\n4\n"
+        + "variableStep chrom=chrII span=1\n3\t0.1\n7\tInf\n";
+    assertEquals(expected, new String(Files.readAllBytes(wig), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testFractionDigits() throws Exception {
+    // By default, the same text as newFormatter()
+    float[] values = { 1.0f / 3, -2.5f, 1234.5678f, -1e-9f };
+    try (WigFileWriter writer = new WigFileWriter(wig)) {
+      writer.write(new Contig(new Interval("chrI", 1, 4), values));
+    }
+
+    StringBuilder expected = new StringBuilder("fixedStep chrom=chrI start=1 span=1 step=1\n");
+    for (float value : values) {
+      expected.append(WigFileWriter.newFormatter().format(value)).append('\n');
+    }
+    assertEquals(expected.toString(), new String(Files.readAllBytes(wig), StandardCharsets.UTF_8));
+
+    try (WigFileWriter writer = new WigFileWriter(wig)) {
+      writer.setMaxFractionDigits(NumberFormatter.SHORTEST);
+      writer.write(new Contig(new Interval("chrI", 1, 4), values));
+    }
+    assertEquals("fixedStep chrom=chrI start=1 span=1 step=1\n0.33333334\n-2.5\n1234.5677\n-0.000000001\n",
+        new String(Files.readAllBytes(wig), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    // Enough values to fill the output buffer several times, which should be
+    // read back exactly
+    Random rng = new Random(9);
+    Contig dense = new Contig(new Interval("chrI", 1, 200000));
+    Contig sparse = new Contig(new Interval("chrII", 1, 200000));
+    for (int bp = 1; bp <= 200000; bp++) {
+      dense.set(bp, (float) rng.nextGaussian() * 100);
+      if (rng.nextInt(10) == 0) {
+        sparse.set(bp, Float.intBitsToFloat(rng.nextInt() & 0x7effffff));
+      }
+    }
+
+    try (WigFileWriter writer = new WigFileWriter(wig)) {
+      writer.setMaxFractionDigits(NumberFormatter.SHORTEST);
+      writer.write(dense);
+      writer.write(sparse);
+      assertFalse(writer.checkError());
+    }
+
+    try (TextWigFileReader reader = new TextWigFileReader(wig)) {
+      for (Contig expected : new Contig[] { dense, sparse }) {
+        Contig actual = reader.query(expected);
+        assertArrayEquals(expected.getValues(), actual.getValues(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testCheckError() throws Exception {
+    WigFileWriter writer = new WigFileWriter(wig);
+    writer.write(new Contig(new Interval("chrI", 1, 2), new float[] { 1, 2 }));
+    assertFalse(writer.checkError());
+    writer.close();
+
+    // Errors are recorded rather than thrown, as with a PrintWriter
+    writer.write(new Contig(new Interval("chrII", 1, 2), new float[] { 1, 2 }));
+    assertTrue(writer.checkError());
+  }
+
+}
@@ -0,0 +1,107 @@
+package edu.unc.genomics.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.util.ChecksumUtils;
+import edu.unc.genomics.util.StandardFingerprint;
+
+public class WigIndexTest {
+
+  private static final Path INDEX = TextWigFileReaderTest.TEST_WIG.resolveSibling(TextWigFileReaderTest.TEST_WIG
+      .getFileName() + TextWigFileReader.INDEX_EXTENSION);
+
+  @Before
+  public void setUp() throws Exception {
+    Files.deleteIfExists(INDEX);
+    new TextWigFileReader(TextWigFileReaderTest.TEST_WIG).close();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(INDEX);
+  }
+
+  @Test
+  public void testLoad() throws IOException, WigFileException {
+    WigIndex index = WigIndex.load(INDEX);
+    assertEquals(StandardFingerprint.SAMPLED.getId(), index.getFingerprintId());
+    assertEquals(StandardFingerprint.SAMPLED.compute(TextWigFileReaderTest.TEST_WIG), index.getChecksum());
+    assertEquals(7.677, index.getStats().getMean(), 1e-3);
+    assertEquals(8.413, Math.sqrt(index.getStats().getPopulationVariance()), 1e-3);
+    assertEquals(3, index.getContigs().size());
+
+    List<ContigIndex> chrI = index.getContigs().get("chrI").getContigs();
+    assertEquals(2, chrI.size());
+    assertEquals("fixedStep chrom=chrI start=1 span=1 step=1", chrI.get(0).toOutput());
+    assertEquals(40, chrI.get(0).getStartLine());
+    assertEquals(1, chrI.get(0).numCheckpoints());
+    assertEquals(1, chrI.get(0).getCheckpointBP(0));
+  }
+
+  @Test
+  public void testFingerprintStrategy() throws IOException, WigFileException {
+    // An index built with a different fingerprint strategy is regenerated
+    WigIndexOptions options = new WigIndexOptions();
+    options.setFingerprint(StandardFingerprint.PARALLEL_CRC32);
+    new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options).close();
+    WigIndex index = WigIndex.load(INDEX);
+    assertEquals(StandardFingerprint.CRC32.getId(), index.getFingerprintId());
+    assertEquals(ChecksumUtils.crc32(TextWigFileReaderTest.TEST_WIG), index.getChecksum());
+
+    // and the parallel indexer's CRC32 is reused
+    Files.delete(INDEX);
+    options.setIndexThreads(2);
+    options.setFingerprint(StandardFingerprint.CRC32);
+    new TextWigFileReader(TextWigFileReaderTest.TEST_WIG, options).close();
+    assertEquals(ChecksumUtils.crc32(TextWigFileReaderTest.TEST_WIG), WigIndex.load(INDEX).getChecksum());
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException, WigFileException {
+    WigIndex index = WigIndex.load(INDEX);
+    Path copy = INDEX.resolveSibling("copy" + TextWigFileReader.INDEX_EXTENSION);
+    try {
+      index.write(copy);
+      assertArrayEquals(Files.readAllBytes(INDEX), Files.readAllBytes(copy));
+    } finally {
+      Files.deleteIfExists(copy);
+    }
+  }
+
+  @Test
+  public void testSkipsUnknownSections() throws IOException, WigFileException {
+    ByteBuffer section = ByteBuffer.allocate(12 + 5);
+    section.putInt(0x4e455721).putLong(5).put(new byte[] { 1, 2, 3, 4, 5 });
+    Files.write(INDEX, section.array(), StandardOpenOption.APPEND);
+    WigIndex index = WigIndex.load(INDEX);
+    assertEquals(3, index.getContigs().size());
+  }
+
+  @Test(expected = WigFileException.class)
+  public void testRejectsNewerMajorVersion() throws IOException, WigFileException {
+    byte[] bytes = Files.readAllBytes(INDEX);
+    ByteBuffer.wrap(bytes).putShort(4, (short) (WigIndex.MAJOR_VERSION + 1));
+    Files.write(INDEX, bytes);
+    WigIndex.load(INDEX);
+  }
+
+  @Test(expected = WigFileException.class)
+  public void testRejectsTruncatedIndex() throws IOException, WigFileException {
+    byte[] bytes = Files.readAllBytes(INDEX);
+    Files.write(INDEX, Arrays.copyOf(bytes, bytes.length - 7));
+    WigIndex.load(INDEX);
+  }
+
+}
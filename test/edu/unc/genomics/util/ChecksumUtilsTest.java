@@ -3,8 +3,11 @@ package edu.unc.genomics.util;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.CRC32;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -29,4 +32,52 @@ public class ChecksumUtilsTest {
     assertEquals(2455014470L, ChecksumUtils.crc32(TEST));
   }
 
+  @Test
+  public void testCrc32Combine() throws IOException {
+    byte[] data = Files.readAllBytes(TEST);
+    for (int split = 0; split <= data.length; split += 7) {
+      CRC32 crc1 = new CRC32();
+      crc1.update(data, 0, split);
+      CRC32 crc2 = new CRC32();
+      crc2.update(data, split, data.length - split);
+      assertEquals(2455014470L, ChecksumUtils.crc32Combine(crc1.getValue(), crc2.getValue(), data.length - split));
+    }
+  }
+
+  @Test
+  public void testParallelCrc32() throws IOException {
+    assertEquals(2455014470L, ChecksumUtils.crc32(TEST, 4));
+  }
+
+  @Test
+  public void testSampled() throws IOException {
+    Path tmp = Files.createTempFile("sampled", ".txt");
+    try {
+      byte[] data = new byte[1_000_000];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      Files.write(tmp, data);
+      FileTime mtime = Files.getLastModifiedTime(tmp);
+      long fingerprint = ChecksumUtils.sampled(tmp);
+      assertEquals(fingerprint, ChecksumUtils.sampled(tmp));
+
+      // Changing the last block changes the fingerprint
+      data[data.length - 1]++;
+      Files.write(tmp, data);
+      Files.setLastModifiedTime(tmp, mtime);
+      assertTrue(fingerprint != ChecksumUtils.sampled(tmp));
+      data[data.length - 1]--;
+      Files.write(tmp, data);
+      Files.setLastModifiedTime(tmp, mtime);
+      assertEquals(fingerprint, ChecksumUtils.sampled(tmp));
+
+      // As does changing the modification time
+      Files.setLastModifiedTime(tmp, FileTime.fromMillis(mtime.toMillis() + 1000));
+      assertTrue(fingerprint != ChecksumUtils.sampled(tmp));
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
 }
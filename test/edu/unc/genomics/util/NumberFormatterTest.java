@@ -0,0 +1,86 @@
+package edu.unc.genomics.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.unc.genomics.io.WigFileWriter;
+
+public class NumberFormatterTest {
+
+  private static final float[] FLOATS = { 0, -0.0f, 1, -1, 0.1f, 0.7f, -2.5f, 3.14159f, 1e-3f, 1.5e-8f, 5e-9f,
+      -5e-9f, 1e-10f, 123456.79f, 16777216, 16777217, 1e10f, 1e20f, -3.4028235e38f, Float.MAX_VALUE,
+      Float.MIN_VALUE, Float.MIN_NORMAL, 1.0f / 3, 2.0f / 3, 0.125f, 0.000125f, 12.345678f, Float.NaN,
+      Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+
+  private final byte[] buffer = new byte[NumberFormatter.MAX_FLOAT_LENGTH];
+
+  @Test
+  public void testFormatInt() {
+    for (int value : new int[] { 0, 7, -7, 10, 123456789, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+      int end = NumberFormatter.formatInt(value, buffer, 0);
+      assertEquals(Integer.toString(value), new String(buffer, 0, end, StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void testShortest() {
+    for (float value : FLOATS) {
+      assertRoundTrip(value);
+    }
+    assertEquals("0.1", shortest(0.1f));
+    assertEquals("-2.5", shortest(-2.5f));
+    assertEquals("0.0000000001", shortest(1e-10f));
+    assertEquals("-0", shortest(-0.0f));
+    assertEquals("NaN", shortest(Float.NaN));
+    assertEquals("Inf", shortest(Float.POSITIVE_INFINITY));
+    assertEquals("-Inf", shortest(Float.NEGATIVE_INFINITY));
+  }
+
+  @Test
+  public void testFixedPrecision() {
+    // Same text as the DecimalFormat used for Wig files
+    DecimalFormat formatter = WigFileWriter.newFormatter();
+    for (float value : FLOATS) {
+      assertEquals(formatter.format(value), fixed(value, 8));
+    }
+    assertEquals("3.14", fixed(3.14159f, 2));
+    assertEquals("0.12", fixed(0.125f, 2));
+    assertEquals("2", fixed(2.5f, 0));
+  }
+
+  @Test
+  public void testRandomValues() {
+    Random rng = new Random(42);
+    DecimalFormat formatter = WigFileWriter.newFormatter();
+    for (int i = 0; i < 100_000; i++) {
+      float value = (float) ((rng.nextDouble() - 0.5) * Math.pow(10, rng.nextInt(20) - 10));
+      assertRoundTrip(value);
+      assertEquals(formatter.format(value), fixed(value, 8));
+      assertRoundTrip(Float.intBitsToFloat(rng.nextInt()));
+    }
+  }
+
+  private void assertRoundTrip(float value) {
+    String s = shortest(value);
+    assertFalse(s, s.contains("E"));
+    assertEquals(s, Float.floatToIntBits(value), Float.floatToIntBits(Float.parseFloat(s.replace("Inf", "Infinity"))));
+    assertEquals(s, Float.floatToIntBits(value),
+        Float.floatToIntBits(NumberParser.parseFloat(buffer, 0, s.length())));
+  }
+
+  private String shortest(float value) {
+    int end = NumberFormatter.formatFloat(value, buffer, 0);
+    return new String(buffer, 0, end, StandardCharsets.US_ASCII);
+  }
+
+  private String fixed(float value, int maxFractionDigits) {
+    int end = NumberFormatter.formatFloat(value, maxFractionDigits, buffer, 0);
+    return new String(buffer, 0, end, StandardCharsets.US_ASCII);
+  }
+
+}
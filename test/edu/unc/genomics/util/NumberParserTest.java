@@ -0,0 +1,115 @@
+package edu.unc.genomics.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NumberParserTest {
+
+  private static final String[] FLOATS = { "0", "-0", "+0", "0.0", "1", "-1", "+1", "3.14159", "-2.5", "0.001",
+      ".5", "5.", "1e3", "1E3", "1e-3", "-1.5e+2", "2.5e-10", "123456789", "16777217", "0.1", "0.7", "1.17549435E-38",
+      "3.4028235E38", "1e39", "1e-50", "4.9e-324", "1.7976931348623157E308", "12345678901234567890.123",
+      "0.000000000000000000001", "000123.4500", "  42.0  ", "\t7\t", "9007199254740993", "1.0000000000000002",
+      "Infinity", "-Infinity", "NaN", "0x1.8p1", "1.5f", "2d" };
+
+  private static final String[] INVALID = { "", " ", "-", ".", "e5", "1e", "1.2.3", "abc", "1,5", "--1", "Inf5",
+      "nan" };
+
+  @Test
+  public void testParseDouble() {
+    for (String s : FLOATS) {
+      assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)), Double.doubleToLongBits(parseDouble(s)));
+    }
+  }
+
+  @Test
+  public void testParseFloat() {
+    for (String s : FLOATS) {
+      assertEquals(s, Float.floatToIntBits(Float.parseFloat(s)), Float.floatToIntBits(parseFloat(s)));
+    }
+  }
+
+  @Test
+  public void testRandomValues() {
+    Random rng = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      double d = (rng.nextDouble() - 0.5) * Math.pow(10, rng.nextInt(20) - 10);
+      for (String s : new String[] { Double.toString(d), Float.toString((float) d), String.format("%.3f", d),
+          String.format("%.6g", d) }) {
+        assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)), Double.doubleToLongBits(parseDouble(s)));
+        assertEquals(s, Float.floatToIntBits(Float.parseFloat(s)), Float.floatToIntBits(parseFloat(s)));
+      }
+    }
+  }
+
+  @Test
+  public void testInf() {
+    assertEquals(Double.POSITIVE_INFINITY, parseDouble("Inf"), 0);
+    assertEquals(Double.NEGATIVE_INFINITY, parseDouble("-Inf"), 0);
+    assertEquals(Float.POSITIVE_INFINITY, parseFloat("+Inf"), 0);
+  }
+
+  @Test
+  public void testInvalid() {
+    for (String s : INVALID) {
+      try {
+        parseDouble(s);
+        fail("Parsed invalid double: " + s);
+      } catch (NumberFormatException e) {
+      }
+      try {
+        parseFloat(s);
+        fail("Parsed invalid float: " + s);
+      } catch (NumberFormatException e) {
+      }
+    }
+  }
+
+  @Test
+  public void testParseInt() {
+    String[] valid = { "0", "-0", "+7", "42", "-42", "007", "2147483647", "-2147483648", "0000000000001" };
+    for (String s : valid) {
+      assertEquals(s, Integer.parseInt(s), parseInt(s));
+    }
+
+    String[] invalid = { "", "-", "+", "2147483648", "-2147483649", "99999999999", "1.0", " 1", "1e3", "abc" };
+    for (String s : invalid) {
+      try {
+        parseInt(s);
+        fail("Parsed invalid int: " + s);
+      } catch (NumberFormatException e) {
+      }
+    }
+  }
+
+  @Test
+  public void testSubrange() {
+    byte[] b = "chr1\t1234\t5.75\n".getBytes(StandardCharsets.US_ASCII);
+    assertEquals(1234, NumberParser.parseInt(b, 5, 9));
+    assertEquals(5.75, NumberParser.parseDouble(b, 10, 14), 0);
+    assertEquals(5.75f, NumberParser.parseFloat(b, 10, 14), 0);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static int parseInt(String s) {
+    byte[] b = bytes(s);
+    return NumberParser.parseInt(b, 0, b.length);
+  }
+
+  private static float parseFloat(String s) {
+    byte[] b = bytes(s);
+    return NumberParser.parseFloat(b, 0, b.length);
+  }
+
+  private static double parseDouble(String s) {
+    byte[] b = bytes(s);
+    return NumberParser.parseDouble(b, 0, b.length);
+  }
+
+}
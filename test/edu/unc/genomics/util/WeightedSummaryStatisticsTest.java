@@ -0,0 +1,180 @@
+package edu.unc.genomics.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeightedSummaryStatisticsTest {
+
+  private static final double[] VALUES = { 3.5, -1, 0, 12.25, 7, 7, 1e-3, 42 };
+  private static final int[] WEIGHTS = { 1, 4, 2, 1, 10, 3, 1, 5 };
+
+  private SummaryStatistics expected;
+
+  @Before
+  public void setUp() throws Exception {
+    expected = new SummaryStatistics();
+    for (int i = 0; i < VALUES.length; i++) {
+      for (int j = 0; j < WEIGHTS[i]; j++) {
+        expected.addValue(VALUES[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    assertEquals(0, stats.getN());
+    assertEquals(0, stats.getSum(), 0);
+    assertTrue(Double.isNaN(stats.getMean()));
+    assertTrue(Double.isNaN(stats.getVariance()));
+    assertTrue(Double.isNaN(stats.getMin()));
+    assertTrue(Double.isNaN(stats.getMax()));
+  }
+
+  @Test
+  public void testAddValue() {
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    for (int i = 0; i < VALUES.length; i++) {
+      stats.addValue(VALUES[i], WEIGHTS[i]);
+    }
+    assertMatches(stats);
+  }
+
+  @Test
+  public void testCombine() {
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    for (int i = 0; i < VALUES.length; i += 2) {
+      WeightedSummaryStatistics part = new WeightedSummaryStatistics();
+      part.addValue(VALUES[i], WEIGHTS[i]);
+      part.addValue(VALUES[i + 1], WEIGHTS[i + 1]);
+      stats.combine(part);
+    }
+    assertMatches(stats);
+  }
+
+  @Test
+  public void testCombineWeighted() {
+    WeightedSummaryStatistics part = new WeightedSummaryStatistics();
+    part.addValue(2);
+    part.addValue(5);
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    stats.addValue(1);
+    stats.combine(part, 3);
+
+    SummaryStatistics expected = new SummaryStatistics();
+    for (double v : new double[] { 1, 2, 2, 2, 5, 5, 5 }) {
+      expected.addValue(v);
+    }
+    assertEquals(expected.getN(), stats.getN());
+    assertEquals(expected.getMean(), stats.getMean(), 1e-12);
+    assertEquals(expected.getVariance(), stats.getVariance(), 1e-12);
+  }
+
+  @Test
+  public void testOf() {
+    WeightedSummaryStatistics stats = WeightedSummaryStatistics.of(expected.getN(), expected.getSum(),
+        expected.getSecondMoment(), expected.getMin(), expected.getMax());
+    assertMatches(stats);
+  }
+
+  @Test
+  public void testAddValues() {
+    // Non-finite values are skipped, and there are fewer than 4 values left
+    // after the unrolled loop
+    float[] values = { Float.NaN, 2, 5, Float.POSITIVE_INFINITY, 1, -3, Float.NaN, 8, 0.5f, 1e6f, Float.NEGATIVE_INFINITY };
+    SummaryStatistics expected = new SummaryStatistics();
+    for (float v : values) {
+      if (!Float.isNaN(v) && !Float.isInfinite(v)) {
+        for (int j = 0; j < 3; j++) {
+          expected.addValue(v);
+        }
+      }
+    }
+
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    stats.addValues(values, 0, values.length, 3);
+    assertEquals(expected.getN(), stats.getN());
+    assertEquals(expected.getSum(), stats.getSum(), 1e-6);
+    assertEquals(expected.getMean(), stats.getMean(), 1e-9);
+    assertEquals(expected.getVariance(), stats.getVariance(), 1e-3);
+    assertEquals(expected.getMin(), stats.getMin(), 0);
+    assertEquals(expected.getMax(), stats.getMax(), 0);
+
+    WeightedSummaryStatistics empty = new WeightedSummaryStatistics();
+    empty.addValues(new float[] { Float.NaN, Float.NaN }, 0, 2, 1);
+    assertEquals(0, empty.getN());
+    assertTrue(Double.isNaN(empty.getMean()));
+  }
+
+  @Test
+  public void testOfParallel() {
+    Random rng = new Random(7);
+    float[] values = new float[(5 << 20) / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (rng.nextInt(10) == 0) ? Float.NaN : 1000 + (float) rng.nextGaussian();
+    }
+
+    WeightedSummaryStatistics serial = WeightedSummaryStatistics.of(values, 2, 1);
+    WeightedSummaryStatistics parallel = WeightedSummaryStatistics.of(values, 2, 4);
+    assertEquals(serial.getN(), parallel.getN());
+    assertEquals(serial.getSum(), parallel.getSum(), 1e-6 * serial.getSum());
+    assertEquals(serial.getMean(), parallel.getMean(), 1e-9);
+    assertEquals(1, parallel.getVariance(), 1e-2);
+    assertEquals(serial.getVariance(), parallel.getVariance(), 1e-9);
+    assertEquals(serial.getMin(), parallel.getMin(), 0);
+    assertEquals(serial.getMax(), parallel.getMax(), 0);
+  }
+
+  @Test
+  public void testSumOfLogs() {
+    // Large and small values, so the product of the values is normalized
+    Random rng = new Random(11);
+    float[] values = new float[1003];
+    SummaryStatistics expected = new SummaryStatistics();
+    WeightedSummaryStatistics weighted = new WeightedSummaryStatistics();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (float) Math.exp(20 * rng.nextGaussian());
+      weighted.addValue(values[i], 2);
+      expected.addValue(values[i]);
+      expected.addValue(values[i]);
+    }
+    WeightedSummaryStatistics stats = new WeightedSummaryStatistics();
+    stats.addValues(values, 0, values.length, 2);
+    for (SummaryStatistics actual : new SummaryStatistics[] { weighted, stats }) {
+      assertEquals(expected.getSumOfLogs(), actual.getSumOfLogs(), 1e-9 * Math.abs(expected.getSumOfLogs()));
+      assertEquals(expected.getGeometricMean(), actual.getGeometricMean(), 1e-9 * expected.getGeometricMean());
+    }
+
+    // Like SummaryStatistics, the sum of logs is -Infinity with a value of 0,
+    // and NaN with a negative value
+    stats.addValues(new float[] { 3, 0, 5 }, 0, 3, 1);
+    assertEquals(Double.NEGATIVE_INFINITY, stats.getSumOfLogs(), 0);
+    assertEquals(0, stats.getGeometricMean(), 0);
+    stats.addValue(-2, 1);
+    assertTrue(Double.isNaN(stats.getSumOfLogs()));
+    WeightedSummaryStatistics negative = new WeightedSummaryStatistics();
+    negative.addValues(new float[] { 3, -1, 5 }, 0, 3, 1);
+    assertTrue(Double.isNaN(negative.getGeometricMean()));
+
+    // A precomputed summary doesn't have a sum of logs
+    assertTrue(Double.isNaN(WeightedSummaryStatistics.of(2, 3, 0.5, 1, 2).getGeometricMean()));
+    assertTrue(Double.isNaN(new WeightedSummaryStatistics().getGeometricMean()));
+  }
+
+  private void assertMatches(SummaryStatistics stats) {
+    assertEquals(expected.getN(), stats.getN());
+    assertEquals(expected.getSum(), stats.getSum(), 1e-9);
+    assertEquals(expected.getSumsq(), stats.getSumsq(), 1e-9);
+    assertEquals(expected.getMean(), stats.getMean(), 1e-12);
+    assertEquals(expected.getVariance(), stats.getVariance(), 1e-9);
+    assertEquals(expected.getPopulationVariance(), stats.getPopulationVariance(), 1e-9);
+    assertEquals(expected.getMin(), stats.getMin(), 0);
+    assertEquals(expected.getMax(), stats.getMax(), 0);
+  }
+
+}